@@ -35,6 +35,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -46,6 +47,7 @@ import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.server.AgentListCursor;
 import org.hyperic.hq.agent.stats.AgentStatsCollector;
 
 /**
@@ -65,7 +67,7 @@ import org.hyperic.hq.agent.stats.AgentStatsCollector;
  * Index of the next record
  */
 
-public class DiskList {
+public class DiskList implements RecordList {
     private static final int IDX_REC_LEN = 1 + 8 + 8;
     private static final Log log = LogFactory.getLog(DiskList.class.getName());
 
@@ -290,46 +292,159 @@ public class DiskList {
         }
         final long start = now();
         bOs.write(this.padBytes, 0, this.recordSize - bOs.size());
-        byte[] bytes = bOs.toByteArray();
+        appendRecords(bOs.toByteArray(), 1, start);
+    }
+
+    /**
+     * Add a binary record to the list of data being stored in the DiskList. Records shorter than the record size are
+     * padded with zeros. The data is not retained, so the caller may reuse the array.
+     * 
+     * @param data Data to add to the end of the list
+     */
+    public void addToList(byte[] data)
+        throws IOException {
+        if (this.closed) {
+            throw new IOException("Datafile already closed");
+        }
+        if (data.length > this.recordSize) {
+            throw new IOException("Data length(" + data.length + ") exceeds " +
+                        "maximum record length(" + this.recordSize + ")");
+        }
+        final long start = now();
+        byte[] bytes = data;
+        if (data.length < this.recordSize) {
+            bytes = new byte[this.recordSize];
+            System.arraycopy(data, 0, bytes, 0, data.length);
+        }
+        appendRecords(bytes, 1, start);
+    }
+
+    /**
+     * Add the strings to the end of the list, in the order of the collection. The records are written with one
+     * sequential write of the data and index files for each run of contiguous free blocks, while holding the list lock
+     * once for the whole batch.
+     * 
+     * @param data Data to add to the end of the list
+     */
+    public void addToList(Collection<String> data)
+        throws IOException {
+        if (this.closed) {
+            throw new IOException("Datafile already closed");
+        }
+        if (data.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream(this.recordSize * data.size());
+        DataOutputStream dOs = new DataOutputStream(bOs);
+        for (String rec : data) {
+            int recStart = bOs.size();
+            dOs.writeUTF(rec);
+            int len = bOs.size() - recStart;
+            if (len > this.recordSize) {
+                throw new IOException("Data length(" + len + ") exceeds " +
+                            "maximum record length(" + this.recordSize + ")");
+            }
+            bOs.write(this.padBytes, 0, this.recordSize - len);
+        }
+        final long start = now();
+        appendRecords(bOs.toByteArray(), data.size(), start);
+    }
+
+    /**
+     * Add binary records to the end of the list, written as in {@link #addToList(Collection)}.
+     * 
+     * @param records consecutive records of recordLength bytes each. Records shorter than the record size are padded
+     *            with zeros. The data is not retained, so the caller may reuse the array.
+     * @param recordLength the length of each record in the array
+     */
+    public void addToList(byte[] records,
+                          int recordLength)
+        throws IOException {
+        if (this.closed) {
+            throw new IOException("Datafile already closed");
+        }
+        if (recordLength > this.recordSize) {
+            throw new IOException("Data length(" + recordLength + ") exceeds " +
+                        "maximum record length(" + this.recordSize + ")");
+        }
+        if ((recordLength <= 0) || (records.length % recordLength != 0)) {
+            throw new IllegalArgumentException("Array length(" + records.length + ") is not a multiple of " +
+                        "record length(" + recordLength + ")");
+        }
+        int num = records.length / recordLength;
+        if (num == 0) {
+            return;
+        }
+        final long start = now();
+        byte[] bytes = records;
+        if (recordLength < this.recordSize) {
+            bytes = new byte[num * this.recordSize];
+            for (int i = 0; i < num; i++) {
+                System.arraycopy(records, i * recordLength, bytes, i * this.recordSize, recordLength);
+            }
+        }
+        appendRecords(bytes, num, start);
+    }
+
+    /**
+     * Write num records of exactly recordSize bytes each at the end of the list. Free blocks are used first, and each
+     * run of contiguous blocks is written with a single seek and write to each file. As with a single record, the data
+     * and index of the new records are written before the previous 'last' record is linked to them, so a crash in the
+     * middle leaves the list as it was.
+     */
+    private void appendRecords(byte[] bytes,
+                               int num,
+                               long start)
+        throws IOException {
+        ByteBuffer idxBuf = ByteBuffer.allocate(num * IDX_REC_LEN);
 
         synchronized (this.dataFile) {
-            Long firstFreeL;
-            long firstFree;
+            long[] blocks = new long[num];
+            long end = this.indexFile.length() / IDX_REC_LEN;
 
             this.modNum = this.rand.nextInt();
 
-            try {
-                firstFreeL = (Long) this.freeList.first();
-                firstFree = firstFreeL.longValue();
-                this.freeList.remove(firstFreeL);
-            } catch (NoSuchElementException exc) {
-                // Else we're adding to the end
-                firstFree = this.indexFile.length() / IDX_REC_LEN;
+            for (int i = 0; i < num; i++) {
+                if (this.freeList.isEmpty()) {
+                    // Else we're adding to the end
+                    blocks[i] = end++;
+                } else {
+                    Long firstFreeL = (Long) this.freeList.first();
+                    this.freeList.remove(firstFreeL);
+                    blocks[i] = firstFreeL.longValue();
+                }
             }
 
-            // Write the record to the data file
-            this.dataFile.seek(firstFree * this.recordSize);
-            this.dataFile.write(bytes);
-
-            bOs.reset();
-            dOs.writeBoolean(true); // Is Used
-            dOs.writeLong(this.lastRec); // Previous record idx
-            dOs.writeLong(-1); // Next record idx
+            for (int i = 0; i < num; i++) {
+                idxBuf.put((byte) 1); // Is Used
+                idxBuf.putLong((i == 0) ? this.lastRec : blocks[i - 1]); // Previous record idx
+                idxBuf.putLong((i == num - 1) ? -1 : blocks[i + 1]); // Next record idx
+            }
+            byte[] idxBytes = idxBuf.array();
 
-            // Write the index for the record we just made
-            this.indexFile.seek(firstFree * IDX_REC_LEN);
-            bytes = bOs.toByteArray();
-            this.indexFile.write(bytes, 0, bytes.length);
+            // Write the records and their index, one run of contiguous blocks at a time
+            int runStart = 0;
+            for (int i = 1; i <= num; i++) {
+                if ((i < num) && (blocks[i] == blocks[i - 1] + 1)) {
+                    continue;
+                }
+                int runLength = i - runStart;
+                this.dataFile.seek(blocks[runStart] * this.recordSize);
+                this.dataFile.write(bytes, runStart * this.recordSize, runLength * this.recordSize);
+                this.indexFile.seek(blocks[runStart] * IDX_REC_LEN);
+                this.indexFile.write(idxBytes, runStart * IDX_REC_LEN, runLength * IDX_REC_LEN);
+                runStart = i;
+            }
 
             // Update the previous 'last' record to point to us
             if (this.lastRec != -1) {
                 this.indexFile.seek((this.lastRec * IDX_REC_LEN) + 1 + 8);
-                this.indexFile.writeLong(firstFree);
+                this.indexFile.writeLong(blocks[0]);
             }
 
-            this.lastRec = firstFree;
+            this.lastRec = blocks[num - 1];
             if (this.firstRec == -1) {
-                this.firstRec = firstFree;
+                this.firstRec = blocks[0];
             }
         }
 
@@ -427,7 +542,32 @@ public class DiskList {
         }
     }
 
+    /**
+     * Remove a record from the list.
+     * 
+     * @param recNo the position of the record in the list, the head being 0
+     */
     public void removeRecord(long recNo)
+        throws IOException {
+        if (recNo < 0) {
+            throw new IllegalArgumentException("IDX must be positive");
+        }
+        synchronized (this.dataFile) {
+            long cur = this.firstRec;
+            while ((cur != -1) && (recNo-- > 0)) {
+                this.indexFile.seek((cur * IDX_REC_LEN) + 1 + 8);
+                cur = this.indexFile.readLong();
+            }
+            if (cur != -1) {
+                removeIndex(cur);
+            }
+        }
+    }
+
+    /**
+     * Remove the record stored at an index of the index file.
+     */
+    private void removeIndex(long recNo)
         throws IOException
     {
         if (recNo < 0) {
@@ -498,6 +638,85 @@ public class DiskList {
         }
     }
 
+    /**
+     * @return the number of records in the list, counted from the index file and the free records
+     */
+    public long size()
+        throws IOException {
+        if (this.closed) {
+            throw new IOException("Datafile already closed");
+        }
+        synchronized (this.dataFile) {
+            if (this.firstRec == -1) {
+                return 0;
+            }
+            return (this.indexFile.length() / IDX_REC_LEN) - this.freeList.size();
+        }
+    }
+
+    /**
+     * Remove the first records of the list, holding the list lock once for the whole batch.
+     * 
+     * @param num the number of records to remove
+     * @return the number of records removed, less than num if the list was shorter
+     */
+    public int removeFirst(int num)
+        throws IOException {
+        if (this.closed) {
+            throw new IOException("Datafile already closed");
+        }
+        final long start = now();
+        int removed = 0;
+
+        synchronized (this.dataFile) {
+            if ((num <= 0) || (this.firstRec == -1)) {
+                return 0;
+            }
+            this.modNum = this.rand.nextInt();
+
+            long used = (this.indexFile.length() / IDX_REC_LEN) - this.freeList.size();
+            long[] recs = new long[(int) Math.min(num, used)];
+            long cur = this.firstRec;
+            while ((removed < recs.length) && (cur != -1)) {
+                recs[removed++] = cur;
+                this.indexFile.seek((cur * IDX_REC_LEN) + 1 + 8);
+                cur = this.indexFile.readLong();
+            }
+
+            // Make the remaining head the first record before releasing the removed ones, as removeIndex() does
+            if (cur == -1) {
+                this.firstRec = -1;
+                this.lastRec = -1;
+            } else {
+                this.indexFile.seek((cur * IDX_REC_LEN) + 1);
+                this.indexFile.writeLong(-1);
+                this.firstRec = cur;
+            }
+
+            for (int i = 0; i < removed; i++) {
+                this.indexFile.seek(recs[i] * IDX_REC_LEN);
+                this.indexFile.writeBoolean(false);
+                this.freeList.add(new Long(recs[i]));
+            }
+        }
+
+        long length = this.dataFile.length();
+        long percFree = this.getDataFileFreePercentage();
+        if ((length > this.checkSize) &&
+                    (percFree > this.checkPerc)) {
+            this.doMaintenence();
+        }
+        final long duration = now() - start;
+        statsCollector.addStat(duration, DISK_LIST_DISK_ITERATOR_REMOVE_TIME);
+        return removed;
+    }
+
+    /**
+     * Records are written through to the data and index files, so there is nothing to flush.
+     */
+    public void flush() {
+    }
+
     /**
      * Close the DiskList. All subsequent methods will result in an IOException being thrown.
      */
@@ -564,9 +783,7 @@ public class DiskList {
         deleteAllRecords();
 
         this.recordSize = realRecSize;
-        for (String rec : records) {
-            addToList(rec);
-        }
+        addToList(records);
     }
 
     public static class DiskListIterator
@@ -639,7 +856,7 @@ public class DiskList {
                 }
 
                 try {
-                    this.diskList.removeRecord(this.curIdx);
+                    this.diskList.removeIndex(this.curIdx);
                 } catch (IOException exc) {
                     log.error("IOException while removing record");
                     if (log.isDebugEnabled()) {
@@ -655,6 +872,114 @@ public class DiskList {
         }
     }
 
+    /**
+     * A cursor over the records of a list holding binary records. Each record is read into the same buffer, so its
+     * values can be read as primitives without allocating.
+     */
+    public static class DiskListCursor
+                implements AgentListCursor
+    {
+        private final DiskList diskList; // Pointer back to the creating DiskList
+        private final byte[] buf;
+        private final ByteBuffer view;
+        private long nextIdx; // Next index to read (or -1)
+        private long curIdx;
+        private boolean calledNext;
+        private int modNum;
+
+        private DiskListCursor(DiskList diskList,
+                               long nextIdx,
+                               int modNum)
+        {
+            this.diskList = diskList;
+            this.buf = new byte[diskList.recordSize];
+            this.view = ByteBuffer.wrap(this.buf);
+            this.nextIdx = nextIdx;
+            this.curIdx = -1;
+            this.calledNext = false;
+            this.modNum = modNum;
+        }
+
+        public boolean hasNext() {
+            return this.nextIdx != -1;
+        }
+
+        public boolean next()
+            throws IOException {
+            if (this.nextIdx == -1) {
+                this.calledNext = false;
+                return false;
+            }
+
+            final long start = now();
+            this.curIdx = this.nextIdx;
+            synchronized (this.diskList.dataFile) {
+                if (this.diskList.modNum != this.modNum) {
+                    throw new ConcurrentModificationException();
+                }
+                this.diskList.dataFile.seek(this.curIdx * this.diskList.recordSize);
+                this.diskList.dataFile.readFully(this.buf);
+
+                this.diskList.indexFile.seek((this.curIdx * IDX_REC_LEN) + 1 + 8);
+                this.nextIdx = this.diskList.indexFile.readLong();
+            }
+            statsCollector.addStat(now() - start, DISK_LIST_READ_RECORD_TIME);
+
+            this.calledNext = true;
+            return true;
+        }
+
+        public int getRecordSize() {
+            return this.buf.length;
+        }
+
+        /**
+         * @return the raw data of the current record, overwritten by the next call to next()
+         */
+        byte[] getRecord() {
+            return this.buf;
+        }
+
+        public long getLong(int offset) {
+            return this.view.getLong(offset);
+        }
+
+        public double getDouble(int offset) {
+            return this.view.getDouble(offset);
+        }
+
+        public void remove()
+            throws IOException {
+            if (!this.calledNext) {
+                throw new IllegalStateException("remove() called without first calling next()");
+            }
+
+            this.calledNext = false;
+            final long start = now();
+
+            synchronized (this.diskList.dataFile) {
+                if (this.diskList.modNum != this.modNum) {
+                    throw new ConcurrentModificationException();
+                }
+                this.diskList.removeIndex(this.curIdx);
+                this.modNum = this.diskList.modNum;
+            }
+            statsCollector.addStat(now() - start, DISK_LIST_DISK_ITERATOR_REMOVE_TIME);
+        }
+    }
+
+    /**
+     * @return a cursor over the binary records of the list, or null if the list has no elements
+     */
+    public DiskListCursor getListCursor() {
+        synchronized (this.dataFile) {
+            if (this.firstRec == -1) {
+                return null;
+            }
+            return new DiskListCursor(this, this.firstRec, this.modNum);
+        }
+    }
+
     public Iterator<String> getListIterator() {
         synchronized (this.dataFile) {
             // XXX -- This is broken, and is used to satisfy a lame
@@ -0,0 +1,125 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.hyperic.hq.agent.server.AgentListCursor;
+
+/**
+ * A list of fixed size records on disk, as used by the AgentDListProvider. Records are added to the end of the list,
+ * and are usually removed from its head.
+ */
+public interface RecordList {
+
+    /**
+     * Add the string to the end of the list.
+     */
+    public void addToList(String data)
+        throws IOException;
+
+    /**
+     * Add a binary record to the end of the list. Records shorter than the record size are padded with zeros.
+     */
+    public void addToList(byte[] data)
+        throws IOException;
+
+    /**
+     * Add the strings to the end of the list, in the order of the collection, as one batch.
+     */
+    public void addToList(Collection<String> data)
+        throws IOException;
+
+    /**
+     * Add binary records to the end of the list as one batch.
+     * 
+     * @param records consecutive records of recordLength bytes each
+     * @param recordLength the length of each record, records shorter than the record size are padded with zeros
+     */
+    public void addToList(byte[] records,
+                          int recordLength)
+        throws IOException;
+
+    /**
+     * @return an iterator over the string records of the list, or null if the list has no elements
+     */
+    public Iterator<String> getListIterator();
+
+    /**
+     * @return a cursor over the binary records of the list, or null if the list has no elements
+     */
+    public AgentListCursor getListCursor();
+
+    /**
+     * Remove a record from the list. Records are addressed by their position, not by where they are stored, so the
+     * records after the removed one move up by one position.
+     * 
+     * @param recNo the position of the record in the list, the head being 0; nothing is removed past the end
+     */
+    public void removeRecord(long recNo)
+        throws IOException;
+
+    /**
+     * Remove the first records of the list as one batch.
+     * 
+     * @param num the number of records to remove
+     * @return the number of records removed, less than num if the list was shorter
+     */
+    public int removeFirst(int num)
+        throws IOException;
+
+    /**
+     * @return the number of records in the list
+     */
+    public long size()
+        throws IOException;
+
+    /**
+     * Delete all the records from storage.
+     */
+    public void deleteAllRecords()
+        throws IOException;
+
+    /**
+     * Convert the records written with an older record size to the current one.
+     */
+    public void convertListToCurrentRecordSize(int oldSize)
+        throws IOException;
+
+    /**
+     * Make the changes to the list durable.
+     */
+    public void flush()
+        throws IOException;
+
+    /**
+     * Close the list. All subsequent methods will result in an IOException being thrown.
+     */
+    public void close()
+        throws IOException;
+}
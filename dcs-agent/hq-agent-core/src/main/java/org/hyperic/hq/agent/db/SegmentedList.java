@@ -0,0 +1,836 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.server.AgentListCursor;
+import org.hyperic.hq.agent.stats.AgentStatsCollector;
+
+/**
+ * A list stored as an append-only log of memory mapped segment files, for lists which are used as queues such as the
+ * measurement spools.
+ * 
+ * Records are numbered by a sequence which only grows. Appending a record writes it to the mapped tail segment, without
+ * any seek or index update. Removing a record marks its slot as removed; once the head of the list moves past the end
+ * of a segment, the whole segment file is unmapped and deleted. The sequence number of the head is kept in an offset
+ * file. Each segment counts its live records, so the size of the list is known without a scan and segments without
+ * live records are skipped.
+ * 
+ * Changes are forced to disk by {@link #flush()}, or once syncRecords records were appended since the last flush, so
+ * one fsync covers a group of changes. After a crash the tail segment is scanned to find the last complete record; a
+ * stale head offset only causes records to be read again.
+ * 
+ * The format of a segment file, named after the sequence number of its first record, is as follows:
+ * 
+ * [Slot] byte - status (0 free, 1 live, 2 removed) int - CRC32 of the data recordSize bytes - the raw data
+ * 
+ * The format of the offset file is as follows:
+ * 
+ * long int - sequence number of the head int - record size
+ */
+public class SegmentedList implements RecordList {
+    private static final Log log = LogFactory.getLog(SegmentedList.class.getName());
+
+    private static final byte SLOT_FREE = 0;
+    private static final byte SLOT_LIVE = 1;
+    private static final byte SLOT_REMOVED = 2;
+    private static final int SLOT_HEADER_LEN = 1 + 4;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String OFFSET_FILE = "offset";
+    public static final int DEFAULT_SYNC_RECORDS = 1000;
+
+    private static final AgentStatsCollector statsCollector = AgentStatsCollector.getInstance();
+    private static final String DISK_LIST_ADD_TO_LIST_TIME = AgentStatsCollector.DISK_LIST_ADD_TO_LIST_TIME;
+    private static final String DISK_LIST_DELETE_ALL_RECORDS_TIME =
+                AgentStatsCollector.DISK_LIST_DELETE_ALL_RECORDS_TIME;
+
+    private final File dir;
+    private final String name;
+    private final int recordSize;
+    private final int slotSize;
+    private final int slotsPerSegment;
+    private final long maxLength;
+    private final int syncRecords;
+    // Sequence number of the first record -> segment
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final List<File> pendingDeletes = new ArrayList<File>();
+    private final RandomAccessFile offsetFile;
+    private final CRC32 crc = new CRC32();
+    private final byte[] padBytes;
+    private long head; // Sequence number of the first record which may be live
+    private long tail; // Sequence number of the next record to append
+    private long live = 0; // Number of live records
+    private int unsynced = 0;
+    private boolean offsetDirty = false;
+    private boolean closed = false;
+
+    private static class Segment {
+        private final long base;
+        private final int slots;
+        private final File file;
+        private final MappedByteBuffer buf;
+        private boolean dirty = false;
+        private int live = 0; // Live records at or after the head of the list
+
+        private Segment(long base,
+                        int slots,
+                        File file,
+                        MappedByteBuffer buf) {
+            this.base = base;
+            this.slots = slots;
+            this.file = file;
+            this.buf = buf;
+        }
+
+        private long end() {
+            return base + slots;
+        }
+    }
+
+    /**
+     * Open or create a SegmentedList, recovering its content after a crash.
+     * 
+     * @param dir the directory holding the segment and offset files
+     * @param recordSize the maximum size for any record within the list
+     * @param segmentSize the size in bytes of each segment file, reduced to half of maxLength if larger so that
+     *            dropping the oldest segment never drops the records of the segment being filled
+     * @param maxLength the maximum size in bytes of all segments, once reached the oldest segments are dropped
+     * @param syncRecords the number of appended records after which changes are forced to disk
+     */
+    public SegmentedList(File dir,
+                         int recordSize,
+                         long segmentSize,
+                         long maxLength,
+                         int syncRecords)
+        throws IOException {
+        this.dir = dir;
+        this.name = dir.getName();
+        this.recordSize = recordSize;
+        this.slotSize = SLOT_HEADER_LEN + recordSize;
+        if (maxLength < (2L * this.slotSize)) {
+            throw new IllegalArgumentException("Maximum length of " + this.name + " (" + maxLength +
+                        ") must hold at least two records of " + this.slotSize + " bytes");
+        }
+        long maxSegmentSize = maxLength / 2;
+        if (segmentSize > maxSegmentSize) {
+            log.warn("Segment size of " + this.name + " reduced from " + segmentSize + " to " + maxSegmentSize +
+                        " bytes to fit two segments in its maximum length");
+            segmentSize = maxSegmentSize;
+        }
+        this.slotsPerSegment = (int) Math.max(1, Math.min(segmentSize, Integer.MAX_VALUE) / this.slotSize);
+        this.maxLength = maxLength;
+        this.syncRecords = Math.max(1, syncRecords);
+        this.padBytes = new byte[recordSize];
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        this.offsetFile = new RandomAccessFile(new File(dir, OFFSET_FILE), "rw");
+        recover();
+    }
+
+    private void recover()
+        throws IOException {
+        long savedHead = 0;
+        boolean sameRecordSize = true;
+        if (this.offsetFile.length() >= (8 + 4)) {
+            this.offsetFile.seek(0);
+            savedHead = this.offsetFile.readLong();
+            int savedRecordSize = this.offsetFile.readInt();
+            if (savedRecordSize != this.recordSize) {
+                log.error("Record size of " + this.name + " changed from " + savedRecordSize + " to " +
+                            this.recordSize + ", dropping its records");
+                sameRecordSize = false;
+            }
+        }
+
+        File[] files = this.dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (File file : files) {
+            long base;
+            try {
+                base = Long.parseLong(file.getName().substring(0,
+                            file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring unknown file " + file);
+                continue;
+            }
+            int slots = (int) (file.length() / this.slotSize);
+            if (!sameRecordSize || (slots == 0) || ((base + slots) <= savedHead)) {
+                deleteFile(file);
+                continue;
+            }
+            this.segments.put(base, new Segment(base, slots, file, map(file, (long) slots * this.slotSize)));
+        }
+
+        if (this.segments.isEmpty()) {
+            this.head = savedHead;
+            this.tail = savedHead;
+        } else {
+            this.head = Math.max(savedHead, this.segments.firstKey());
+            // Only the tail segment may hold a partially written record, full segments were synced before the next
+            // one was created
+            Segment last = this.segments.lastEntry().getValue();
+            int valid = 0;
+            while ((valid < last.slots) && isValid(last, valid)) {
+                valid++;
+            }
+            // Make sure records written after a torn one don't come back after the next crash
+            for (int i = valid; i < last.slots; i++) {
+                last.buf.put(i * this.slotSize, SLOT_FREE);
+            }
+            last.dirty = true;
+            this.tail = Math.max(this.head, last.base + valid);
+            for (Segment seg : this.segments.values()) {
+                long end = Math.min(seg.end(), this.tail);
+                for (long seq = Math.max(this.head, seg.base); seq < end; seq++) {
+                    if (getStatus(seg, seq) == SLOT_LIVE) {
+                        seg.live++;
+                    }
+                }
+                this.live += seg.live;
+            }
+        }
+        this.offsetDirty = true;
+        advanceHead();
+        flush();
+        if (log.isDebugEnabled()) {
+            log.debug("Opened " + this.name + " with " + this.segments.size() + " segments, head=" + this.head +
+                        ", tail=" + this.tail);
+        }
+    }
+
+    private boolean isValid(Segment seg,
+                            int slot) {
+        int off = slot * this.slotSize;
+        byte status = seg.buf.get(off);
+        if ((status != SLOT_LIVE) && (status != SLOT_REMOVED)) {
+            return false;
+        }
+        int sum = seg.buf.getInt(off + 1);
+        this.crc.reset();
+        for (int i = 0; i < this.recordSize; i++) {
+            this.crc.update(seg.buf.get(off + SLOT_HEADER_LEN + i));
+        }
+        return sum == (int) this.crc.getValue();
+    }
+
+    private MappedByteBuffer map(File file,
+                                 long length)
+        throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < length) {
+                raf.setLength(length);
+            }
+            // The mapping stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Release the mapping of a segment now rather than once its buffer is garbage collected, so that the file of a
+     * dropped segment can be deleted and its address space reused. The buffer must not be used afterwards.
+     */
+    private static void unmap(MappedByteBuffer buf) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buf);
+            return;
+        } catch (NoSuchMethodException e) {
+            // Older JVMs, use the cleaner of the buffer
+        } catch (Exception e) {
+            log.debug("Unable to unmap segment: " + e);
+            return;
+        }
+        try {
+            Method cleanerMethod = buf.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buf);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            log.debug("Unable to unmap segment: " + e);
+        }
+    }
+
+    private void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            // Still mapped on some platforms, try again later
+            this.pendingDeletes.add(file);
+        }
+    }
+
+    private void checkOpen()
+        throws IOException {
+        if (this.closed) {
+            throw new IOException("List " + this.name + " already closed");
+        }
+    }
+
+    public void addToList(String data)
+        throws IOException {
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream(this.recordSize);
+        DataOutputStream dOs = new DataOutputStream(bOs);
+        dOs.writeUTF(data);
+        addToList(bOs.toByteArray());
+    }
+
+    public synchronized void addToList(byte[] data)
+        throws IOException {
+        checkOpen();
+        checkLength(data.length);
+        final long start = System.currentTimeMillis();
+        appendSlot(data, 0, data.length);
+        appended(1, start);
+    }
+
+    public void addToList(Collection<String> data)
+        throws IOException {
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream(this.recordSize);
+        DataOutputStream dOs = new DataOutputStream(bOs);
+        List<byte[]> records = new ArrayList<byte[]>(data.size());
+        for (String rec : data) {
+            bOs.reset();
+            dOs.writeUTF(rec);
+            checkLength(bOs.size());
+            records.add(bOs.toByteArray());
+        }
+        synchronized (this) {
+            checkOpen();
+            final long start = System.currentTimeMillis();
+            for (byte[] rec : records) {
+                appendSlot(rec, 0, rec.length);
+            }
+            appended(records.size(), start);
+        }
+    }
+
+    public synchronized void addToList(byte[] records,
+                                       int recordLength)
+        throws IOException {
+        checkOpen();
+        checkLength(recordLength);
+        if ((recordLength <= 0) || (records.length % recordLength != 0)) {
+            throw new IllegalArgumentException("Array length(" + records.length + ") is not a multiple of " +
+                        "record length(" + recordLength + ")");
+        }
+        final long start = System.currentTimeMillis();
+        int num = records.length / recordLength;
+        for (int i = 0; i < num; i++) {
+            appendSlot(records, i * recordLength, recordLength);
+        }
+        appended(num, start);
+    }
+
+    private void checkLength(int length)
+        throws IOException {
+        if (length > this.recordSize) {
+            throw new IOException("Data length(" + length + ") exceeds " +
+                        "maximum record length(" + this.recordSize + ")");
+        }
+    }
+
+    /**
+     * Write a record into the next slot of the tail segment.
+     */
+    private void appendSlot(byte[] data,
+                            int dataOff,
+                            int length)
+        throws IOException {
+        Segment seg = getTailSegment();
+        int off = (int) (this.tail - seg.base) * this.slotSize;
+
+        this.crc.reset();
+        this.crc.update(data, dataOff, length);
+        this.crc.update(this.padBytes, 0, this.recordSize - length);
+        seg.buf.position(off + 1);
+        seg.buf.putInt((int) this.crc.getValue());
+        seg.buf.put(data, dataOff, length);
+        seg.buf.put(this.padBytes, 0, this.recordSize - length);
+        // The status goes last, so a record is only live once complete
+        seg.buf.put(off, SLOT_LIVE);
+        seg.dirty = true;
+        seg.live++;
+        this.live++;
+        this.tail++;
+    }
+
+    private void appended(int num,
+                          long start)
+        throws IOException {
+        this.unsynced += num;
+        if (this.unsynced >= this.syncRecords) {
+            flush();
+        }
+        statsCollector.addStat(System.currentTimeMillis() - start, DISK_LIST_ADD_TO_LIST_TIME);
+    }
+
+    private Segment getTailSegment()
+        throws IOException {
+        if (!this.segments.isEmpty()) {
+            Segment last = this.segments.lastEntry().getValue();
+            if (this.tail < last.end()) {
+                return last;
+            }
+            // The full segment is synced before the next one is used, so only the tail segment may be torn
+            last.buf.force();
+            last.dirty = false;
+        }
+        long length = (long) this.slotsPerSegment * this.slotSize;
+        if ((length * (this.segments.size() + 1)) > this.maxLength) {
+            dropOldestSegment();
+        }
+        File file = new File(this.dir, String.format("%020d", this.tail) + SEGMENT_SUFFIX);
+        Segment seg = new Segment(this.tail, this.slotsPerSegment, file, map(file, length));
+        this.segments.put(seg.base, seg);
+        return seg;
+    }
+
+    private void dropOldestSegment() {
+        if (this.segments.isEmpty()) {
+            return;
+        }
+        Segment oldest = this.segments.firstEntry().getValue();
+        int dropped = oldest.live;
+        oldest.live = 0;
+        this.live -= dropped;
+        log.error("Maximum size for list " + this.name + " reached (" + this.maxLength + " bytes), dropping " +
+                    dropped + " oldest records");
+        this.head = Math.max(this.head, oldest.end());
+        this.offsetDirty = true;
+        advanceHead();
+    }
+
+    private byte getStatus(Segment seg,
+                           long seq) {
+        return seg.buf.get((int) (seq - seg.base) * this.slotSize);
+    }
+
+    private Segment getSegment(long seq) {
+        Map.Entry<Long, Segment> entry = this.segments.floorEntry(seq);
+        if ((entry == null) || (seq >= entry.getValue().end())) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * @return the sequence number of the first live record at or after seq, or -1 if there is none
+     */
+    private synchronized long findLive(long seq) {
+        seq = Math.max(seq, this.head);
+        while (seq < this.tail) {
+            Segment seg = getSegment(seq);
+            if (seg == null) {
+                // Dropped segment
+                Map.Entry<Long, Segment> next = this.segments.higherEntry(seq);
+                if (next == null) {
+                    return -1;
+                }
+                seq = next.getKey();
+                continue;
+            }
+            if (seg.live == 0) {
+                seq = seg.end();
+                continue;
+            }
+            if (getStatus(seg, seq) == SLOT_LIVE) {
+                return seq;
+            }
+            seq++;
+        }
+        return -1;
+    }
+
+    /**
+     * Copy the data of a record into buf.
+     * 
+     * @return false if the record is no longer live
+     */
+    private synchronized boolean readRecord(long seq,
+                                            byte[] buf)
+        throws IOException {
+        checkOpen();
+        Segment seg = getSegment(seq);
+        if ((seg == null) || (seq < this.head) || (getStatus(seg, seq) != SLOT_LIVE)) {
+            return false;
+        }
+        seg.buf.position((int) (seq - seg.base) * this.slotSize + SLOT_HEADER_LEN);
+        seg.buf.get(buf);
+        return true;
+    }
+
+    private synchronized void removeSeq(long seq)
+        throws IOException {
+        checkOpen();
+        Segment seg = getSegment(seq);
+        if ((seg == null) || (seq < this.head) || (getStatus(seg, seq) != SLOT_LIVE)) {
+            return;
+        }
+        seg.buf.put((int) (seq - seg.base) * this.slotSize, SLOT_REMOVED);
+        seg.dirty = true;
+        seg.live--;
+        this.live--;
+        if (seq == this.head) {
+            advanceHead();
+        }
+    }
+
+    /**
+     * Move the head past the removed records and delete the segments it left.
+     */
+    private void advanceHead() {
+        long seq = findLive(this.head);
+        long newHead = (seq == -1) ? this.tail : seq;
+        if (newHead != this.head) {
+            this.head = newHead;
+            this.offsetDirty = true;
+        }
+        while (!this.segments.isEmpty()) {
+            Segment first = this.segments.firstEntry().getValue();
+            if (first.end() > this.head) {
+                break;
+            }
+            this.segments.remove(first.base);
+            unmap(first.buf);
+            deleteFile(first.file);
+        }
+        for (Iterator<File> it = this.pendingDeletes.iterator(); it.hasNext();) {
+            File file = it.next();
+            if (file.delete() || !file.exists()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove a record.
+     * 
+     * @param recNo the position of the record in the list, the head being 0
+     */
+    public synchronized void removeRecord(long recNo)
+        throws IOException {
+        if (recNo < 0) {
+            throw new IllegalArgumentException("IDX must be positive");
+        }
+        if (recNo >= this.live) {
+            return;
+        }
+        // Skip the segments holding fewer live records than the index, then scan the one holding the record
+        for (Segment seg : this.segments.values()) {
+            if (recNo >= seg.live) {
+                recNo -= seg.live;
+                continue;
+            }
+            long end = Math.min(seg.end(), this.tail);
+            for (long seq = Math.max(this.head, seg.base); seq < end; seq++) {
+                if ((getStatus(seg, seq) == SLOT_LIVE) && (recNo-- == 0)) {
+                    removeSeq(seq);
+                    return;
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * Remove the first records of the list, moving the head once for the whole batch.
+     * 
+     * @return the number of records removed
+     */
+    public synchronized int removeFirst(int num)
+        throws IOException {
+        checkOpen();
+        int removed = 0;
+        for (long seq = findLive(this.head); (removed < num) && (seq != -1); seq = findLive(seq + 1)) {
+            Segment seg = getSegment(seq);
+            seg.buf.put((int) (seq - seg.base) * this.slotSize, SLOT_REMOVED);
+            seg.dirty = true;
+            seg.live--;
+            this.live--;
+            removed++;
+        }
+        if (removed > 0) {
+            advanceHead();
+        }
+        return removed;
+    }
+
+    public synchronized void deleteAllRecords()
+        throws IOException {
+        checkOpen();
+        final long start = System.currentTimeMillis();
+        this.head = this.tail;
+        this.live = 0;
+        for (Segment seg : this.segments.values()) {
+            seg.live = 0;
+        }
+        this.offsetDirty = true;
+        advanceHead();
+        flush();
+        statsCollector.addStat(System.currentTimeMillis() - start, DISK_LIST_DELETE_ALL_RECORDS_TIME);
+    }
+
+    public void convertListToCurrentRecordSize(int oldSize) {
+        // The record size is kept in the offset file, records of another size are never read
+    }
+
+    /**
+     * Force the changed segments and the head offset to disk.
+     */
+    public synchronized void flush()
+        throws IOException {
+        if (this.closed) {
+            return;
+        }
+        for (Segment seg : this.segments.values()) {
+            if (seg.dirty) {
+                seg.buf.force();
+                seg.dirty = false;
+            }
+        }
+        if (this.offsetDirty) {
+            this.offsetFile.seek(0);
+            this.offsetFile.writeLong(this.head);
+            this.offsetFile.writeInt(this.recordSize);
+            this.offsetFile.getChannel().force(false);
+            this.offsetDirty = false;
+        }
+        this.unsynced = 0;
+    }
+
+    public synchronized void close()
+        throws IOException {
+        checkOpen();
+        try {
+            flush();
+        } finally {
+            this.closed = true;
+            for (Segment seg : this.segments.values()) {
+                unmap(seg.buf);
+            }
+            this.segments.clear();
+            this.offsetFile.close();
+        }
+    }
+
+    /**
+     * @return the number of live records
+     */
+    public synchronized long size() {
+        return this.live;
+    }
+
+    /**
+     * Append the records of a DiskList, e.g. when an existing list is switched to a SegmentedList. The records are
+     * copied as is, so both lists must have the same record size.
+     * 
+     * @return the number of records copied
+     */
+    public long appendAll(DiskList from)
+        throws IOException {
+        DiskList.DiskListCursor cursor = from.getListCursor();
+        if (cursor == null) {
+            return 0;
+        }
+        if (cursor.getRecordSize() != this.recordSize) {
+            throw new IOException("Record size of " + this.name + " (" + this.recordSize +
+                        ") differs from the copied list (" + cursor.getRecordSize() + ")");
+        }
+        final int batch = this.syncRecords;
+        byte[] records = new byte[batch * this.recordSize];
+        long copied = 0;
+        int num = 0;
+        while (cursor.next()) {
+            System.arraycopy(cursor.getRecord(), 0, records, num * this.recordSize, this.recordSize);
+            if (++num == batch) {
+                addToList(records, this.recordSize);
+                copied += num;
+                num = 0;
+            }
+        }
+        if (num > 0) {
+            byte[] rest = new byte[num * this.recordSize];
+            System.arraycopy(records, 0, rest, 0, rest.length);
+            addToList(rest, this.recordSize);
+            copied += num;
+        }
+        flush();
+        return copied;
+    }
+
+    private abstract class Position {
+        private long nextSeq;
+        private long curSeq = -1;
+
+        private Position(long nextSeq) {
+            this.nextSeq = nextSeq;
+        }
+
+        public boolean hasNext() {
+            return findLive(this.nextSeq) != -1;
+        }
+
+        /**
+         * Read the next live record into buf.
+         * 
+         * @return false if there are no more records
+         */
+        protected boolean advance(byte[] buf)
+            throws IOException {
+            for (;;) {
+                long seq = findLive(this.nextSeq);
+                if (seq == -1) {
+                    this.curSeq = -1;
+                    return false;
+                }
+                this.nextSeq = seq + 1;
+                // May have been removed in between
+                if (readRecord(seq, buf)) {
+                    this.curSeq = seq;
+                    return true;
+                }
+            }
+        }
+
+        protected void removeCurrent()
+            throws IOException {
+            if (this.curSeq == -1) {
+                throw new IllegalStateException("remove() called without first calling next()");
+            }
+            removeSeq(this.curSeq);
+            this.curSeq = -1;
+        }
+    }
+
+    private class ListIterator extends Position implements Iterator<String> {
+        private final byte[] buf = new byte[recordSize];
+
+        private ListIterator(long nextSeq) {
+            super(nextSeq);
+        }
+
+        public String next() {
+            try {
+                if (!advance(this.buf)) {
+                    throw new NoSuchElementException();
+                }
+                return new DataInputStream(new ByteArrayInputStream(this.buf)).readUTF();
+            } catch (IOException e) {
+                log.error("IOException while reading record");
+                NoSuchElementException ex = new NoSuchElementException("Error getting next element: " + e);
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+
+        public void remove() {
+            try {
+                removeCurrent();
+            } catch (IOException exc) {
+                throw new IllegalStateException("Error removing record: " + exc, exc);
+            }
+        }
+    }
+
+    private class ListCursor extends Position implements AgentListCursor {
+        private final byte[] buf = new byte[recordSize];
+        private final ByteBuffer view = ByteBuffer.wrap(this.buf);
+
+        private ListCursor(long nextSeq) {
+            super(nextSeq);
+        }
+
+        public boolean next()
+            throws IOException {
+            return advance(this.buf);
+        }
+
+        public int getRecordSize() {
+            return recordSize;
+        }
+
+        public long getLong(int offset) {
+            return this.view.getLong(offset);
+        }
+
+        public double getDouble(int offset) {
+            return this.view.getDouble(offset);
+        }
+
+        public void remove()
+            throws IOException {
+            removeCurrent();
+        }
+    }
+
+    public synchronized Iterator<String> getListIterator() {
+        if (this.closed || (findLive(this.head) == -1)) {
+            return null;
+        }
+        return new ListIterator(this.head);
+    }
+
+    public synchronized AgentListCursor getListCursor() {
+        if (this.closed || (findLive(this.head) == -1)) {
+            return null;
+        }
+        return new ListCursor(this.head);
+    }
+}
@@ -26,6 +26,7 @@ public class AgentDiagnostics extends Thread {
     private FileWriter currFile = null;
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private String basedir;
+    private volatile String lastStatus = "";
     private static final AgentDiagnostics instance = new AgentDiagnostics();
 
     private AgentDiagnostics() {
@@ -80,6 +81,7 @@ public class AgentDiagnostics extends Thread {
             status.append("\n\n#").append(o.getDiagName()).append("\n");
             status.append(o.getDiagStatus());
         }
+        lastStatus = status.toString();
         final String filename = getFilename();
         if (currFilename == null) {
             currFile = new FileWriter(filename, true);
@@ -103,6 +105,13 @@ public class AgentDiagnostics extends Thread {
         return basedir + fs + BASE_NAME.replace("<day>", day) + ".txt";
     }
 
+    /**
+     * @return the diagnostics last written to the diagnostics file, empty until they are first written
+     */
+    public String getLastStatus() {
+        return lastStatus;
+    }
+
     public static AgentDiagnostics getInstance() {
         return instance;
     }
@@ -45,6 +45,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableEntryException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -53,6 +54,10 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
@@ -61,6 +66,8 @@ import org.bouncycastle.util.encoders.Base64;
 import org.hyperic.hq.agent.AgentConfig;
 import org.hyperic.hq.agent.AgentKeystoreConfig;
 import org.hyperic.hq.agent.db.DiskList;
+import org.hyperic.hq.agent.db.RecordList;
+import org.hyperic.hq.agent.db.SegmentedList;
 import org.hyperic.hq.agent.stats.AgentStatsCollector;
 import org.hyperic.hq.common.SystemException;
 import org.hyperic.util.file.FileUtil;
@@ -77,11 +84,14 @@ public class AgentDListProvider implements AgentStorageProvider {
     private static final long MAXSIZE = 50 * 1024 * 1024; // 50MB
     private static final long CHKSIZE = 10 * 1024 * 1024; // 10MB
     private static final int CHKPERC = 50; // Only allow < 50% free
+    private static final String LIST_TYPE_DLIST = "dlist";
+    private static final String LIST_TYPE_SEGMENTED = "segmented";
+    private static final String SEGMENTS_DIR_SUFFIX = ".segments";
 
     private final AgentStatsCollector agentStatsCollector = AgentStatsCollector.getInstance();
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private HashMap<EncVal, EncVal> keyVals;
-    private HashMap<String, DiskList> lists;
+    private HashMap<String, RecordList> lists;
     private HashMap<String, ListInfo> overloads;
     private File writeDir;
     private File keyValFile;
@@ -96,6 +106,13 @@ public class AgentDListProvider implements AgentStorageProvider {
     private long chkSize = CHKSIZE;
     private int chkPerc = CHKPERC;
 
+    // Each flush of the lists forces every dirty list to disk, so the flush() calls of the agent threads are grouped:
+    // the lists are flushed at most once per interval, a flush() within the interval is done when it ends.
+    private long listFlushInterval;
+    private volatile long lastListFlush = 0;
+    private final AtomicBoolean listFlushScheduled = new AtomicBoolean(false);
+    private ScheduledExecutorService listFlusher;
+
     private PBEStringEncryptor encryptor;
 
     public AgentDListProvider() {
@@ -117,8 +134,8 @@ public class AgentDListProvider implements AgentStorageProvider {
         return "Agent D-list provider.  Data is written to data/idx files for lists, and a single file for key/values";
     }
 
-    private DiskList intrCreateList(String name,
-                                    int recSize)
+    private RecordList intrCreateList(String name,
+                                      int recSize)
         throws IOException {
         long _maxSize = maxSize;
         long _chkSize = chkSize;
@@ -128,10 +145,54 @@ public class AgentDListProvider implements AgentStorageProvider {
             _maxSize = info.maxSize;
             _chkSize = info.chkSize;
             _chkPerc = info.chkPerc;
+            if (info.segmented) {
+                // The check size is the size of each segment
+                SegmentedList list = new SegmentedList(new File(this.writeDir, name + SEGMENTS_DIR_SUFFIX), recSize,
+                            _chkSize, _maxSize, SegmentedList.DEFAULT_SYNC_RECORDS);
+                File oldData = new File(this.writeDir, name);
+                if (!oldData.exists()) {
+                    return list;
+                }
+                try {
+                    moveToSegmentedList(name, oldData, recSize, _chkSize, _chkPerc, _maxSize, list);
+                    return list;
+                } catch (IOException e) {
+                    log.error("Unable to move the records of list " + name + " to a segmented list, " +
+                                "keeping the existing list: " + e, e);
+                    list.deleteAllRecords();
+                    list.close();
+                }
+            }
         }
         return new DiskList(new File(this.writeDir, name), recSize, _chkSize, _chkPerc, _maxSize);
     }
 
+    /**
+     * Copy the records of a list which was switched to a segmented list, then delete its files. The segments are
+     * flushed before the files are deleted, a crash in between only causes the records to be copied again.
+     */
+    private void moveToSegmentedList(String name,
+                                     File oldData,
+                                     int recSize,
+                                     long chkSize,
+                                     int chkPerc,
+                                     long maxSize,
+                                     SegmentedList list)
+        throws IOException {
+        DiskList old = new DiskList(oldData, recSize, chkSize, chkPerc, maxSize);
+        long copied;
+        try {
+            copied = list.appendAll(old);
+        } finally {
+            old.close();
+        }
+        File oldIdx = new File(oldData + ".idx");
+        if (!oldData.delete() || (oldIdx.exists() && !oldIdx.delete())) {
+            throw new IOException("Unable to delete " + oldData + " after copying its records");
+        }
+        log.info("Moved " + copied + " records of list " + name + " to a segmented list");
+    }
+
     /**
      * Create a list of non-standard record size.
      */
@@ -139,8 +200,14 @@ public class AgentDListProvider implements AgentStorageProvider {
                            int recSize)
         throws AgentStorageException {
         try {
-            DiskList dList = intrCreateList(name, recSize);
-            lists.put(name, dList);
+            RecordList dList = intrCreateList(name, recSize);
+            RecordList old;
+            synchronized (lists) {
+                old = lists.put(name, dList);
+            }
+            if (old != null) {
+                old.close();
+            }
         } catch (IOException e) {
             AgentStorageException toThrow = new AgentStorageException("Unable to create DiskList: " + e);
             toThrow.initCause(e);
@@ -148,10 +215,19 @@ public class AgentDListProvider implements AgentStorageProvider {
         }
     }
 
+    /**
+     * List info string is a series of properties seperated by ':'. Four properties are expected, and an optional fifth.
+     * 
+     * Unit of the sizes (m or k), maximum size of the list, size to start checking for unused blocks, maximum
+     * percentage of free blocks allowed, and the list type: 'dlist' (default) for a DiskList or 'segmented' for a
+     * SegmentedList, in which case the check size is the size of each segment and the percentage is unused.
+     * 
+     * e.g. 'm:50:10:50:segmented'
+     */
     private ListInfo parseInfo(String info)
         throws AgentStorageException {
         StringTokenizer st = new StringTokenizer(info, ":");
-        if (st.countTokens() != 4) {
+        if ((st.countTokens() != 4) && (st.countTokens() != 5)) {
             throw new AgentStorageException(info + " is an invalid agent disklist configuration");
         }
         String s = st.nextToken().trim();
@@ -172,6 +248,14 @@ public class AgentDListProvider implements AgentStorageProvider {
             throw new AgentStorageException("Invalid agent disklist " +
                         "configuration: " + e);
         }
+        if (st.hasMoreTokens()) {
+            String type = st.nextToken().trim();
+            if (LIST_TYPE_SEGMENTED.equalsIgnoreCase(type)) {
+                listInfo.segmented = true;
+            } else if (!LIST_TYPE_DLIST.equalsIgnoreCase(type)) {
+                throw new AgentStorageException(info + " is an invalid agent disklist configuration");
+            }
+        }
         return listInfo;
     }
 
@@ -299,6 +383,7 @@ public class AgentDListProvider implements AgentStorageProvider {
         if (shutdown.get() && !toShutdown) {
             return;
         }
+        flushLists(toShutdown);
         final long start = System.currentTimeMillis();
         BufferedOutputStream bOs = null;
         FileOutputStream fOs = null;
@@ -359,6 +444,46 @@ public class AgentDListProvider implements AgentStorageProvider {
                     AgentStatsCollector.DISK_LIST_KEYVALS_FLUSH_TIME);
     }
 
+    /**
+     * Flush the lists now if they were not flushed within the flush interval, otherwise once the interval ends.
+     * 
+     * @param now true to flush the lists right away
+     */
+    private void flushLists(boolean now)
+        throws AgentStorageException {
+        long wait = (lastListFlush + listFlushInterval) - System.currentTimeMillis();
+        if (!now && (wait > 0) && (listFlusher != null)) {
+            if (listFlushScheduled.compareAndSet(false, true)) {
+                listFlusher.schedule(new Runnable() {
+                    public void run() {
+                        listFlushScheduled.set(false);
+                        try {
+                            flushLists(true);
+                        } catch (AgentStorageException e) {
+                            // Already logged
+                        }
+                    }
+                }, wait, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        lastListFlush = System.currentTimeMillis();
+        List<RecordList> toFlush;
+        synchronized (lists) {
+            toFlush = new ArrayList<RecordList>(lists.values());
+        }
+        for (RecordList list : toFlush) {
+            try {
+                list.flush();
+            } catch (IOException e) {
+                log.error("Error flushing list", e);
+                AgentStorageException toThrow = new AgentStorageException("Error flushing list: " + e);
+                toThrow.initCause(e);
+                throw toThrow;
+            }
+        }
+    }
+
     private void close(OutputStream os) {
         try {
             if (os != null) {
@@ -401,7 +526,7 @@ public class AgentDListProvider implements AgentStorageProvider {
         }
 
         keyVals = new HashMap<EncVal, EncVal>();
-        lists = new HashMap<String, DiskList>();
+        lists = new HashMap<String, RecordList>();
         overloads = new HashMap<String, ListInfo>();
         String dir = st.nextToken();
         this.writeDir = new File(dir);
@@ -425,6 +550,7 @@ public class AgentDListProvider implements AgentStorageProvider {
             throw new AgentStorageException("Invalid agent storage provider " +
                         "configuration: " + e);
         }
+        initListFlusher(cfg);
 
         if (this.writeDir.exists() == false) {
             // Try to create it
@@ -654,19 +780,44 @@ public class AgentDListProvider implements AgentStorageProvider {
         }
     }
 
+    private void initListFlusher(AgentConfig cfg) {
+        String interval = cfg.getBootProperties().getProperty(AgentConfig.PROP_STORAGEPROVIDER_FLUSH_INTERVAL[0],
+                    AgentConfig.PROP_STORAGEPROVIDER_FLUSH_INTERVAL[1]);
+        try {
+            listFlushInterval = Long.parseLong(interval.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid setting for " + AgentConfig.PROP_STORAGEPROVIDER_FLUSH_INTERVAL[0] + " value=" +
+                        interval + ", using defaults.");
+            listFlushInterval = Long.parseLong(AgentConfig.PROP_STORAGEPROVIDER_FLUSH_INTERVAL[1]);
+        }
+        if (listFlushInterval <= 0) {
+            return;
+        }
+        listFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "StorageListFlusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
     public void dispose() {
         if (shutdown.get()) {
             return;
         }
+        if (listFlusher != null) {
+            listFlusher.shutdownNow();
+        }
         try {
             shutdown.set(true);
             flush(true);
         } catch (Exception exc) {
             log.error("Error flushing key/vals storage", exc);
         }
-        for (final Entry<String, DiskList> entry : lists.entrySet()) {
+        for (final Entry<String, RecordList> entry : lists.entrySet()) {
             try {
-                DiskList dl = entry.getValue();
+                RecordList dl = entry.getValue();
                 dl.close();
             } catch (Exception exc) {
                 log.error("Unable to dispose of disk list '" + entry.getKey() + "'", exc);
@@ -683,7 +834,7 @@ public class AgentDListProvider implements AgentStorageProvider {
         if (shutdown.get()) {
             return;
         }
-        DiskList dList = getDiskList(listName);
+        RecordList dList = getDiskList(listName);
         if (null == dList) {
             log.error("Error adding data , cannot read list '" + listName + "' from storage");
             return;
@@ -701,13 +852,80 @@ public class AgentDListProvider implements AgentStorageProvider {
         }
     }
 
+    public void addToList(String listName,
+                          byte[] record)
+        throws AgentStorageException {
+        if (shutdown.get()) {
+            return;
+        }
+        RecordList dList = getDiskList(listName);
+        if (null == dList) {
+            log.error("Error adding data , cannot read list '" + listName + "' from storage");
+            return;
+        }
+        try {
+            dList.addToList(record);
+        } catch (IOException exc) {
+            log.error("Error adding to list '" + listName + "'", exc);
+            AgentStorageException toThrow = new AgentStorageException("Error adding data to list: " + exc);
+            toThrow.initCause(exc);
+            throw toThrow;
+        }
+    }
+
+    public void addToList(String listName,
+                          Collection<String> values)
+        throws AgentStorageException {
+        if (shutdown.get() || values.isEmpty()) {
+            return;
+        }
+        RecordList dList = getDiskList(listName);
+        if (null == dList) {
+            log.error("Error adding data , cannot read list '" + listName + "' from storage");
+            return;
+        }
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("adding " + values.size() + " values to list=" + listName);
+            }
+            dList.addToList(values);
+        } catch (IOException exc) {
+            log.error("Error adding to list '" + listName + "'", exc);
+            AgentStorageException toThrow = new AgentStorageException("Error adding data to list: " + exc);
+            toThrow.initCause(exc);
+            throw toThrow;
+        }
+    }
+
+    public void addToList(String listName,
+                          byte[] records,
+                          int recordLength)
+        throws AgentStorageException {
+        if (shutdown.get() || (records.length == 0)) {
+            return;
+        }
+        RecordList dList = getDiskList(listName);
+        if (null == dList) {
+            log.error("Error adding data , cannot read list '" + listName + "' from storage");
+            return;
+        }
+        try {
+            dList.addToList(records, recordLength);
+        } catch (IOException exc) {
+            log.error("Error adding to list '" + listName + "'", exc);
+            AgentStorageException toThrow = new AgentStorageException("Error adding data to list: " + exc);
+            toThrow.initCause(exc);
+            throw toThrow;
+        }
+    }
+
     public void removeFromList(String listName,
                                long recNumber)
         throws AgentStorageException {
         if (shutdown.get()) {
             return;
         }
-        DiskList dList = getDiskList(listName);
+        RecordList dList = getDiskList(listName);
         if (null == dList) {
             log.error("Error removing data , cannot read list '" + listName + "' " +
                         "from storage");
@@ -723,11 +941,48 @@ public class AgentDListProvider implements AgentStorageProvider {
         }
     }
 
+    public int removeFirst(String listName,
+                           int num)
+        throws AgentStorageException {
+        if (shutdown.get()) {
+            return 0;
+        }
+        RecordList dList = getDiskList(listName);
+        if (null == dList) {
+            log.error("Error removing data , cannot read list '" + listName + "' " +
+                        "from storage");
+            return 0;
+        }
+        try {
+            return dList.removeFirst(num);
+        } catch (IOException exc) {
+            log.error("Error deleting from list '" + listName + "'", exc);
+            AgentStorageException t = new AgentStorageException("Error deleting data from list: " + exc);
+            t.initCause(exc);
+            throw t;
+        }
+    }
+
+    public long getListSize(String listName)
+        throws AgentStorageException {
+        RecordList dList = getDiskList(listName);
+        if (null == dList) {
+            return 0;
+        }
+        try {
+            return dList.size();
+        } catch (IOException exc) {
+            AgentStorageException t = new AgentStorageException("Error reading the size of list: " + exc);
+            t.initCause(exc);
+            throw t;
+        }
+    }
+
     public void deleteList(String listName) {
         if (shutdown.get()) {
             return;
         }
-        DiskList dList = getDiskList(listName);
+        RecordList dList = getDiskList(listName);
         if (null == dList) {
             return;
         }
@@ -739,24 +994,32 @@ public class AgentDListProvider implements AgentStorageProvider {
     }
 
     public Iterator<String> getListIterator(String listName) {
-        DiskList dList = getDiskList(listName);
+        RecordList dList = getDiskList(listName);
         if (null == dList) {
             return null;
         }
         return dList.getListIterator();
     }
 
+    public AgentListCursor getListCursor(String listName) {
+        RecordList dList = getDiskList(listName);
+        if (null == dList) {
+            return null;
+        }
+        return dList.getListCursor();
+    }
+
     public void convertListToCurrentRecordSize(String listName)
         throws IOException {
-        DiskList dList = getDiskList(listName);
+        RecordList dList = getDiskList(listName);
         if (null == dList) {
             return;
         }
         dList.convertListToCurrentRecordSize(OLD_RECSIZE);
     }
 
-    private DiskList getDiskList(String listName) {
-        DiskList dList;
+    private RecordList getDiskList(String listName) {
+        RecordList dList;
 
         synchronized (this.lists) {
             dList = this.lists.get(listName);
@@ -778,6 +1041,7 @@ public class AgentDListProvider implements AgentStorageProvider {
         long maxSize;
         long chkSize;
         int chkPerc;
+        boolean segmented;
     }
 
     private class EncVal {
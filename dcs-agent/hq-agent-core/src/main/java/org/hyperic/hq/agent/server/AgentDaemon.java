@@ -59,6 +59,8 @@ import org.hyperic.hq.agent.diagnostics.AgentDiagnostics;
 import org.hyperic.hq.agent.server.monitor.AgentMonitorException;
 import org.hyperic.hq.agent.server.monitor.AgentMonitorInterface;
 import org.hyperic.hq.agent.server.monitor.AgentMonitorSimple;
+import org.hyperic.hq.agent.stats.AgentStatsCollector;
+import org.hyperic.hq.agent.stats.AgentStatsServer;
 import org.hyperic.hq.agent.stats.AgentStatsWriter;
 import org.hyperic.hq.autoinventory.SyncModeManager;
 import org.hyperic.hq.bizapp.agent.CommandsAPIInfo;
@@ -76,6 +78,7 @@ import org.hyperic.hq.product.PluginManager;
 import org.hyperic.hq.product.ProductPlugin;
 import org.hyperic.hq.product.ProductPluginManager;
 import org.hyperic.hq.product.TypeInfo;
+import org.hyperic.hq.util.properties.PropertiesUtil;
 import org.hyperic.util.PluginLoader;
 import org.hyperic.util.security.SecurityUtil;
 import org.springframework.util.CollectionUtils;
@@ -128,6 +131,7 @@ public class AgentDaemon
     private ProductPluginManager ppm;
     private final AgentConfig config;
     private AgentDiagnostics agentDiagnostics;
+    private AgentStatsServer statsServer;
 
     public static AgentDaemon getMainInstance() {
         synchronized (AgentDaemon.mainInstanceLock) {
@@ -1006,12 +1010,16 @@ public class AgentDaemon
                 agentDiagnostics = AgentDiagnostics.getInstance();
                 agentDiagnostics.setConfig(config);
                 agentDiagnostics.start();
+                startStatsServer();
             }
 
             this.listener.listenLoop();
             this.sendNotification(NOTIFY_AGENT_DOWN, "goin' down, baby!");
             if (isStatsEnabled()) {
                 statsWriter.stopWriter();
+                if (statsServer != null) {
+                    statsServer.stop();
+                }
             }
 
         } catch (AgentStartException exc) {
@@ -1058,6 +1066,26 @@ public class AgentDaemon
         }
     }
 
+    /**
+     * Expose the stats and diagnostics locally over HTTP and/or JMX, if configured.
+     */
+    private void startStatsServer() {
+        Properties bootProps = config.getBootProperties();
+        int httpPort = PropertiesUtil.getIntValue(AgentConfig.PROP_STATS_HTTP_PORT[0],
+                    bootProps.getProperty(AgentConfig.PROP_STATS_HTTP_PORT[0]), 0);
+        boolean jmx = PropertiesUtil.getBooleanValue(bootProps.getProperty(AgentConfig.PROP_STATS_JMX_ENABLED[0]),
+                    false);
+        if ((httpPort <= 0) && !jmx) {
+            return;
+        }
+        statsServer = new AgentStatsServer(AgentStatsCollector.getInstance(), agentDiagnostics);
+        try {
+            statsServer.start(httpPort, jmx);
+        } catch (IOException e) {
+            logger.error("Could not start the stats endpoint on port " + httpPort + ": " + e, e);
+        }
+    }
+
     private boolean isStatsEnabled() {
         return !Boolean.getBoolean("disableStats");
     }
@@ -128,8 +128,12 @@ public final class AgentTransportLifecycleImpl implements AgentTransportLifecycl
             System.setProperty("https.proxyPort", String.valueOf(_config.getProxyPort()));
         }
 
+        int dispatchThreads = getDispatchThreads(bootProperties);
+
+        _log.info("Command dispatch threads=" + dispatchThreads);
+
         _agentTransport =
-                    new AgentTransport(_config, _storageProvider, pollingFrequency, 1);
+                    new AgentTransport(_config, _storageProvider, pollingFrequency, dispatchThreads);
 
         if (_agentTransport != null) {
 
@@ -283,4 +287,10 @@ public final class AgentTransportLifecycleImpl implements AgentTransportLifecycl
                     AgentConfig.DEFAULT_POLLING_FREQUENCY_IN_MS);
     }
 
+    private int getDispatchThreads(Properties bootProperties) {
+        String dispatchThreadsString = bootProperties.getProperty(AgentConfig.QPROP_UNI_DISPATCH_THREADS);
+        return Math.max(1, PropertiesUtil.getIntValue(AgentConfig.QPROP_UNI_DISPATCH_THREADS, dispatchThreadsString,
+                    AgentConfig.DEFAULT_DISPATCH_THREADS));
+    }
+
 }
@@ -0,0 +1,168 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.server;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hyperic.hq.product.Collector;
+import org.hyperic.util.schedule.DeadlineQueue;
+
+/**
+ * Keeps every plugin collector armed at its own next due time, so that CollectorThread only wakes up when a collector
+ * is due instead of polling all of them at a fixed interval.
+ *
+ * A collector is removed from the queue while it runs and re-armed by {@link #completed(Collector, long)}. Each
+ * collector is shifted by a fixed jitter derived from its properties, so collectors sharing an interval don't all fire
+ * in the same millisecond while each of them keeps a stable period. New collectors are picked up by
+ * {@link #sync(Collection, long)}, collectors which are no longer registered are dropped once they come due.
+ */
+class CollectorScheduler {
+
+    // Collectors run a minute ahead of ScheduleThread, the jitter must stay well within that minute
+    static final long MAX_JITTER_LIMIT = 30 * 1000;
+    // Shortest delay between the end of a run and the next run of the same collector
+    static final long MIN_REARM_DELAY = 1000;
+
+    private final DeadlineQueue<Collector> queue = new DeadlineQueue<Collector>();
+    private final Set<Collector> running = new HashSet<Collector>();
+    private final long maxJitter;
+    private final long recheckInterval;
+
+    /**
+     * @param maxJitter the largest delay added to the due time of a collector, in ms
+     * @param recheckInterval the delay before checking again a collector which isn't due yet, in ms
+     */
+    CollectorScheduler(long maxJitter,
+                       long recheckInterval) {
+        this.maxJitter = Math.max(0, Math.min(maxJitter, MAX_JITTER_LIMIT));
+        this.recheckInterval = recheckInterval;
+    }
+
+    /**
+     * Arm the collectors which are neither armed nor running.
+     *
+     * @return the number of newly armed collectors
+     */
+    int sync(Collection<Collector> collectors,
+             long now) {
+        int added = 0;
+        for (Collector collector : collectors) {
+            synchronized (running) {
+                if (running.contains(collector) || queue.isScheduled(collector)) {
+                    continue;
+                }
+            }
+            if (arm(collector, now, now)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Remove and return the collectors due at the given time. They are considered running until
+     * {@link #completed(Collector, long)} is called for them.
+     */
+    List<Collector> consumeDue(long now) {
+        List<Collector> due = queue.consumeDue(now);
+        synchronized (running) {
+            running.addAll(due);
+        }
+        return due;
+    }
+
+    /**
+     * Re-arm a collector after a run, or drop it if it is no longer registered.
+     */
+    void completed(Collector collector,
+                   long now) {
+        synchronized (running) {
+            running.remove(collector);
+        }
+        arm(collector, now, now + MIN_REARM_DELAY);
+    }
+
+    /**
+     * Block until the next collector is due, {@link #wakeUp()} is called or maxWait elapses.
+     */
+    void awaitNext(long maxWait)
+        throws InterruptedException {
+        queue.awaitNext(maxWait);
+    }
+
+    void wakeUp() {
+        queue.wakeUp();
+    }
+
+    void clear() {
+        queue.clear();
+        synchronized (running) {
+            running.clear();
+        }
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    int getRunning() {
+        synchronized (running) {
+            return running.size();
+        }
+    }
+
+    private boolean arm(Collector collector,
+                        long now,
+                        long notBefore) {
+        long next = getNextRunTime(collector, now);
+        if (next == -1) {
+            return false;
+        }
+        queue.schedule(collector, Math.max(next, notBefore) + getJitter(collector));
+        return true;
+    }
+
+    /**
+     * @return the absolute time the collector is due, or -1 if it is no longer registered
+     */
+    long getNextRunTime(Collector collector,
+                        long now) {
+        return collector.getNextRunTime(now, recheckInterval);
+    }
+
+    long getJitter(Collector collector) {
+        if (maxJitter == 0) {
+            return 0;
+        }
+        // Spread the bits of the hash code, property hash codes of similar collectors tend to be close
+        int h = collector.hashCode() * 0x9E3779B9;
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % (maxJitter + 1);
+    }
+}
@@ -38,6 +38,7 @@ import org.hyperic.hq.agent.stats.AgentStatsCollector;
 import org.hyperic.hq.product.Collector;
 import org.hyperic.hq.product.CollectorExecutor;
 import org.hyperic.hq.product.PluginManager;
+import org.hyperic.hq.stats.StatHandle;
 
 public class CollectorThread implements Runnable {
 
@@ -49,13 +50,25 @@ public class CollectorThread implements Runnable {
 
     private static final String COLLECTOR_THREAD_METRIC_COLLECTED_TIME =
                 AgentStatsCollector.COLLECTOR_THREAD_METRIC_COLLECTED_TIME;
+    private static final String COLLECTOR_THREAD_VIRTUAL_TASKS =
+                AgentStatsCollector.COLLECTOR_THREAD_VIRTUAL_TASKS;
+
+    // Run collectors on virtual threads instead of the CollectorExecutor pool
+    public static final String PROP_VIRTUAL_THREADS = "collector.virtualThreads";
+    public static final String PROP_VIRTUAL_FALLBACK_POOLSIZE = "collector.virtualThreads.fallbackPoolSize";
+    // Run each collector at its own due time instead of checking all of them every interval
+    public static final String PROP_DEADLINE_SCHEDULER = "collector.deadlineScheduler";
+    public static final String PROP_DEADLINE_MAX_JITTER = "collector.deadlineScheduler.maxJitter";
+    private static final long DEFAULT_MAX_JITTER = 5 * 1000;
 
     private Thread thread = null;
     private static CollectorThread instance = null;
     private final AtomicBoolean shouldDie = new AtomicBoolean(false);
     private long interval = DEFAULT_INTERVAL;
     private Properties props;
-    private AgentStatsCollector statsCollector;
+    private StatHandle collectedTimeStat;
+    private VirtualThreadExecutor virtualExecutor = null;
+    private CollectorScheduler scheduler = null;
 
     public static synchronized CollectorThread getInstance(PluginManager manager) {
         if (instance == null) {
@@ -76,14 +89,44 @@ public class CollectorThread implements Runnable {
         if (this.thread != null) {
             return;
         }
-        statsCollector = AgentStatsCollector.getInstance();
-        statsCollector.register(COLLECTOR_THREAD_METRIC_COLLECTED_TIME);
+        AgentStatsCollector statsCollector = AgentStatsCollector.getInstance();
+        collectedTimeStat = statsCollector.register(COLLECTOR_THREAD_METRIC_COLLECTED_TIME);
+
+        if ("true".equals(props.getProperty(PROP_VIRTUAL_THREADS))) {
+            int fallbackPoolSize = VirtualThreadExecutor.DEFAULT_FALLBACK_POOL_SIZE;
+            String sPoolSize = props.getProperty(PROP_VIRTUAL_FALLBACK_POOLSIZE);
+            if (sPoolSize != null) {
+                try {
+                    fallbackPoolSize = Integer.parseInt(sPoolSize.trim());
+                } catch (NumberFormatException e) {
+                    log.error("Invalid setting for " + PROP_VIRTUAL_FALLBACK_POOLSIZE + " value=" +
+                                sPoolSize + " using defaults.");
+                }
+            }
+            virtualExecutor = new VirtualThreadExecutor("collector", fallbackPoolSize);
+            virtualExecutor.registerStats(statsCollector, COLLECTOR_THREAD_VIRTUAL_TASKS);
+        }
 
         String interval = System.getProperty("exec.interval");
         if (interval != null) {
             this.interval = Integer.parseInt(interval) * 1000;
         }
 
+        if ("true".equals(props.getProperty(PROP_DEADLINE_SCHEDULER))) {
+            long maxJitter = DEFAULT_MAX_JITTER;
+            String sMaxJitter = props.getProperty(PROP_DEADLINE_MAX_JITTER);
+            if (sMaxJitter != null) {
+                try {
+                    maxJitter = Long.parseLong(sMaxJitter.trim());
+                } catch (NumberFormatException e) {
+                    log.error("Invalid setting for " + PROP_DEADLINE_MAX_JITTER + " value=" +
+                                sMaxJitter + " using defaults.");
+                }
+            }
+            scheduler = new CollectorScheduler(maxJitter, this.interval);
+            log.info("Scheduling collectors on their due time with a jitter of up to " + maxJitter + "ms");
+        }
+
         this.thread = new Thread(this, "CollectorThread");
         this.thread.setDaemon(true);
         this.thread.start();
@@ -106,6 +149,10 @@ public class CollectorThread implements Runnable {
             return;
         }
         Collector.refreshOnPluginsChange();
+        if (scheduler != null) {
+            // Collectors of the previous plugins are dropped, the new ones are armed on the next sync
+            scheduler.clear();
+        }
     }
 
     public void setInterval(long interval) {
@@ -117,6 +164,14 @@ public class CollectorThread implements Runnable {
     }
 
     public void run() {
+        if (scheduler != null) {
+            runScheduled(scheduler);
+            return;
+        }
+        if (virtualExecutor != null) {
+            runOnVirtualThreads(virtualExecutor);
+            return;
+        }
         CollectorExecutor executor = new CollectorExecutor(this.props);
         log.debug("Created ThreadPoolExecutor: " +
                     "corePoolSize=" + executor.getCorePoolSize() + ", " +
@@ -144,6 +199,89 @@ public class CollectorThread implements Runnable {
         executor.shutdown();
     }
 
+    private void runOnVirtualThreads(VirtualThreadExecutor executor) {
+        final boolean isPoolable = !"false".equals(this.props.getProperty(CollectorExecutor.PROP_ISPOOLABLE));
+        while (!shouldDie.get()) {
+            final Collection<Collector> collectorsToExecute = Collector.getCollectorsToExecute();
+            for (final Collector collector : collectorsToExecute) {
+                if (isPoolable && collector.isPoolable()) {
+                    executor.execute(getProxy(collector));
+                } else {
+                    collector.run();
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Collector executor " + executor);
+            }
+            try {
+                Thread.sleep(this.interval);
+            } catch (InterruptedException e) {
+            }
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Run the collectors as they come due. The registered collectors are checked for new ones every interval, each
+     * collector is re-armed when its run completes.
+     */
+    private void runScheduled(final CollectorScheduler scheduler) {
+        final boolean isPoolable = !"false".equals(this.props.getProperty(CollectorExecutor.PROP_ISPOOLABLE));
+        final CollectorExecutor executor = (virtualExecutor == null) ? new CollectorExecutor(this.props) : null;
+        long nextSync = 0;
+        while (!shouldDie.get()) {
+            long now = now();
+            if (now >= nextSync) {
+                int added = scheduler.sync(Collector.getCollectors(), now);
+                if (log.isDebugEnabled()) {
+                    log.debug("Armed " + added + " new collectors, Armed=" + scheduler.size() +
+                                ", Running=" + scheduler.getRunning());
+                }
+                nextSync = now + this.interval;
+            }
+            for (final Collector collector : scheduler.consumeDue(now)) {
+                if (isPoolable && collector.isPoolable()) {
+                    final Runnable proxy = getProxy(collector);
+                    Runnable task = new Runnable() {
+                        public void run() {
+                            try {
+                                proxy.run();
+                            } finally {
+                                scheduler.completed(collector, now());
+                            }
+                        }
+                    };
+                    try {
+                        if (virtualExecutor != null) {
+                            virtualExecutor.execute(task);
+                        } else {
+                            executor.execute(task);
+                        }
+                    } catch (RuntimeException e) {
+                        // Executor is shut down
+                        log.debug("Unable to run " + collector + ": " + e);
+                        scheduler.completed(collector, now());
+                    }
+                } else {
+                    try {
+                        collector.run();
+                    } finally {
+                        scheduler.completed(collector, now());
+                    }
+                }
+            }
+            try {
+                scheduler.awaitNext(Math.max(1, nextSync - now()));
+            } catch (InterruptedException e) {
+            }
+        }
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdown();
+        } else {
+            executor.shutdown();
+        }
+    }
+
     /** proxy used to intercept in order to create stats */
     private Runnable getProxy(final Collector collector) {
         InvocationHandler handler = new InvocationHandler() {
@@ -155,7 +293,7 @@ public class CollectorThread implements Runnable {
                     final long start = now();
                     Object rtn = method.invoke(collector, args);
                     final long duration = now() - start;
-                    statsCollector.addStat(duration, COLLECTOR_THREAD_METRIC_COLLECTED_TIME);
+                    collectedTimeStat.add(duration);
                     return rtn;
                 } else {
                     return method.invoke(collector, args);
@@ -36,6 +36,7 @@ import org.hyperic.hq.agent.AgentCommand;
 import org.hyperic.hq.agent.AgentRemoteException;
 import org.hyperic.hq.agent.AgentRemoteValue;
 import org.hyperic.hq.agent.stats.AgentStatsCollector;
+import org.hyperic.hq.stats.StatHandle;
 
 /**
  * The object which manages all libraries wanting to have their commands remotely dispatched. Libraries can register
@@ -49,10 +50,14 @@ public class CommandDispatcher {
     private static final String COMMAND_DISPATCHER_INCOMING_COMMAND = "COMMAND_DISPATCHER_INCOMING_COMMAND";
     // this should never happen but the agent is in such an unknown state so I didn't want to leave it out
     private static final String COMMAND_DISPATCHER_ILLEGAL_COMMAND = "COMMAND_DISPATCHER_ILLEGAL_COMMAND";
+    private final StatHandle illegalCommandStat;
+    private final StatHandle incomingCommandStat;
+    // command -> its stat
+    private final HashMap<String, StatHandle> commandStats = new HashMap<String, StatHandle>();
 
     CommandDispatcher() {
-        statsCollector.register(COMMAND_DISPATCHER_ILLEGAL_COMMAND);
-        statsCollector.register(COMMAND_DISPATCHER_INCOMING_COMMAND);
+        illegalCommandStat = statsCollector.register(COMMAND_DISPATCHER_ILLEGAL_COMMAND);
+        incomingCommandStat = statsCollector.register(COMMAND_DISPATCHER_INCOMING_COMMAND);
     }
 
     /**
@@ -67,7 +72,8 @@ public class CommandDispatcher {
         String[] cmds = handler.getCommandSet();
         for (int i = 0; i < cmds.length; i++) {
             commands.put(cmds[i], handler);
-            statsCollector.register(COMMAND_DISPATCHER_INCOMING_COMMAND + "_" + cmds[i].toUpperCase());
+            commandStats.put(cmds[i],
+                        statsCollector.register(COMMAND_DISPATCHER_INCOMING_COMMAND + "_" + cmds[i].toUpperCase()));
         }
     }
 
@@ -118,10 +124,10 @@ public class CommandDispatcher {
         } finally {
             long end = now();
             if (legalCommand) {
-                statsCollector.addStat(end - start, COMMAND_DISPATCHER_INCOMING_COMMAND);
-                statsCollector.addStat(end - start, COMMAND_DISPATCHER_INCOMING_COMMAND + "_" + command.toUpperCase());
+                incomingCommandStat.add(end - start);
+                commandStats.get(command).add(end - start);
             } else {
-                statsCollector.addStat(1, COMMAND_DISPATCHER_ILLEGAL_COMMAND);
+                illegalCommandStat.add(1);
             }
         }
     }
@@ -0,0 +1,222 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.stats.AgentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+
+/**
+ * An executor running each task on its own virtual thread, for tasks which mostly block on remote resources (JMX,
+ * JDBC, SNMP, HTTP, sockets). Virtual threads are looked up reflectively, as the agent is built for older JVMs. When
+ * they aren't available the tasks run on a pool of platform threads which are only created on demand and time out when
+ * idle.
+ *
+ * The executor keeps track of the number of tasks in flight and the number of completed tasks, which can be reported
+ * through the {@link AgentStatsCollector}.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+    private static final Log log = LogFactory.getLog(VirtualThreadExecutor.class.getName());
+
+    public static final int DEFAULT_FALLBACK_POOL_SIZE = 200;
+
+    private final String name;
+    private final ExecutorService delegate;
+    private final boolean virtual;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * @param name prefix of the thread names
+     * @param fallbackPoolSize maximum number of platform threads used when virtual threads aren't available
+     */
+    public VirtualThreadExecutor(String name,
+                                 int fallbackPoolSize) {
+        this.name = name;
+        ExecutorService virtualExecutor = newVirtualThreadExecutor(name);
+        if (virtualExecutor != null) {
+            this.delegate = virtualExecutor;
+            this.virtual = true;
+            log.info("Running " + name + " tasks on virtual threads");
+        } else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(fallbackPoolSize, fallbackPoolSize,
+                        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), getFactory(name));
+            pool.allowCoreThreadTimeOut(true);
+            this.delegate = pool;
+            this.virtual = false;
+            log.info("Virtual threads are not available, running " + name + " tasks on up to " +
+                        fallbackPoolSize + " threads");
+        }
+    }
+
+    /**
+     * @return an executor creating a new named virtual thread per task, or null if the JVM doesn't support them
+     */
+    private static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor",
+                        ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (NoSuchMethodException e) {
+            // JVM without virtual threads
+        } catch (ClassNotFoundException e) {
+            // JVM without virtual threads
+        } catch (IllegalAccessException e) {
+            log.debug(e, e);
+        } catch (InvocationTargetException e) {
+            // Virtual threads are a preview feature which is not enabled
+            log.debug(e.getCause(), e.getCause());
+        }
+        return null;
+    }
+
+    private static ThreadFactory getFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicLong num = new AtomicLong();
+
+            public Thread newThread(Runnable r) {
+                final Thread rtn = new Thread(r, name + "-" + num.getAndIncrement());
+                rtn.setDaemon(true);
+                return rtn;
+            }
+        };
+    }
+
+    /**
+     * @return true if tasks run on virtual threads rather than the fallback pool
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return the number of tasks submitted and not yet completed
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of completed tasks
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Report the tasks in flight and the tasks completed during each stats interval as [prefix]_IN_FLIGHT and
+     * [prefix]_COMPLETED.
+     */
+    public void registerStats(AgentStatsCollector statsCollector,
+                              final String prefix) {
+        statsCollector.register(new StatCollector() {
+            public String getId() {
+                return prefix + "_IN_FLIGHT";
+            }
+
+            public long getVal() {
+                return getInFlight();
+            }
+        });
+        statsCollector.register(new StatCollector() {
+            private long last = 0;
+
+            public String getId() {
+                return prefix + "_COMPLETED";
+            }
+
+            public long getVal() {
+                long curr = getCompleted();
+                long rtn = curr - last;
+                last = curr;
+                return rtn;
+            }
+        });
+    }
+
+    public void execute(final Runnable command) {
+        inFlight.incrementAndGet();
+        try {
+            delegate.execute(new Runnable() {
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        inFlight.decrementAndGet();
+                        completed.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout,
+                                    TimeUnit unit)
+        throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return name + "[virtual=" + virtual + ", inFlight=" + getInFlight() + ", completed=" + getCompleted() + "]";
+    }
+}
@@ -26,6 +26,8 @@
 package org.hyperic.hq.agent.stats;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
@@ -35,16 +37,29 @@ import java.util.concurrent.atomic.AtomicLong;
 import javax.management.MBeanServer;
 import javax.management.MBeanServerFactory;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.stats.AbstractStatsCollector;
+import org.hyperic.hq.stats.StatHandle;
+import org.hyperic.util.stats.StatCollector;
+import org.hyperic.util.stats.StatHistogram;
 
 public class AgentStatsCollector extends AbstractStatsCollector {
+    private static final Log log = LogFactory.getLog(AgentStatsCollector.class.getName());
 
     private ScheduledThreadPoolExecutor executor;
+    private final List<AgentStatsSource> sources = new CopyOnWriteArrayList<AgentStatsSource>();
     private static final AgentStatsCollector instance = new AgentStatsCollector();
     public static final String SCHEDULE_THREAD_METRICS_COLLECTED_TIME = "SCHEDULE_THREAD_METRICS_COLLECTED_TIME";
     public static final String SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED = "SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED";
     public static final String SCHEDULE_THREAD_METRIC_COLLECT_FAILED = "SCHEDULE_THREAD_METRIC_COLLECT_FAILED";
+    public static final String SCHEDULE_THREAD_METRIC_TASKS_DEFERRED = "SCHEDULE_THREAD_METRIC_TASKS_DEFERRED";
+    public static final String SCHEDULE_THREAD_VIRTUAL_TASKS = "SCHEDULE_THREAD_VIRTUAL_TASKS";
+    public static final String SCHEDULE_THREAD_METRIC_TASKS_SLOW = "SCHEDULE_THREAD_METRIC_TASKS_SLOW";
+    public static final String SCHEDULE_THREAD_METRIC_TASKS_CANCELLED = "SCHEDULE_THREAD_METRIC_TASKS_CANCELLED";
+    public static final String SCHEDULE_THREAD_METRIC_COLLECTION_LAG = "SCHEDULE_THREAD_METRIC_COLLECTION_LAG";
     public static final String COLLECTOR_THREAD_METRIC_COLLECTED_TIME = "COLLECTOR_THREAD_METRIC_COLLECTED_TIME";
+    public static final String COLLECTOR_THREAD_VIRTUAL_TASKS = "COLLECTOR_THREAD_VIRTUAL_TASKS";
     public static final String SENDER_THREAD_SEND_NUM_METRICS = "SENDER_THREAD_NUM_SEND_METRICS";
     public static final String SENDER_THREAD_SEND_METRICS_TIME = "SENDER_THREAD_SEND_METRICS_TIME";
     public static final String DISK_LIST_DISK_ITERATOR_REMOVE_TIME = "DISK_LIST_DISK_ITERATOR_REMOVE_TIME";
@@ -80,4 +95,44 @@ public class AgentStatsCollector extends AbstractStatsCollector {
         return instance;
     }
 
+    public void registerSource(AgentStatsSource source) {
+        sources.add(source);
+    }
+
+    public void unregisterSource(AgentStatsSource source) {
+        sources.remove(source);
+    }
+
+    /**
+     * @return all registered stats and the values of the registered sources in the text exposition format. Stats are
+     *         taken from the last interval written by the stats writer, nothing is read from disk and no stat is reset.
+     */
+    public String getExposition() {
+        final StatsExposition out = new StatsExposition();
+        final Map<String, Long> sampled = getLastSampled();
+        for (Map.Entry<String, StatCollector> entry : getStatKeys().entrySet()) {
+            final String id = entry.getKey();
+            if (entry.getValue() != null) {
+                final Long value = sampled.get(id);
+                if (value != null) {
+                    out.gauge(id, "Value of " + id + " in the last stats interval", value);
+                }
+                continue;
+            }
+            final StatHandle handle = getHandle(id);
+            final StatHistogram.Snapshot interval = (handle == null) ? null : handle.getLastInterval();
+            if (interval != null) {
+                out.summary(id, "Values of " + id + " in the last stats interval", interval);
+            }
+        }
+        for (AgentStatsSource source : sources) {
+            try {
+                source.writeStats(out);
+            } catch (RuntimeException e) {
+                log.warn("Could not get the stats of " + source + ": " + e, e);
+            }
+        }
+        return out.toString();
+    }
+
 }
@@ -0,0 +1,210 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.stats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.diagnostics.AgentDiagnostics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes the agent stats and diagnostics for local monitoring tools, without them having to read the stats and
+ * diagnostics files.
+ * 
+ * Over HTTP the stats are served on /metrics in the text exposition format and the diagnostics on /diagnostics. The
+ * HTTP server only listens on the loopback address. Over JMX the same content is available from the
+ * {@value #OBJECT_NAME} MBean in the platform MBean server, which is only reachable by local tools unless remote JMX is
+ * enabled for the agent JVM.
+ * 
+ * Both are served from the values kept in memory by the {@link AgentStatsCollector} and {@link AgentDiagnostics}.
+ */
+public class AgentStatsServer implements AgentStatsServerMBean {
+    private static final Log log = LogFactory.getLog(AgentStatsServer.class.getName());
+
+    public static final String OBJECT_NAME = "hyperic.agent:type=Stats";
+    static final String METRICS_PATH = "/metrics";
+    static final String DIAGNOSTICS_PATH = "/diagnostics";
+
+    private final AgentStatsCollector statsCollector;
+    private final AgentDiagnostics diagnostics;
+    private HttpServer httpServer = null;
+    private ExecutorService httpExecutor = null;
+    private ObjectName objectName = null;
+
+    public AgentStatsServer(AgentStatsCollector statsCollector,
+                            AgentDiagnostics diagnostics) {
+        this.statsCollector = statsCollector;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * @param httpPort the loopback port of the HTTP endpoint, 0 or less to not serve the stats over HTTP
+     * @param jmx true to register the MBean
+     */
+    public synchronized void start(int httpPort,
+                                   boolean jmx)
+        throws IOException {
+        if (httpPort > 0) {
+            startHttp(httpPort);
+        }
+        if (jmx) {
+            registerMBean();
+        }
+    }
+
+    private void startHttp(int port)
+        throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext(METRICS_PATH, new Handler() {
+            @Override
+            String getContent() {
+                return getMetrics();
+            }
+
+            @Override
+            String getContentType() {
+                return StatsExposition.CONTENT_TYPE;
+            }
+        });
+        server.createContext(DIAGNOSTICS_PATH, new Handler() {
+            @Override
+            String getContent() {
+                return getDiagnostics();
+            }
+
+            @Override
+            String getContentType() {
+                return "text/plain; charset=utf-8";
+            }
+        });
+        httpExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread rtn = new Thread(r, "agentstats-http");
+                rtn.setDaemon(true);
+                return rtn;
+            }
+        });
+        server.setExecutor(httpExecutor);
+        server.start();
+        httpServer = server;
+        log.info("Serving agent stats on http://" + address.getAddress().getHostAddress() + ":" +
+                    getHttpPort() + METRICS_PATH);
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, name);
+            objectName = name;
+            log.info("Registered agent stats MBean " + OBJECT_NAME);
+        } catch (JMException e) {
+            log.warn("Could not register agent stats MBean " + OBJECT_NAME + ": " + e, e);
+        }
+    }
+
+    /**
+     * @return the port the HTTP endpoint listens on, -1 if it isn't started
+     */
+    public synchronized int getHttpPort() {
+        return (httpServer == null) ? -1 : httpServer.getAddress().getPort();
+    }
+
+    public synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdownNow();
+            httpServer = null;
+            httpExecutor = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.debug(e, e);
+            }
+            objectName = null;
+        }
+    }
+
+    public String getMetrics() {
+        return statsCollector.getExposition();
+    }
+
+    public String getDiagnostics() {
+        return diagnostics.getLastStatus();
+    }
+
+    private abstract static class Handler implements HttpHandler {
+        abstract String getContent();
+
+        abstract String getContentType();
+
+        public void handle(HttpExchange exchange)
+            throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                    exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = getContent().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", getContentType());
+                if ("HEAD".equals(method)) {
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            } catch (RuntimeException e) {
+                log.warn("Could not serve " + exchange.getRequestURI() + ": " + e, e);
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.stats;
+
+/**
+ * A component exposing gauges and counters of its own through the stats endpoint, in addition to the stats registered
+ * in the {@link AgentStatsCollector}. Unlike those, sources may come and go at any time, and their values may carry a
+ * label, such as the plugin they apply to.
+ * 
+ * @see AgentStatsCollector#registerSource(AgentStatsSource)
+ */
+public interface AgentStatsSource {
+
+    /**
+     * Write the current values of the source. Called by the thread serving the stats endpoint, so implementations must
+     * only read in-memory state and must not block.
+     */
+    public void writeStats(StatsExposition out);
+}
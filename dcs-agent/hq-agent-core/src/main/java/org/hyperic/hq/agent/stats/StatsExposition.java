@@ -0,0 +1,183 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hyperic.util.stats.StatHistogram;
+
+/**
+ * Builds the text exposition format read by Prometheus and compatible scrapers: one family per metric name, each
+ * preceded by its HELP and TYPE lines. Metric names get the hq_agent_ prefix and are lower cased, so the stat
+ * SCHEDULE_THREAD_METRICS_COLLECTED_TIME is exposed as hq_agent_schedule_thread_metrics_collected_time.
+ */
+public class StatsExposition {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "hq_agent_";
+    private static final String GAUGE = "gauge", COUNTER = "counter", SUMMARY = "summary";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    // name -> family, sorted for a stable output
+    private final Map<String, Family> families = new TreeMap<String, Family>();
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final StringBuilder samples = new StringBuilder();
+
+        private Family(String help,
+                       String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public void gauge(String name,
+                      String help,
+                      double value) {
+        sample(name, help, GAUGE, "", null, null, value);
+    }
+
+    public void gauge(String name,
+                      String help,
+                      String label,
+                      String labelValue,
+                      double value) {
+        sample(name, help, GAUGE, "", label, labelValue, value);
+    }
+
+    public void counter(String name,
+                        String help,
+                        double value) {
+        sample(name, help, COUNTER, "", null, null, value);
+    }
+
+    public void counter(String name,
+                        String help,
+                        String label,
+                        String labelValue,
+                        double value) {
+        sample(name, help, COUNTER, "", label, labelValue, value);
+    }
+
+    /**
+     * Expose the values of one stats interval as a summary with quantiles, sum and count, along with the maximum as a
+     * gauge.
+     */
+    public void summary(String name,
+                        String help,
+                        StatHistogram.Snapshot interval) {
+        for (double quantile : QUANTILES) {
+            sample(name, help, SUMMARY, "", "quantile", Double.toString(quantile),
+                        interval.getValueAtPercentile(quantile * 100));
+        }
+        sample(name, help, SUMMARY, "_sum", null, null, interval.getSum());
+        sample(name, help, SUMMARY, "_count", null, null, interval.getCount());
+        gauge(name + "_max", "Largest value of " + name + " in the last stats interval", interval.getMax());
+    }
+
+    private void sample(String name,
+                        String help,
+                        String type,
+                        String suffix,
+                        String label,
+                        String labelValue,
+                        double value) {
+        String familyName = toMetricName(name);
+        Family family = families.get(familyName);
+        if (family == null) {
+            family = new Family(help, type);
+            families.put(familyName, family);
+        }
+        StringBuilder buf = family.samples;
+        buf.append(familyName).append(suffix);
+        if (label != null) {
+            buf.append('{').append(label).append("=\"");
+            escape(buf, labelValue, true);
+            buf.append("\"}");
+        }
+        buf.append(' ');
+        appendValue(buf, value);
+        buf.append('\n');
+    }
+
+    static String toMetricName(String name) {
+        StringBuilder buf = new StringBuilder(PREFIX.length() + name.length()).append(PREFIX);
+        for (int i = 0; i < name.length(); i++) {
+            char c = Character.toLowerCase(name.charAt(i));
+            buf.append((((c >= 'a') && (c <= 'z')) || ((c >= '0') && (c <= '9'))) ? c : '_');
+        }
+        return buf.toString();
+    }
+
+    private static void escape(StringBuilder buf,
+                               String value,
+                               boolean quotes) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\') {
+                buf.append("\\\\");
+            } else if (c == '\n') {
+                buf.append("\\n");
+            } else if (quotes && (c == '"')) {
+                buf.append("\\\"");
+            } else {
+                buf.append(c);
+            }
+        }
+    }
+
+    private static void appendValue(StringBuilder buf,
+                                    double value) {
+        if (Double.isNaN(value)) {
+            buf.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            buf.append((value > 0) ? "+Inf" : "-Inf");
+        } else if ((value == Math.rint(value)) && (Math.abs(value) < Long.MAX_VALUE)) {
+            buf.append((long) value);
+        } else {
+            buf.append(value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(families.size() * 128);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            Family family = entry.getValue();
+            if (family.help != null) {
+                buf.append("# HELP ").append(entry.getKey()).append(' ');
+                escape(buf, family.help, false);
+                buf.append('\n');
+            }
+            buf.append("# TYPE ").append(entry.getKey()).append(' ').append(family.type).append('\n');
+            buf.append(family.samples);
+        }
+        return buf.toString();
+    }
+}
@@ -19,6 +19,12 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.net.ssl.SSLException;
@@ -31,6 +37,7 @@ import org.hyperic.hq.bizapp.agent.ProviderInfo;
 import org.hyperic.hq.bizapp.client.common.CommonServerInteractor;
 import org.hyperic.hq.bizapp.shared.lather.CommandInfo;
 import org.hyperic.hq.common.shared.HQConstants;
+import org.hyperic.hq.stats.StatHandle;
 import org.hyperic.lather.LatherRemoteException;
 import org.hyperic.lather.LatherValue;
 import org.hyperic.lather.client.LatherHTTPClient;
@@ -46,12 +53,23 @@ public abstract class AgentCallbackClient {
     private static final String LATHER_CMD = "LATHER_CMD";
     private final ProviderFetcher fetcher; // Storage of provider info
     private static AgentStatsCollector statsCollector = AgentStatsCollector.getInstance();
+    private static final StatHandle latherCmdStat = statsCollector.register(LATHER_CMD);
+    // method -> its stat
+    private static final Map<String, StatHandle> methodStats = new HashMap<String, StatHandle>();
     static {
-        statsCollector.register(LATHER_CMD);
         for (String cmd : CommandInfo.ALL_COMMANDS) {
-            statsCollector.register(LATHER_CMD + "_" + cmd.toUpperCase());
+            methodStats.put(cmd, statsCollector.register(LATHER_CMD + "_" + cmd.toUpperCase()));
         }
     }
+    // Methods carrying large payloads, sent through the bulk connections
+    private static final Set<String> BULK_COMMANDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+                CommandInfo.CMD_AI_SEND_REPORT,
+                CommandInfo.CMD_AI_SEND_RUNTIME_REPORT,
+                CommandInfo.CMD_PLUGIN_SEND_REPORT)));
+    // Reused across calls while the provider address and the HTTP client stay the same
+    private volatile LatherHTTPClient latherClient = null;
+    private volatile LatherHTTPClient bulkLatherClient = null;
+    private final boolean closeConnByDefault;
     private static final AtomicReference<AgentConfig> config = new AtomicReference<AgentConfig>();
 
     public static void setAgentConfig(AgentConfig cfg) {
@@ -68,11 +86,45 @@ public abstract class AgentCallbackClient {
         return reusableClient;
     }
 
+    /**
+     * @return the reusable client for bulk transfers, whose connections are kept apart from the ones of
+     *         {@link #getReusableClient()}
+     */
+    protected ServerHttpClient getReusableBulkClient() {
+        return CommonServerInteractor.INSTANCE.getBulkHttpClient();
+    }
+
     public AgentCallbackClient(ProviderFetcher fetcher,
                                AgentConfig config) {
         this.fetcher = fetcher;
         resetProvider();
         setAgentConfig(config);
+        // Get close connection default behavior from agent properties. This conversion is null safe.
+        this.closeConnByDefault =
+                    Boolean.parseBoolean(
+                                AgentConfig.getDefaultProperties().getProperty(
+                                            AgentConfig.PROP_CLOSE_HTTP_CONNECTION_BY_DEFAULT[0]));
+    }
+
+    /**
+     * @return the lather client of the provider for the method, created on the first call or when the provider address
+     *         or the HTTP client changed. Bulk reports get a client using the bulk connections.
+     */
+    protected LatherHTTPClient getLatherClient(ProviderInfo provider,
+                                               String methodName) {
+        String addr = provider.getProviderAddress();
+        boolean bulk = BULK_COMMANDS.contains(methodName);
+        ServerHttpClient httpClient = bulk ? getReusableBulkClient() : getReusableClient();
+        LatherHTTPClient client = bulk ? bulkLatherClient : latherClient;
+        if ((client == null) || (client.getHttpClient() != httpClient) || !client.getBaseURL().equals(addr)) {
+            client = new LatherHTTPClient(addr, httpClient);
+            if (bulk) {
+                bulkLatherClient = client;
+            } else {
+                latherClient = client;
+            }
+        }
+        return client;
     }
 
     void resetProvider() {
@@ -137,15 +189,7 @@ public abstract class AgentCallbackClient {
                                            String methodName,
                                            LatherValue args)
         throws AgentCallbackClientException {
-        // Get close connection default behavior from agent properties. This conversion is null safe.
-        boolean closeConn =
-                    Boolean.parseBoolean(
-                                AgentConfig.getDefaultProperties().getProperty(
-                                            AgentConfig.PROP_CLOSE_HTTP_CONNECTION_BY_DEFAULT[0]));
-
-        String addr = provider.getProviderAddress();
-        LatherHTTPClient latherClient = new LatherHTTPClient(addr, getReusableClient());
-        return invokeLatherCall(provider, methodName, args, latherClient, closeConn);
+        return invokeLatherCall(provider, methodName, args, getLatherClient(provider, methodName), closeConnByDefault);
     }
 
     protected LatherValue invokeLatherCall(ProviderInfo provider,
@@ -153,13 +197,7 @@ public abstract class AgentCallbackClient {
                                            LatherValue args,
                                            LatherHTTPClient latherClient)
         throws AgentCallbackClientException {
-        // Get close connection default behavior from agent properties. This conversion is null safe.
-        boolean closeConn =
-                    Boolean.parseBoolean(
-                                AgentConfig.getDefaultProperties().getProperty(
-                                            AgentConfig.PROP_CLOSE_HTTP_CONNECTION_BY_DEFAULT[0]));
-
-        return invokeLatherCall(provider, methodName, args, latherClient, closeConn);
+        return invokeLatherCall(provider, methodName, args, latherClient, closeConnByDefault);
     }
 
     protected LatherValue invokeLatherCall(ProviderInfo provider,
@@ -167,9 +205,7 @@ public abstract class AgentCallbackClient {
                                            LatherValue args,
                                            boolean closeConn)
         throws AgentCallbackClientException {
-        String addr = provider.getProviderAddress();
-        LatherHTTPClient latherClient = new LatherHTTPClient(addr, getReusableClient());
-        return invokeLatherCall(provider, methodName, args, latherClient, closeConn);
+        return invokeLatherCall(provider, methodName, args, getLatherClient(provider, methodName), closeConn);
     }
 
     protected LatherValue invokeLatherCall(ProviderInfo provider,
@@ -185,8 +221,11 @@ public abstract class AgentCallbackClient {
             final long start = now();
             LatherValue rtn = latherClient.invoke(methodName, args, closeConn);
             final long duration = now() - start;
-            statsCollector.addStat(duration, LATHER_CMD);
-            statsCollector.addStat(duration, LATHER_CMD + "_" + methodName.toUpperCase());
+            latherCmdStat.add(duration);
+            StatHandle methodStat = methodStats.get(methodName);
+            if (methodStat != null) {
+                methodStat.add(duration);
+            }
             return rtn;
         } catch (SSLException e) {
             if (debug) {
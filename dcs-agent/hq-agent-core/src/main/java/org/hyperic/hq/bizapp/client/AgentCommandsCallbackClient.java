@@ -64,11 +64,22 @@ public class AgentCommandsCallbackClient extends AgentCallbackClient {
     }
 
     public List<InvocationRequest> getAgentCommands()
+        throws AgentCallbackClientException {
+        return getAgentCommands(0).getAgentCommands();
+    }
+
+    /**
+     * @param wait the longest time (ms) the server may hold the request until commands are queued
+     */
+    public GetAgentCommands_result getAgentCommands(int wait)
         throws AgentCallbackClientException {
         ProviderInfo provider = this.getProvider();
-        GetAgentCommands_result result = (GetAgentCommands_result)
-                    this.invokeLatherCall(provider, CommandInfo.CMD_GET_AGENT_COMMANDS, new GetAgentCommands_args());
-        return result.getAgentCommands();
+        GetAgentCommands_args args = new GetAgentCommands_args();
+        if (wait > 0) {
+            args.setWait(wait);
+        }
+        return (GetAgentCommands_result)
+                    this.invokeLatherCall(provider, CommandInfo.CMD_GET_AGENT_COMMANDS, args);
     }
 
     public boolean sendAgentResponses(List<InvocationResponse> responses)
@@ -133,7 +144,7 @@ public class AgentCommandsCallbackClient extends AgentCallbackClient {
 
         LOGGER.info(String.format("%d files are going to be downloaded from the server", fileMetaDataList.size()));
 
-        ServerHttpClient httpClient = getReusableClient();
+        ServerHttpClient httpClient = getReusableBulkClient();
         int randomNumber = getRandomBaseInterval(20);
 
         return downloadWithRetries(provider, fileMetaDataList, httpClient, DOWNLOAD_RETRY_COUNT, randomNumber);
@@ -25,6 +25,8 @@
 
 package org.hyperic.hq.bizapp.client;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.agent.AgentConfig;
 import org.hyperic.hq.agent.server.AgentDaemon;
 import org.hyperic.hq.agent.server.AgentRunningException;
@@ -33,6 +35,7 @@ import org.hyperic.hq.bizapp.agent.ProviderInfo;
 import org.hyperic.hq.bizapp.shared.lather.CommandInfo;
 import org.hyperic.hq.bizapp.shared.lather.MeasurementGetConfigs_args;
 import org.hyperic.hq.bizapp.shared.lather.MeasurementGetConfigs_result;
+import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReportColumnar_args;
 import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReport_args;
 import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReport_result;
 import org.hyperic.hq.bizapp.shared.lather.TopNSendReport_args;
@@ -42,10 +45,15 @@ import org.hyperic.hq.measurement.data.TrackEventReport;
 import org.hyperic.hq.measurement.shared.MeasurementConfigList;
 import org.hyperic.hq.transport.AgentTransport;
 import org.hyperic.lather.LatherRemoteException;
+import org.hyperic.lather.LatherValue;
 
 public class MeasurementCallbackClient
             extends AgentCallbackClient
 {
+    private static final Log log = LogFactory.getLog(MeasurementCallbackClient.class);
+
+    // Set once the server advertised the columnar report format, reports are sent as lists until then
+    private volatile boolean columnarReports = false;
 
     public MeasurementCallbackClient(ProviderFetcher fetcher,
                                      AgentConfig bootConfig) {
@@ -59,18 +67,40 @@ public class MeasurementCallbackClient
                                       boolean closeConn)
         throws AgentCallbackClientException
     {
-        MeasurementSendReport_args args;
+        LatherValue args;
         MeasurementSendReport_result res;
         ProviderInfo provider;
+        boolean columnar = this.columnarReports;
 
         provider = this.getProvider();
-        args = new MeasurementSendReport_args();
-        args.setReport(report);
+        if (columnar) {
+            MeasurementSendReportColumnar_args columnarArgs = new MeasurementSendReportColumnar_args();
+            columnarArgs.setReport(report);
+            args = columnarArgs;
+        } else {
+            MeasurementSendReport_args listArgs = new MeasurementSendReport_args();
+            listArgs.setReport(report);
+            args = listArgs;
+        }
 
-        res = (MeasurementSendReport_result)
-                    this.invokeLatherCall(provider,
-                                CommandInfo.CMD_MEASUREMENT_SEND_REPORT,
-                                args, closeConn);
+        try {
+            res = (MeasurementSendReport_result)
+                        this.invokeLatherCall(provider,
+                                    CommandInfo.CMD_MEASUREMENT_SEND_REPORT,
+                                    args, closeConn);
+        } catch (AgentCallbackClientException exc) {
+            if (columnar) {
+                // The report may have reached a server which doesn't know the format, negotiate it again
+                this.columnarReports = false;
+            }
+            throw exc;
+        }
+
+        boolean serverColumnar = res.getColumnarFormat() >= MeasurementSendReportColumnar_args.FORMAT_VERSION;
+        if (serverColumnar != columnar) {
+            log.info("Sending measurement reports " + (serverColumnar ? "in columnar format" : "as lists"));
+            this.columnarReports = serverColumnar;
+        }
 
         try {
             return res.getTime();
@@ -3,7 +3,6 @@ package org.hyperic.hq.bizapp.client.common;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpResponse;
-import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
@@ -30,6 +29,7 @@ public enum CommonServerInteractor {
     private static final Log logger = LogFactory
                 .getLog(CommonServerInteractor.class);
     private ServerHttpClient httpClient;
+    private ServerHttpClient bulkHttpClient;
 
     /**
      * @return reusable optimized client. Meaning that the client is set to keep-alive, and has a connection manager who
@@ -43,16 +43,58 @@ public enum CommonServerInteractor {
         return httpClient;
     }
 
+    /**
+     * @return reusable client for bulk transfers, such as plugin downloads and inventory reports. It has its own pool
+     *         of keep-alive connections, so that metric reports, events and command polling sent through
+     *         {@link #getHttpClient()} never wait for a connection held by a long transfer. It sends to the servers of
+     *         {@link #getHttpClient()}, so both clients fail over together. When no bulk connections are configured,
+     *         this is the client returned by {@link #getHttpClient()}.
+     */
+    public synchronized ServerHttpClient getBulkHttpClient() {
+        int maxBulkConnections = getMaxBulkConnections();
+        if (maxBulkConnections <= 0) {
+            return getHttpClient();
+        }
+        if (bulkHttpClient == null) {
+            bulkHttpClient = generateBulkHttpClient(getFallbackConfig(), maxBulkConnections, getHttpClient());
+        }
+
+        return bulkHttpClient;
+    }
+
     private ServerHttpClient generateHttpClient(
                                                 AgentKeystoreConfig agentKeystoreConfig) {
+        ThreadSafeClientConnManager conman = new ThreadSafeClientConnManager();
+        conman.setDefaultMaxPerRoute(getMaxConnectionsPerRoute());
         ServerHttpClient client = new ServerHttpClient(agentKeystoreConfig,
                     LatherHTTPClient.getHttpConfig(CONNECTION_TIMEOUT,
-                                SOCKET_TIMEOUT), false, generateConnectionManager(),
+                                SOCKET_TIMEOUT), false, conman,
                     getMaxRequestsPerConnection()
                     , isSupportRRDNS(),
                     getFailPeriodInMin(),
                     getDownPeriodInMin());
+        setKeepAlive(client);
+
+        return client;
+    }
+
+    private ServerHttpClient generateBulkHttpClient(AgentKeystoreConfig agentKeystoreConfig,
+                                                    int maxConnections,
+                                                    ServerHttpClient serversOf) {
+        // The bulk connections are capped in total, not per server, so that an agent never keeps more than
+        // maxConnections of them open whatever the number of servers it fails over to
+        ThreadSafeClientConnManager conman = new ThreadSafeClientConnManager();
+        conman.setMaxTotal(maxConnections);
+        conman.setDefaultMaxPerRoute(maxConnections);
+        ServerHttpClient client = new ServerHttpClient(agentKeystoreConfig,
+                    LatherHTTPClient.getHttpConfig(CONNECTION_TIMEOUT, SOCKET_TIMEOUT), false, conman,
+                    getMaxRequestsPerConnection(), serversOf);
+        setKeepAlive(client);
+
+        return client;
+    }
 
+    private static void setKeepAlive(ServerHttpClient client) {
         client.setReuseStrategy(new DefaultConnectionReuseStrategy());
         client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
             @Override
@@ -68,15 +110,6 @@ public enum CommonServerInteractor {
                 return serverKeepaliveTimeout;
             }
         });
-
-        return client;
-    }
-
-    private ClientConnectionManager generateConnectionManager() {
-        ThreadSafeClientConnManager conman = new ThreadSafeClientConnManager();
-        conman.setDefaultMaxPerRoute(getMaxConnectionsPerRoute());
-
-        return conman;
     }
 
     private AgentKeystoreConfig getFallbackConfig() {
@@ -106,6 +139,11 @@ public enum CommonServerInteractor {
         }
     }
 
+    private static int getMaxBulkConnections() {
+        return getIntConfig(AgentConfig.PROP_MAX_HTTP_BULK_CONNECTIONS[0],
+                    AgentConfig.MAX_HTTP_BULK_CONNECTIONS);
+    }
+
     public static int getFailPeriodInMin() {
         return getIntConfig(
                     AgentConfig.PROP_COMMUNICATION_FAIL_PERIOD_IN_MINUTES[0],
@@ -155,6 +193,9 @@ public enum CommonServerInteractor {
     public synchronized void onKeystoreChange(
                                               AgentKeystoreConfig agentKeystoreConfig) {
         httpClient = generateHttpClient(agentKeystoreConfig);
+        if (bulkHttpClient != null) {
+            bulkHttpClient = generateBulkHttpClient(agentKeystoreConfig, getMaxBulkConnections(), httpClient);
+        }
         logger.info("Generated a new http client");
     }
 }
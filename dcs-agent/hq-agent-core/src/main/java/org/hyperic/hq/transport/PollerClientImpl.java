@@ -20,24 +20,41 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.agent.AgentConfig;
 import org.hyperic.hq.agent.server.AgentStorageProvider;
+import org.hyperic.hq.bizapp.client.AgentCallbackClientException;
 import org.hyperic.hq.bizapp.client.AgentCommandsCallbackClient;
 import org.hyperic.hq.bizapp.client.StorageProviderFetcher;
+import org.hyperic.hq.bizapp.shared.lather.GetAgentCommands_result;
 import org.hyperic.hq.common.InvocationRequest;
 import org.hyperic.hq.common.InvocationResponse;
+import org.hyperic.hq.util.properties.PropertiesUtil;
 
 /**
  * The client that polls the server for data, dispatches to the server side bean then send the responses to the server.
+ *
+ * When long polling is enabled the server may hold a poll until commands are queued for the agent or the wait elapses.
+ * The agent polls again right after a poll which the server held, and waits for the polling frequency otherwise, e.g.
+ * when the server doesn't support long polling or the poll failed.
+ *
+ * The invocations of a poll run one after the other on an invokers pool thread, in the order the server sent them. In
+ * pipelined mode the poller doesn't wait for them, and each response is sent to the server as soon as its invocation
+ * completes, together with the other responses pending by then, so a slow invocation delays neither the responses of
+ * the invocations before it nor the next poll. Otherwise the poller waits for all the invocations of a poll and sends
+ * their responses at once. With the default pool of one thread the invocations of successive polls also run in the
+ * server order; with more threads the invocations of a poll may run alongside those of an earlier poll.
  */
 public class PollerClientImpl implements PollerClient {
 
@@ -51,23 +68,51 @@ public class PollerClientImpl implements PollerClient {
 
     private final long frequency;
 
+    private final int longPollWait;
+
+    private final boolean pipelined;
+
     public PollerClientImpl(AgentConfig config,
                             AgentStorageProvider storageProvider,
                             long frequency,
                             int asyncThreadPoolSize) {
+        this(new AgentCommandsCallbackClient(new StorageProviderFetcher(storageProvider), config), frequency,
+                    getLongPollWait(config.getBootProperties()), PropertiesUtil.getBooleanValue(
+                                config.getBootProperties().getProperty(AgentConfig.QPROP_UNI_PIPELINED_DISPATCH),
+                                true), asyncThreadPoolSize);
+    }
 
-        agentCommandsClient =
-                    new AgentCommandsCallbackClient(new StorageProviderFetcher(storageProvider), config);
+    PollerClientImpl(AgentCommandsCallbackClient agentCommandsClient,
+                     long frequency,
+                     int longPollWait,
+                     boolean pipelined,
+                     int asyncThreadPoolSize) {
+        this.agentCommandsClient = agentCommandsClient;
         scheduler = Executors.newScheduledThreadPool(1);
         invokersExecutor = Executors.newFixedThreadPool(asyncThreadPoolSize);
         this.frequency = frequency;
+        this.longPollWait = longPollWait;
+        this.pipelined = pipelined;
+    }
+
+    private static int getLongPollWait(Properties bootProperties) {
+        String longPollWaitString = bootProperties.getProperty(AgentConfig.QPROP_UNI_LONG_POLL_WAIT);
+        long wait = PropertiesUtil.getLongValue(AgentConfig.QPROP_UNI_LONG_POLL_WAIT, longPollWaitString,
+                    AgentConfig.DEFAULT_LONG_POLL_WAIT_IN_MS);
+        // Stay well below the lather read timeout
+        return (int) Math.max(0, Math.min(wait, AgentConfig.MAX_LONG_POLL_WAIT_IN_MS));
     }
 
     /**
      * @see org.hyperic.hq.transport.PollerClient#start()
      */
     public void start() {
-        scheduler.scheduleAtFixedRate(new PollingRunnable(), frequency, frequency, TimeUnit.MILLISECONDS);
+        if (longPollWait > 0) {
+            // The polling runnable schedules its next run itself
+            scheduler.schedule(new PollingRunnable(), frequency, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler.scheduleAtFixedRate(new PollingRunnable(), frequency, frequency, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -79,6 +124,23 @@ public class PollerClientImpl implements PollerClient {
         invokersExecutor.shutdown();
     }
 
+    // The calls to the server, overridden in tests
+
+    List<InvocationRequest> getAgentCommands()
+        throws AgentCallbackClientException {
+        return agentCommandsClient.getAgentCommands();
+    }
+
+    GetAgentCommands_result getAgentCommands(int wait)
+        throws AgentCallbackClientException {
+        return agentCommandsClient.getAgentCommands(wait);
+    }
+
+    boolean sendAgentResponses(List<InvocationResponse> responses)
+        throws AgentCallbackClientException {
+        return agentCommandsClient.sendAgentResponses(responses);
+    }
+
     public void registerService(Class<?> serviceInterface,
                                 Object serviceImpl) {
         serviceInterfaceName2ServiceInterface.put(serviceInterface, serviceImpl);
@@ -88,68 +150,128 @@ public class PollerClientImpl implements PollerClient {
 
         private final Log _log = LogFactory.getLog(PollingRunnable.class);
         private final LinkedBlockingQueue<InvocationResponse> responseQueue;
+        // Set while a thread sends the pending responses
+        private final AtomicBoolean sending = new AtomicBoolean();
 
         public PollingRunnable() {
             responseQueue = new LinkedBlockingQueue<InvocationResponse>();
         }
 
         public void run() {
+            boolean longPolled = false;
             try {
-                doPolling();
+                longPolled = doPolling();
             } catch (Throwable t) {
                 _log.error(t.getMessage());
                 if (_log.isDebugEnabled()) {
                     _log.debug(t.getStackTrace());
                 }
+            } finally {
+                if (longPollWait > 0) {
+                    scheduleNext(longPolled ? 0 : frequency);
+                }
             }
         }
 
-        private void doPolling()
+        private void scheduleNext(long delay) {
+            if (scheduler.isShutdown()) {
+                return;
+            }
+            try {
+                scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopped meanwhile
+            }
+        }
+
+        /**
+         * @return true if the server held the poll until commands were queued or the wait elapsed
+         */
+        private boolean doPolling()
             throws Throwable {
-            List<InvocationRequest> invocations = agentCommandsClient.getAgentCommands();
+            List<InvocationRequest> invocations;
+            boolean longPolled = false;
+            if (longPollWait > 0) {
+                GetAgentCommands_result result = getAgentCommands(longPollWait);
+                invocations = result.getAgentCommands();
+                longPolled = result.isLongPoll();
+            } else {
+                invocations = getAgentCommands();
+            }
             if (_log.isDebugEnabled()) {
                 _log.debug("Got invocation requests from the server '" + invocations + "'");
             }
             if (!invocations.isEmpty()) {
                 dispatchInvocationRequests(invocations, responseQueue);
             }
+            // Responses of invocations which completed since they were last sent
+            sendResponses();
+            return longPolled;
+        }
 
-            List<InvocationResponse> responses = new ArrayList<InvocationResponse>();
-            responseQueue.drainTo(responses);
-
-            if (!responses.isEmpty()) {
-                if (!agentCommandsClient.sendAgentResponses(responses)) {
-                    _log.error("A problem has occured while sending these responses to the server: " + responses);
-                } else if (_log.isDebugEnabled()) {
-                    _log.debug("Successfully sent these responses to the server: " + responses);
+        /**
+         * Send the pending responses, unless another thread is sending them already. Responses which could not be sent
+         * because the server was unreachable are sent again with the next responses.
+         */
+        private void sendResponses() {
+            while (!responseQueue.isEmpty() && sending.compareAndSet(false, true)) {
+                try {
+                    List<InvocationResponse> responses = new ArrayList<InvocationResponse>();
+                    responseQueue.drainTo(responses);
+                    if (responses.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        if (!PollerClientImpl.this.sendAgentResponses(responses)) {
+                            _log.error("A problem has occured while sending these responses to the server: " +
+                                        responses);
+                        } else if (_log.isDebugEnabled()) {
+                            _log.debug("Successfully sent these responses to the server: " + responses);
+                        }
+                    } catch (AgentCallbackClientException e) {
+                        _log.error("Failed to send " + responses.size() + " responses to the server, " +
+                                    "they will be sent again with the next responses: " + e.getMessage());
+                        responseQueue.addAll(responses);
+                        return;
+                    }
+                } finally {
+                    sending.set(false);
                 }
             }
         }
 
-        private void dispatchInvocationRequests(List<InvocationRequest> invocations,
+        private void dispatchInvocationRequests(final List<InvocationRequest> invocations,
                                                 final LinkedBlockingQueue<InvocationResponse> responseQueue)
             throws Throwable {
-            final CountDownLatch doneSignal = new CountDownLatch(invocations.size());
-            for (final InvocationRequest invocation : invocations) {
-                invokersExecutor.submit(new Runnable() {
-                    public void run() {
-                        Object service = serviceInterfaceName2ServiceInterface.get(invocation.getServiceInterface());
-                        try {
-                            Method method =
-                                        service.getClass().getMethod(invocation.getMethod(),
-                                                    invocation.getParameterTypes());
-                            Object result = method.invoke(service, invocation.getArgs());
-                            InvocationResponse response = new InvocationResponse(invocation.getSessionId(), result);
-                            responseQueue.put(response);
-                        } catch (Throwable t) {
-                            _log.error(t, t);
+            Future<?> done = invokersExecutor.submit(new Runnable() {
+                public void run() {
+                    // In the order of the server, a command may depend on the ones before it
+                    for (InvocationRequest invocation : invocations) {
+                        invoke(invocation, responseQueue);
+                        if (pipelined) {
+                            sendResponses();
                         }
-                        doneSignal.countDown();
                     }
-                });
+                }
+            });
+            if (!pipelined) {
+                // Wait for all the invocation requests to finish
+                done.get();
+            }
+        }
+
+        private void invoke(InvocationRequest invocation,
+                            LinkedBlockingQueue<InvocationResponse> responseQueue) {
+            Object service = serviceInterfaceName2ServiceInterface.get(invocation.getServiceInterface());
+            try {
+                Method method =
+                            service.getClass().getMethod(invocation.getMethod(), invocation.getParameterTypes());
+                Object result = method.invoke(service, invocation.getArgs());
+                InvocationResponse response = new InvocationResponse(invocation.getSessionId(), result);
+                responseQueue.put(response);
+            } catch (Throwable t) {
+                _log.error(t, t);
             }
-            // Wait for all the invocation requests to finish
-            doneSignal.await();
         }
 
     }
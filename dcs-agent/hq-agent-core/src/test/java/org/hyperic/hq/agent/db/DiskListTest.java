@@ -0,0 +1,215 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+public class DiskListTest extends TestCase {
+
+    private static final int RECSIZE = 16;
+
+    private File dir;
+    private DiskList list;
+
+    @Override
+    protected void setUp()
+        throws Exception {
+        dir = File.createTempFile("disklist", "");
+        dir.delete();
+        dir.mkdirs();
+        list = new DiskList(new File(dir, "spool"), RECSIZE, 1024 * 1024, 50);
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception {
+        list.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static byte[] record(long a,
+                                 double b) {
+        return ByteBuffer.allocate(RECSIZE).putLong(a).putDouble(b).array();
+    }
+
+    public void testCursorReadsRecordsInOrder()
+        throws Exception {
+        assertNull(list.getListCursor());
+        for (int i = 0; i < 10; i++) {
+            list.addToList(record(i, i * 1.5));
+        }
+        DiskList.DiskListCursor cursor = list.getListCursor();
+        assertEquals(RECSIZE, cursor.getRecordSize());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cursor.hasNext());
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.getLong(0));
+            assertEquals(i * 1.5, cursor.getDouble(8), 0);
+        }
+        assertFalse(cursor.hasNext());
+        assertFalse(cursor.next());
+    }
+
+    public void testCursorRemove()
+        throws Exception {
+        for (int i = 0; i < 10; i++) {
+            list.addToList(record(i, i));
+        }
+        DiskList.DiskListCursor cursor = list.getListCursor();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(cursor.next());
+            cursor.remove();
+        }
+        // Freed records are reused by the following appends
+        list.addToList(record(10, 10));
+        cursor = list.getListCursor();
+        for (int i = 4; i <= 10; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.getLong(0));
+        }
+        assertFalse(cursor.next());
+    }
+
+    public void testShortRecordIsPaddedAndLongRecordRejected()
+        throws Exception {
+        list.addToList(ByteBuffer.allocate(8).putLong(42).array());
+        DiskList.DiskListCursor cursor = list.getListCursor();
+        assertTrue(cursor.next());
+        assertEquals(42, cursor.getLong(0));
+        assertEquals(0, cursor.getLong(8));
+        try {
+            list.addToList(new byte[RECSIZE + 1]);
+            fail("Record longer than the record size was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testRemoveRecordByPosition()
+        throws Exception {
+        for (int i = 0; i < 4; i++) {
+            list.addToList(record(i, i));
+        }
+        assertEquals(2, list.removeFirst(2));
+        // Stored at the indexes freed by the removed head
+        list.addToList(record(4, 4));
+        list.addToList(record(5, 5));
+        // 2, 3, 4, 5
+        list.removeRecord(2);
+        list.removeRecord(0);
+        list.removeRecord(10);
+        DiskList.DiskListCursor cursor = list.getListCursor();
+        assertTrue(cursor.next());
+        assertEquals(3, cursor.getLong(0));
+        assertTrue(cursor.next());
+        assertEquals(5, cursor.getLong(0));
+        assertFalse(cursor.next());
+        assertEquals(2, list.size());
+    }
+
+    public void testStringRecordsStillSupported()
+        throws Exception {
+        DiskList strings = new DiskList(new File(dir, "strings"), 68, 1024 * 1024, 50);
+        try {
+            strings.addToList("one");
+            strings.addToList("two");
+            Iterator<String> it = strings.getListIterator();
+            assertEquals("one", it.next());
+            it.remove();
+            assertEquals("two", it.next());
+            assertFalse(it.hasNext());
+        } finally {
+            strings.close();
+        }
+    }
+
+    public void testBatchAddAndRemoveFirst()
+        throws Exception {
+        ByteBuffer batch = ByteBuffer.allocate(RECSIZE * 10);
+        for (int i = 0; i < 10; i++) {
+            batch.put(record(i, i));
+        }
+        assertEquals(0, list.size());
+        list.addToList(batch.array(), RECSIZE);
+        assertEquals(10, list.size());
+        assertEquals(4, list.removeFirst(4));
+        assertEquals(6, list.size());
+
+        // The freed records are reused, the following batch is split across them and the end of the file
+        batch = ByteBuffer.allocate(8 * 6);
+        for (int i = 10; i < 16; i++) {
+            batch.putLong(i);
+        }
+        list.addToList(batch.array(), 8);
+        assertEquals(12, list.size());
+        DiskList.DiskListCursor cursor = list.getListCursor();
+        for (int i = 4; i < 16; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.getLong(0));
+        }
+        assertFalse(cursor.next());
+
+        assertEquals(12, list.removeFirst(20));
+        assertEquals(0, list.size());
+        assertNull(list.getListCursor());
+        assertEquals(0, list.removeFirst(1));
+    }
+
+    public void testBatchAddSurvivesReopen()
+        throws Exception {
+        DiskList strings = new DiskList(new File(dir, "strings"), 68, 1024 * 1024, 50);
+        strings.addToList(Arrays.asList("one", "two", "three"));
+        strings.removeFirst(1);
+        strings.addToList(Arrays.asList("four", "five"));
+        strings.close();
+
+        strings = new DiskList(new File(dir, "strings"), 68, 1024 * 1024, 50);
+        try {
+            Iterator<String> it = strings.getListIterator();
+            for (String expected : Arrays.asList("two", "three", "four", "five")) {
+                assertEquals(expected, it.next());
+            }
+            assertFalse(it.hasNext());
+            try {
+                strings.addToList(Arrays.asList("six", new String(new char[100])));
+                fail("Record longer than the record size was accepted");
+            } catch (IOException expected) {
+            }
+            // Nothing of a rejected batch is stored
+            assertEquals(4, strings.removeFirst(10));
+        } finally {
+            strings.close();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.agent.server.AgentListCursor;
+
+public class SegmentedListTest extends TestCase {
+
+    private static final int RECSIZE = 16;
+    private static final int SLOT = RECSIZE + 5;
+    private static final int SLOTS_PER_SEGMENT = 10;
+
+    private File dir;
+
+    @Override
+    protected void setUp()
+        throws Exception {
+        dir = File.createTempFile("segmented", "");
+        dir.delete();
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception {
+        if (dir.exists()) {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private SegmentedList open()
+        throws Exception {
+        return new SegmentedList(dir, RECSIZE, SLOTS_PER_SEGMENT * SLOT, Long.MAX_VALUE, 1000);
+    }
+
+    private static byte[] record(long a) {
+        return ByteBuffer.allocate(RECSIZE).putLong(a).putDouble(a / 2.0).array();
+    }
+
+    private int numSegments() {
+        return dir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.getName().endsWith(".seg");
+            }
+        }).length;
+    }
+
+    private static void assertRecords(SegmentedList list,
+                                      long first,
+                                      long last)
+        throws Exception {
+        AgentListCursor cursor = list.getListCursor();
+        for (long i = first; i <= last; i++) {
+            assertTrue("missing " + i, cursor.next());
+            assertEquals(i, cursor.getLong(0));
+            assertEquals(i / 2.0, cursor.getDouble(8), 0);
+        }
+        assertFalse(cursor.next());
+    }
+
+    public void testAppendAndConsume()
+        throws Exception {
+        SegmentedList list = open();
+        assertNull(list.getListCursor());
+        for (int i = 0; i < 25; i++) {
+            list.addToList(record(i));
+        }
+        assertEquals(3, numSegments());
+        assertRecords(list, 0, 24);
+
+        AgentListCursor cursor = list.getListCursor();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(cursor.next());
+            cursor.remove();
+        }
+        // The consumed segments are deleted as a whole
+        assertEquals(1, numSegments());
+        assertEquals(5, list.size());
+        assertRecords(list, 20, 24);
+        list.close();
+    }
+
+    public void testRemoveInTheMiddle()
+        throws Exception {
+        SegmentedList list = open();
+        for (int i = 0; i < 5; i++) {
+            list.addToList(record(i));
+        }
+        list.removeRecord(2);
+        AgentListCursor cursor = list.getListCursor();
+        long[] expected = { 0, 1, 3, 4 };
+        for (long e : expected) {
+            assertTrue(cursor.next());
+            assertEquals(e, cursor.getLong(0));
+        }
+        assertFalse(cursor.next());
+        list.close();
+    }
+
+    public void testStringRecords()
+        throws Exception {
+        SegmentedList list = open();
+        list.addToList("one");
+        list.addToList("two");
+        Iterator<String> it = list.getListIterator();
+        assertEquals("one", it.next());
+        it.remove();
+        assertEquals("two", it.next());
+        assertFalse(it.hasNext());
+        list.close();
+    }
+
+    public void testReopenKeepsConsumerOffset()
+        throws Exception {
+        SegmentedList list = open();
+        for (int i = 0; i < 15; i++) {
+            list.addToList(record(i));
+        }
+        AgentListCursor cursor = list.getListCursor();
+        for (int i = 0; i < 7; i++) {
+            assertTrue(cursor.next());
+            cursor.remove();
+        }
+        list.close();
+
+        list = open();
+        assertRecords(list, 7, 14);
+        list.addToList(record(15));
+        assertRecords(list, 7, 15);
+        list.close();
+    }
+
+    public void testRecoveryDropsTornRecord()
+        throws Exception {
+        SegmentedList list = open();
+        for (int i = 0; i < 14; i++) {
+            list.addToList(record(i));
+        }
+        list.flush();
+        // Corrupt record 12, as if the agent died while writing it. Record 13 is stale and must not come back.
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, String.format("%020d", 10) + ".seg"), "rw");
+        raf.seek((2 * SLOT) + 5);
+        raf.writeLong(-1);
+        raf.close();
+
+        list = open();
+        assertRecords(list, 0, 11);
+        list.addToList(record(12));
+        list.close();
+
+        list = open();
+        assertRecords(list, 0, 12);
+        list.close();
+    }
+
+    public void testMaxLengthDropsOldestSegment()
+        throws Exception {
+        SegmentedList list = new SegmentedList(dir, RECSIZE, SLOTS_PER_SEGMENT * SLOT,
+                    2 * SLOTS_PER_SEGMENT * SLOT, 1000);
+        for (int i = 0; i < 25; i++) {
+            list.addToList(record(i));
+        }
+        assertEquals(2, numSegments());
+        assertRecords(list, 10, 24);
+        list.close();
+    }
+
+    public void testDeleteAllRecords()
+        throws Exception {
+        SegmentedList list = open();
+        for (int i = 0; i < 15; i++) {
+            list.addToList(record(i));
+        }
+        list.deleteAllRecords();
+        assertNull(list.getListCursor());
+        list.addToList(record(100));
+        list.close();
+
+        list = open();
+        assertRecords(list, 100, 100);
+        list.close();
+    }
+
+    public void testBatchAddAndRemoveFirst()
+        throws Exception {
+        SegmentedList list = open();
+        ByteBuffer batch = ByteBuffer.allocate(RECSIZE * 25);
+        for (int i = 0; i < 25; i++) {
+            batch.put(record(i));
+        }
+        list.addToList(batch.array(), RECSIZE);
+        assertEquals(3, numSegments());
+        assertRecords(list, 0, 24);
+
+        assertEquals(20, list.removeFirst(20));
+        assertEquals(1, numSegments());
+        assertRecords(list, 20, 24);
+        assertEquals(5, list.removeFirst(10));
+        assertNull(list.getListCursor());
+
+        list.addToList(Arrays.asList("one", "two"));
+        Iterator<String> it = list.getListIterator();
+        assertEquals("one", it.next());
+        assertEquals("two", it.next());
+        assertFalse(it.hasNext());
+        list.close();
+    }
+
+    public void testSegmentsFitTwiceInMaxLength()
+        throws Exception {
+        // The segments are reduced to 5 slots, so a roll-over only drops the oldest 5 records
+        SegmentedList list = new SegmentedList(dir, RECSIZE, SLOTS_PER_SEGMENT * SLOT, SLOTS_PER_SEGMENT * SLOT, 1000);
+        for (int i = 0; i < 12; i++) {
+            list.addToList(record(i));
+        }
+        assertEquals(2, numSegments());
+        assertEquals(7, list.size());
+        assertRecords(list, 5, 11);
+        list.close();
+
+        try {
+            new SegmentedList(dir, RECSIZE, SLOTS_PER_SEGMENT * SLOT, SLOT, 1000);
+            fail("A list which can't hold two records should be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testSizeAndRemoveRecordAcrossSegments()
+        throws Exception {
+        SegmentedList list = open();
+        for (int i = 0; i < 25; i++) {
+            list.addToList(record(i));
+        }
+        assertEquals(25, list.size());
+        list.removeRecord(12);
+        list.removeRecord(0);
+        // Past the end
+        list.removeRecord(23);
+        assertEquals(23, list.size());
+        assertEquals(10, list.removeFirst(10));
+        assertEquals(13, list.size());
+        // 11, 13, 14, ...: index 1 is record 13
+        list.removeRecord(1);
+        AgentListCursor cursor = list.getListCursor();
+        long[] expected = { 11, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24 };
+        for (long e : expected) {
+            assertTrue(cursor.next());
+            assertEquals(e, cursor.getLong(0));
+        }
+        assertFalse(cursor.next());
+        list.close();
+
+        list = open();
+        assertEquals(12, list.size());
+        list.deleteAllRecords();
+        assertEquals(0, list.size());
+        list.close();
+    }
+
+    public void testAppendAllFromDiskList()
+        throws Exception {
+        File data = File.createTempFile("disklist", "");
+        File idx = new File(data + ".idx");
+        try {
+            DiskList diskList = new DiskList(data, RECSIZE, 1024 * 1024, 50);
+            ByteBuffer batch = ByteBuffer.allocate(RECSIZE * 25);
+            for (int i = 0; i < 25; i++) {
+                batch.put(record(i));
+            }
+            diskList.addToList(batch.array(), RECSIZE);
+
+            SegmentedList list = open();
+            list.addToList(record(-1));
+            assertEquals(25, list.appendAll(diskList));
+            diskList.close();
+            assertEquals(26, list.size());
+            list.removeFirst(1);
+            assertRecords(list, 0, 24);
+            list.close();
+        } finally {
+            data.delete();
+            idx.delete();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.product.Collector;
+
+public class CollectorSchedulerTest extends TestCase {
+
+    private static class TestCollector extends Collector {
+        TestCollector(String name) {
+            Properties props = new Properties();
+            props.setProperty("name", name);
+            setProperties(props);
+        }
+
+        public void collect() {
+        }
+    }
+
+    /**
+     * Collectors due on a fixed period from the time they last completed, or dropped when absent from the map.
+     */
+    private static class TestScheduler extends CollectorScheduler {
+        private final Map<Collector, Long> periods = new HashMap<Collector, Long>();
+        private final Map<Collector, Long> lastRun = new HashMap<Collector, Long>();
+
+        TestScheduler(long maxJitter) {
+            super(maxJitter, 60000);
+        }
+
+        @Override
+        long getNextRunTime(Collector collector,
+                            long now) {
+            Long period = periods.get(collector);
+            if (period == null) {
+                return -1;
+            }
+            Long last = lastRun.get(collector);
+            return (last == null) ? now : last + period;
+        }
+    }
+
+    public void testRunsEachCollectorOnItsOwnPeriod() {
+        TestScheduler scheduler = new TestScheduler(0);
+        Collector fast = new TestCollector("fast");
+        Collector slow = new TestCollector("slow");
+        scheduler.periods.put(fast, 10000L);
+        scheduler.periods.put(slow, 30000L);
+        assertEquals(2, scheduler.sync(Arrays.asList(fast, slow), 0));
+
+        assertEquals(new HashSet<Collector>(Arrays.asList(fast, slow)),
+                    new HashSet<Collector>(scheduler.consumeDue(0)));
+        assertEquals(0, scheduler.size());
+        assertEquals(2, scheduler.getRunning());
+        // Running collectors are not armed again by a sync
+        assertEquals(0, scheduler.sync(Arrays.asList(fast, slow), 0));
+        scheduler.lastRun.put(fast, 0L);
+        scheduler.lastRun.put(slow, 0L);
+        scheduler.completed(fast, 0);
+        scheduler.completed(slow, 0);
+        assertEquals(0, scheduler.getRunning());
+
+        assertTrue(scheduler.consumeDue(9999).isEmpty());
+        assertEquals(Arrays.asList(fast), scheduler.consumeDue(10000));
+        scheduler.lastRun.put(fast, 10000L);
+        scheduler.completed(fast, 10000);
+        assertEquals(Arrays.asList(fast), scheduler.consumeDue(20000));
+        scheduler.lastRun.put(fast, 20000L);
+        scheduler.completed(fast, 20000);
+        assertEquals(new HashSet<Collector>(Arrays.asList(fast, slow)),
+                    new HashSet<Collector>(scheduler.consumeDue(30000)));
+    }
+
+    public void testDropsUnregisteredCollectors() {
+        TestScheduler scheduler = new TestScheduler(0);
+        Collector collector = new TestCollector("gone");
+        assertEquals(0, scheduler.sync(Arrays.asList(collector), 0));
+        assertEquals(0, scheduler.size());
+
+        scheduler.periods.put(collector, 10000L);
+        scheduler.sync(Arrays.asList(collector), 0);
+        assertEquals(Arrays.asList(collector), scheduler.consumeDue(0));
+        scheduler.periods.remove(collector);
+        scheduler.completed(collector, 0);
+        assertEquals(0, scheduler.size());
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    public void testRearmIsNotImmediate() {
+        TestScheduler scheduler = new TestScheduler(0);
+        Collector collector = new TestCollector("late");
+        scheduler.periods.put(collector, 10000L);
+        scheduler.sync(Arrays.asList(collector), 0);
+        scheduler.consumeDue(0);
+        // The run took longer than the period
+        scheduler.lastRun.put(collector, 0L);
+        scheduler.completed(collector, 15000);
+        assertTrue(scheduler.consumeDue(15000).isEmpty());
+        assertEquals(Arrays.asList(collector),
+                    scheduler.consumeDue(15000 + CollectorScheduler.MIN_REARM_DELAY));
+    }
+
+    public void testJitterSpreadsCollectors() {
+        long maxJitter = 5000;
+        TestScheduler scheduler = new TestScheduler(maxJitter);
+        List<Collector> collectors = new ArrayList<Collector>();
+        Set<Long> jitters = new HashSet<Long>();
+        for (int i = 0; i < 1000; i++) {
+            Collector collector = new TestCollector("collector-" + i);
+            scheduler.periods.put(collector, 60000L);
+            collectors.add(collector);
+            long jitter = scheduler.getJitter(collector);
+            assertTrue(jitter >= 0 && jitter <= maxJitter);
+            // Stable for a given collector
+            assertEquals(jitter, scheduler.getJitter(new TestCollector("collector-" + i)));
+            jitters.add(jitter);
+        }
+        assertTrue("distinct jitters " + jitters.size(), jitters.size() > 500);
+
+        scheduler.sync(collectors, 0);
+        int maxPerMillis = 0;
+        int total = 0;
+        for (long now = 0; now <= maxJitter; now++) {
+            int due = scheduler.consumeDue(now).size();
+            maxPerMillis = Math.max(maxPerMillis, due);
+            total += due;
+        }
+        assertEquals(1000, total);
+        assertTrue("collectors due in the same ms " + maxPerMillis, maxPerMillis < 10);
+    }
+
+    public void testJitterIsBounded() {
+        assertEquals(0, new TestScheduler(0).getJitter(new TestCollector("x")));
+        TestScheduler scheduler = new TestScheduler(Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(scheduler.getJitter(new TestCollector("c" + i)) <= CollectorScheduler.MAX_JITTER_LIMIT);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.stats;
+
+import junit.framework.TestCase;
+
+import org.hyperic.util.stats.StatHistogram;
+
+public class StatsExpositionTest extends TestCase {
+
+    public void testMetricNames() {
+        assertEquals("hq_agent_schedule_thread_metrics_collected_time",
+                    StatsExposition.toMetricName("SCHEDULE_THREAD_METRICS_COLLECTED_TIME"));
+        assertEquals("hq_agent_lather_cmd_measurement_send_report",
+                    StatsExposition.toMetricName("LATHER_CMD_measurement.send-report"));
+    }
+
+    public void testFamiliesAreGrouped() {
+        StatsExposition out = new StatsExposition();
+        out.counter("plugin_collections_total", "Collections by plugin", "plugin", "system", 10);
+        out.gauge("metrics_scheduled", "Scheduled metrics", 42);
+        out.counter("plugin_collections_total", "Collections by plugin", "plugin", "jmx \"x\"", 2.5);
+        assertEquals("# HELP hq_agent_metrics_scheduled Scheduled metrics\n" +
+                    "# TYPE hq_agent_metrics_scheduled gauge\n" +
+                    "hq_agent_metrics_scheduled 42\n" +
+                    "# HELP hq_agent_plugin_collections_total Collections by plugin\n" +
+                    "# TYPE hq_agent_plugin_collections_total counter\n" +
+                    "hq_agent_plugin_collections_total{plugin=\"system\"} 10\n" +
+                    "hq_agent_plugin_collections_total{plugin=\"jmx \\\"x\\\"\"} 2.5\n",
+                    out.toString());
+    }
+
+    public void testSummary() {
+        StatHistogram histogram = new StatHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        StatsExposition out = new StatsExposition();
+        out.summary("SENDER_THREAD_SEND_METRICS_TIME", "Send time", histogram.snapshotAndReset());
+        String text = out.toString();
+        assertTrue(text, text.contains("# TYPE hq_agent_sender_thread_send_metrics_time summary\n"));
+        assertTrue(text, text.contains("hq_agent_sender_thread_send_metrics_time_sum 5050\n"));
+        assertTrue(text, text.contains("hq_agent_sender_thread_send_metrics_time_count 100\n"));
+        assertTrue(text, text.contains("hq_agent_sender_thread_send_metrics_time_max 100\n"));
+        assertTrue(text, text.contains("hq_agent_sender_thread_send_metrics_time{quantile=\"0.5\"} "));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.bizapp.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.hyperic.hq.agent.AgentConfig;
+import org.hyperic.hq.agent.FileMetadata;
+import org.hyperic.hq.bizapp.agent.ProviderInfo;
+import org.hyperic.hq.bizapp.shared.lather.CommandInfo;
+import org.hyperic.util.http.HttpConfig;
+import org.hyperic.util.http.ServerHttpClient;
+import org.hyperic.util.security.KeystoreConfig;
+import org.hyperic.util.security.KeystoreManager;
+import org.hyperic.util.security.MD5;
+
+/**
+ * Bulk transfers go through the bulk client, everything else through the main client.
+ */
+public class AgentCommandsCallbackClientTest extends TestCase {
+
+    private static final String PROVIDER_ADDRESS = "https://localhost:8443/epops-webapp/lather";
+    private static final byte[] PLUGIN = "plugin content".getBytes();
+
+    static {
+        // Read by the AgentConfig defaults, which the callback clients load
+        if (System.getProperty(AgentConfig.AGENT_BUNDLE_HOME) == null) {
+            System.setProperty(AgentConfig.AGENT_BUNDLE_HOME, System.getProperty("java.io.tmpdir"));
+        }
+    }
+
+    /**
+     * Answers the GET requests with the plugin content and records their URLs.
+     */
+    private static class RecordingClient extends ServerHttpClient {
+        private final List<String> urls = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingClient(KeystoreConfig keystoreConfig) {
+            super(keystoreConfig, new HttpConfig(5000, 5000, null, -1), true, 1, false, 1, 1);
+        }
+
+        @Override
+        public HttpResponse get(String url,
+                                boolean closeConn)
+            throws IOException {
+            urls.add(url);
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            response.setEntity(new ByteArrayEntity(PLUGIN));
+            return response;
+        }
+    }
+
+    private File tmpDir;
+    private RecordingClient client;
+    private RecordingClient bulkClient;
+    private AgentCommandsCallbackClient callbackClient;
+
+    @Override
+    protected void setUp()
+        throws Exception {
+        super.setUp();
+        tmpDir = File.createTempFile("agentCommandsCallbackClientTest", "");
+        tmpDir.delete();
+        tmpDir.mkdirs();
+        KeystoreConfig keystoreConfig =
+                    new KeystoreConfig("hq", new File(tmpDir, "keystore").getPath(), "storePW", true);
+        KeystoreManager.getKeystoreManager().initializeKeyStore(keystoreConfig);
+        client = new RecordingClient(keystoreConfig);
+        bulkClient = new RecordingClient(keystoreConfig);
+        ProviderFetcher fetcher = new ProviderFetcher() {
+            public ProviderInfo getProvider() {
+                return new ProviderInfo(PROVIDER_ADDRESS, "token");
+            }
+        };
+        callbackClient = new AgentCommandsCallbackClient(fetcher, null) {
+            @Override
+            protected ServerHttpClient getReusableClient() {
+                return client;
+            }
+
+            @Override
+            protected ServerHttpClient getReusableBulkClient() {
+                return bulkClient;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception {
+        for (File file : tmpDir.listFiles()) {
+            file.delete();
+        }
+        tmpDir.delete();
+        super.tearDown();
+    }
+
+    public void testBulkCommandsUseBulkClient()
+        throws Exception {
+        ProviderInfo provider = callbackClient.getProvider();
+        for (String method : Arrays.asList(CommandInfo.CMD_AI_SEND_REPORT, CommandInfo.CMD_AI_SEND_RUNTIME_REPORT,
+                    CommandInfo.CMD_PLUGIN_SEND_REPORT)) {
+            assertSame(method, bulkClient, callbackClient.getLatherClient(provider, method).getHttpClient());
+        }
+        for (String method : Arrays.asList(CommandInfo.CMD_MEASUREMENT_SEND_REPORT,
+                    CommandInfo.CMD_GET_AGENT_COMMANDS, CommandInfo.CMD_SEND_RESPONSE)) {
+            assertSame(method, client, callbackClient.getLatherClient(provider, method).getHttpClient());
+        }
+        // The lather clients are reused
+        assertSame(callbackClient.getLatherClient(provider, CommandInfo.CMD_AI_SEND_REPORT),
+                    callbackClient.getLatherClient(provider, CommandInfo.CMD_PLUGIN_SEND_REPORT));
+        assertSame(callbackClient.getLatherClient(provider, CommandInfo.CMD_MEASUREMENT_SEND_REPORT),
+                    callbackClient.getLatherClient(provider, CommandInfo.CMD_SEND_RESPONSE));
+    }
+
+    public void testPluginDownloadUsesBulkClient()
+        throws Exception {
+        File expected = new File(tmpDir, "expected");
+        FileUtils.writeByteArrayToFile(expected, PLUGIN);
+        File dest = new File(tmpDir, "test-plugin.jar");
+        FileMetadata plugin = new FileMetadata("/plugins/test-plugin.jar", dest.getPath(),
+                    MD5.getMD5Checksum(expected));
+
+        callbackClient.downloadFilesFromCurrentProvider(Arrays.asList(plugin));
+
+        assertEquals(Arrays.asList("https://localhost:8443/plugins/test-plugin.jar"), bulkClient.urls);
+        assertTrue(client.urls.isEmpty());
+        assertEquals(MD5.getMD5Checksum(expected), MD5.getMD5Checksum(dest));
+    }
+}
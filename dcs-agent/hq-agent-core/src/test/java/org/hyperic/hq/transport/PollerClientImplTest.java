@@ -0,0 +1,144 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.transport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.common.InvocationRequest;
+import org.hyperic.hq.common.InvocationResponse;
+
+public class PollerClientImplTest extends TestCase {
+
+    public interface Command {
+        public String run(String name,
+                          Long sleep)
+            throws InterruptedException;
+    }
+
+    public static class RecordingCommand implements Command {
+        private final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+        public String run(String name,
+                          Long sleep)
+            throws InterruptedException {
+            started.add(name);
+            Thread.sleep(sleep);
+            return name;
+        }
+    }
+
+    /**
+     * Hands out the given polls, then empty ones, and records the responses sent back.
+     */
+    private static class StubPollerClient extends PollerClientImpl {
+        private final LinkedList<List<InvocationRequest>> polls;
+        private final List<String> responses = new ArrayList<String>();
+
+        StubPollerClient(List<List<InvocationRequest>> polls,
+                         int threads) {
+            super(null, 20, 0, true, threads);
+            this.polls = new LinkedList<List<InvocationRequest>>(polls);
+        }
+
+        @Override
+        synchronized List<InvocationRequest> getAgentCommands() {
+            return polls.isEmpty() ? Collections.<InvocationRequest> emptyList() : polls.removeFirst();
+        }
+
+        @Override
+        synchronized boolean sendAgentResponses(List<InvocationResponse> sent) {
+            for (InvocationResponse response : sent) {
+                responses.add(response.getSessionId());
+            }
+            notifyAll();
+            return true;
+        }
+
+        synchronized List<String> awaitResponses(int count)
+            throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (responses.size() < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            return new ArrayList<String>(responses);
+        }
+    }
+
+    private static InvocationRequest command(String name,
+                                             long sleep) {
+        return new InvocationRequest(Command.class, "run", new Object[] { name, sleep },
+                    new Class<?>[] { String.class, Long.class }, name);
+    }
+
+    private static List<List<InvocationRequest>> polls() {
+        // The first command is the slowest, the next poll is fetched while it runs
+        List<List<InvocationRequest>> polls = new ArrayList<List<InvocationRequest>>();
+        polls.add(Arrays.asList(command("a", 200), command("b", 0), command("c", 0)));
+        polls.add(Arrays.asList(command("d", 0), command("e", 0)));
+        return polls;
+    }
+
+    private static List<String> dispatch(StubPollerClient poller,
+                                         RecordingCommand command)
+        throws Exception {
+        poller.registerService(Command.class, command);
+        poller.start();
+        try {
+            return poller.awaitResponses(5);
+        } finally {
+            poller.stop();
+        }
+    }
+
+    public void testServerOrderKept()
+        throws Exception {
+        RecordingCommand command = new RecordingCommand();
+
+        List<String> responses = dispatch(new StubPollerClient(polls(), 1), command);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), command.started);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), responses);
+    }
+
+    public void testPollOrderKeptWithMoreThreads()
+        throws Exception {
+        RecordingCommand command = new RecordingCommand();
+
+        List<String> responses = dispatch(new StubPollerClient(polls(), 4), command);
+        assertEquals(5, responses.size());
+        // The second poll doesn't wait for the slow command of the first one, each poll runs in order
+        assertTrue(responses.toString(), responses.indexOf("e") < responses.indexOf("a"));
+        List<String> firstPoll = new ArrayList<String>(responses);
+        firstPoll.retainAll(Arrays.asList("a", "b", "c"));
+        assertEquals(Arrays.asList("a", "b", "c"), firstPoll);
+        assertTrue(responses.indexOf("d") < responses.indexOf("e"));
+    }
+}
@@ -172,6 +172,8 @@ class MeasurementSchedule {
                 this.log.error("Unable to decode metric from storage, deleting.");
                 try {
                     this.store.removeFromList(MeasurementSchedule.PROP_MSCHED, i);
+                    // The next records moved up
+                    i--;
                 } catch (AgentStorageException e) {
                     log.debug(e, e);
                 }
@@ -224,10 +226,11 @@ class MeasurementSchedule {
 
     synchronized void storeMeasurements(Collection<ScheduledMeasurement> measurements)
         throws AgentStorageException {
+        final List<String> encoded = new ArrayList<String>(measurements.size());
         for (ScheduledMeasurement m : measurements) {
-            final String encoded = m.encode();
-            store.addToList(MeasurementSchedule.PROP_MSCHED, encoded.toString());
+            encoded.add(m.encode());
         }
+        store.addToList(MeasurementSchedule.PROP_MSCHED, encoded);
         store.flush();
     }
 
@@ -30,6 +30,7 @@ import gnu.trove.set.hash.TLongHashSet;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -38,12 +39,15 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -57,9 +61,12 @@ import org.hyperic.hq.agent.diagnostics.AgentDiagnostics;
 import org.hyperic.hq.agent.server.AgentDaemon;
 import org.hyperic.hq.agent.server.AgentRunningException;
 import org.hyperic.hq.agent.server.AgentStartException;
+import org.hyperic.hq.agent.server.VirtualThreadExecutor;
 import org.hyperic.hq.agent.server.monitor.AgentMonitorException;
 import org.hyperic.hq.agent.server.monitor.AgentMonitorSimple;
 import org.hyperic.hq.agent.stats.AgentStatsCollector;
+import org.hyperic.hq.agent.stats.AgentStatsSource;
+import org.hyperic.hq.agent.stats.StatsExposition;
 import org.hyperic.hq.appdef.shared.AppdefEntityID;
 import org.hyperic.hq.measurement.MeasurementConstants;
 import org.hyperic.hq.measurement.TimingVoodoo;
@@ -73,12 +80,16 @@ import org.hyperic.hq.product.MetricUnreachableException;
 import org.hyperic.hq.product.MetricValue;
 import org.hyperic.hq.product.PluginException;
 import org.hyperic.hq.product.PluginNotFoundException;
+import org.hyperic.hq.stats.StatHandle;
 import org.hyperic.hq.util.properties.PropertiesUtil;
 import org.hyperic.util.TimeUtil;
+import org.hyperic.util.collection.BoundedCache;
+import org.hyperic.util.schedule.DeadlineQueue;
 import org.hyperic.util.schedule.EmptyScheduleException;
 import org.hyperic.util.schedule.Schedule;
 import org.hyperic.util.schedule.ScheduleException;
 import org.hyperic.util.schedule.ScheduledItem;
+import org.hyperic.util.schedule.TimeoutWheel;
 import org.hyperic.util.schedule.UnscheduledItemException;
 
 /**
@@ -86,13 +97,23 @@ import org.hyperic.util.schedule.UnscheduledItemException;
  * SenderThread which handles depositing the results on disk, and sending them to the bizapp.
  */
 
-public class ScheduleThread extends AgentMonitorSimple implements Runnable, AgentDiagnosticObject {
+public class ScheduleThread extends AgentMonitorSimple implements Runnable, AgentDiagnosticObject, AgentStatsSource {
     private static final String SCHEDULE_THREAD_METRICS_COLLECTED_TIME =
                 AgentStatsCollector.SCHEDULE_THREAD_METRICS_COLLECTED_TIME;
     private static final String SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED =
                 AgentStatsCollector.SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED;
     private static final String SCHEDULE_THREAD_METRIC_COLLECT_FAILED =
                 AgentStatsCollector.SCHEDULE_THREAD_METRIC_COLLECT_FAILED;
+    private static final String SCHEDULE_THREAD_METRIC_TASKS_DEFERRED =
+                AgentStatsCollector.SCHEDULE_THREAD_METRIC_TASKS_DEFERRED;
+    private static final String SCHEDULE_THREAD_VIRTUAL_TASKS =
+                AgentStatsCollector.SCHEDULE_THREAD_VIRTUAL_TASKS;
+    private static final String SCHEDULE_THREAD_METRIC_TASKS_SLOW =
+                AgentStatsCollector.SCHEDULE_THREAD_METRIC_TASKS_SLOW;
+    private static final String SCHEDULE_THREAD_METRIC_TASKS_CANCELLED =
+                AgentStatsCollector.SCHEDULE_THREAD_METRIC_TASKS_CANCELLED;
+    private static final String SCHEDULE_THREAD_METRIC_COLLECTION_LAG =
+                AgentStatsCollector.SCHEDULE_THREAD_METRIC_COLLECTION_LAG;
 
     // Agent properties configuration
     static final String PROP_POOLSIZE = "scheduleThread.poolsize."; // e.g. scheduleThread.poolsize.system=10
@@ -101,10 +122,26 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
     static final String PROP_QUEUE_SIZE = "scheduleThread.queuesize.";
     static final String PROP_DEDUCT_SERVER_TIME_DIFF = "agent.deductServerTimeDiff";
     static final String PROP_DISABLE_DIAG_INFO = "agent.disableScheduleThreadDiag";
+    static final String PROP_SCHEDULE_ENGINE = "scheduleThread.engine";
+    static final String PROP_EXECUTOR = "scheduleThread.executor";
+    static final String PROP_SHARED_POOLSIZE = "scheduleThread.sharedPoolSize";
+    static final String PROP_WEIGHT = "scheduleThread.weight."; // e.g. scheduleThread.weight.system=2
+    static final String PROP_VIRTUAL_FALLBACK_POOLSIZE = "scheduleThread.virtual.fallbackPoolSize";
+
+    // Schedule engines
+    static final String ENGINE_QUEUE = "queue"; // opt-in, wake only for the resource schedules which are due
+    static final String ENGINE_SCAN = "scan"; // default, visit every resource schedule on each wake up
+
+    // Metric collection executors
+    static final String EXECUTOR_PLUGIN = "plugin"; // a fixed thread pool per plugin
+    static final String EXECUTOR_SHARED = "shared"; // one pool shared by all plugins, see SharedCollectionExecutor
+    static final String EXECUTOR_VIRTUAL = "virtual"; // a virtual thread per collection, see VirtualThreadExecutor
 
     // How often we check schedules when we think they are empty.
     private static final int ONE_SECOND = 1000;
     private static final int POLL_PERIOD = ONE_SECOND;
+    // Ticks in one turn of the metric timeout wheel, a tick being POLL_PERIOD
+    private static final int TIMEOUT_WHEEL_SIZE = 64;
     private static final int UNREACHABLE_EXPIRE = (60 * 1000) * 5;
 
     private static final long FETCH_TIME = 2000; // 2 seconds.
@@ -119,6 +156,9 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
 
     // AppdefID -> Schedule
     private final Map<String, ResourceSchedule> schedules = new HashMap<String, ResourceSchedule>();
+    // Resource schedules ordered by the time their next measurements are due, used by the queue engine
+    private final DeadlineQueue<ResourceSchedule> dueSchedules = new DeadlineQueue<ResourceSchedule>();
+    private final boolean useQueueEngine;
     // Should I shut down?
     private final AtomicBoolean shouldDie = new AtomicBoolean(false);
     // Interrupt object
@@ -129,8 +169,18 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
 
     // Map of Executors, one per plugin
     private final HashMap<String, ThreadPoolExecutor> executors = new HashMap<String, ThreadPoolExecutor>();
-    // Map of asynchronous MetricTasks pending confirmation
-    private final HashMap<Future<?>, MetricTask> metricCollections = new HashMap<Future<?>, MetricTask>();
+    // Executor shared by all plugins, replaces the executors map when configured
+    private final SharedCollectionExecutor sharedExecutor;
+    // Executor running each collection on its own (virtual) thread, replaces the executors map when configured
+    private final VirtualThreadExecutor virtualExecutor;
+    // plugin -> permits capping its concurrent collections on the virtual executor
+    private final ConcurrentMap<String, Semaphore> virtualPermits = new ConcurrentHashMap<String, Semaphore>();
+    // Deadlines of the running MetricTasks, a task deregisters itself when it completes
+    private final TimeoutWheel<MetricTask> metricTimeouts = new TimeoutWheel<MetricTask>(POLL_PERIOD,
+                TIMEOUT_WHEEL_SIZE);
+    // plugin -> counts of completed, slow and cancelled metric collections
+    private final ConcurrentMap<String, PluginStats> pluginStats =
+                new ConcurrentHashMap<String, PluginStats>();
     // The executor confirming metric collections, cancelling tasks that exceed
     // our timeouts.
     private final ScheduledExecutorService metricVerificationService;
@@ -150,6 +200,15 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
     private long statMaxFetchTime = Long.MIN_VALUE;
     private long statMinFetchTime = Long.MAX_VALUE;
     private final AgentStatsCollector statsCollector;
+    private final StatHandle collectFailedStat;
+    private final StatHandle tasksSubmittedStat;
+    private final StatHandle collectedTimeStat;
+    private final StatHandle tasksDeferredStat;
+    private final StatHandle tasksSlowStat;
+    private final StatHandle tasksCancelledStat;
+    private final StatHandle collectionLagStat;
+    // Delay (ms) between the scheduled and the actual start of the latest metric collection
+    private volatile long lastCollectionLag = 0;
     private final Random rand = new Random();
     private final int offset;
     private final Map<AppdefEntityID, DiagInfo> diagInfo = new HashMap<AppdefEntityID, DiagInfo>();
@@ -160,14 +219,26 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
                    SchedulerOffsetManager schedulerOffsetManager)
         throws AgentStartException {
         this.statsCollector = AgentStatsCollector.getInstance();
-        this.statsCollector.register(SCHEDULE_THREAD_METRIC_COLLECT_FAILED);
-        this.statsCollector.register(SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED);
-        this.statsCollector.register(SCHEDULE_THREAD_METRICS_COLLECTED_TIME);
+        this.collectFailedStat = statsCollector.register(SCHEDULE_THREAD_METRIC_COLLECT_FAILED);
+        this.tasksSubmittedStat = statsCollector.register(SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED);
+        this.collectedTimeStat = statsCollector.register(SCHEDULE_THREAD_METRICS_COLLECTED_TIME);
+        this.tasksDeferredStat = statsCollector.register(SCHEDULE_THREAD_METRIC_TASKS_DEFERRED);
+        this.tasksSlowStat = statsCollector.register(SCHEDULE_THREAD_METRIC_TASKS_SLOW);
+        this.tasksCancelledStat = statsCollector.register(SCHEDULE_THREAD_METRIC_TASKS_CANCELLED);
+        this.collectionLagStat = statsCollector.register(SCHEDULE_THREAD_METRIC_COLLECTION_LAG);
         this.agentConfig = config;
         this.schedulerOffsetManager = schedulerOffsetManager;
         this.disableDiag = PropertiesUtil.getBooleanValue(agentConfig.getProperty(PROP_DISABLE_DIAG_INFO), false);
         if (disableDiag)
             log.info("Disabling ScheduleThread Diagnostics");
+        String engine = agentConfig.getProperty(PROP_SCHEDULE_ENGINE, ENGINE_SCAN).trim();
+        if (!ENGINE_QUEUE.equalsIgnoreCase(engine) && !ENGINE_SCAN.equalsIgnoreCase(engine)) {
+            log.error("Invalid setting for " + PROP_SCHEDULE_ENGINE + " value=" + engine +
+                        ", using " + ENGINE_SCAN);
+            engine = ENGINE_SCAN;
+        }
+        this.useQueueEngine = ENGINE_QUEUE.equalsIgnoreCase(engine);
+        log.info("Using the '" + engine.toLowerCase() + "' schedule engine");
         this.sender = sender;
         int tmp = getFudgeFactor();
         if (tmp <= 0) {
@@ -199,6 +270,26 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
             }
         }
 
+        String executor = agentConfig.getProperty(PROP_EXECUTOR, EXECUTOR_PLUGIN).trim();
+        if (EXECUTOR_SHARED.equalsIgnoreCase(executor)) {
+            int poolSize = getIntProperty(PROP_SHARED_POOLSIZE, getDefaultSharedPoolSize());
+            log.info("Creating shared collection executor with a poolsize=" + poolSize);
+            sharedExecutor = new SharedCollectionExecutor(poolSize, getLaneConfig(), getFactory("collector"));
+            virtualExecutor = null;
+        } else if (EXECUTOR_VIRTUAL.equalsIgnoreCase(executor)) {
+            sharedExecutor = null;
+            virtualExecutor = new VirtualThreadExecutor("metric", getIntProperty(PROP_VIRTUAL_FALLBACK_POOLSIZE,
+                        VirtualThreadExecutor.DEFAULT_FALLBACK_POOL_SIZE));
+            virtualExecutor.registerStats(statsCollector, SCHEDULE_THREAD_VIRTUAL_TASKS);
+        } else {
+            if (!EXECUTOR_PLUGIN.equalsIgnoreCase(executor)) {
+                log.error("Invalid setting for " + PROP_EXECUTOR + " value=" + executor +
+                            ", using " + EXECUTOR_PLUGIN);
+            }
+            sharedExecutor = null;
+            virtualExecutor = null;
+        }
+
         metricVerificationService = Executors.newSingleThreadScheduledExecutor();
         metricVerificationTask = metricVerificationService.scheduleAtFixedRate(new MetricVerificationTask(),
                     POLL_PERIOD, POLL_PERIOD,
@@ -206,6 +297,7 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
         metricLoggingTask = metricVerificationService.scheduleAtFixedRate(new MetricLoggingTask(),
                     1, 600, TimeUnit.SECONDS);
         AgentDiagnostics.getInstance().addDiagnostic(this);
+        statsCollector.registerSource(this);
     }
 
     /**
@@ -213,6 +305,12 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
      */
     private class MetricLoggingTask implements Runnable {
         public void run() {
+            if (sharedExecutor != null) {
+                sharedExecutor.logStatistics(log);
+            }
+            if ((virtualExecutor != null) && log.isDebugEnabled()) {
+                log.debug("Collection executor " + virtualExecutor);
+            }
             for (String plugin : executors.keySet()) {
                 ThreadPoolExecutor executor = executors.get(plugin);
                 if (log.isDebugEnabled()) {
@@ -223,62 +321,96 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
                                 "PoolSize=" + executor.getPoolSize());
                 }
             }
+            if (log.isDebugEnabled()) {
+                log.debug(metricTimeouts.size() + " metric collections running");
+                for (Entry<String, PluginStats> entry : pluginStats.entrySet()) {
+                    log.debug("Plugin=" + entry.getKey() + ", " + entry.getValue());
+                }
+            }
         }
     }
 
     /**
-     * The MetricVerificationTask iterates over the list of FutureTasks that have been submitted for execution. Each
-     * task is checked for completion and then removed. For tasks that do not complete within the timeout are cancelled,
-     * which will attempt to free up the executor running the task. NOTE: This will only work if the hung task is in an
-     * interrupt-able state i.e. sleep() or wait()
+     * The MetricVerificationTask cancels the MetricTasks which have been running for longer than the cancel timeout,
+     * which will attempt to free up the executor running the task. Running tasks register their deadline in the
+     * metricTimeouts wheel and deregister it when they complete, so only the tasks which timed out are visited here.
+     * NOTE: This will only work if the hung task is in an interrupt-able state i.e. sleep() or wait()
      */
     private class MetricVerificationTask implements Runnable {
         public void run() {
-            boolean isDebugEnabled = log.isDebugEnabled();
-            synchronized (metricCollections) {
-                if (isDebugEnabled && (metricCollections.size() > 0)) {
-                    log.debug(metricCollections.size() + " metrics to validate.");
+            List<MetricTask> expired = metricTimeouts.expire(System.currentTimeMillis());
+            if (log.isDebugEnabled() && !expired.isEmpty()) {
+                log.debug(expired.size() + " metric collections timed out.");
+            }
+            for (MetricTask mt : expired) {
+                if (mt.executeEndTime != 0) {
+                    // Completed while its deadline was expiring
+                    continue;
                 }
-                for (Iterator<Future<?>> i = metricCollections.keySet().iterator(); i.hasNext();) {
-                    Future<?> t = i.next();
-                    MetricTask mt = metricCollections.get(t);
-                    if (t.isDone()) {
-                        if (isDebugEnabled) {
-                            log.debug("Metric task '" + mt +
-                                        "' complete, duration: " +
-                                        mt.getExecutionDuration());
-                        }
-                        i.remove();
-                    } else {
-                        // Not complete, check for timeout
-                        if (mt.getExecutionDuration() > cancelTimeout) {
-                            boolean res = t.cancel(true);
-                            log.error("Metric '" + mt +
-                                        "' took too long to run (" + mt.getExecutionDuration() +
-                                        "ms), cancelled (result=" + res + ")");
-
-                            // If the metric is Availability, send a down data point in
-                            // case the metric cancellation fails.
-                            ParsedTemplate pt = getParsedTemplate(mt.meas);
-                            if (pt.metric.isAvail()) {
-                                MetricValue data = new MetricValue(MeasurementConstants.AVAIL_DOWN);
-                                sender.processData(mt.meas.getDsnID(), data, mt.meas.getInterval(),
-                                            mt.meas.getDerivedID(), true);
-                            }
-                            // Task will be removed on next iteration
-                        }
+                Future<?> t = mt.future;
+                if (t == null) {
+                    // Started before its submission returned, check again on the next tick
+                    TimeoutWheel.Timeout<MetricTask> timeout = metricTimeouts.register(mt, System.currentTimeMillis());
+                    mt.timeout = timeout;
+                    if (mt.executeEndTime != 0) {
+                        // Completed before it could see the new deadline
+                        timeout.cancel();
                     }
+                    continue;
+                }
+                boolean res = t.cancel(true);
+                log.error("Metric '" + mt +
+                            "' took too long to run (" + mt.getExecutionDuration() +
+                            "ms), cancelled (result=" + res + ")");
+                tasksCancelledStat.add(1);
+                getPluginStats(mt.plugin).cancelled.incrementAndGet();
+
+                // If the metric is Availability, send a down data point in
+                // case the metric cancellation fails.
+                ParsedTemplate pt = getParsedTemplate(mt.meas);
+                if (pt.metric.isAvail()) {
+                    MetricValue data = new MetricValue(MeasurementConstants.AVAIL_DOWN);
+                    sender.processData(mt.meas.getDsnID(), data, mt.meas.getInterval(),
+                                mt.meas.getDerivedID(), true);
                 }
             }
         }
     }
 
+    private static class PluginStats {
+        private final AtomicLong collected = new AtomicLong();
+        private final AtomicLong collectionTime = new AtomicLong();
+        private final AtomicLong slow = new AtomicLong();
+        private final AtomicLong cancelled = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return "CollectedCount=" + collected.get() + ", CollectionTime=" + collectionTime.get() +
+                        ", SlowCount=" + slow.get() + ", CancelledCount=" + cancelled.get();
+        }
+    }
+
+    private PluginStats getPluginStats(String plugin) {
+        PluginStats stats = pluginStats.get(plugin);
+        if (stats == null) {
+            PluginStats newStats = new PluginStats();
+            stats = pluginStats.putIfAbsent(plugin, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
     private static class ResourceSchedule {
         private final Schedule schedule = new Schedule();
         private AppdefEntityID id;
         private long lastUnreachble = 0;
-        private final List<ScheduledMeasurement> retry = new ArrayList<ScheduledMeasurement>();
+        private final List<ScheduledMeasurement> retry =
+                    Collections.synchronizedList(new ArrayList<ScheduledMeasurement>());
         private final TLongObjectHashMap<Object> collected = new TLongObjectHashMap<Object>();
+        // Set once the schedule is removed from the schedules map, guarded by the schedules lock
+        private boolean unscheduled = false;
     }
 
     private ResourceSchedule getSchedule(ScheduledMeasurement meas) {
@@ -309,12 +441,22 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
      */
     void die() {
         shouldDie.set(true);
+        statsCollector.unregisterSource(this);
         for (String s : executors.keySet()) {
             ThreadPoolExecutor executor = executors.get(s);
             List<Runnable> queuedMetrics = executor.shutdownNow();
             log.info("Shut down executor service for plugin '" + s + "'" +
                         " with " + queuedMetrics.size() + " queued collections");
         }
+        if (sharedExecutor != null) {
+            int queuedMetrics = sharedExecutor.shutdownNow();
+            log.info("Shut down shared collection executor with " + queuedMetrics + " queued collections");
+        }
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdownNow();
+            log.info("Shut down collection executor with " + virtualExecutor.getInFlight() +
+                        " collections in flight");
+        }
 
         metricLoggingTask.cancel(true);
         metricVerificationTask.cancel(true);
@@ -322,6 +464,7 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
         log.info("Shutdown metric verification task with " +
                     pending.size() + " tasks");
 
+        dueSchedules.wakeUp();
         interruptMe();
     }
 
@@ -347,6 +490,9 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
         ResourceSchedule rs;
         synchronized (schedules) {
             rs = schedules.remove(key);
+            if (rs != null) {
+                rs.unscheduled = true;
+            }
         }
 
         if (rs == null) {
@@ -356,6 +502,7 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
             return;
         }
         setDiagScheduled(rs, false);
+        dueSchedules.unschedule(rs);
 
         items = rs.schedule.getScheduledItems();
         log.debug("Un-scheduling " + items.length + " metrics for " + ent);
@@ -397,6 +544,13 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
             long interval = meas.getInterval();
             long offset = schedulerOffsetManager.getSchedluerOffsetForInterval(interval);
             rs.schedule.scheduleItem(meas, interval, offset, true, true);
+            if (useQueueEngine) {
+                try {
+                    arm(rs, rs.schedule.getTimeOfNext());
+                } catch (EmptyScheduleException e) {
+                    // Can't happen, we just added an item
+                }
+            }
             if (log.isDebugEnabled()) {
                 Long timeOfNext;
                 try {
@@ -513,13 +667,24 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
     private class MetricTask implements Runnable {
         ResourceSchedule rs;
         ScheduledMeasurement meas;
-        long executeStartTime = 0;
-        long executeEndTime = 0;
+        String plugin;
+        // Time the collection was scheduled for, 0 for retried collections
+        final long scheduledTime;
+        volatile long executeStartTime = 0;
+        volatile long executeEndTime = 0;
+        // Set once the task is submitted, used to cancel it
+        volatile Future<?> future = null;
+        // Current deadline of the task in metricTimeouts, cancelled once the task completes
+        volatile TimeoutWheel.Timeout<MetricTask> timeout = null;
 
         MetricTask(ResourceSchedule rs,
-                   ScheduledMeasurement meas) {
+                   ScheduledMeasurement meas,
+                   String plugin,
+                   long scheduledTime) {
             this.rs = rs;
             this.meas = meas;
+            this.plugin = plugin;
+            this.scheduledTime = scheduledTime;
         }
 
         /**
@@ -548,19 +713,58 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
         }
 
         public void run() {
+            // On the virtual executor, wait for the plugin's turn before the deadline starts
+            Semaphore permits = (virtualExecutor != null) ? getVirtualPermits(plugin) : null;
+            if (permits != null) {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            try {
+                execute();
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        }
+
+        private void execute() {
+            executeStartTime = System.currentTimeMillis();
+            timeout = metricTimeouts.register(this, executeStartTime + cancelTimeout);
+            if (scheduledTime > 0) {
+                long lag = Math.max(0, executeStartTime - scheduledTime);
+                collectionLagStat.add(lag);
+                lastCollectionLag = lag;
+            }
+            try {
+                collectValue();
+            } finally {
+                executeEndTime = System.currentTimeMillis();
+                // MetricVerificationTask may have replaced the deadline while the task was running
+                timeout.cancel();
+                if (log.isDebugEnabled()) {
+                    log.debug("Metric task '" + this + "' complete, duration: " + getExecutionDuration());
+                }
+            }
+        }
+
+        private void collectValue() {
             boolean isDebug = log.isDebugEnabled();
             AppdefEntityID aid = meas.getEntity();
             String category = meas.getCategory();
             ParsedTemplate dsn = toParsedTemplate(meas);
             MetricValue data = null;
-            executeStartTime = System.currentTimeMillis();
             boolean success = false;
 
             if (rs.lastUnreachble != 0) {
                 if (!category.equals(MeasurementConstants.CAT_AVAILABILITY)) {
                     // Prevent stacktrace bombs if a resource is
                     // down, but don't skip processing availability metrics.
-                    statsCollector.addStat(1, SCHEDULE_THREAD_METRIC_COLLECT_FAILED);
+                    collectFailedStat.add(1);
                     statNumMetricsFailed++;
                     return;
                 }
@@ -633,7 +837,10 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
 
             // Stats stuff
             Long timeDiff = System.currentTimeMillis() - executeStartTime;
-            statsCollector.addStat(timeDiff, SCHEDULE_THREAD_METRICS_COLLECTED_TIME);
+            collectedTimeStat.add(timeDiff);
+            PluginStats pluginStat = getPluginStats(plugin);
+            pluginStat.collected.incrementAndGet();
+            pluginStat.collectionTime.addAndGet(timeDiff);
 
             synchronized (statsLock) {
                 statTotFetchTime += timeDiff;
@@ -648,6 +855,8 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
 
             if (timeDiff > logFetchTimeout) {
                 log.warn("Collection of metric: '" + dsn + "' took: " + timeDiff + "ms");
+                tasksSlowStat.add(1);
+                pluginStat.slow.incrementAndGet();
             }
 
             if (success) {
@@ -672,6 +881,9 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
                     // which could take much longer to hit
                     // (e.g. Windows Updates on an 8 hour interval)
                     rs.retry.add(meas);
+                    if (useQueueEngine) {
+                        arm(rs, System.currentTimeMillis() + POLL_PERIOD);
+                    }
                     return;
                 }
 
@@ -736,37 +948,124 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
         }
     }
 
-    private int getQueueSize(String plugin) {
-        String prop = PROP_QUEUE_SIZE + plugin;
-        String sQueueSize = agentConfig.getProperty(prop);
-        if (sQueueSize != null) {
+    private int getIntProperty(String prop,
+                               int defaultValue) {
+        String sValue = agentConfig.getProperty(prop);
+        if (sValue != null) {
             try {
-                return Integer.parseInt(sQueueSize);
+                return Integer.parseInt(sValue.trim());
             } catch (NumberFormatException exc) {
                 log.error("Invalid setting for " + prop + " value=" +
-                            sQueueSize + " using defaults.");
+                            sValue + " using defaults.");
             }
         }
-        return EXECUTOR_QUEUE_SIZE;
+        return defaultValue;
+    }
+
+    private int getQueueSize(String plugin) {
+        return getIntProperty(PROP_QUEUE_SIZE + plugin, EXECUTOR_QUEUE_SIZE);
     }
 
     private int getPoolSize(String plugin) {
-        String prop = PROP_POOLSIZE + plugin;
-        String sPoolSize = agentConfig.getProperty(prop);
-        if (sPoolSize != null) {
-            try {
-                return Integer.parseInt(sPoolSize);
-            } catch (NumberFormatException exc) {
-                log.error("Invalid setting for " + prop + " value=" +
-                            sPoolSize + " using defaults.");
+        return getIntProperty(PROP_POOLSIZE + plugin, 1);
+    }
+
+    /**
+     * With the virtual executor scheduleThread.poolsize.[plugin] caps the number of concurrent collections of the
+     * plugin, the other collections of the plugin wait on their own thread.
+     */
+    private Semaphore getVirtualPermits(String plugin) {
+        Semaphore permits = virtualPermits.get(plugin);
+        if (permits == null) {
+            int poolSize = getPoolSize(plugin);
+            Semaphore newPermits = new Semaphore(poolSize);
+            permits = virtualPermits.putIfAbsent(plugin, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+                log.info("Capping the virtual collections of plugin '" + plugin + "' at poolsize=" + poolSize);
             }
         }
-        return 1;
+        return permits;
     }
 
-    private void collect(ResourceSchedule rs,
-                         List<ScheduledMeasurement> items) {
+    private static int getDefaultSharedPoolSize() {
+        // Collections mostly block on remote resources, so use more threads than cores
+        return Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * In the shared executor scheduleThread.poolsize.[plugin] caps the number of concurrent collections of the
+     * plugin, as it sizes the plugin's own pool with the plugin executor.
+     */
+    private SharedCollectionExecutor.LaneConfig getLaneConfig() {
+        return new SharedCollectionExecutor.LaneConfig() {
+            public int getMaxConcurrency(String plugin) {
+                return getPoolSize(plugin);
+            }
+
+            public int getWeight(String plugin) {
+                return getIntProperty(PROP_WEIGHT + plugin, 1);
+            }
+
+            public int getCapacity(String plugin) {
+                return getQueueSize(plugin);
+            }
+        };
+    }
+
+    /**
+     * @return the name of the product plugin which collects the template, or null if it isn't available (yet)
+     */
+    private String getPluginName(ParsedTemplate tmpl) {
         final boolean debug = log.isDebugEnabled();
+        try {
+            GenericPlugin p = getMeasurementPluginManager().getPlugin(tmpl.plugin).getProductPlugin();
+            return p.getName();
+        } catch (PluginNotFoundException e) {
+            if (debug) {
+                log.debug("Could not find plugin name from template '" + tmpl.plugin +
+                            "'. Associated plugin might not be initialized yet.");
+            }
+            return null;
+        } catch (AgentRunningException e) {
+            if (debug) {
+                log.debug(e);
+            }
+            throw new IllegalStateException(e);
+        } catch (PluginException e) {
+            if (debug) {
+                log.debug(e);
+            }
+            return null;
+        }
+    }
+
+    private ThreadPoolExecutor getExecutor(String plugin) {
+        synchronized (executors) {
+            ThreadPoolExecutor executor = executors.get(plugin);
+            if (executor == null) {
+                final int poolSize = getPoolSize(plugin);
+                final int queueSize = getQueueSize(plugin);
+                log.info("Creating executor for plugin '" + plugin +
+                            "' with a poolsize=" + poolSize + " queuesize=" + queueSize);
+                final ThreadFactory factory = getFactory(plugin);
+                executor = new ThreadPoolExecutor(poolSize, poolSize,
+                            60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(queueSize), factory,
+                            new ThreadPoolExecutor.AbortPolicy());
+                executors.put(plugin, executor);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * @param scheduledTime the time the items were scheduled for, 0 if unknown
+     */
+    private void collect(ResourceSchedule rs,
+                         List<ScheduledMeasurement> items,
+                         long scheduledTime) {
+        List<ScheduledMeasurement> deferred = null;
         for (int i = 0; (i < items.size()) && (!shouldDie.get()); i++) {
             ScheduledMeasurement meas = items.get(i);
             ParsedTemplate tmpl = toParsedTemplate(meas);
@@ -774,55 +1073,45 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
                 log.warn("template for meas id=" + meas.getDerivedID() + " is null");
                 continue;
             }
-            ThreadPoolExecutor executor;
-            String plugin;
-            synchronized (executors) {
-                try {
-                    GenericPlugin p = getMeasurementPluginManager().getPlugin(tmpl.plugin).getProductPlugin();
-                    plugin = p.getName();
-                } catch (PluginNotFoundException e) {
-                    if (debug) {
-                        log.debug("Could not find plugin name from template '" + tmpl.plugin +
-                                    "'. Associated plugin might not be initialized yet.");
-                    }
-                    continue;
-                } catch (AgentRunningException e) {
-                    if (debug) {
-                        log.debug(e);
-                    }
-                    throw new IllegalStateException(e);
-                } catch (PluginException e) {
-                    if (debug) {
-                        log.debug(e);
-                    }
-                    continue;
-                }
-                executor = executors.get(plugin);
-                if (executor == null) {
-                    final int poolSize = getPoolSize(plugin);
-                    final int queueSize = getQueueSize(plugin);
-                    log.info("Creating executor for plugin '" + plugin +
-                                "' with a poolsize=" + poolSize + " queuesize=" + queueSize);
-                    final ThreadFactory factory = getFactory(plugin);
-                    executor = new ThreadPoolExecutor(poolSize, poolSize,
-                                60, TimeUnit.SECONDS,
-                                new LinkedBlockingQueue<Runnable>(queueSize), factory,
-                                new ThreadPoolExecutor.AbortPolicy());
-                    executors.put(plugin, executor);
-                }
+            String plugin = getPluginName(tmpl);
+            if (plugin == null) {
+                continue;
             }
-            MetricTask metricTask = new MetricTask(rs, meas);
-            statsCollector.addStat(1, SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED);
+            MetricTask metricTask = new MetricTask(rs, meas, plugin, scheduledTime);
             try {
-                Future<?> task = executor.submit(metricTask);
-                synchronized (metricCollections) {
-                    metricCollections.put(task, metricTask);
+                Future<?> task;
+                if (sharedExecutor != null) {
+                    task = sharedExecutor.submit(plugin, metricTask);
+                    if (task == null) {
+                        // The plugin's lane is full, try again on the next tick rather than dropping the metric
+                        if (deferred == null) {
+                            deferred = new ArrayList<ScheduledMeasurement>();
+                        }
+                        deferred.add(meas);
+                        tasksDeferredStat.add(1);
+                        continue;
+                    }
+                } else if (virtualExecutor != null) {
+                    task = virtualExecutor.submit(metricTask);
+                } else {
+                    task = getExecutor(plugin).submit(metricTask);
                 }
+                metricTask.future = task;
+                tasksSubmittedStat.add(1);
             } catch (RejectedExecutionException e) {
                 log.warn("Executor[" + plugin + "] rejected metric task " + metricTask);
                 statNumMetricsFailed++;
             }
         }
+        if (deferred != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Deferring " + deferred.size() + " collections for " + rs.id + " to the next tick");
+            }
+            rs.retry.addAll(deferred);
+            if (useQueueEngine) {
+                arm(rs, System.currentTimeMillis() + POLL_PERIOD);
+            }
+        }
     }
 
     private ThreadFactory getFactory(final String plugin) {
@@ -859,12 +1148,18 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
 
         rs.collected.clear();
 
-        if (rs.retry.size() != 0) {
+        List<ScheduledMeasurement> retry = null;
+        synchronized (rs.retry) {
+            if (rs.retry.size() != 0) {
+                retry = new ArrayList<ScheduledMeasurement>(rs.retry);
+                rs.retry.clear();
+            }
+        }
+        if (retry != null) {
             if (log.isDebugEnabled()) {
-                log.debug("Retrying " + rs.retry.size() + " items (MetricValue.FUTUREs)");
+                log.debug("Retrying " + retry.size() + " items (MetricValue.FUTUREs and deferred collections)");
             }
-            collect(rs, rs.retry);
-            rs.retry.clear();
+            collect(rs, retry, 0);
         }
 
         if (now < timeOfNext) {
@@ -872,6 +1167,7 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
         }
 
         List items;
+        long scheduledTime = timeOfNext;
 
         try {
             items = schedule.consumeNextItems();
@@ -879,7 +1175,7 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
         } catch (EmptyScheduleException e) {
             return POLL_PERIOD + now;
         }
-        collect(rs, items);
+        collect(rs, items, scheduledTime);
         return timeOfNext;
     }
 
@@ -916,11 +1212,77 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
         return timeOfNext;
     }
 
+    /**
+     * Arm a resource schedule in the due queue, unless it is already armed for an earlier time or has been
+     * unscheduled in the meantime.
+     */
+    private void arm(ResourceSchedule rs,
+                     long timeOfNext) {
+        synchronized (schedules) {
+            if (!rs.unscheduled) {
+                dueSchedules.scheduleNoLaterThan(rs, timeOfNext);
+            }
+        }
+    }
+
+    /**
+     * Collect the resource schedules which are due and re-arm each of them for its next time. Unlike
+     * {@link #collect()} this costs O(due schedules) rather than O(all schedules).
+     */
+    private void collectDue(int fudgeFactor) {
+        List<ResourceSchedule> due = dueSchedules.consumeDue(System.currentTimeMillis());
+        if (due.isEmpty()) {
+            return;
+        }
+        sender.ensureSyncedToServerTime();
+        for (int i = 0; (i < due.size()) && !shouldDie.get(); i++) {
+            ResourceSchedule rs = due.get(i);
+            long next;
+            try {
+                next = collect(rs);
+            } catch (Throwable e) {
+                log.error(e.getMessage(), e);
+                next = POLL_PERIOD + System.currentTimeMillis();
+            }
+            if (fudgeFactor > 0) {
+                next += rand.nextInt(fudgeFactor);
+            }
+            arm(rs, next);
+        }
+    }
+
+    private void runQueueEngine() {
+        final boolean isDebug = log.isDebugEnabled();
+        final int fudgeFactor = getFudgeFactor();
+        while (!shouldDie.get()) {
+            collectDue(fudgeFactor);
+            if (isDebug) {
+                try {
+                    long timeOfNext = dueSchedules.getTimeOfNext();
+                    log.debug("Waiting until " + TimeUtil.toString(timeOfNext) + " for " + dueSchedules.size() +
+                                " resource schedules");
+                } catch (EmptyScheduleException e) {
+                    log.debug("Waiting for measurements to be scheduled");
+                }
+            }
+            try {
+                dueSchedules.awaitNext(0);
+            } catch (InterruptedException e) {
+                log.debug("Schedule thread kicked");
+            }
+        }
+        log.info("Schedule thread shut down");
+    }
+
     /**
      * The main loop of the ScheduleThread, which watches the schedule waits the appropriate time, and executes
      * scheduled operations.
      */
     public void run() {
+        if (useQueueEngine) {
+            runQueueEngine();
+            return;
+        }
         final boolean isDebug = log.isDebugEnabled();
         final int fudgeFactor = getFudgeFactor();
         while (!shouldDie.get()) {
@@ -1042,9 +1404,61 @@ public class ScheduleThread extends AgentMonitorSimple implements Runnable, Agen
                 d.clear();
             }
         }
+        for (Entry<String, PluginStats> entry : pluginStats.entrySet()) {
+            rtn.append("plugin ").append(entry.getKey()).append(":").append(entry.getValue()).append("\n");
+        }
         return rtn.toString();
     }
 
+    public void writeStats(StatsExposition out) {
+        synchronized (statsLock) {
+            out.gauge("metrics_scheduled", "Number of metrics in the schedule", statNumMetricsScheduled);
+        }
+        out.gauge("metric_collections_running", "Number of metric collections running", metricTimeouts.size());
+        out.gauge("metric_collection_lag_ms", "Delay between the scheduled and the actual start of the latest " +
+                    "metric collection", lastCollectionLag);
+        for (Entry<String, PluginStats> entry : pluginStats.entrySet()) {
+            String plugin = entry.getKey();
+            PluginStats stats = entry.getValue();
+            out.counter("plugin_collections_total", "Metric collections completed by plugin",
+                        "plugin", plugin, stats.collected.get());
+            out.counter("plugin_collection_time_ms_total", "Time spent collecting metrics by plugin",
+                        "plugin", plugin, stats.collectionTime.get());
+            out.counter("plugin_collections_slow_total", "Metric collections slower than the fetch log timeout",
+                        "plugin", plugin, stats.slow.get());
+            out.counter("plugin_collections_cancelled_total", "Metric collections cancelled after the timeout",
+                        "plugin", plugin, stats.cancelled.get());
+        }
+        synchronized (executors) {
+            for (Entry<String, ThreadPoolExecutor> entry : executors.entrySet()) {
+                ThreadPoolExecutor executor = entry.getValue();
+                out.gauge("plugin_collections_queued", "Metric collections waiting for a thread by plugin",
+                            "plugin", entry.getKey(), executor.getQueue().size());
+                out.gauge("plugin_collections_active", "Metric collections running by plugin",
+                            "plugin", entry.getKey(), executor.getActiveCount());
+            }
+        }
+        if (sharedExecutor != null) {
+            sharedExecutor.writeStats(out);
+        }
+        if (virtualExecutor != null) {
+            out.gauge("metric_collections_in_flight", "Metric collections submitted and not completed",
+                        virtualExecutor.getInFlight());
+        }
+        writeCacheStats(out, "templates", Metric.getTemplateCache());
+        writeCacheStats(out, "properties", Metric.getPropertiesCache());
+    }
+
+    private void writeCacheStats(StatsExposition out,
+                                 String cache,
+                                 BoundedCache<?, ?> stats) {
+        out.gauge("metric_cache_entries", "Entries in the metric parsing caches", "cache", cache, stats.size());
+        out.counter("metric_cache_hits_total", "Metric parsing cache hits", "cache", cache, stats.getHits());
+        out.counter("metric_cache_misses_total", "Metric parsing cache misses", "cache", cache, stats.getMisses());
+        out.counter("metric_cache_evictions_total", "Metric parsing cache evictions", "cache", cache,
+                    stats.getEvictions());
+    }
+
     private static final SimpleDateFormat diagInfoTimeFormat = new SimpleDateFormat("HH:mm");
 
     private class DiagInfo {
@@ -30,11 +30,13 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -45,11 +47,15 @@ import javax.net.ssl.SSLPeerUnverifiedException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.agent.AgentConfig;
+import org.hyperic.hq.agent.server.AgentListCursor;
 import org.hyperic.hq.agent.server.AgentStartException;
 import org.hyperic.hq.agent.server.AgentStorageException;
 import org.hyperic.hq.agent.server.AgentStorageProvider;
 import org.hyperic.hq.agent.server.monitor.AgentMonitorException;
 import org.hyperic.hq.agent.server.monitor.AgentMonitorSimple;
+import org.hyperic.hq.agent.stats.AgentStatsCollector;
+import org.hyperic.hq.agent.stats.AgentStatsSource;
+import org.hyperic.hq.agent.stats.StatsExposition;
 import org.hyperic.hq.bizapp.client.AgentCallbackClientException;
 import org.hyperic.hq.bizapp.client.MeasurementCallbackClient;
 import org.hyperic.hq.bizapp.client.StorageProviderFetcher;
@@ -70,7 +76,7 @@ import org.hyperic.util.encoding.Base64;
  * Deals with sending measurements back to the server (including persisting them on disk.)
  */
 
-public class SenderThread extends AgentMonitorSimple implements Sender, Runnable {
+public class SenderThread extends AgentMonitorSimple implements Sender, Runnable, AgentStatsSource {
     private enum ConnectionPolicy {
         CLOSE, KEEP_ALIVE, CLOSE_ON_LAST_BATCH
     }
@@ -78,6 +84,11 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
     private static final String PROP_METRICDUP = "agent.metricDup";
     private static final String PROP_MAXBATCHSIZE = "agent.maxBatchSize";
     private static final String PROP_METRICDEBUG = "agent.metricDebug";
+    private static final String PROP_SPOOLFORMAT = "agent.spoolFormat";
+
+    // Spool formats
+    private static final String SPOOL_BINARY = "binary"; // fixed width binary records
+    private static final String SPOOL_TEXT = "text"; // legacy, Base64 encoded records written as UTF strings
 
     // The threshold for logging server offset issues in the agent log.
     // XXX: May need to revisit this, potentially alot of output for
@@ -86,11 +97,15 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
     private static final long MAX_SERVERDIFF = 3 * 60 * 1000;
 
     private static final int PROP_RECSIZE = 68; // 68 byte records.
+    // derivedID, timestamp, dsnId (longs) and value (double)
+    private static final int BINARY_RECSIZE = 8 + 8 + 8 + 8;
 
     private static final int SEND_INTERVAL = 60000;
     private static final int MAX_BATCHSIZE = 500;
     private static final String MEASURENENT_LISTNAME = "measurement_spool";
     private static final String AVAILABILITY_LISTNAME = "availability_spool";
+    private static final String MEASURENENT_BINARY_LISTNAME = "measurement_spool.bin";
+    private static final String AVAILABILITY_BINARY_LISTNAME = "availability_spool.bin";
     private static final String TIMEDIFF_STORAGE_KEY = "server_agent_timediff";
     private static final long MINIMAL_TIMEDIFF_SYNC_INTERVAL = TimeUnit.SECONDS.toMillis(60);
     private static final int MEASURENENT_MAX_RETRY_TIME = 5;
@@ -107,6 +122,9 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
     private final Set metricDebug;
     private final MeasurementSchedule schedule;
     private final SchedulerOffsetManager schedulerOffsetManager;
+    private final boolean binarySpool;
+    private final String measurementListName;
+    private final String availabilityListName;
 
     // Current difference time between the server and agent in ns.
     // Update on each call to sendMeasurementReport().
@@ -116,6 +134,8 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
     private long stat_numBatchesSent = 0;
     private long stat_totBatchSendTime = 0;
     private long stat_totMetricsSent = 0;
+    // Time of the oldest spooled metric while a backlog is being sent, 0 otherwise
+    private volatile long backlogTime = 0;
 
     private boolean deductServerTimeDiff;
     private boolean storedServerTimeDiff;
@@ -137,13 +157,26 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
         this.schedule = schedule;
         this.schedulerOffsetManager = schedulerOffsetManager;
 
+        String spoolFormat = bootConfig.getBootProperties().getProperty(PROP_SPOOLFORMAT, SPOOL_BINARY).trim();
+        if (!SPOOL_BINARY.equalsIgnoreCase(spoolFormat) && !SPOOL_TEXT.equalsIgnoreCase(spoolFormat)) {
+            throw new AgentStartException(PROP_SPOOLFORMAT + " must be " + SPOOL_BINARY + " or " + SPOOL_TEXT +
+                        " ('" + spoolFormat + "')");
+        }
+        this.binarySpool = SPOOL_BINARY.equalsIgnoreCase(spoolFormat);
+        this.measurementListName = binarySpool ? MEASURENENT_BINARY_LISTNAME : MEASURENENT_LISTNAME;
+        this.availabilityListName = binarySpool ? AVAILABILITY_BINARY_LISTNAME : AVAILABILITY_LISTNAME;
+        this.log.info("Using " + (binarySpool ? SPOOL_BINARY : SPOOL_TEXT) + " measurement spool");
+
+        // The list settings apply to the spool in either format
         String measuementInfo = bootConfig.getBootProperties().getProperty(MEASURENENT_LISTNAME);
         if (measuementInfo != null) {
             storage.addOverloadedInfo(MEASURENENT_LISTNAME, measuementInfo);
+            storage.addOverloadedInfo(MEASURENENT_BINARY_LISTNAME, measuementInfo);
         }
         String AvailabilityInfo = bootConfig.getBootProperties().getProperty(AVAILABILITY_LISTNAME);
         if (AvailabilityInfo != null) {
             storage.addOverloadedInfo(AVAILABILITY_LISTNAME, AvailabilityInfo);
+            storage.addOverloadedInfo(AVAILABILITY_BINARY_LISTNAME, AvailabilityInfo);
         }
         // Setup our storage list
         try {
@@ -151,10 +184,20 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
             // than the default of 1k.
             this.storage.createList(MEASURENENT_LISTNAME, PROP_RECSIZE);
             this.storage.createList(AVAILABILITY_LISTNAME, PROP_RECSIZE);
+            this.storage.createList(MEASURENENT_BINARY_LISTNAME, BINARY_RECSIZE);
+            this.storage.createList(AVAILABILITY_BINARY_LISTNAME, BINARY_RECSIZE);
         } catch (AgentStorageException ignore) {
             // Most likely an agent update where the existing rt schedule
             // already exists. Will fall back to the old 1k size.
         }
+        // Move records spooled in the other format, e.g. by the previous version of the agent
+        if (binarySpool) {
+            migrateSpool(MEASURENENT_LISTNAME, MEASURENENT_BINARY_LISTNAME);
+            migrateSpool(AVAILABILITY_LISTNAME, AVAILABILITY_BINARY_LISTNAME);
+        } else {
+            migrateSpool(MEASURENENT_BINARY_LISTNAME, MEASURENENT_LISTNAME);
+            migrateSpool(AVAILABILITY_BINARY_LISTNAME, AVAILABILITY_LISTNAME);
+        }
 
         sMetricDup = bootConfig.getBootProperties().getProperty(PROP_METRICDUP);
         if (sMetricDup != null) {
@@ -204,6 +247,7 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
                     config.getProperty(ServerTimeDiff.PROP_DEDUCT_SERVER_TIME_DIFF), true);
 
         this.storedServerTimeDiff = false;
+        AgentStatsCollector.getInstance().registerSource(this);
     }
 
     private MeasurementCallbackClient setupClient(AgentConfig bootConfig)
@@ -217,6 +261,7 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
 
     void die() {
         this.shouldDie = true;
+        AgentStatsCollector.getInstance().unregisterSource(this);
     }
 
     // Use a small class which holds a bunch of the data we need, just so
@@ -313,6 +358,117 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
         return Base64.encode(bOs.toByteArray());
     }
 
+    private static Record decodeRecord(AgentListCursor cursor) {
+        long derivedID = cursor.getLong(0);
+        long retTime = cursor.getLong(8);
+        long dsnID = cursor.getLong(16);
+        MetricValue measVal = new MetricValue(cursor.getDouble(24), retTime);
+        return new Record(dsnID, measVal, derivedID);
+    }
+
+    /**
+     * Add records to a spool list in the configured format, as one batch.
+     */
+    private void storeRecords(String listName,
+                              List<Record> records)
+        throws AgentStorageException, IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        if (binarySpool) {
+            ByteBuffer buf = ByteBuffer.allocate(records.size() * BINARY_RECSIZE);
+            for (Record record : records) {
+                buf.putLong(record.derivedID);
+                buf.putLong(record.data.getTimestamp());
+                buf.putLong(record.dsnId);
+                buf.putDouble(record.data.getValue());
+            }
+            this.storage.addToList(listName, buf.array(), BINARY_RECSIZE);
+        } else {
+            List<String> encoded = new ArrayList<String>(records.size());
+            for (Record record : records) {
+                encoded.add(encodeRecord(record));
+            }
+            this.storage.addToList(listName, encoded);
+        }
+    }
+
+    /**
+     * Move the records of a spool list in the other format to the spool list in the configured format. Each batch is
+     * removed from the old list once it is copied, so a migration which failed resumes after the records already
+     * moved instead of copying them again.
+     */
+    private void migrateSpool(String fromListName,
+                              String toListName) {
+        int num = 0;
+        int numRead = 0;
+        List<Record> batch = new ArrayList<Record>(MAX_BATCHSIZE);
+        try {
+            int read;
+            do {
+                batch.clear();
+                read = readOtherFormat(fromListName, batch);
+                storeRecords(toListName, batch);
+                this.storage.removeFirst(fromListName, read);
+                num += batch.size();
+                numRead += read;
+            } while (read >= MAX_BATCHSIZE);
+        } catch (Exception exc) {
+            this.log.error("Unable to migrate " + fromListName + " to " + toListName + ", will retry on restart", exc);
+            if (numRead > 0) {
+                flushMigration();
+            }
+            return;
+        }
+        if (numRead == 0) {
+            return;
+        }
+        this.storage.deleteList(fromListName);
+        flushMigration();
+        this.log.info("Migrated " + num + " records from " + fromListName + " to " + toListName);
+    }
+
+    private void flushMigration() {
+        try {
+            this.storage.flush();
+        } catch (AgentStorageException exc) {
+            this.log.error("Unable to flush storage", exc);
+        }
+    }
+
+    /**
+     * Read up to MAX_BATCHSIZE records from the head of a spool list in the other format than the configured one.
+     * Records which can't be read are dropped.
+     * 
+     * @return the number of records read from the list, including the dropped ones
+     */
+    private int readOtherFormat(String listName,
+                                List<Record> records) {
+        int read = 0;
+        if (binarySpool) {
+            Iterator<String> it = this.storage.getListIterator(listName);
+            for (; (it != null) && it.hasNext() && (read < MAX_BATCHSIZE); read++) {
+                try {
+                    records.add(decodeRecord(it.next()));
+                } catch (IOException exc) {
+                    this.log.error("Error accessing record -- dropping: " + exc, exc);
+                }
+            }
+        } else {
+            AgentListCursor cursor = this.storage.getListCursor(listName);
+            for (; (cursor != null) && cursor.hasNext() && (read < MAX_BATCHSIZE); read++) {
+                try {
+                    cursor.next();
+                } catch (IOException exc) {
+                    this.log.error("Error accessing record -- dropping: " + exc, exc);
+                    continue;
+                }
+                records.add(decodeRecord(cursor));
+            }
+        }
+        return read;
+    }
+
     public void processData(long dsnId,
                             MetricValue data,
                             long samplingInterval,
@@ -374,30 +530,36 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
      * server.
      */
     private void processTransitionQueue() {
-        String encodedRec;
+        List<Record> measurements = new ArrayList<Record>();
+        List<Record> availabilities = new ArrayList<Record>();
+
+        // Only hold the queue lock while taking the records, the collector threads shouldn't wait on the disk
         synchronized (this.transitionQueue) {
             for (Record rec : this.transitionQueue) {
-                try {
-                    encodedRec = encodeRecord(rec);
-                    if (rec.isAvail) {
-                        this.storage.addToList(AVAILABILITY_LISTNAME,
-                                    encodedRec);
-                    } else {
-                        this.storage
-                                    .addToList(MEASURENENT_LISTNAME, encodedRec);
-                    }
-                } catch (Exception exc) {
-                    this.log.error("Unable to store data: " + exc, exc);
+                if (rec.isAvail) {
+                    availabilities.add(rec);
+                } else {
+                    measurements.add(rec);
                 }
             }
-
             this.transitionQueue.clear();
             this.regularMetricsReadyForProcess.set(false);
-            try {
-                this.storage.flush();
-            } catch (Exception exc) {
-                this.log.error("Unable to flush storage", exc);
-            }
+        }
+
+        try {
+            storeRecords(this.availabilityListName, availabilities);
+        } catch (Exception exc) {
+            this.log.error("Unable to store data: " + exc, exc);
+        }
+        try {
+            storeRecords(this.measurementListName, measurements);
+        } catch (Exception exc) {
+            this.log.error("Unable to store data: " + exc, exc);
+        }
+        try {
+            this.storage.flush();
+        } catch (Exception exc) {
+            this.log.error("Unable to flush storage", exc);
         }
     }
 
@@ -430,22 +592,46 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
         Set<Record> records = new HashSet<Record>();
         // first we are going to ensure that all the data points that
         // we send over to the server are unique
-        Iterator<String> it = storage.getListIterator(listName);
-        for (; (it != null) && it.hasNext() && (numUsed < maxBatchSize); numUsed++) {
-            try {
-                Record r = SenderThread.decodeRecord(it.next());
-                boolean didNotAlreadyExist = records.add(r);
-                if (!didNotAlreadyExist) {
+        final boolean hasMore;
+        if (binarySpool) {
+            AgentListCursor cursor = storage.getListCursor(listName);
+            for (; (cursor != null) && cursor.hasNext() && (numUsed < maxBatchSize); numUsed++) {
+                try {
+                    cursor.next();
+                } catch (IOException exc) {
+                    // The cursor moved past the record, which is removed with the batch
+                    this.log.error("Error accessing record -- deleting: " + exc, exc);
+                    continue;
+                }
+                Record r = SenderThread.decodeRecord(cursor);
+                if (!records.add(r)) {
                     // nuke the dup
                     if (debug) {
                         log.debug("Dropping duplicate entry for " + r);
                     }
                     numUsed--;
                 }
-            } catch (IOException exc) {
-                this.log.error("Error accessing record -- deleting: " + exc, exc);
-                continue;
             }
+            hasMore = (cursor != null) && cursor.hasNext();
+        } else {
+            Iterator<String> it = storage.getListIterator(listName);
+            for (; (it != null) && it.hasNext() && (numUsed < maxBatchSize); numUsed++) {
+                try {
+                    Record r = SenderThread.decodeRecord(it.next());
+                    boolean didNotAlreadyExist = records.add(r);
+                    if (!didNotAlreadyExist) {
+                        // nuke the dup
+                        if (debug) {
+                            log.debug("Dropping duplicate entry for " + r);
+                        }
+                        numUsed--;
+                    }
+                } catch (IOException exc) {
+                    this.log.error("Error accessing record -- deleting: " + exc, exc);
+                    continue;
+                }
+            }
+            hasMore = (it != null) && it.hasNext();
         }
 
         int num = 0;
@@ -512,7 +698,7 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
                 case CLOSE_ON_LAST_BATCH:
                     // If there are no metrics left on next batch, we close the connection.
                     // Otherwise we keep it open.
-                    closeConn = !it.hasNext();
+                    closeConn = !hasMore;
                     break;
                 default:
                     closeConn = false;
@@ -715,9 +901,10 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
                                    String listName) {
         int j = 0;
 
-        for (Iterator i = this.storage.getListIterator(listName); (i != null) && i.hasNext() && (j < num); j++) {
-            i.next();
-            i.remove();
+        try {
+            j = this.storage.removeFirst(listName, num);
+        } catch (AgentStorageException exc) {
+            this.log.error("Error removing records: " + exc, exc);
         }
 
         try {
@@ -765,6 +952,29 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
         return this.serverDiff;
     }
 
+    public void writeStats(StatsExposition out) {
+        int queued;
+        synchronized (this.transitionQueue) {
+            queued = this.transitionQueue.size();
+        }
+        out.gauge("sender_queued_records", "Collected metrics waiting to be written to the spool", queued);
+        for (String listName : new String[] { measurementListName, availabilityListName }) {
+            try {
+                out.gauge("sender_spooled_records", "Metrics held in the spool until they are sent", "list", listName,
+                            storage.getListSize(listName));
+            } catch (AgentStorageException e) {
+                log.debug("Unable to read the size of " + listName + ": " + e);
+            }
+        }
+        long oldest = backlogTime;
+        out.gauge("sender_backlog_ms", "Age of the oldest spooled metric while a backlog is being sent",
+                    (oldest > 0) ? Math.max(0, now() - oldest) : 0);
+        out.counter("sender_batches_sent_total", "Metric batches sent to the server", stat_numBatchesSent);
+        out.counter("sender_metrics_sent_total", "Metrics sent to the server", stat_totMetricsSent);
+        out.counter("sender_batch_send_time_ms_total", "Time spent sending metric batches", stat_totBatchSendTime);
+        out.gauge("server_offset_ms", "Offset between the agent and server clocks", serverDiff);
+    }
+
     public void run() {
 
         Calendar controlCal = Calendar.getInstance();
@@ -815,8 +1025,8 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
                 // if there are no regular metrics ready to be sent. Otherwise, we close it.
                 boolean closeConnAfterAvailabilityReport = closeConnByDefault && !regularMetricsReadyForProcess.get();
 
-                sendData(AVAILABILITY_LISTNAME, numSent, closeConnAfterAvailabilityReport);
-                sendData(MEASURENENT_LISTNAME, numSent, closeConnByDefault);
+                sendData(this.availabilityListName, numSent, closeConnAfterAvailabilityReport);
+                sendData(this.measurementListName, numSent, closeConnByDefault);
             } catch (Throwable e) {
                 log.error(e.getMessage(), e);
             }
@@ -837,6 +1047,7 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
             long retries = 1;
             while (!((result = this.sendBatch(listName, numSent, connectionPolicy)).isDone())) {
                 long now = System.currentTimeMillis();
+                backlogTime = result.getTimeStamp();
                 long tDiff = now - result.getTimeStamp();
                 String backlog = Long.toString(tDiff / (60 * 1000));
                 if (((tDiff / (60 * 1000)) > 1) && (backlog.equals(backlogNum) == false)) {
@@ -845,6 +1056,7 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
                 }
                 if (this.shouldDie == true) {
                     this.log.info("Dying with measurements backlogged");
+                    backlogTime = 0;
                     return;
                 }
                 if (StatusBatchResult.ERROR_BATCH.equals(result.getStatus())) {
@@ -859,10 +1071,12 @@ public class SenderThread extends AgentMonitorSimple implements Sender, Runnable
                     // After reached max retries inform the server to close connection
                     // because we are delaying the requests
                     this.sendBatch(listName, numSent, ConnectionPolicy.CLOSE);
+                    backlogTime = 0;
                     return;
                 }
             }
         }
+        backlogTime = 0;
         final long total = System.currentTimeMillis() - start;
         if (total > SEND_INTERVAL) {
             log.info("Agent took " + (total / 1000) + " seconds to send its " + listName + " metrics to the Server.");
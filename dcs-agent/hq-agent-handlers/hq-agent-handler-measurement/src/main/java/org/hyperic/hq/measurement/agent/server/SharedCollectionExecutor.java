@@ -0,0 +1,247 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.agent.server;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.stats.StatsExposition;
+
+/**
+ * Runs metric collections of all plugins on one shared pool of worker threads.
+ *
+ * Each plugin has its own lane holding its pending collections. A lane is served by at most maxConcurrency workers at
+ * a time, so a plugin whose collections hang can't take over the pool. A worker serving a lane runs up to weight
+ * collections and then goes to the back of the pool queue, giving a weighted round robin between the plugins with
+ * pending work. Idle workers pick up any lane that has work.
+ *
+ * Lanes are bounded. A collection submitted to a full lane is not queued, {@link #submit(String, Runnable)} returns
+ * null and the caller is expected to retry it on its next schedule tick.
+ */
+class SharedCollectionExecutor {
+    private static final Log log = LogFactory.getLog(SharedCollectionExecutor.class.getName());
+
+    /**
+     * Per plugin settings of a lane.
+     */
+    interface LaneConfig {
+        int getMaxConcurrency(String plugin);
+
+        int getWeight(String plugin);
+
+        int getCapacity(String plugin);
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final LaneConfig laneConfig;
+    // plugin -> lane
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+    SharedCollectionExecutor(int poolSize,
+                             LaneConfig laneConfig,
+                             ThreadFactory factory) {
+        this.laneConfig = laneConfig;
+        this.pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), factory);
+    }
+
+    private class Lane implements Runnable {
+        private final String plugin;
+        private final int maxConcurrency;
+        private final int weight;
+        private final int capacity;
+        private final Queue<FutureTask<?>> tasks = new ConcurrentLinkedQueue<FutureTask<?>>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong deferred = new AtomicLong();
+
+        private Lane(String plugin) {
+            this.plugin = plugin;
+            this.maxConcurrency = Math.max(1, laneConfig.getMaxConcurrency(plugin));
+            this.weight = Math.max(1, laneConfig.getWeight(plugin));
+            this.capacity = Math.max(1, laneConfig.getCapacity(plugin));
+        }
+
+        private boolean offer(FutureTask<?> task) {
+            if (queued.incrementAndGet() > capacity) {
+                queued.decrementAndGet();
+                deferred.incrementAndGet();
+                return false;
+            }
+            tasks.add(task);
+            dispatch();
+            return true;
+        }
+
+        /**
+         * Hand the lane to a pool worker if it has pending work and is below its concurrency cap.
+         */
+        private void dispatch() {
+            while (!tasks.isEmpty()) {
+                int current = running.get();
+                if (current >= maxConcurrency) {
+                    return;
+                }
+                if (running.compareAndSet(current, current + 1)) {
+                    try {
+                        pool.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        // Pool is shut down
+                        running.decrementAndGet();
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Run one turn of the lane: up to weight collections, then yield the worker to the other lanes.
+         */
+        public void run() {
+            for (int i = 0; i < weight; i++) {
+                FutureTask<?> task = tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                queued.decrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    // A cancelled collection leaves the interrupt of cancel(true) on the worker, don't let it fail
+                    // the next collection of the turn
+                    Thread.interrupted();
+                    completed.incrementAndGet();
+                }
+            }
+            if (!tasks.isEmpty() && !pool.isShutdown()) {
+                // Keep our slot and go to the back of the pool queue
+                try {
+                    pool.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // Pool is shut down
+                }
+            }
+            running.decrementAndGet();
+            // Work may have been offered while we were giving up the slot
+            dispatch();
+        }
+    }
+
+    private Lane getLane(String plugin) {
+        Lane lane = lanes.get(plugin);
+        if (lane == null) {
+            Lane newLane = new Lane(plugin);
+            lane = lanes.putIfAbsent(plugin, newLane);
+            if (lane == null) {
+                lane = newLane;
+                log.info("Created collection lane for plugin '" + plugin + "' with maxConcurrency=" +
+                            lane.maxConcurrency + " weight=" + lane.weight + " capacity=" + lane.capacity);
+            }
+        }
+        return lane;
+    }
+
+    /**
+     * Queue a metric collection in the lane of its plugin.
+     *
+     * @return the future of the collection, or null if the lane is full and the collection should be deferred
+     * @throws RejectedExecutionException if the executor was shut down
+     */
+    Future<?> submit(String plugin,
+                     Runnable task) {
+        if (pool.isShutdown()) {
+            throw new RejectedExecutionException("Shared collection executor is shut down");
+        }
+        FutureTask<Object> future = new FutureTask<Object>(task, null);
+        return getLane(plugin).offer(future) ? future : null;
+    }
+
+    /**
+     * Stop all workers and drop the pending collections.
+     *
+     * @return the number of collections which were still pending
+     */
+    int shutdownNow() {
+        pool.shutdownNow();
+        int pending = 0;
+        for (Lane lane : lanes.values()) {
+            FutureTask<?> task;
+            while ((task = lane.tasks.poll()) != null) {
+                task.cancel(false);
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    void writeStats(StatsExposition out) {
+        out.gauge("shared_pool_queued_lanes", "Plugin lanes waiting for a shared collection thread",
+                    pool.getQueue().size());
+        for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+            Lane lane = entry.getValue();
+            out.gauge("plugin_collections_queued", "Metric collections waiting for a thread by plugin",
+                        "plugin", entry.getKey(), lane.queued.get());
+            out.gauge("plugin_collections_active", "Metric collections running by plugin",
+                        "plugin", entry.getKey(), lane.running.get());
+            out.counter("plugin_collections_deferred_total", "Metric collections deferred because the lane was full",
+                        "plugin", entry.getKey(), lane.deferred.get());
+        }
+    }
+
+    void logStatistics(Log out) {
+        if (!out.isDebugEnabled()) {
+            return;
+        }
+        out.debug("Shared collection pool: " +
+                    "ActiveCount=" + pool.getActiveCount() + ", " +
+                    "PoolSize=" + pool.getPoolSize() + ", " +
+                    "QueuedLanes=" + pool.getQueue().size());
+        for (Map.Entry<String, Lane> entry : lanes.entrySet()) {
+            Lane lane = entry.getValue();
+            out.debug("Plugin=" + entry.getKey() + ", " +
+                        "CompletedTaskCount=" + lane.completed.get() + ", " +
+                        "ActiveCount=" + lane.running.get() + ", " +
+                        "QueuedCount=" + lane.queued.get() + ", " +
+                        "DeferredCount=" + lane.deferred.get());
+        }
+    }
+}
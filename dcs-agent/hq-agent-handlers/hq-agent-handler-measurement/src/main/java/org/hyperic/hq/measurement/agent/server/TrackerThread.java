@@ -25,8 +25,10 @@
 
 package org.hyperic.hq.measurement.agent.server;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Properties;
 
 import org.hyperic.hq.agent.AgentConfig;
@@ -137,16 +139,32 @@ class TrackerThread implements Runnable {
             return;
         }
 
+        List<String> records = new ArrayList<String>(events.size());
         for (Iterator i = events.iterator(); i.hasNext();) {
             TrackEvent event = (TrackEvent) i.next();
 
             try {
                 String data = event.encode();
-                this.storage.addToList(dListName, data);
-                this.log.debug("Stored event (" + data.length() +
+                records.add(data);
+                this.log.debug("Encoded event (" + data.length() +
                             " bytes) " + event);
             } catch (Exception e) {
-                this.log.error("Unable to store data", e);
+                this.log.error("Unable to encode event " + event, e);
+            }
+        }
+
+        try {
+            this.storage.addToList(dListName, records);
+            this.log.debug("Stored " + records.size() + " events");
+        } catch (Exception e) {
+            // Nothing is stored when a record of the batch doesn't fit, store them one by one to only lose that one
+            this.log.debug("Unable to store events as a batch, storing them one by one: " + e);
+            for (String data : records) {
+                try {
+                    this.storage.addToList(dListName, data);
+                } catch (Exception exc) {
+                    this.log.error("Unable to store data", exc);
+                }
             }
         }
     }
@@ -251,9 +269,13 @@ class TrackerThread implements Runnable {
 
     private void removeProcessedEventsFromStorage(String dListName,
                                                   int numEventsProcessed) {
-        for (Iterator i = this.storage.getListIterator(dListName); numEventsProcessed > 0 && i != null && i.hasNext(); numEventsProcessed--) {
-            i.next();
-            i.remove();
+        if (numEventsProcessed <= 0) {
+            return;
+        }
+        try {
+            this.storage.removeFirst(dListName, numEventsProcessed);
+        } catch (AgentStorageException e) {
+            this.log.error("Unable to remove processed events", e);
         }
     }
 
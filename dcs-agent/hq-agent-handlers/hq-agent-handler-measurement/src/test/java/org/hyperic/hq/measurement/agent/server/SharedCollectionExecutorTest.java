@@ -0,0 +1,185 @@
+/**
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ *  "derived work".
+ *
+ *  Copyright (C) [2010], VMware, Inc.
+ *  This file is part of HQ.
+ *
+ *  HQ is free software; you can redistribute it and/or modify
+ *  it under the terms version 2 of the GNU General Public License as
+ *  published by the Free Software Foundation. This program is distributed
+ *  in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ *  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ *  PARTICULAR PURPOSE. See the GNU General Public License for more
+ *  details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ *  USA.
+ *
+ */
+
+package org.hyperic.hq.measurement.agent.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class SharedCollectionExecutorTest extends TestCase {
+
+    private static SharedCollectionExecutor.LaneConfig laneConfig(final int maxConcurrency,
+                                                                  final int capacity) {
+        return laneConfig(maxConcurrency, 1, capacity);
+    }
+
+    private static SharedCollectionExecutor.LaneConfig laneConfig(final int maxConcurrency,
+                                                                  final int weight,
+                                                                  final int capacity) {
+        return new SharedCollectionExecutor.LaneConfig() {
+            public int getMaxConcurrency(String plugin) {
+                return maxConcurrency;
+            }
+
+            public int getWeight(String plugin) {
+                return weight;
+            }
+
+            public int getCapacity(String plugin) {
+                return capacity;
+            }
+        };
+    }
+
+    public void testHungPluginDoesNotStarveOthers()
+        throws Exception {
+        SharedCollectionExecutor executor =
+                    new SharedCollectionExecutor(4, laneConfig(2, 100), Executors.defaultThreadFactory());
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger hung = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            executor.submit("hang", new Runnable() {
+                public void run() {
+                    hung.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // shut down
+                    }
+                }
+            });
+        }
+
+        final CountDownLatch done = new CountDownLatch(50);
+        for (int i = 0; i < 50; i++) {
+            executor.submit("system", new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue("Collections of other plugins should complete", done.await(10, TimeUnit.SECONDS));
+        // The hung plugin is capped at its max concurrency
+        assertEquals(2, hung.get());
+
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    public void testFullLaneDefersCollection()
+        throws Exception {
+        SharedCollectionExecutor executor =
+                    new SharedCollectionExecutor(1, laneConfig(1, 2), Executors.defaultThreadFactory());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // shut down
+                }
+            }
+        };
+        assertNotNull(executor.submit("jmx", blocking));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertNotNull(executor.submit("jmx", blocking));
+        assertNotNull(executor.submit("jmx", blocking));
+        // Lane holds 2 pending collections, the next one is deferred
+        assertNull(executor.submit("jmx", blocking));
+
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    public void testCancelRunningCollection()
+        throws Exception {
+        SharedCollectionExecutor executor =
+                    new SharedCollectionExecutor(1, laneConfig(1, 10), Executors.defaultThreadFactory());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Future<?> f = executor.submit("hang", new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(f.cancel(true));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+
+        // The lane keeps working after the cancellation
+        final CountDownLatch next = new CountDownLatch(1);
+        executor.submit("hang", new Runnable() {
+            public void run() {
+                next.countDown();
+            }
+        });
+        assertTrue(next.await(10, TimeUnit.SECONDS));
+        executor.shutdownNow();
+    }
+
+    public void testCancelDoesNotInterruptNextCollectionOfTurn()
+        throws Exception {
+        // One worker running both collections in the same turn
+        SharedCollectionExecutor executor =
+                    new SharedCollectionExecutor(1, laneConfig(1, 2, 10), Executors.defaultThreadFactory());
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<?> f = executor.submit("jmx", new Runnable() {
+            public void run() {
+                started.countDown();
+                // Returns once interrupted, leaving the interrupt flag set
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.yield();
+                }
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        final CountDownLatch next = new CountDownLatch(1);
+        final AtomicBoolean nextInterrupted = new AtomicBoolean(true);
+        executor.submit("jmx", new Runnable() {
+            public void run() {
+                nextInterrupted.set(Thread.currentThread().isInterrupted());
+                next.countDown();
+            }
+        });
+        assertTrue(f.cancel(true));
+        assertTrue(next.await(10, TimeUnit.SECONDS));
+        assertFalse("Next collection should not inherit the interrupt", nextInterrupted.get());
+        executor.shutdownNow();
+    }
+}
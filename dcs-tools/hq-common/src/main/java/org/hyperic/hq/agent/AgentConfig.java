@@ -140,6 +140,9 @@ public class AgentConfig {
                 "org.hyperic.hq.agent.server.AgentDListProvider" };
     public static final String[] PROP_STORAGEPROVIDERINFO =
     { "agent.storageProvider.info", "${agent.dataDir}|m|1000|20|50" };
+    // Lists of the storage provider are forced to disk at most once per interval (ms), 0 on every flush
+    public static final String[] PROP_STORAGEPROVIDER_FLUSH_INTERVAL =
+    { "agent.storageProvider.flushInterval", "1000" };
     public static final String[] PROP_INSTALLHOME =
     { "agent.install.home", System.getProperty("agent.install.home", System.getProperty("user.dir")) };
     // has no default since we want to throw an error when property is not set
@@ -232,6 +235,20 @@ public class AgentConfig {
     public static final String[] PROP_MAX_HTTP_CONNECTION_PER_ROUTE =
     { "agent.http.connection.max-connections", MAX_HTTP_CONNECTION_PER_ROUTE.toString() };
 
+    // Connections kept apart for bulk transfers (plugin downloads, inventory reports) to all the servers, 0 shares
+    // the pool above
+    public static final Integer MAX_HTTP_BULK_CONNECTIONS = 1;
+
+    public static final String[] PROP_MAX_HTTP_BULK_CONNECTIONS =
+    { "agent.http.connection.bulk.max-connections", MAX_HTTP_BULK_CONNECTIONS.toString() };
+
+    // Port of the local stats endpoint, bound to the loopback address, 0 disables it
+    public static final String[] PROP_STATS_HTTP_PORT =
+    { "agent.stats.http.port", "0" };
+
+    public static final String[] PROP_STATS_JMX_ENABLED =
+    { "agent.stats.jmx.enabled", "false" };
+
     public static final String PROP_PROPFILE = "agent.propFile";
 
     public static final String DEFAULT_AGENT_PROPFILE_NAME = "agent.properties";
@@ -259,6 +276,15 @@ public class AgentConfig {
 
     public static final String QPROP_UNI_POLLING_FREQUENCY = QPROP_PRE + "uniPollingFrequency";
     public static final int DEFAULT_POLLING_FREQUENCY_IN_MS = 60000;
+    // Longest time the server may hold a poll until commands are queued, 0 to poll at the polling frequency only
+    public static final String QPROP_UNI_LONG_POLL_WAIT = QPROP_PRE + "uniLongPollWait";
+    public static final int DEFAULT_LONG_POLL_WAIT_IN_MS = 25000;
+    public static final int MAX_LONG_POLL_WAIT_IN_MS = 30000;
+    // Send each command response as soon as the command completes rather than once all commands of a poll completed
+    public static final String QPROP_UNI_PIPELINED_DISPATCH = QPROP_PRE + "uniPipelinedDispatch";
+    // More than one thread lets the commands of a poll run alongside those of an earlier poll
+    public static final String QPROP_UNI_DISPATCH_THREADS = QPROP_PRE + "uniDispatchThreads";
+    public static final int DEFAULT_DISPATCH_THREADS = 1;
 
     static {
         ENCRYPTED_PROP_KEYS.add(QPROP_PWORD);
@@ -276,6 +302,7 @@ public class AgentConfig {
                 PROP_PROXYPORT,
                 PROP_STORAGEPROVIDER,
                 PROP_STORAGEPROVIDERINFO,
+                PROP_STORAGEPROVIDER_FLUSH_INTERVAL,
                 PROP_INSTALLHOME,
                 PROP_BUNDLEHOME,
                 PROP_TMPDIR,
@@ -296,6 +323,9 @@ public class AgentConfig {
                 PROP_CLOSE_HTTP_CONNECTION_BY_DEFAULT,
                 PROP_MAX_HTTP_REQUESTS_PER_CONNECTION,
                 PROP_MAX_HTTP_CONNECTION_PER_ROUTE,
+                PROP_MAX_HTTP_BULK_CONNECTIONS,
+                PROP_STATS_HTTP_PORT,
+                PROP_STATS_JMX_ENABLED,
                 PROP_SUPPORT_RRDNS,
                 PROP_COMMUNICATION_FAIL_PERIOD_IN_MINUTES,
                 PROP_COMMUNICATION_DOWN_PERIOD_IN_MINUTES
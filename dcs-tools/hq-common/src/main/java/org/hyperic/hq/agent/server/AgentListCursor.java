@@ -0,0 +1,70 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.server;
+
+import java.io.IOException;
+
+/**
+ * A forward only cursor over a list of fixed size binary records, as added by
+ * {@link AgentStorageProvider#addToList(String, byte[])}. The cursor reads each record into one buffer which is reused
+ * for the whole iteration, so the values of the current record are read as primitives without allocating.
+ */
+public interface AgentListCursor {
+
+    /**
+     * @return true if there is a record after the current one
+     */
+    public boolean hasNext();
+
+    /**
+     * Move to the next record.
+     * 
+     * @return false if there are no more records
+     */
+    public boolean next()
+        throws IOException;
+
+    /**
+     * @return the size in bytes of the records
+     */
+    public int getRecordSize();
+
+    /**
+     * @param offset byte offset within the current record
+     */
+    public long getLong(int offset);
+
+    /**
+     * @param offset byte offset within the current record
+     */
+    public double getDouble(int offset);
+
+    /**
+     * Remove the current record from the list.
+     */
+    public void remove()
+        throws IOException;
+}
@@ -26,6 +26,7 @@
 package org.hyperic.hq.agent.server;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -158,6 +159,44 @@ public interface AgentStorageProvider extends GenericValueMap {
                           String value)
         throws AgentStorageException;
 
+    /**
+     * Add a fixed size binary record to a storage column. If the column does not yet exist, it will be created. The
+     * record is copied, so the caller may reuse the array.
+     * 
+     * @param listName Name of the column to add to
+     * @param record Record to add, at most the record size of the list
+     */
+
+    public void addToList(String listName,
+                          byte[] record)
+        throws AgentStorageException;
+
+    /**
+     * Add values to a storage column, in the order of the collection. If the column does not yet exist, it will be
+     * created. The values are written as one batch, which is much cheaper than adding them one by one.
+     * 
+     * @param listName Name of the column to add to
+     * @param values Values to add to the column
+     */
+
+    public void addToList(String listName,
+                          Collection<String> values)
+        throws AgentStorageException;
+
+    /**
+     * Add fixed size binary records to a storage column as one batch. If the column does not yet exist, it will be
+     * created. The records are copied, so the caller may reuse the array.
+     * 
+     * @param listName Name of the column to add to
+     * @param records Consecutive records of recordLength bytes each
+     * @param recordLength Length of each record, at most the record size of the list
+     */
+
+    public void addToList(String listName,
+                          byte[] records,
+                          int recordLength)
+        throws AgentStorageException;
+
     /**
      * Get an iterator for a named list. If there is no list currently in storage, or the list contains 0 elements, null
      * will be returned.
@@ -166,6 +205,14 @@ public interface AgentStorageProvider extends GenericValueMap {
      */
     public Iterator<String> getListIterator(String listName);
 
+    /**
+     * Get a cursor over the binary records of a named list. If there is no list currently in storage, or the list
+     * contains 0 elements, null will be returned.
+     * 
+     * @param listName name of the list to get a cursor for.
+     */
+    public AgentListCursor getListCursor(String listName);
+
     /**
      * Delete an entire list from storage. This is basically a shortcut for deleting all elements as returned by
      * getListIterator()
@@ -201,10 +248,30 @@ public interface AgentStorageProvider extends GenericValueMap {
      * Removes a record from the list
      * 
      * @param listName - name of the list
-     * @param recNumber - index of the record to remove
+     * @param recNumber - position of the record to remove, the head of the list being 0
      * @throws AgentStorageException
      */
     public void removeFromList(String listName,
                                long recNumber)
         throws AgentStorageException;
+
+    /**
+     * Removes the first records of the list as one batch.
+     * 
+     * @param listName - name of the list
+     * @param num - number of records to remove
+     * @return the number of records removed, less than num if the list was shorter
+     * @throws AgentStorageException
+     */
+    public int removeFirst(String listName,
+                           int num)
+        throws AgentStorageException;
+
+    /**
+     * @param listName - name of the list
+     * @return the number of records in the list
+     * @throws AgentStorageException
+     */
+    public long getListSize(String listName)
+        throws AgentStorageException;
 }
@@ -25,9 +25,11 @@
 
 package org.hyperic.hq.stats;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
@@ -48,15 +50,18 @@ import org.hyperic.sigar.Sigar;
 import org.hyperic.sigar.SigarException;
 import org.hyperic.util.stats.StatCollector;
 import org.hyperic.util.stats.StatUnreachableException;
-import org.hyperic.util.stats.StatsObject;
 
 public abstract class AbstractStatsCollector {
     private final Log log = LogFactory.getLog(AbstractStatsCollector.class);
 
     // using tree due to ordering capabilities
     private final Map<String, StatCollector> statKeys = new TreeMap<String, StatCollector>();
-    private final ConcurrentLinkedQueue<StatsObject> queue = new ConcurrentLinkedQueue<StatsObject>();
+    // stat id -> handle of the stats whose values are added by callers
+    private final ConcurrentMap<String, StatHandle> handles = new ConcurrentHashMap<String, StatHandle>();
     private final AtomicBoolean hasStarted = new AtomicBoolean(false);
+    private StatHandle statsCollectorHandle;
+    // stat id -> value of the StatCollectors written by the stats writer in its last row
+    private volatile Map<String, Long> lastSampled = Collections.emptyMap();
     private Long pid;
     protected final Sigar sigar = new Sigar();
     protected final MBeanServer mBeanServer;
@@ -95,21 +100,54 @@ public abstract class AbstractStatsCollector {
         hasStarted.set(started);
     }
 
-    public void register(final String statId) {
+    void setLastSampled(Map<String, Long> values) {
+        lastSampled = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @return the values of the registered {@link StatCollector}s as last written by the stats writer. Reading them
+     *         again from the collectors would reset the ones reporting the change since the previous read.
+     */
+    public Map<String, Long> getLastSampled() {
+        return lastSampled;
+    }
+
+    /**
+     * Register a stat whose values are added by callers.
+     * 
+     * @return the handle of the stat, which callers may keep to add values without looking the stat up. A stat
+     *         registered after the collector started, or whose id is taken by a {@link StatCollector}, is not
+     *         reported and its handle ignores the values.
+     */
+    public synchronized StatHandle register(final String statId) {
+        StatHandle handle = handles.get(statId);
+        if (handle != null) {
+            return handle;
+        }
         // can't register any stats after the collector has been initially
         // started due to consistent ordering in the csv output file
         if (hasStarted.get()) {
             log.warn("Cannot register " + statId +
                         " because the collector has already been started.");
-            return;
+            return new StatHandle(statId, new AtomicBoolean(false));
         }
         if (statKeys.containsKey(statId)) {
-            return;
+            return new StatHandle(statId, new AtomicBoolean(false));
         }
+        handle = new StatHandle(statId, hasStarted);
+        handles.put(statId, handle);
         statKeys.put(statId, null);
+        return handle;
     }
 
-    public void register(final StatCollector stat) {
+    /**
+     * @return the handle of a stat registered with {@link #register(String)}, null if there is none
+     */
+    public StatHandle getHandle(final String statId) {
+        return handles.get(statId);
+    }
+
+    public synchronized void register(final StatCollector stat) {
         // can't register any stats after the collector has been initially
         // started due to the need for consistent ordering in the csv output
         // file
@@ -132,15 +170,13 @@ public abstract class AbstractStatsCollector {
             return;
         }
 
-        if (!statKeys.containsKey(id)) {
+        final StatHandle handle = handles.get(id);
+        if (handle == null) {
             return;
         }
         final long now = System.currentTimeMillis();
-        // may want to look at pooling these objects to avoid creation overhead
-        final StatsObject stat = new StatsObject(value, id);
-        queue.add(stat);
-        final long total = System.currentTimeMillis() - now;
-        queue.add(new StatsObject(total, STATS_COLLECTOR));
+        handle.add(value);
+        statsCollectorHandle.add(System.currentTimeMillis() - now);
     }
 
     private final void registerInternalStats() {
@@ -317,7 +353,7 @@ public abstract class AbstractStatsCollector {
                     new String[] { "ConcurrentMarkSweep", "PS MarkSweep" }, "CollectionTime", true));
         register(new MBeanCollector(JVM_COPY_GC, "java.lang:type=GarbageCollector,name=",
                     new String[] { "Copy", "ParNew", "PS Scavenge" }, "CollectionTime", true));
-        register(STATS_COLLECTOR);
+        statsCollectorHandle = register(STATS_COLLECTOR);
     }
 
     protected long getProcPid() {
@@ -328,16 +364,6 @@ public abstract class AbstractStatsCollector {
         return pid.longValue();
     }
 
-    public StatsObject generateMarker() {
-        final StatsObject marker = new StatsObject(-1, null);
-        queue.add(marker);
-        return marker;
-    }
-
-    public StatsObject pollQueue() {
-        return queue.poll();
-    }
-
     protected class StatSampler implements StatCollector {
         private final StatCollector stat;
         private final String id;
@@ -498,7 +524,7 @@ public abstract class AbstractStatsCollector {
     }
 
     public void destory() {
-        this.queue.clear();
+        this.handles.clear();
         this.statKeys.clear();
     }// EOM
 
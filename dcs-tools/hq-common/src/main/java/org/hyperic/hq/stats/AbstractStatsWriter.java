@@ -34,11 +34,9 @@ import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
 import java.util.zip.GZIPOutputStream;
@@ -47,8 +45,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.measurement.MeasurementConstants;
 import org.hyperic.util.stats.StatCollector;
+import org.hyperic.util.stats.StatHistogram;
 import org.hyperic.util.stats.StatUnreachableException;
-import org.hyperic.util.stats.StatsObject;
 
 public abstract class AbstractStatsWriter {
     private static final Log log = LogFactory.getLog(AbstractStatsWriter.class);
@@ -234,8 +232,7 @@ public abstract class AbstractStatsWriter {
     private class StatsWriter implements Runnable {
         public synchronized void run() {
             try {
-                Map<String, List<Number>> stats = getStatsByKey();
-                StringBuilder buf = getCSVBuf(stats);
+                StringBuilder buf = getCSVBuf();
                 final FileWriter fw = getFileWriter();
                 fw.append(buf.append("\n").toString());
                 fw.flush();
@@ -258,8 +255,9 @@ public abstract class AbstractStatsWriter {
             return file;
         }
 
-        private final StringBuilder getCSVBuf(Map<String, List<Number>> stats) {
+        private final StringBuilder getCSVBuf() {
             final StringBuilder rtn = new StringBuilder();
+            final Map<String, Long> sampled = new HashMap<String, Long>();
             rtn.append(System.currentTimeMillis()).append(',');
             for (Map.Entry<String, StatCollector> entry : statsCollector.getStatKeys().entrySet()) {
                 String key = (String) entry.getKey();
@@ -268,6 +266,7 @@ public abstract class AbstractStatsWriter {
                     try {
                         long value = stat.getVal();
                         rtn.append(value).append(',');
+                        sampled.put(key, value);
                     } catch (StatUnreachableException e) {
                         if (log.isDebugEnabled()) {
                             log.debug(e.getMessage(), e);
@@ -276,41 +275,16 @@ public abstract class AbstractStatsWriter {
                         continue;
                     }
                 } else {
-                    List<Number> list = stats.get(key);
-                    long total = 0l;
-                    if (list != null) {
-                        for (Number val : list) {
-                            total += val.longValue();
-                        }
-                        rtn.append(total).append(',').append(list.size()).append(",");
+                    StatHandle handle = statsCollector.getHandle(key);
+                    StatHistogram.Snapshot interval = (handle == null) ? null : handle.roll();
+                    if ((interval != null) && (interval.getCount() > 0)) {
+                        rtn.append(interval.getSum()).append(',').append(interval.getCount()).append(",");
                     } else {
                         rtn.append(',').append(',');
                     }
                 }
             }
-            return rtn;
-        }
-
-        private Map<String, List<Number>> getStatsByKey() {
-            final Map<String, List<Number>> rtn = new HashMap<String, List<Number>>();
-            final StatsObject marker = statsCollector.generateMarker();
-            List<Number> tmp;
-            Object obj;
-            while (marker != (obj = statsCollector.pollQueue())) {
-                final StatsObject stat = (StatsObject) obj;
-                final String id = stat.getId();
-                // HHQ-5724 - this line should not be needed, but marker != (..) should do the trick
-                // id == null is the id of the marker.
-                if (id == null) {
-                    break;
-                }
-                final Long val = stat.getVal();
-                if (null == (tmp = rtn.get(id))) {
-                    tmp = new ArrayList<Number>();
-                    rtn.put(id, tmp);
-                }
-                tmp.add(new Long(val));
-            }
+            statsCollector.setLastSampled(sampled);
             return rtn;
         }
     }
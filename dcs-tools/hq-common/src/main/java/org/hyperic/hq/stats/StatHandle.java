@@ -0,0 +1,79 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.stats;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hyperic.util.stats.StatHistogram;
+
+/**
+ * A stat registered in an {@link AbstractStatsCollector}. Callers on hot paths keep the handle returned by
+ * {@link AbstractStatsCollector#register(String)} and add their values to it directly, which neither locks nor
+ * allocates. The values of each write period are reported by the stats writer as their total and count, and the last
+ * period is kept with its minimum, maximum and percentiles.
+ */
+public class StatHandle {
+    private final String id;
+    private final AtomicBoolean started;
+    private final StatHistogram histogram = new StatHistogram();
+    private volatile StatHistogram.Snapshot lastInterval = null;
+
+    StatHandle(String id,
+               AtomicBoolean started) {
+        this.id = id;
+        this.started = started;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Add a value, ignored until the stats writer has started.
+     */
+    public void add(long value) {
+        if (!started.get()) {
+            return;
+        }
+        histogram.record(value);
+    }
+
+    /**
+     * @return the values of the last complete write period, or null before the first one completed
+     */
+    public StatHistogram.Snapshot getLastInterval() {
+        return lastInterval;
+    }
+
+    /**
+     * Close the current write period.
+     */
+    StatHistogram.Snapshot roll() {
+        StatHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        lastInterval = snapshot;
+        return snapshot;
+    }
+}
@@ -15,19 +15,26 @@
 
 package org.hyperic.lather.client;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.hyperic.hq.agent.AgentConfig;
@@ -42,6 +49,10 @@ import org.hyperic.util.http.ServerHttpClient;
 
 /**
  * The LatherClient is the base object which is used to invoke remote Lather methods.
+ *
+ * A client is thread safe. It is meant to be kept for as long as its base URL and HTTP client are valid, rather than
+ * created for each call: encode buffers are reused per thread, and the constant parts of the requests are computed
+ * once.
  */
 public class LatherHTTPClient implements LatherClient {
     public static final int TIMEOUT_CONN = 10 * 1000;
@@ -49,8 +60,27 @@ public class LatherHTTPClient implements LatherClient {
 
     public static final String HDR_ERROR = "X-error-response";
     public static final String HDR_VALUECLASS = "X-latherValue-class";
+    /** Set by servers on their responses when they accept lather requests as a binary body */
+    public static final String HDR_BINARY = "X-lather-binary";
+    /** Content type of binary lather requests and responses, instead of Base64 in a form parameter */
+    public static final String CONTENT_TYPE_LATHER = "application/x-lather";
     public static final String CMD_AI_SEND_REPORT = "aiSendReport";
     public static final String CMD_AI_SEND_RUNTIME_REPORT = "aiSendRuntimeReport";
+    // Encoded args buffers above this size are not kept for reuse
+    private static final int MAX_REUSED_BUFFER = 1024 * 1024;
+
+    // baseURL -> whether the servers accept binary requests, absent until a response tells
+    private static final ConcurrentMap<String, Boolean> binaryServers = new ConcurrentHashMap<String, Boolean>();
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+    private static final Map<String, String> EXPECT_CONTINUE_HEADERS =
+                Collections.singletonMap(HttpHeaders.EXPECT, HTTP.EXPECT_CONTINUE);
+    private static final ThreadLocal<ByteArrayOutputStream> argsBuffer = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream();
+        }
+    };
+
     private final ServerHttpClient client;
     private final LatherXCoder xCoder;
     private final String baseURL;
@@ -74,6 +104,14 @@ public class LatherHTTPClient implements LatherClient {
         xCoder = new LatherXCoder();
     }
 
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    public ServerHttpClient getHttpClient() {
+        return client;
+    }
+
     private static ServerHttpClient createClient(int timeoutConn,
                                                  int timeoutData,
                                                  AgentConfig agtCfg) {
@@ -146,13 +184,13 @@ public class LatherHTTPClient implements LatherClient {
             Header errHeader = response.getFirstHeader(HDR_ERROR);
             Header clsHeader = response.getFirstHeader(HDR_VALUECLASS);
             HttpEntity entity = response.getEntity();
-            String responseBody = EntityUtils.toString(entity);
 
             if (errHeader != null) {
-                throw new LatherRemoteException(responseBody);
+                throw new LatherRemoteException(EntityUtils.toString(entity));
             }
 
             if (clsHeader == null) {
+                EntityUtils.consume(entity);
                 throw new IOException(
                             "Server returned malformed result: did not contain a value class header");
             }
@@ -162,11 +200,23 @@ public class LatherHTTPClient implements LatherClient {
             try {
                 resClass = Class.forName(clsHeader.getValue());
             } catch (ClassNotFoundException exc) {
+                EntityUtils.consume(entity);
                 throw new LatherRemoteException("Server returned a class '"
                             + clsHeader.getValue()
                             + "' which the client did not have access to");
             }
 
+            if (isBinary(entity)) {
+                // Decode straight from the connection
+                dIs = new DataInputStream(new BufferedInputStream(entity.getContent()));
+                try {
+                    return xCoder.decode(dIs, resClass);
+                } finally {
+                    EntityUtils.consume(entity);
+                }
+            }
+
+            String responseBody = EntityUtils.toString(entity);
             try {
                 bIs = new ByteArrayInputStream(Base64.decode(responseBody));
             } catch (IllegalArgumentException e) {
@@ -188,20 +238,31 @@ public class LatherHTTPClient implements LatherClient {
                                        LatherValue args,
                                        boolean closeConn)
         throws IOException, LatherRemoteException {
-        ByteArrayOutputStream bOs = new ByteArrayOutputStream();
-        DataOutputStream dOs = new DataOutputStream(bOs);
-
-        xCoder.encode(args, dOs);
+        ByteArrayOutputStream bOs = argsBuffer.get();
+        bOs.reset();
+        HttpResponse response;
+        try {
+            DataOutputStream dOs = new DataOutputStream(bOs);
+            xCoder.encode(args, dOs);
+            dOs.flush();
 
-        byte[] rawData = bOs.toByteArray();
-        String encodedArgs = Base64.encode(rawData);
-        Map<String, String> postParams = new HashMap<String, String>();
+            response = null;
+            if (Boolean.TRUE.equals(binaryServers.get(baseURL))) {
+                response = postBinary(method, args, bOs, closeConn);
+            }
+            if (response == null) {
+                response = postForm(method, args, bOs, closeConn);
+            }
+        } finally {
+            if (bOs.size() > MAX_REUSED_BUFFER) {
+                // Don't hold on to the buffer of an exceptionally large report
+                argsBuffer.remove();
+            }
+        }
 
-        postParams.put("method", method);
-        postParams.put("args", encodedArgs);
-        postParams.put("argsClass", args.getClass().getName());
-        shouldExpect100Continue(postParams);
-        HttpResponse response = client.post(baseURL, postParams, closeConn);
+        if ((response != null) && (response.getFirstHeader(HDR_BINARY) != null)) {
+            binaryServers.put(baseURL, Boolean.TRUE);
+        }
 
         if ((response == null)
                     || (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)) {
@@ -213,16 +274,141 @@ public class LatherHTTPClient implements LatherClient {
         return response;
     }
 
+    /**
+     * Post the args Base64 encoded in a form parameter, understood by all servers.
+     */
+    private HttpResponse postForm(String method,
+                                  LatherValue args,
+                                  ByteArrayOutputStream encodedArgs,
+                                  boolean closeConn)
+        throws IOException {
+        Map<String, String> postParams = new HashMap<String, String>();
+
+        postParams.put("method", method);
+        postParams.put("args", Base64.encode(encodedArgs.toByteArray()));
+        postParams.put("argsClass", args.getClass().getName());
+        shouldExpect100Continue(postParams);
+        return client.post(baseURL, postParams, closeConn);
+    }
+
+    /**
+     * Post the args as an application/x-lather body, streamed from the encoding buffer.
+     * 
+     * @return the response, or null if the server turned out not to accept binary requests
+     */
+    private HttpResponse postBinary(String method,
+                                    LatherValue args,
+                                    ByteArrayOutputStream encodedArgs,
+                                    boolean closeConn)
+        throws IOException {
+        Map<String, String> headers = isAiReport(method) ? EXPECT_CONTINUE_HEADERS : NO_HEADERS;
+
+        HttpResponse response = client.post(baseURL, headers,
+                    new LatherEntity(method, args.getClass().getName(), encodedArgs), closeConn);
+        if (response != null) {
+            int status = response.getStatusLine().getStatusCode();
+            if ((status == HttpStatus.SC_BAD_REQUEST) || (status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE)) {
+                // Server was downgraded, go back to the form encoding
+                EntityUtils.consume(response.getEntity());
+                binaryServers.put(baseURL, Boolean.FALSE);
+                return null;
+            }
+        }
+        return response;
+    }
+
+    private static boolean isBinary(HttpEntity entity) {
+        Header contentType = (entity == null) ? null : entity.getContentType();
+        return (contentType != null) && (contentType.getValue() != null)
+                    && contentType.getValue().startsWith(CONTENT_TYPE_LATHER);
+    }
+
+    /**
+     * The body of a binary lather request: the method name, the args class name and the length prefixed encoded args.
+     * The args are written directly from the encoding buffer, so the entity can be sent any number of times without
+     * copying them.
+     */
+    static class LatherEntity
+        extends AbstractHttpEntity {
+        // method + ' ' + args class -> encoded method and args class, there are only a few dozen of them
+        private static final ConcurrentMap<String, byte[]> prefixes = new ConcurrentHashMap<String, byte[]>();
+
+        private final byte[] prefix;
+        private final ByteArrayOutputStream encodedArgs;
+
+        LatherEntity(String method,
+                     String argsClass,
+                     ByteArrayOutputStream encodedArgs)
+            throws IOException {
+            this.prefix = getPrefix(method, argsClass);
+            this.encodedArgs = encodedArgs;
+            setContentType(CONTENT_TYPE_LATHER);
+        }
+
+        private static byte[] getPrefix(String method,
+                                        String argsClass)
+            throws IOException {
+            String key = method + ' ' + argsClass;
+            byte[] prefix = prefixes.get(key);
+            if (prefix == null) {
+                ByteArrayOutputStream hOs = new ByteArrayOutputStream();
+                DataOutputStream dOs = new DataOutputStream(hOs);
+                dOs.writeUTF(method);
+                dOs.writeUTF(argsClass);
+                dOs.flush();
+                prefix = hOs.toByteArray();
+                prefixes.putIfAbsent(key, prefix);
+            }
+            return prefix;
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public long getContentLength() {
+            return prefix.length + 4 + encodedArgs.size();
+        }
+
+        public InputStream getContent() {
+            ByteArrayOutputStream bOs = new ByteArrayOutputStream((int) getContentLength());
+            try {
+                writeTo(bOs);
+            } catch (IOException e) {
+                // Not thrown by a ByteArrayOutputStream
+                throw new IllegalStateException(e);
+            }
+            return new ByteArrayInputStream(bOs.toByteArray());
+        }
+
+        public void writeTo(OutputStream out)
+            throws IOException {
+            int length = encodedArgs.size();
+            out.write(prefix);
+            out.write(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8),
+                        (byte) length });
+            encodedArgs.writeTo(out);
+            out.flush();
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
     //TODO Remove fix at 6.5- support expect 100-continue for AI reports
     private void shouldExpect100Continue(Map<String, String> postParams) {
        String method = postParams.get("method");
-       if (method != null &&
-          (CMD_AI_SEND_RUNTIME_REPORT.equals(method) || CMD_AI_SEND_REPORT.equals(method))){
+       if (isAiReport(method)){
            postParams.put(HttpHeaders.EXPECT, HTTP.EXPECT_CONTINUE);
        }
 
     }
 
+    private static boolean isAiReport(String method) {
+        return CMD_AI_SEND_RUNTIME_REPORT.equals(method) || CMD_AI_SEND_REPORT.equals(method);
+    }
+
     public static int getFailPeriodInMin() {
         return getIntConfig(
                     AgentConfig.PROP_COMMUNICATION_FAIL_PERIOD_IN_MINUTES[0],
@@ -29,7 +29,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -71,6 +73,29 @@ public class LatherXCoder {
     public void encode(LatherValue value,
                        DataOutputStream out)
         throws IOException
+    {
+        this.encode(value, out, new ArrayList<ByteArrayOutputStream>(), 0);
+    }
+
+    /**
+     * Get the buffer nested values at the given depth are encoded into before being written with their length. The
+     * buffers are reused by all the nested values of the same depth.
+     */
+    private ByteArrayOutputStream getScratch(List<ByteArrayOutputStream> scratch,
+                                             int depth) {
+        while (scratch.size() <= depth) {
+            scratch.add(new ByteArrayOutputStream());
+        }
+        ByteArrayOutputStream res = scratch.get(depth);
+        res.reset();
+        return res;
+    }
+
+    private void encode(LatherValue value,
+                        DataOutputStream out,
+                        List<ByteArrayOutputStream> scratch,
+                        int depth)
+        throws IOException
     {
         Map stringVals, intVals, doubleVals, longVals, byteaVals, objectVals, stringLists, intLists, doubleLists, byteaLists, objectLists, longLists;
 
@@ -275,17 +300,15 @@ public class LatherXCoder {
                 ByteArrayOutputStream bOs;
                 DataOutputStream subDoS;
                 Map.Entry ent = (Map.Entry) i.next();
-                byte[] data;
 
-                bOs = new ByteArrayOutputStream();
+                bOs = this.getScratch(scratch, depth);
                 subDoS = new DataOutputStream(bOs);
-                this.encode((LatherValue) ent.getValue(), subDoS);
+                this.encode((LatherValue) ent.getValue(), subDoS, scratch, depth + 1);
 
                 out.writeUTF((String) ent.getKey());
                 out.writeUTF(ent.getValue().getClass().getName());
-                data = bOs.toByteArray();
-                out.writeInt(data.length);
-                out.write(data, 0, data.length);
+                out.writeInt(bOs.size());
+                bOs.writeTo(out);
             }
         }
 
@@ -303,16 +326,14 @@ public class LatherXCoder {
                     ByteArrayOutputStream bOs;
                     DataOutputStream subDoS;
                     LatherValue val = (LatherValue) j.next();
-                    byte[] data;
 
-                    bOs = new ByteArrayOutputStream();
+                    bOs = this.getScratch(scratch, depth);
                     subDoS = new DataOutputStream(bOs);
-                    this.encode(val, subDoS);
+                    this.encode(val, subDoS, scratch, depth + 1);
 
                     out.writeUTF(val.getClass().getName());
-                    data = bOs.toByteArray();
-                    out.writeInt(data.length);
-                    out.write(data, 0, data.length);
+                    out.writeInt(bOs.size());
+                    bOs.writeTo(out);
                 }
             }
         }
@@ -330,7 +351,6 @@ public class LatherXCoder {
         }
         if ((contents & HAS_SERIALAIZABLES) != 0) {
             out.writeInt(value.getSerializableMap().size());
-            byte[] data;
             ByteArrayOutputStream b;
             ObjectOutputStream oos;
             for (Entry<String, Serializable> entry : value.getSerializableMap().entrySet()) {
@@ -338,16 +358,16 @@ public class LatherXCoder {
                 out.writeUTF(entry.getKey());
 
                 // Turn the Object to byte array
-                b = new ByteArrayOutputStream();
+                b = this.getScratch(scratch, depth);
                 oos = new ObjectOutputStream(b);
                 oos.writeObject(entry.getValue());
-                data = b.toByteArray();
+                oos.flush();
 
                 // Write Object size
-                out.writeInt(data.length);
+                out.writeInt(b.size());
 
                 // Write the actual Object as byte array
-                out.write(data);
+                b.writeTo(out);
 
             }
 
@@ -508,18 +528,13 @@ public class LatherXCoder {
 
             map = res.getObjectVals();
             for (int i = 0; i < nVals; i++) {
-                ByteArrayInputStream bIs;
                 DataInputStream subDiS;
                 String className;
-                byte[] bytes;
                 Class valClass;
 
                 listName = in.readUTF();
                 className = in.readUTF();
-                bytes = new byte[in.readInt()];
-                in.readFully(bytes);
-                bIs = new ByteArrayInputStream(bytes);
-                subDiS = new DataInputStream(bIs);
+                subDiS = new DataInputStream(new BoundedInputStream(in, in.readInt()));
 
                 try {
                     valClass = Class.forName(className);
@@ -530,6 +545,7 @@ public class LatherXCoder {
                 }
 
                 map.put(listName, this.decode(subDiS, valClass));
+                skipRemaining(subDiS);
             }
         }
 
@@ -538,10 +554,8 @@ public class LatherXCoder {
 
             map = res.getObjectLists();
             for (int i = 0; i < nVals; i++) {
-                ByteArrayInputStream bIs;
                 DataInputStream subDiS;
                 String className;
-                byte[] bytes;
                 Class valClass;
 
                 listName = in.readUTF();
@@ -550,10 +564,7 @@ public class LatherXCoder {
 
                 for (int j = 0; j < nListVals; j++) {
                     className = in.readUTF();
-                    bytes = new byte[in.readInt()];
-                    in.readFully(bytes);
-                    bIs = new ByteArrayInputStream(bytes);
-                    subDiS = new DataInputStream(bIs);
+                    subDiS = new DataInputStream(new BoundedInputStream(in, in.readInt()));
 
                     try {
                         valClass = Class.forName(className);
@@ -564,6 +575,7 @@ public class LatherXCoder {
                     }
 
                     newList.add(this.decode(subDiS, valClass));
+                    skipRemaining(subDiS);
                 }
 
                 map.put(listName, newList);
@@ -606,4 +618,93 @@ public class LatherXCoder {
         res.validate();
         return res;
     }
+
+    /**
+     * Skip what a nested value left unread in its section, so the enclosing value is decoded from the right position.
+     */
+    private static void skipRemaining(DataInputStream in)
+        throws IOException
+    {
+        while (in.skip(Long.MAX_VALUE) > 0) {
+        }
+    }
+
+    /**
+     * A view of the length-prefixed section of a nested value. Nested values are decoded directly from the enclosing
+     * stream instead of being copied into their own buffer first.
+     */
+    private static class BoundedInputStream
+        extends FilterInputStream
+    {
+        private int remaining;
+
+        private BoundedInputStream(InputStream in,
+                                   int length)
+            throws IOException
+        {
+            super(in);
+            if (length < 0) {
+                throw new IOException("Invalid section length " + length);
+            }
+            this.remaining = length;
+        }
+
+        @Override
+        public int read()
+            throws IOException
+        {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int res = in.read();
+            if (res >= 0) {
+                remaining--;
+            }
+            return res;
+        }
+
+        @Override
+        public int read(byte[] b,
+                        int off,
+                        int len)
+            throws IOException
+        {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int res = in.read(b, off, Math.min(len, remaining));
+            if (res > 0) {
+                remaining -= res;
+            }
+            return res;
+        }
+
+        @Override
+        public long skip(long n)
+            throws IOException
+        {
+            long res = in.skip(Math.min(n, remaining));
+            if (res > 0) {
+                remaining -= res;
+            }
+            return res;
+        }
+
+        @Override
+        public int available()
+            throws IOException
+        {
+            return Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // The enclosing stream is closed by its owner
+        }
+    }
 }
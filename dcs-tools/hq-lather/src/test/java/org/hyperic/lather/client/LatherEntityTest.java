@@ -0,0 +1,88 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.lather.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.hyperic.lather.test.PassThroughLatherValue;
+import org.hyperic.lather.test.SubValue;
+import org.hyperic.lather.xcode.LatherXCoder;
+
+public class LatherEntityTest
+            extends TestCase
+{
+    private PassThroughLatherValue getValue() {
+        PassThroughLatherValue res = new PassThroughLatherValue();
+        res.setStringValue("name", "value");
+        res.setLongValue("time", 1234567890123L);
+        for (int i = 0; i < 10; i++) {
+            SubValue sub = new SubValue();
+            sub.setStringValue("index", String.valueOf(i));
+            res.addObjectToList("subs", sub);
+        }
+        return res;
+    }
+
+    public void testBodyDecodesIncrementally()
+        throws Exception
+    {
+        LatherXCoder xCoder = new LatherXCoder();
+        PassThroughLatherValue value = getValue();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        xCoder.encode(value, new DataOutputStream(encoded));
+
+        LatherHTTPClient.LatherEntity entity = new LatherHTTPClient.LatherEntity("someMethod",
+                    PassThroughLatherValue.class.getName(), encoded);
+        assertEquals(LatherHTTPClient.CONTENT_TYPE_LATHER, entity.getContentType().getValue());
+        assertTrue(entity.isRepeatable());
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        entity.writeTo(body);
+        assertEquals(entity.getContentLength(), body.size());
+
+        DataInputStream in = new DataInputStream(entity.getContent());
+        assertEquals("someMethod", in.readUTF());
+        assertEquals(PassThroughLatherValue.class.getName(), in.readUTF());
+        assertEquals(encoded.size(), in.readInt());
+        PassThroughLatherValue decoded = (PassThroughLatherValue) xCoder.decode(in,
+                    PassThroughLatherValue.class);
+        assertEquals(-1, in.read());
+
+        ByteArrayOutputStream reencoded = new ByteArrayOutputStream();
+        xCoder.encode(decoded, new DataOutputStream(reencoded));
+        assertTrue(Arrays.equals(encoded.toByteArray(), reencoded.toByteArray()));
+
+        // Sent again on failover to another server
+        ByteArrayOutputStream again = new ByteArrayOutputStream();
+        entity.writeTo(again);
+        assertTrue(Arrays.equals(body.toByteArray(), again.toByteArray()));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.lather.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.hyperic.lather.LatherValue;
+import org.hyperic.lather.test.PassThroughLatherValue;
+import org.hyperic.lather.test.SubValue;
+import org.hyperic.lather.xcode.LatherXCoder;
+import org.hyperic.util.encoding.Base64;
+import org.hyperic.util.http.ServerHttpClient;
+import org.hyperic.util.security.KeystoreConfig;
+import org.hyperic.util.security.KeystoreManager;
+
+/**
+ * Measures the overhead of a lather invocation excluding the network: encoding the args, building the request and
+ * decoding the response, which a stub HTTP client returns right away. Compares creating a client per call, as callback
+ * clients used to, against reusing one client.
+ */
+public class LatherInvokeSpeedTest
+            extends TestCase
+{
+    private static final int NUM_CALLS = 20000;
+    private static final String FORM_URL = "https://form.server:443/epops-webapp/lather";
+    private static final String BINARY_URL = "https://binary.server:443/epops-webapp/lather";
+
+    private File keystoreFile;
+    private StubHttpClient httpClient;
+    private LatherValue args;
+
+    /**
+     * Answers every request with the same lather value, in the encoding of the request.
+     */
+    private static class StubHttpClient
+                extends ServerHttpClient
+    {
+        private final byte[] encodedResult;
+
+        StubHttpClient(KeystoreConfig keystoreConfig, byte[] encodedResult) {
+            super(keystoreConfig, LatherHTTPClient.getHttpConfig(1000, 1000), true, 1000, false, 1, 1);
+            this.encodedResult = encodedResult;
+        }
+
+        private HttpResponse getResponse(HttpEntity entity, boolean binary) {
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            response.setHeader(LatherHTTPClient.HDR_VALUECLASS, PassThroughLatherValue.class.getName());
+            if (binary) {
+                response.setHeader(LatherHTTPClient.HDR_BINARY, "true");
+            }
+            response.setEntity(entity);
+            return response;
+        }
+
+        @Override
+        public HttpResponse post(String url, Map<String, String> params, boolean closeConn) {
+            return getResponse(new ByteArrayEntity(Base64.encode(encodedResult).getBytes()), false);
+        }
+
+        @Override
+        public HttpResponse post(String url, Map<String, String> headers, HttpEntity entity, boolean closeConn)
+            throws IOException
+        {
+            // Drain the body as if it were sent
+            entity.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+            ByteArrayEntity result = new ByteArrayEntity(encodedResult);
+            result.setContentType(LatherHTTPClient.CONTENT_TYPE_LATHER);
+            return getResponse(result, true);
+        }
+    }
+
+    public LatherInvokeSpeedTest(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+        keystoreFile = File.createTempFile("latherInvokeSpeedTest", ".keystore");
+        keystoreFile.delete();
+        KeystoreConfig keystoreConfig = new KeystoreConfig("hq", keystoreFile.getPath(), "storePW", true);
+        KeystoreManager.getKeystoreManager().initializeKeyStore(keystoreConfig);
+
+        PassThroughLatherValue value = new PassThroughLatherValue();
+        value.setStringValue("agentToken", "1234567890123-4567890123456789012-1234567890123456789");
+        for (int i = 0; i < 20; i++) {
+            SubValue sub = new SubValue();
+            sub.setStringValue("dsn", "system.avail:Type=Platform:Availability");
+            sub.setStringValue("value", String.valueOf(i));
+            value.addObjectToList("measurements", sub);
+        }
+        args = value;
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        new LatherXCoder().encode(value, new DataOutputStream(encoded));
+        httpClient = new StubHttpClient(keystoreConfig, encoded.toByteArray());
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        keystoreFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * @return the average time (ns) of a call
+     */
+    private long invokeAll(String url, boolean reuse, int numCalls)
+        throws Exception
+    {
+        LatherHTTPClient reused = new LatherHTTPClient(url, httpClient);
+        long start = System.nanoTime();
+        for (int i = 0; i < numCalls; i++) {
+            LatherHTTPClient client = reuse ? reused : new LatherHTTPClient(url, httpClient);
+            LatherValue res = client.invoke("measurementSendReport", args, false);
+            assertNotNull(res);
+        }
+        return (System.nanoTime() - start) / numCalls;
+    }
+
+    private void checkSpeed(String encoding, String url)
+        throws Exception
+    {
+        // Warm up, and let the binary server be detected
+        invokeAll(url, false, NUM_CALLS / 10);
+        invokeAll(url, true, NUM_CALLS / 10);
+
+        long perCall = invokeAll(url, false, NUM_CALLS);
+        long reused = invokeAll(url, true, NUM_CALLS);
+        System.out.println(encoding + " invoke overhead: new client per call " + perCall +
+                    " ns/call, reused client " + reused + " ns/call");
+    }
+
+    public void testFormInvokeSpeed()
+        throws Exception
+    {
+        checkSpeed("Form", FORM_URL);
+    }
+
+    public void testBinaryInvokeSpeed()
+        throws Exception
+    {
+        checkSpeed("Binary", BINARY_URL);
+    }
+}
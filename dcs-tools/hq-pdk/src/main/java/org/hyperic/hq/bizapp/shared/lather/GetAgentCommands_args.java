@@ -15,8 +15,31 @@
 
 package org.hyperic.hq.bizapp.shared.lather;
 
+import org.hyperic.lather.LatherKeyNotFoundException;
 import org.hyperic.lather.LatherValue;
 
 public class GetAgentCommands_args extends LatherValue {
 
+    private static final String PROP_WAIT = "wait";
+
+    /**
+     * Let the server hold the request for up to the given time until commands are queued for the agent. Servers which
+     * don't support long polling ignore it.
+     * 
+     * @param wait the longest time (ms) the server may hold the request, 0 to return immediately
+     */
+    public void setWait(int wait) {
+        this.setIntValue(PROP_WAIT, wait);
+    }
+
+    /**
+     * @return the longest time (ms) the server may hold the request, 0 if it should return immediately
+     */
+    public int getWait() {
+        try {
+            return this.getIntValue(PROP_WAIT);
+        } catch (LatherKeyNotFoundException exc) {
+            return 0;
+        }
+    }
 }
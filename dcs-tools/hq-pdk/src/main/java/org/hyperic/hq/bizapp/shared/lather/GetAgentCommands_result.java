@@ -20,11 +20,13 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.hyperic.hq.common.InvocationRequest;
+import org.hyperic.lather.LatherKeyNotFoundException;
 import org.hyperic.lather.LatherValue;
 
 public class GetAgentCommands_result extends LatherValue {
 
     public static String AGENT_COMMANDS = "agentCommands";
+    private static final String PROP_LONG_POLL = "longPoll";
 
     @SuppressWarnings("unchecked")
     public List<InvocationRequest> getAgentCommands() {
@@ -38,8 +40,28 @@ public class GetAgentCommands_result extends LatherValue {
         addObject(AGENT_COMMANDS, (Serializable) agentCommands);
     }
 
+    /**
+     * Mark the result as returned by a server which held the request until commands were queued or the wait
+     * elapsed, so the agent can poll again right away.
+     */
+    public void setLongPoll(boolean longPoll) {
+        this.setIntValue(PROP_LONG_POLL, longPoll ? 1 : 0);
+    }
+
+    /**
+     * @return true if the server held the request, false if it returned immediately (including servers which don't
+     *         support long polling)
+     */
+    public boolean isLongPoll() {
+        try {
+            return this.getIntValue(PROP_LONG_POLL) != 0;
+        } catch (LatherKeyNotFoundException exc) {
+            return false;
+        }
+    }
+
     @Override
     public String toString() {
-        return "GetAgentCommands_result [Commands: '" + getAgentCommands() + "']";
+        return "GetAgentCommands_result [Commands: '" + getAgentCommands() + "', longPoll: " + isLongPoll() + "]";
     }
 }
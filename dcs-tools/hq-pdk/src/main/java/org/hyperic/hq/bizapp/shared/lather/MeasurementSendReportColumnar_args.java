@@ -0,0 +1,321 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.bizapp.shared.lather;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.measurement.data.DSNList;
+import org.hyperic.hq.measurement.data.MeasurementReport;
+import org.hyperic.hq.measurement.data.MeasurementReportConstructor;
+import org.hyperic.hq.measurement.data.ValueList;
+import org.hyperic.hq.measurement.server.session.SRN;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.lather.LatherKeyNotFoundException;
+import org.hyperic.lather.LatherRemoteException;
+import org.hyperic.lather.LatherValue;
+
+/**
+ * A measurement report encoded as one columnar block, instead of the four boxed list entries per data point of
+ * {@link MeasurementSendReport_args}.
+ *
+ * The ids are dictionary coded: the distinct client ids and the resource (high 32 bits) and metric (low 32 bits)
+ * halves of the dsn ids are written once, sorted and delta coded, and clients and series refer to them by their index
+ * in the dictionary. Timestamps are written as varint deltas from the previous timestamp of the report, and values as
+ * raw doubles. All longs and ints are zigzag varints. The format of the block is as follows:
+ *
+ * [Header] byte - format version, varint - number of ids, varlong * number of ids - id deltas, varint - number of
+ * clients
+ *
+ * [Client] varint - client id index, varint - number of series
+ *
+ * [Series] varint - resource id index, varint - metric id index, varint - number of values, varlong * number of values
+ * - timestamp deltas, double * number of values - values
+ *
+ * [SRNs] varint - number of SRNs, then for each SRN varint - entity type, varint - entity id, varint - revision number
+ *
+ * Agents only send this value to servers which advertised the format in a {@link MeasurementSendReport_result}.
+ */
+public class MeasurementSendReportColumnar_args extends LatherValue {
+    public static final int FORMAT_VERSION = 1;
+
+    private static final String PROP_REPORT = "report";
+
+    /**
+     * Receives the content of a report as it is decoded.
+     */
+    public interface ReportVisitor {
+        /**
+         * Called before the values of each series.
+         */
+        public void startSeries(long clientId,
+                                long dsnId,
+                                int numValues);
+
+        public void value(long timestamp,
+                          double value);
+
+        public void srn(int entType,
+                        int entId,
+                        int revNo);
+    }
+
+    public MeasurementSendReportColumnar_args() {
+        super();
+    }
+
+    public void setReport(MeasurementReport report) {
+        DSNList[] clientIDs = report.getClientIdList();
+        SRN[] srnList = report.getSRNList();
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream(256);
+        DataOutputStream dOs = new DataOutputStream(bOs);
+        Map<Long, Integer> ids = buildIdDictionary(clientIDs);
+        long prevTime = 0;
+
+        try {
+            dOs.writeByte(FORMAT_VERSION);
+            writeVarLong(dOs, ids.size());
+            long prevId = 0;
+            for (Long id : ids.keySet()) {
+                writeVarLong(dOs, id - prevId);
+                prevId = id;
+            }
+
+            writeVarLong(dOs, clientIDs.length);
+            for (int cidIdx = 0; cidIdx < clientIDs.length; cidIdx++) {
+                ValueList[] dsns = clientIDs[cidIdx].getDsns();
+
+                writeVarLong(dOs, ids.get(clientIDs[cidIdx].getClientId()));
+                writeVarLong(dOs, dsns.length);
+                for (int dsnIdx = 0; dsnIdx < dsns.length; dsnIdx++) {
+                    MetricValue[] vals = dsns[dsnIdx].getValues();
+                    long dsnId = dsns[dsnIdx].getDsnId();
+
+                    writeVarLong(dOs, ids.get(dsnId >> 32));
+                    writeVarLong(dOs, ids.get(dsnId & 0xFFFFFFFFL));
+                    writeVarLong(dOs, vals.length);
+                    for (int valIdx = 0; valIdx < vals.length; valIdx++) {
+                        long time = vals[valIdx].getTimestamp();
+                        writeVarLong(dOs, time - prevTime);
+                        prevTime = time;
+                    }
+                    for (int valIdx = 0; valIdx < vals.length; valIdx++) {
+                        dOs.writeDouble(vals[valIdx].getValue());
+                    }
+                }
+            }
+
+            writeVarLong(dOs, srnList.length);
+            for (int i = 0; i < srnList.length; i++) {
+                AppdefEntityID ent = srnList[i].getEntity();
+
+                writeVarLong(dOs, ent.getType());
+                writeVarLong(dOs, ent.getID());
+                writeVarLong(dOs, srnList[i].getRevisionNumber());
+            }
+        } catch (IOException exc) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(exc);
+        }
+        this.setByteAValue(PROP_REPORT, bOs.toByteArray());
+    }
+
+    /**
+     * @return the distinct ids of the report in ascending order, mapped to their index in the dictionary
+     */
+    private static Map<Long, Integer> buildIdDictionary(DSNList[] clientIDs) {
+        TreeSet<Long> sorted = new TreeSet<Long>();
+        for (int cidIdx = 0; cidIdx < clientIDs.length; cidIdx++) {
+            ValueList[] dsns = clientIDs[cidIdx].getDsns();
+
+            sorted.add(clientIDs[cidIdx].getClientId());
+            for (int dsnIdx = 0; dsnIdx < dsns.length; dsnIdx++) {
+                long dsnId = dsns[dsnIdx].getDsnId();
+                sorted.add(dsnId >> 32);
+                sorted.add(dsnId & 0xFFFFFFFFL);
+            }
+        }
+
+        // A LinkedHashMap keeps the ascending order for writing the deltas
+        Map<Long, Integer> ids = new LinkedHashMap<Long, Integer>(sorted.size() * 2);
+        for (Long id : sorted) {
+            ids.put(id, ids.size());
+        }
+        return ids;
+    }
+
+    /**
+     * Decode the report without building the intermediate DSNList and MetricValue arrays.
+     */
+    public void visitReport(ReportVisitor visitor)
+        throws LatherRemoteException {
+        ByteBuffer buf;
+        long prevTime = 0;
+        long[] times = new long[16];
+
+        try {
+            buf = ByteBuffer.wrap(this.getByteAValue(PROP_REPORT));
+        } catch (LatherKeyNotFoundException exc) {
+            throw new LatherRemoteException("Measurement report missing");
+        }
+
+        try {
+            int version = buf.get();
+            if (version != FORMAT_VERSION) {
+                throw new LatherRemoteException("Unsupported measurement report format " + version);
+            }
+            int numIds = readVarInt(buf);
+            if ((numIds < 0) || (numIds > buf.remaining())) {
+                throw new LatherRemoteException("Measurement report mismatch");
+            }
+            long[] ids = new long[numIds];
+            long prevId = 0;
+            for (int i = 0; i < numIds; i++) {
+                prevId += readVarLong(buf);
+                ids[i] = prevId;
+            }
+
+            int numClients = readVarInt(buf);
+            for (int cidIdx = 0; cidIdx < numClients; cidIdx++) {
+                long clientId = readId(buf, ids);
+                int numDsns = readVarInt(buf);
+
+                for (int dsnIdx = 0; dsnIdx < numDsns; dsnIdx++) {
+                    long dsnId = (readId(buf, ids) << 32) | readId(buf, ids);
+                    int numVals = readVarInt(buf);
+
+                    if ((numVals < 0) || (numVals > buf.remaining())) {
+                        throw new LatherRemoteException("Measurement report mismatch");
+                    }
+                    if (times.length < numVals) {
+                        times = new long[numVals];
+                    }
+                    for (int valIdx = 0; valIdx < numVals; valIdx++) {
+                        prevTime += readVarLong(buf);
+                        times[valIdx] = prevTime;
+                    }
+                    visitor.startSeries(clientId, dsnId, numVals);
+                    for (int valIdx = 0; valIdx < numVals; valIdx++) {
+                        visitor.value(times[valIdx], buf.getDouble());
+                    }
+                }
+            }
+
+            int numSRNs = readVarInt(buf);
+            for (int i = 0; i < numSRNs; i++) {
+                visitor.srn(readVarInt(buf), readVarInt(buf), readVarInt(buf));
+            }
+        } catch (BufferUnderflowException exc) {
+            throw new LatherRemoteException("Measurement report mismatch");
+        }
+    }
+
+    public MeasurementReport getReport()
+        throws LatherRemoteException {
+        final MeasurementReportConstructor con = new MeasurementReportConstructor();
+        final List<SRN> srns = new ArrayList<SRN>();
+
+        visitReport(new ReportVisitor() {
+            private long clientId;
+            private long dsnId;
+
+            public void startSeries(long clientId,
+                                    long dsnId,
+                                    int numValues) {
+                this.clientId = clientId;
+                this.dsnId = dsnId;
+            }
+
+            public void value(long timestamp,
+                              double value) {
+                con.addDataPoint(clientId, dsnId, new MetricValue(value, timestamp));
+            }
+
+            public void srn(int entType,
+                            int entId,
+                            int revNo) {
+                srns.add(new SRN(new AppdefEntityID(entType, entId), revNo));
+            }
+        });
+
+        MeasurementReport report = new MeasurementReport();
+        report.setClientIdList(con.constructDSNList());
+        report.setSRNList(srns.toArray(new SRN[srns.size()]));
+        return report;
+    }
+
+    private static void writeVarLong(DataOutputStream out,
+                                     long val)
+        throws IOException {
+        long zigzag = (val << 1) ^ (val >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(ByteBuffer buf)
+        throws LatherRemoteException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new LatherRemoteException("Malformed varint in measurement report");
+    }
+
+    private static long readId(ByteBuffer buf,
+                               long[] ids)
+        throws LatherRemoteException {
+        int idx = readVarInt(buf);
+        if ((idx < 0) || (idx >= ids.length)) {
+            throw new LatherRemoteException("Measurement report mismatch");
+        }
+        return ids[idx];
+    }
+
+    private static int readVarInt(ByteBuffer buf)
+        throws LatherRemoteException {
+        long val = readVarLong(buf);
+        if ((val < Integer.MIN_VALUE) || (val > Integer.MAX_VALUE)) {
+            throw new LatherRemoteException("Measurement report mismatch");
+        }
+        return (int) val;
+    }
+}
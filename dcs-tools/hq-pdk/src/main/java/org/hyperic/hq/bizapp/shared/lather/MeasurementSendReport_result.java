@@ -33,6 +33,7 @@ public class MeasurementSendReport_result
             extends LatherValue
 {
     private static final String PROP_TIME = "serverTime";
+    private static final String PROP_COLUMNAR_FORMAT = "columnarFormat";
 
     public MeasurementSendReport_result() {
         super();
@@ -48,6 +49,25 @@ public class MeasurementSendReport_result
         return this.getLongValue(PROP_TIME);
     }
 
+    /**
+     * Advertise the version of {@link MeasurementSendReportColumnar_args} the server decodes.
+     */
+    public void setColumnarFormat(int version) {
+        this.setIntValue(PROP_COLUMNAR_FORMAT, version);
+    }
+
+    /**
+     * @return the version of {@link MeasurementSendReportColumnar_args} the server decodes, 0 for servers which only
+     *         decode {@link MeasurementSendReport_args}
+     */
+    public int getColumnarFormat() {
+        try {
+            return this.getIntValue(PROP_COLUMNAR_FORMAT);
+        } catch (LatherKeyNotFoundException exc) {
+            return 0;
+        }
+    }
+
     public void validate()
         throws LatherRemoteException
     {
@@ -27,14 +27,14 @@ package org.hyperic.hq.product;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -105,10 +105,13 @@ public abstract class Collector implements Runnable {
     static Log log =
                 LogFactory.getLog(Collector.class.getName());
 
-    static Map containers = new HashMap();
+    // plugin name -> container
+    static final ConcurrentMap<String, PluginContainer> containers = new ConcurrentHashMap<String, PluginContainer>();
 
     private GenericPlugin plugin;
     private Properties props;
+    // key of the collector in its container
+    private CollectorIdentifier identifier;
 
     private boolean isRunning = false;
     private int timeout = -1;
@@ -398,23 +401,23 @@ public abstract class Collector implements Runnable {
     static class PluginContainer {
         String name;
 
-        Map<CollectorIdentifier, Collector> collectors =
-                    Collections.synchronizedMap(new HashMap<CollectorIdentifier, Collector>());
-        Map<CollectorIdentifier, CollectorResult> results =
-                    Collections.synchronizedMap(new HashMap<CollectorIdentifier, CollectorResult>());
+        final ConcurrentMap<CollectorIdentifier, Collector> collectors =
+                    new ConcurrentHashMap<CollectorIdentifier, Collector>();
+        final ConcurrentMap<CollectorIdentifier, CollectorResult> results =
+                    new ConcurrentHashMap<CollectorIdentifier, CollectorResult>();
 
         static PluginContainer get(GenericPlugin plugin) {
             String name = plugin.getName();
-            synchronized (containers) {
-                PluginContainer container =
-                            (PluginContainer) containers.get(name);
+            PluginContainer container = containers.get(name);
+            if (container == null) {
+                PluginContainer newContainer = new PluginContainer();
+                newContainer.name = name;
+                container = containers.putIfAbsent(name, newContainer);
                 if (container == null) {
-                    container = new PluginContainer();
-                    container.name = name;
-                    containers.put(name, container);
+                    container = newContainer;
                 }
-                return container;
             }
+            return container;
         }
 
         static void setResult(Collector collector) {
@@ -424,7 +427,7 @@ public abstract class Collector implements Runnable {
                             "thread=" + Thread.currentThread().getName() +
                             ", result=" + result);
             }
-            get(collector.plugin).results.put(new CollectorIdentifier(collector.props), result);
+            get(collector.plugin).results.put(collector.getIdentifier(), result);
         }
     }
 
@@ -483,9 +486,9 @@ public abstract class Collector implements Runnable {
 
         PluginContainer container =
                     PluginContainer.get(plugin);
-        CollectorIdentifier collectorIdentifier = new CollectorIdentifier(props);
-        collector = (Collector) container.collectors.get(collectorIdentifier);
-        result = (CollectorResult) container.results.get(collectorIdentifier);
+        CollectorIdentifier collectorIdentifier = metric.getCollectorIdentifier(props);
+        collector = container.collectors.get(collectorIdentifier);
+        result = container.results.get(collectorIdentifier);
 
         if (result != null) {
             boolean isAvail =
@@ -527,6 +530,7 @@ public abstract class Collector implements Runnable {
         if (collector == null) {
             collector = plugin.getNewCollector();
             collector.plugin = plugin;
+            collector.identifier = collectorIdentifier;
 
             boolean setClassLoader =
                         PluginLoader.setClassLoader(collector);
@@ -572,6 +576,14 @@ public abstract class Collector implements Runnable {
         return false;
     }
 
+    private CollectorIdentifier getIdentifier() {
+        if (this.identifier == null) {
+            // collector created outside of getValue()
+            this.identifier = new CollectorIdentifier(this.props);
+        }
+        return this.identifier;
+    }
+
     public void run() {
         this.isRunning = true;
         this.result.values.clear();
@@ -679,15 +691,7 @@ public abstract class Collector implements Runnable {
         final Collection<Collector> rtn = new ArrayList<Collector>();
         if (debug)
             log.debug("Running " + container.name + " collectors");
-        List pluginCollectors;
-        // copy so we don't block PluginCollector.get()
-        synchronized (container.collectors) {
-            Collection values = container.collectors.values();
-            pluginCollectors = new ArrayList(values.size());
-            pluginCollectors.addAll(values);
-        }
-        for (int i = 0; i < pluginCollectors.size(); i++) {
-            Collector collector = (Collector) pluginCollectors.get(i);
+        for (Collector collector : container.collectors.values()) {
             long interval = collector.getInterval();
             long lastCollection = collector.lastCollection;
             if (collector.isRunning) {
@@ -695,7 +699,7 @@ public abstract class Collector implements Runnable {
                     log.debug(collector + " is running: deferring");
                 continue;
             }
-            CollectorResult result = container.results.get(new CollectorIdentifier(collector.props));
+            CollectorResult result = container.results.get(collector.getIdentifier());
             if ((result != null) && (result.values.size() != 0)) {
                 long now = System.currentTimeMillis();
                 boolean shouldSkip = true;
@@ -744,24 +748,66 @@ public abstract class Collector implements Runnable {
 
     public static Collection<Collector> getCollectorsToExecute() {
         Collection<Collector> rtn = new ArrayList<Collector>();
-        List pluginContainers;
-        // copy so we don't block PluginCollector.get()
-        synchronized (containers) {
-            Collection values = containers.values();
-            pluginContainers = new ArrayList(values.size());
-            pluginContainers.addAll(values);
-        }
-        for (int i = 0; i < pluginContainers.size(); i++) {
-            PluginContainer container = (PluginContainer) pluginContainers.get(i);
+        for (PluginContainer container : containers.values()) {
             rtn.addAll(getCollectorsToExecute(container));
         }
         return rtn;
     }
 
-    public static void refreshOnPluginsChange() {
-        synchronized (containers) {
-            containers.clear();
+    /**
+     * @return every registered collector, whether or not it is due
+     */
+    public static Collection<Collector> getCollectors() {
+        Collection<Collector> rtn = new ArrayList<Collector>();
+        for (PluginContainer container : containers.values()) {
+            rtn.addAll(container.collectors.values());
         }
+        return rtn;
+    }
+
+    /**
+     * Get the time at which this collector should run next, following the same rules as
+     * {@link #getCollectorsToExecute()}: a collector without a result is due now, a collector with a known interval is
+     * due a minute before ScheduleThread consumes its availability or one interval after its last run, a collector that
+     * already ran for the upcoming consumption is checked again once it is consumed, and a collector without a known
+     * interval is due once its result was consumed.
+     *
+     * @param now the current time
+     * @param recheckInterval the delay before checking again a collector whose due time depends on ScheduleThread
+     * @return the absolute time the collector is due, or -1 if it is no longer registered
+     */
+    public long getNextRunTime(long now,
+                               long recheckInterval) {
+        PluginContainer container = containers.get(this.plugin.getName());
+        if (container == null) {
+            return -1;
+        }
+        CollectorIdentifier collectorIdentifier = getIdentifier();
+        if (container.collectors.get(collectorIdentifier) != this) {
+            return -1;
+        }
+        CollectorResult result = container.results.get(collectorIdentifier);
+        if (result == null) {
+            return now;
+        }
+        if (result.values.size() == 0) {
+            return result.timestamp + recheckInterval;
+        }
+        long interval = getInterval();
+        long lastCollection = this.lastCollection;
+        if ((interval != -1) && (lastCollection != -1)) {
+            long due = lastCollection + interval - MINUTE;
+            if (result.timestamp >= due) {
+                // already ran for the upcoming consumption, wait until ScheduleThread picked it up
+                return Math.max(lastCollection + interval, now + recheckInterval);
+            }
+            return Math.min(due, result.timestamp + interval);
+        }
+        return result.collected ? now : now + recheckInterval;
+    }
+
+    public static void refreshOnPluginsChange() {
+        containers.clear();
     }
 
     public static void main(String[] args)
@@ -1,26 +1,53 @@
 package org.hyperic.hq.product;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
-public class CollectorIdentifier {
+/**
+ * Immutable key of a collector in its plugin container, derived from the collector properties. The key of a metric is
+ * computed once and kept on the {@link Metric}, and the collector created for it keeps the same instance, so lookups
+ * usually succeed on identity without comparing the strings. The key keeps a copy of the properties rather than the
+ * properties themselves, so that a plugin changing them afterwards doesn't change the key, and the key doesn't keep
+ * them from being collected.
+ */
+public final class CollectorIdentifier {
     private final String identifier;
+    private final int hashCode;
+    // copy of the properties the key was computed from, to tell whether a cached key is still valid
+    private final Map<Object, Object> snapshot;
 
     public CollectorIdentifier(Properties props) {
-        identifier = props.toString();
+        // Properties methods lock the instance, hold it so that the string and the copy match
+        synchronized (props) {
+            identifier = props.toString();
+            snapshot = new HashMap<Object, Object>(props);
+        }
+        hashCode = identifier.hashCode();
+    }
+
+    /**
+     * @return true if the given properties still hold the entries this key was computed from
+     */
+    boolean isFor(Properties props) {
+        return snapshot.equals(props);
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
         if (obj instanceof CollectorIdentifier) {
             CollectorIdentifier other = (CollectorIdentifier) obj;
-            return identifier.equals(other.identifier);
+            return (hashCode == other.hashCode) && identifier.equals(other.identifier);
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return identifier.hashCode();
+        return hashCode;
     }
 
     @Override
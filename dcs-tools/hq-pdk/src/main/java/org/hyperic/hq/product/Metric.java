@@ -28,7 +28,6 @@ package org.hyperic.hq.product;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
@@ -38,6 +37,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.measurement.MeasurementConstants;
 import org.hyperic.util.StringUtil;
+import org.hyperic.util.collection.BoundedCache;
 import org.hyperic.util.config.ConfigResponse;
 import org.hyperic.util.config.ConfigSchema;
 import org.hyperic.util.security.SecurityUtil;
@@ -74,7 +74,19 @@ public class Metric {
     @Deprecated
     public static final double AVAIL_POWERED_OFF = MeasurementConstants.AVAIL_POWERED_OFF;
 
-    private static HashMap cache = new HashMap();
+    // Bounds of the caches of parsed templates and of parsed property strings, set as system properties.
+    // Idle entries are kept by default, a scheduled template is never dropped since ScheduleThread and the
+    // collectors rely on a single Metric per template.
+    public static final String PROP_CACHE_MAX_SIZE = "metric.cache.maxSize";
+    public static final String PROP_CACHE_MAX_IDLE = "metric.cache.maxIdle";
+    private static final int DEFAULT_CACHE_MAX_SIZE = 20000;
+    private static final long DEFAULT_CACHE_MAX_IDLE = 0;
+
+    // template -> Metric
+    private static final BoundedCache<String, Metric> templateCache =
+                new TemplateCache(getCacheMaxSize(), getCacheMaxIdle());
+    // property string -> MetricProperties, common for templates to have the same properties
+    private static final BoundedCache<String, MetricProperties> propertiesCache = newCache();
 
     private static final MetricProperties NO_PROPERTIES =
                 new MetricProperties();
@@ -93,6 +105,8 @@ public class Metric {
     private String id = null; // for tie-in to logging
     private String category = null;
     private long interval;
+    // key of the collector for the properties returned by MeasurementPlugin.getCollectorProperties()
+    private volatile CollectorIdentifier collectorIdentifier = null;
 
     private Metric() {
         synchronized (lock) {
@@ -357,6 +371,21 @@ public class Metric {
         return this.objectProperties;
     }
 
+    /**
+     * Get the key of the collector serving this metric. The key is computed once and recomputed only when the
+     * properties the plugin returns for the metric no longer hold the same entries.
+     *
+     * @param collectorProps the properties returned by MeasurementPlugin.getCollectorProperties()
+     */
+    CollectorIdentifier getCollectorIdentifier(Properties collectorProps) {
+        CollectorIdentifier key = this.collectorIdentifier;
+        if ((key == null) || !key.isFor(collectorProps)) {
+            key = new CollectorIdentifier(collectorProps);
+            this.collectorIdentifier = key;
+        }
+        return key;
+    }
+
     /**
      * The local part of the ObjectName.
      */
@@ -364,18 +393,67 @@ public class Metric {
         return this.objectPropString;
     }
 
-    private static MetricProperties parseProperties(String config) {
-        MetricProperties props;
+    /**
+     * Keeps the templates which are scheduled.
+     */
+    static class TemplateCache extends BoundedCache<String, Metric> {
+        TemplateCache(int maxSize,
+                      long maxIdle) {
+            super(maxSize, maxIdle);
+        }
 
-        // common for templates to have the same properties
-        synchronized (cache) {
-            props = (MetricProperties) cache.get(config);
-            if (props != null) {
-                return props;
-            }
-            props = new MetricProperties();
-            cache.put(config, props);
+        @Override
+        protected boolean isEvictable(Metric metric) {
+            return metric.getInterval() <= 0;
         }
+    }
+
+    private static <T> BoundedCache<String, T> newCache() {
+        return new BoundedCache<String, T>(getCacheMaxSize(), getCacheMaxIdle());
+    }
+
+    private static int getCacheMaxSize() {
+        return Integer.getInteger(PROP_CACHE_MAX_SIZE, DEFAULT_CACHE_MAX_SIZE);
+    }
+
+    private static long getCacheMaxIdle() {
+        return Long.getLong(PROP_CACHE_MAX_IDLE, DEFAULT_CACHE_MAX_IDLE);
+    }
+
+    /**
+     * @return the cache of parsed templates, for its statistics
+     */
+    public static BoundedCache<String, Metric> getTemplateCache() {
+        return templateCache;
+    }
+
+    /**
+     * @return the cache of parsed property strings, for its statistics
+     */
+    public static BoundedCache<String, MetricProperties> getPropertiesCache() {
+        return propertiesCache;
+    }
+
+    /**
+     * Drop the parsed templates and properties, e.g. when the plugins are reloaded.
+     */
+    public static void clearStaticCaches() {
+        templateCache.clear();
+        propertiesCache.clear();
+    }
+
+    private static MetricProperties parseProperties(String config) {
+        MetricProperties props = propertiesCache.get(config);
+        if (props != null) {
+            return props;
+        }
+        props = decodeProperties(config);
+        MetricProperties cached = propertiesCache.putIfAbsent(config, props);
+        return (cached != null) ? cached : props;
+    }
+
+    private static MetricProperties decodeProperties(String config) {
+        MetricProperties props = new MetricProperties();
 
         // e.g. PluginLinter parses but does not replace properties
         // such as %process.query%
@@ -470,11 +548,7 @@ public class Metric {
             throw new MetricInvalidException();
         }
 
-        Metric metric;
-
-        synchronized (cache) {
-            metric = (Metric) cache.get(template);
-        }
+        Metric metric = templateCache.get(template);
 
         if (metric != null) {
             return metric;
@@ -523,12 +597,11 @@ public class Metric {
             throw new MetricInvalidException(template, e);
         }
 
-        synchronized (cache) {
-            cache.put(template, metric);
-        }
-
         metric.attributeName = decode(metric.attributeName);
-        return metric;
+
+        // Keep a single Metric per template if another thread parsed it meanwhile
+        Metric cached = templateCache.putIfAbsent(template, metric);
+        return (cached != null) ? cached : metric;
     }
 
     private static String replace(String template,
@@ -649,18 +722,8 @@ public class Metric {
 
         long memEnd = Runtime.getRuntime().freeMemory();
         System.out.println("mem diff=" + (memStart - memEnd));
-        int nMetrics = 0, nProps = 0;
-        for (Iterator it = cache.values().iterator(); it.hasNext();) {
-            Object o = it.next();
-            if (o instanceof Metric) {
-                nMetrics++;
-            }
-            else {
-                nProps++;
-            }
-        }
-        System.out.println("cache entries=" + cache.size() +
-                    ", metrics=" + nMetrics +
-                    ", props=" + nProps);
+        System.out.println("cache entries=" + (templateCache.size() + propertiesCache.size()) +
+                    ", metrics=" + templateCache.size() +
+                    ", props=" + propertiesCache.size());
     }
 }
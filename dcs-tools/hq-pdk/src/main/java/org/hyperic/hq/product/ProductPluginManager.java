@@ -1239,6 +1239,8 @@ public class ProductPluginManager
 
     private void clearPluginDataCaches() {
         PluginData.clearStaticCaches();
+        // parsed templates must not outlive the plugins which produced them
+        Metric.clearStaticCaches();
     }
 
     public void registerPlugins(String pluginDir) {
@@ -0,0 +1,175 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.bizapp.shared.lather;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.measurement.data.DSNList;
+import org.hyperic.hq.measurement.data.MeasurementReport;
+import org.hyperic.hq.measurement.data.MeasurementReportConstructor;
+import org.hyperic.hq.measurement.data.ValueList;
+import org.hyperic.hq.measurement.server.session.SRN;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.lather.LatherRemoteException;
+import org.hyperic.lather.LatherValue;
+import org.hyperic.lather.xcode.LatherXCoder;
+
+public class MeasurementSendReportColumnarArgsTest extends TestCase {
+
+    private static final long START = 1420070400000L;
+
+    private static MeasurementReport createReport() {
+        MeasurementReportConstructor con = new MeasurementReportConstructor();
+        for (long cid = 1; cid <= 3; cid++) {
+            for (long dsn = 0; dsn < 20; dsn++) {
+                long dsnId = (cid << 32) | dsn;
+                for (int i = 0; i < 10; i++) {
+                    con.addDataPoint(cid, dsnId, new MetricValue(dsn * 1.5 + i, START + i * 60000L));
+                }
+            }
+        }
+        MeasurementReport report = new MeasurementReport();
+        report.setClientIdList(con.constructDSNList());
+        report.setSRNList(new SRN[] { new SRN(new AppdefEntityID(1, 10), 3), new SRN(new AppdefEntityID(2, 20), -1) });
+        return report;
+    }
+
+    private static byte[] encode(LatherValue value)
+        throws Exception {
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream();
+        new LatherXCoder().encode(value, new DataOutputStream(bOs));
+        return bOs.toByteArray();
+    }
+
+    public void testRoundTrip()
+        throws Exception {
+        MeasurementReport report = createReport();
+        MeasurementSendReportColumnar_args args = new MeasurementSendReportColumnar_args();
+        args.setReport(report);
+
+        byte[] data = encode(args);
+        MeasurementSendReportColumnar_args decoded = (MeasurementSendReportColumnar_args) new LatherXCoder().decode(
+                    new DataInputStream(new ByteArrayInputStream(data)), MeasurementSendReportColumnar_args.class);
+        MeasurementReport res = decoded.getReport();
+
+        int numVals = 0;
+        for (DSNList client : res.getClientIdList()) {
+            for (ValueList dsn : client.getDsns()) {
+                assertEquals(client.getClientId(), dsn.getDsnId() >> 32);
+                MetricValue[] vals = dsn.getValues();
+                assertEquals(10, vals.length);
+                for (int i = 0; i < vals.length; i++) {
+                    assertEquals(START + i * 60000L, vals[i].getTimestamp());
+                    assertEquals((dsn.getDsnId() & 0xFFFFFFFFL) * 1.5 + i, vals[i].getValue(), 0);
+                }
+                numVals += vals.length;
+            }
+        }
+        assertEquals(3 * 20 * 10, numVals);
+
+        SRN[] srns = res.getSRNList();
+        assertEquals(2, srns.length);
+        assertEquals(new AppdefEntityID(1, 10), srns[0].getEntity());
+        assertEquals(3, srns[0].getRevisionNumber());
+        assertEquals(-1, srns[1].getRevisionNumber());
+    }
+
+    public void testSmallerThanListEncoding()
+        throws Exception {
+        MeasurementReport report = createReport();
+        MeasurementSendReportColumnar_args columnar = new MeasurementSendReportColumnar_args();
+        columnar.setReport(report);
+        MeasurementSendReport_args lists = new MeasurementSendReport_args();
+        lists.setReport(report);
+
+        int columnarSize = encode(columnar).length;
+        int listSize = encode(lists).length;
+        assertTrue("columnar " + columnarSize + " bytes, lists " + listSize + " bytes", columnarSize * 2 < listSize);
+    }
+
+    public void testIdDictionary()
+        throws Exception {
+        // Shared resource and metric halves, a negative resource id and the extreme metric id
+        long[] dsnIds = { (7L << 32) | 5, (7L << 32) | 6, (8L << 32) | 5, (-1L << 32) | 0xFFFFFFFFL };
+        MeasurementReportConstructor con = new MeasurementReportConstructor();
+        for (int i = 0; i < dsnIds.length; i++) {
+            con.addDataPoint(5, dsnIds[i], new MetricValue(i, START + i));
+        }
+        MeasurementReport report = new MeasurementReport();
+        report.setClientIdList(con.constructDSNList());
+        report.setSRNList(new SRN[] {});
+        RawArgs args = new RawArgs();
+        args.setReport(report);
+
+        // The dictionary holds -1, 5, 6, 7, 8 and 0xFFFFFFFF, the client id 5 is shared with a metric id
+        byte[] data = args.getData();
+        assertEquals(6, data[1] >> 1);
+
+        DSNList[] clients = args.getReport().getClientIdList();
+        assertEquals(1, clients.length);
+        assertEquals(5, clients[0].getClientId());
+        ValueList[] dsns = clients[0].getDsns();
+        assertEquals(dsnIds.length, dsns.length);
+        for (ValueList dsn : dsns) {
+            int i = 0;
+            while (dsnIds[i] != dsn.getDsnId()) {
+                i++;
+            }
+            assertEquals(1, dsn.getValues().length);
+            assertEquals(START + i, dsn.getValues()[0].getTimestamp());
+        }
+    }
+
+    public void testTruncatedReportIsRejected()
+        throws Exception {
+        RawArgs args = new RawArgs();
+        args.setReport(createReport());
+        args.truncate(20);
+        try {
+            args.getReport();
+            fail("Truncated report was decoded");
+        } catch (LatherRemoteException expected) {
+        }
+    }
+
+    private static class RawArgs extends MeasurementSendReportColumnar_args {
+        private byte[] getData() {
+            return getByteAValue("report");
+        }
+
+        private void truncate(int numBytes) {
+            byte[] data = getByteAValue("report");
+            setByteAValue("report", Arrays.copyOf(data, data.length - numBytes));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Fetches the values of thousands of collector backed metrics from several threads, and compares the collector lookup
+ * with the precomputed key and lock free containers against building a key from the properties for a synchronized map.
+ */
+public class CollectorSpeedTest extends TestCase {
+
+    private static final String PLUGIN = "collectorspeedtest";
+    private static final int NUM_METRICS = 5000;
+    private static final int NUM_THREADS = 4;
+    private static final int ROUNDS = 20;
+
+    public CollectorSpeedTest(String name) {
+        super(name);
+    }
+
+    public static class SpeedTestCollector extends Collector {
+        @Override
+        public void collect() {
+            setValue("Value", getProperties().getProperty("port"));
+        }
+    }
+
+    private static class SpeedTestPlugin extends MeasurementPlugin {
+        SpeedTestPlugin() {
+            setName(PLUGIN);
+        }
+
+        @Override
+        public Collector getNewCollector() {
+            return new SpeedTestCollector();
+        }
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception {
+        Collector.containers.remove(PLUGIN);
+        super.tearDown();
+    }
+
+    private static List<Metric> getMetrics() {
+        List<Metric> metrics = new ArrayList<Metric>(NUM_METRICS);
+        for (int i = 0; i < NUM_METRICS; i++) {
+            metrics.add(Metric.parse(PLUGIN + ":name=resource-" + i + ",port=" + i + ":Value"));
+        }
+        return metrics;
+    }
+
+    public void testGetValueSpeed()
+        throws Exception {
+        final SpeedTestPlugin plugin = new SpeedTestPlugin();
+        final List<Metric> metrics = getMetrics();
+        for (Metric metric : metrics) {
+            assertSame(MetricValue.FUTURE, Collector.getValue(plugin, metric));
+        }
+        for (Collector collector : Collector.PluginContainer.get(plugin).collectors.values()) {
+            collector.run();
+        }
+        // Warm up
+        fetchAll(plugin, metrics, 1);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < NUM_THREADS; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        fetchAll(plugin, metrics, ROUNDS);
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        long begin = System.currentTimeMillis();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long time = System.currentTimeMillis() - begin;
+        if (failure.get() != null) {
+            throw new Exception(failure.get());
+        }
+        System.out.println("Collector.getValue: " + (NUM_THREADS * ROUNDS * NUM_METRICS) + " values of " +
+                    NUM_METRICS + " collectors from " + NUM_THREADS + " threads in " + time + " ms");
+    }
+
+    private static void fetchAll(MeasurementPlugin plugin,
+                                 List<Metric> metrics,
+                                 int rounds)
+        throws Exception {
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < metrics.size(); i++) {
+                MetricValue value = Collector.getValue(plugin, metrics.get(i));
+                if (value.getValue() != i) {
+                    throw new IllegalStateException(metrics.get(i) + "=" + value.getValue());
+                }
+            }
+        }
+    }
+
+    public void testLookupSpeed()
+        throws Exception {
+        List<Metric> metrics = getMetrics();
+        Map<CollectorIdentifier, Object> concurrent = new ConcurrentHashMap<CollectorIdentifier, Object>();
+        Map<CollectorIdentifier, Object> synchronizedMap =
+                    Collections.synchronizedMap(new HashMap<CollectorIdentifier, Object>());
+        for (Metric metric : metrics) {
+            CollectorIdentifier key = metric.getCollectorIdentifier(metric.getObjectProperties());
+            concurrent.put(key, metric);
+            synchronizedMap.put(key, metric);
+        }
+        // Warm up both lookups before measuring
+        lookupPrecomputed(metrics, concurrent, ROUNDS);
+        lookupFromProperties(metrics, synchronizedMap, ROUNDS);
+
+        long begin = System.currentTimeMillis();
+        lookupPrecomputed(metrics, concurrent, ROUNDS);
+        long precomputedTime = System.currentTimeMillis() - begin;
+
+        begin = System.currentTimeMillis();
+        lookupFromProperties(metrics, synchronizedMap, ROUNDS);
+        long propertiesTime = System.currentTimeMillis() - begin;
+
+        System.out.println("Precomputed key, ConcurrentHashMap: " + (ROUNDS * NUM_METRICS) + " lookups in " +
+                    precomputedTime + " ms");
+        System.out.println("Key from properties, synchronizedMap: " + (ROUNDS * NUM_METRICS) + " lookups in " +
+                    propertiesTime + " ms");
+    }
+
+    private static void lookupPrecomputed(List<Metric> metrics,
+                                          Map<CollectorIdentifier, Object> map,
+                                          int rounds) {
+        for (int r = 0; r < rounds; r++) {
+            for (Metric metric : metrics) {
+                assertSame(metric, map.get(metric.getCollectorIdentifier(metric.getObjectProperties())));
+            }
+        }
+    }
+
+    private static void lookupFromProperties(List<Metric> metrics,
+                                             Map<CollectorIdentifier, Object> map,
+                                             int rounds) {
+        for (int r = 0; r < rounds; r++) {
+            for (Metric metric : metrics) {
+                assertSame(metric, map.get(new CollectorIdentifier(metric.getObjectProperties())));
+            }
+        }
+    }
+
+    public void testKeyIsRecomputedWhenPropertiesChange() {
+        Metric metric = Metric.parse(PLUGIN + ":name=recompute:Value");
+        CollectorIdentifier key = metric.getCollectorIdentifier(metric.getObjectProperties());
+        assertSame(key, metric.getCollectorIdentifier(metric.getObjectProperties()));
+        // Other properties with the same entries keep the key
+        Properties other = new Properties();
+        other.putAll(metric.getObjectProperties());
+        assertSame(key, metric.getCollectorIdentifier(other));
+
+        // A plugin changing the properties gets another key, the old one is unchanged
+        String before = key.toString();
+        other.setProperty("port", "8080");
+        CollectorIdentifier changedKey = metric.getCollectorIdentifier(other);
+        assertNotSame(key, changedKey);
+        assertFalse(key.equals(changedKey));
+        assertEquals(before, key.toString());
+        assertEquals(new CollectorIdentifier(other), changedKey);
+        assertEquals(new CollectorIdentifier(other).hashCode(), changedKey.hashCode());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests when {@link Collector#getNextRunTime(long, long)} wants a collector to run again.
+ */
+public class CollectorTest extends TestCase {
+
+    private static final String PLUGIN = "collectortest";
+    private static final long MINUTE = 60 * 1000;
+    private static final long INTERVAL = 10 * MINUTE;
+    private static final long RECHECK = MINUTE;
+
+    public CollectorTest(String name) {
+        super(name);
+    }
+
+    public static class AvailCollector extends Collector {
+        @Override
+        public boolean isPoolable() {
+            return true;
+        }
+
+        @Override
+        public void collect() {
+            setAvailability(true);
+        }
+    }
+
+    private static class AvailPlugin extends MeasurementPlugin {
+        AvailPlugin() {
+            setName(PLUGIN);
+        }
+
+        @Override
+        public Collector getNewCollector() {
+            return new AvailCollector();
+        }
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception {
+        Collector.containers.remove(PLUGIN);
+        super.tearDown();
+    }
+
+    public void testNextRunTimeAfterRunInLastMinute()
+        throws Exception {
+        AvailPlugin plugin = new AvailPlugin();
+        Metric metric = Metric.parse(PLUGIN + ":name=resource:" + Metric.ATTR_AVAIL);
+        metric.setInterval(INTERVAL);
+        assertSame(MetricValue.FUTURE, Collector.getValue(plugin, metric));
+        Collector.PluginContainer container = Collector.PluginContainer.get(plugin);
+        Collector collector = container.collectors.values().iterator().next();
+        assertEquals(0, collector.getNextRunTime(0, RECHECK));
+
+        collector.run();
+        // ScheduleThread consumes the availability
+        long consumed = Collector.getValue(plugin, metric).getTimestamp();
+        CollectorResult result = container.results.values().iterator().next();
+        assertEquals(consumed + INTERVAL - MINUTE, collector.getNextRunTime(consumed, RECHECK));
+
+        // The collector ran a minute before the next consumption
+        long ran = consumed + INTERVAL - MINUTE;
+        result.timestamp = ran;
+        assertEquals(consumed + INTERVAL, collector.getNextRunTime(ran, RECHECK));
+        // It is not due again while ScheduleThread did not consume its availability
+        long now = ran + 30 * 1000;
+        assertTrue(collector.getNextRunTime(now, RECHECK) > now);
+        now = consumed + INTERVAL + 10 * 1000;
+        assertEquals(now + RECHECK, collector.getNextRunTime(now, RECHECK));
+
+        // Once consumed, it is due a minute before the next consumption
+        collector.run();
+        consumed = Collector.getValue(plugin, metric).getTimestamp();
+        assertEquals(consumed + INTERVAL - MINUTE, collector.getNextRunTime(consumed, RECHECK));
+    }
+}
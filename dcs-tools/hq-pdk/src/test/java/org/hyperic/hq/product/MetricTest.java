@@ -176,4 +176,43 @@ public class MetricTest extends TestCase {
             assertTrue(encoded.equals(expected[i]));
         }
     }
+
+    /**
+     * A template scheduled at an interval longer than the idle time of the cache keeps its single Metric.
+     */
+    public void testScheduledTemplateIsNotEvicted()
+        throws Exception {
+        final long hour = 60 * 60 * 1000;
+        final long[] time = { 1000 };
+        Metric.TemplateCache cache = new Metric.TemplateCache(2, hour) {
+            @Override
+            protected long now() {
+                return time[0];
+            }
+        };
+        Metric scheduled = Metric.parse("test:type=Scheduled:Availability");
+        scheduled.setInterval(8 * hour);
+        Metric unscheduled = Metric.parse("test:type=Unscheduled:Availability");
+        cache.putIfAbsent("scheduled", scheduled);
+        cache.putIfAbsent("unscheduled", unscheduled);
+
+        time[0] += 8 * hour;
+        assertSame(scheduled, cache.get("scheduled"));
+        assertNull(cache.get("unscheduled"));
+
+        // Nor when the cache is full
+        cache.putIfAbsent("a", Metric.parse("test:type=A:Availability"));
+        cache.putIfAbsent("b", Metric.parse("test:type=B:Availability"));
+        assertSame(scheduled, cache.get("scheduled"));
+
+        // Unscheduled, it is evicted as any other template
+        scheduled.setInterval(-1);
+        time[0] += 2 * hour;
+        assertNull(cache.get("scheduled"));
+    }
+
+    public void testTemplatesAreNotEvictedWhenIdleByDefault() {
+        assertEquals(0, Metric.getTemplateCache().getMaxIdle());
+        assertEquals(0, Metric.getPropertiesCache().getMaxIdle());
+    }
 }
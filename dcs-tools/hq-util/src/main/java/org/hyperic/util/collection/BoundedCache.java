@@ -0,0 +1,272 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.collection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hyperic.util.stats.StripedCounter;
+
+/**
+ * A concurrent cache holding at most maxSize entries, each for at most maxIdle ms after it was last read.
+ *
+ * Reads and inserts don't lock. Entries idle for too long are dropped when they are read and by a sweep running at
+ * most every half maxIdle. An insert which takes the cache over maxSize triggers a sweep dropping the least recently
+ * read entries until the cache is 10% below maxSize, so the cost of the sweep is spread over many inserts. Only one
+ * thread sweeps at a time, the others go on without waiting, so the cache may briefly hold a few more entries than
+ * maxSize.
+ *
+ * Subclasses may pin values which must not be dropped, see {@link #isEvictable(Object)}. Pinned entries still count
+ * towards maxSize, so a cache full of pinned entries holds more than maxSize entries.
+ *
+ * The cache counts its hits, misses and evictions.
+ */
+public class BoundedCache<K, V> {
+
+    private static class Entry<V> {
+        private final V value;
+        private volatile long lastAccess;
+
+        private Entry(V value,
+                      long now) {
+            this.value = value;
+            this.lastAccess = now;
+        }
+    }
+
+    /**
+     * An entry considered for eviction, with its access time as of the start of the sweep.
+     */
+    private static class Candidate<K, V> implements Comparable<Candidate<K, V>> {
+        private final K key;
+        private final Entry<V> entry;
+        private final long lastAccess;
+
+        private Candidate(K key,
+                          Entry<V> entry) {
+            this.key = key;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
+
+        public int compareTo(Candidate<K, V> other) {
+            return (lastAccess < other.lastAccess) ? -1 : ((lastAccess == other.lastAccess) ? 0 : 1);
+        }
+    }
+
+    private final ConcurrentMap<K, Entry<V>> map = new ConcurrentHashMap<K, Entry<V>>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private final int maxSize;
+    private final long maxIdle;
+    private volatile long nextSweep;
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    /**
+     * @param maxSize the largest number of entries kept
+     * @param maxIdle the longest time in ms an entry is kept without being read, 0 to keep entries until they are
+     *        evicted for space
+     */
+    public BoundedCache(int maxSize,
+                        long maxIdle) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Invalid size (" + maxSize + ")");
+        }
+        this.maxSize = maxSize;
+        this.maxIdle = Math.max(0, maxIdle);
+        this.nextSweep = getNextSweep(now());
+    }
+
+    /**
+     * @return the cached value, or null if the key isn't cached
+     */
+    public V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        long now = now();
+        if (isExpired(entry, now)) {
+            remove(key, entry);
+            misses.increment();
+            return null;
+        }
+        if (entry.lastAccess != now) {
+            entry.lastAccess = now;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Cache a value unless the key is already cached.
+     *
+     * @return the value previously cached for the key, or null if the given value was cached
+     */
+    public V putIfAbsent(K key,
+                         V value) {
+        long now = now();
+        Entry<V> entry = new Entry<V>(value, now);
+        while (true) {
+            Entry<V> existing = map.putIfAbsent(key, entry);
+            if (existing == null) {
+                break;
+            }
+            if (!isExpired(existing, now)) {
+                return existing.value;
+            }
+            // Replace the expired entry
+            remove(key, existing);
+        }
+        if ((size.incrementAndGet() > maxSize) || (now >= nextSweep)) {
+            sweep(now);
+        }
+        return null;
+    }
+
+    /**
+     * Drop every entry. The statistics are kept.
+     */
+    public void clear() {
+        for (Map.Entry<K, Entry<V>> entry : map.entrySet()) {
+            if (map.remove(entry.getKey(), entry.getValue())) {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @return the number of reads which found a value
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of reads which found no value
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of entries dropped because the cache was full or they were idle for too long
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the current time in ms
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return false to keep the entry of the value, however long it was idle and however full the cache is
+     */
+    protected boolean isEvictable(V value) {
+        return true;
+    }
+
+    private boolean isExpired(Entry<V> entry,
+                              long now) {
+        return (maxIdle > 0) && ((now - entry.lastAccess) > maxIdle) && isEvictable(entry.value);
+    }
+
+    private long getNextSweep(long now) {
+        return (maxIdle > 0) ? now + Math.max(1, maxIdle / 2) : Long.MAX_VALUE;
+    }
+
+    private void remove(K key,
+                        Entry<V> entry) {
+        if (map.remove(key, entry)) {
+            size.decrementAndGet();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Drop the idle entries, then the least recently read ones if the cache is still over its size.
+     */
+    private void sweep(long now) {
+        if (!sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            nextSweep = getNextSweep(now);
+            List<Candidate<K, V>> live = new ArrayList<Candidate<K, V>>(size.get());
+            for (Map.Entry<K, Entry<V>> entry : map.entrySet()) {
+                if (isExpired(entry.getValue(), now)) {
+                    remove(entry.getKey(), entry.getValue());
+                } else if (isEvictable(entry.getValue().value)) {
+                    live.add(new Candidate<K, V>(entry.getKey(), entry.getValue()));
+                }
+            }
+            if (size.get() <= maxSize) {
+                return;
+            }
+            int target = maxSize - (maxSize / 10);
+            Collections.sort(live);
+            for (int i = 0; (i < live.size()) && (size.get() > target); i++) {
+                Candidate<K, V> candidate = live.get(i);
+                remove(candidate.key, candidate.entry);
+            }
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions();
+    }
+}
@@ -3,6 +3,8 @@ package org.hyperic.util.http;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.http.HttpEntity;
+
 public class AgentRequest {
 
     public enum AgentHttpMethod {
@@ -13,6 +15,7 @@ public class AgentRequest {
     private final AgentHttpMethod method;
     private Map<String, String> headers = new HashMap<String, String>();
     private Map<String, String> params = new HashMap<String, String>();
+    private HttpEntity entity; // Body of a POST, sent instead of the params when set
 
     public AgentRequest(String url,
                         AgentHttpMethod method) {
@@ -41,6 +44,17 @@ public class AgentRequest {
         this.params = params;
     }
 
+    public HttpEntity getEntity() {
+        return entity;
+    }
+
+    /**
+     * Set the body of a POST request. The entity must be repeatable, as the request may be sent to several servers.
+     */
+    public void setEntity(HttpEntity entity) {
+        this.entity = entity;
+    }
+
     public AgentHttpMethod getMethod() {
         return method;
     }
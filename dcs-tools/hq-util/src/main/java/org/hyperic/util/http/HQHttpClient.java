@@ -7,6 +7,7 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
@@ -113,6 +114,25 @@ public class HQHttpClient extends DefaultHttpClient {
         return execute(post);
     }
 
+    public HttpResponse post(String url,
+                             Map<String, String> headers,
+                             HttpEntity entity)
+        throws ClientProtocolException,
+        IOException {
+        Assert.hasText(url);
+
+        HttpPost post = new HttpPost(url);
+
+        if (headers != null && !headers.isEmpty()) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                post.addHeader(entry.getKey(), entry.getValue());
+            }
+        }
+        post.setEntity(entity);
+
+        return execute(post);
+    }
+
     public HttpResponse get(String url,
                             Map<String, String> headers)
         throws ClientProtocolException,
@@ -2,7 +2,9 @@ package org.hyperic.util.http;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -12,6 +14,8 @@ import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,7 +25,6 @@ import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.util.EntityUtils;
-import org.hyperic.util.timer.StopWatch;
 
 public class Server {
 
@@ -38,26 +41,35 @@ public class Server {
 
     private final static Set<Integer> SERVER_NOT_REACHABLE_HTTP_CODES;
 
-    private long lastSuccessTimestamp;
+    // The availability is read and updated by concurrent requests without locking
+    private volatile long lastSuccessTimestamp;
     private final InetAddress ipAddress;
-    private boolean isDown = false;
-    private StopWatch downPeriodWatch;
-    private long downPeriod;
+    // End of the down period (ms since the epoch), 0 when the server is not marked as down
+    private final AtomicLong downUntil = new AtomicLong();
     private long failPeriod;
     private Random random = null;
     private int downPeriodInterval;
     private int minDownPeriodIntervalInMin = 5;
-    private HQHttpClient client = null;
+    // Health of the server, lower is better, see getHealthScore()
+    private volatile long latencyEwma = -1; // ms to connect, -1 until the first successful connection
+    private final AtomicInteger recentFailures = new AtomicInteger();
+    // The last URL sent to and the same URL with the address of this server
+    private volatile String[] lastUrl = null;
+
+    // Weight of the latest connection in the latency average
+    private static final int LATENCY_EWMA_WEIGHT = 8;
+    // Score of a recent failure, in ms of latency
+    private static final long FAILURE_PENALTY = 10000;
+    private static final int MAX_RECENT_FAILURES = 100;
+    // Score of a server marked as down, so that it is tried last
+    private static final long DOWN_PENALTY = 1000000;
 
     private static final Log logger = LogFactory.getLog(Server.class);
 
     public Server(InetAddress ipAddress,
-                  HQHttpClient client,
                   CommunicationConfiguration config) {
         this.ipAddress = ipAddress;
-        this.client = client;
         this.lastSuccessTimestamp = System.currentTimeMillis();
-        this.downPeriodWatch = new StopWatch();
         this.failPeriod = TimeUnit.MINUTES
                     .toMillis(config.getFailPeriodInMin());
         this.downPeriodInterval = config.getDownPeriodIntervalInMin();
@@ -71,21 +83,24 @@ public class Server {
     }
 
     public boolean isAvailable() {
-        if (isDown) {
-            return isDownTimeElapsed();
+        long until = downUntil.get();
+        if (until != 0) {
+            return isDownTimeElapsed(until);
         }
         return isServerAccessible();
     }
 
     private boolean isServerAccessible() {
-        if (System.currentTimeMillis() >= lastSuccessTimestamp + failPeriod) {
-            isDown = true;
-            downPeriod = getDownPeriod();
-            downPeriodWatch.reset();
-            logger.error("Server is not available for a period of "
-                        + TimeUnit.MILLISECONDS.toMinutes(failPeriod)
-                        + " minutes -  Mark " + this + " as down for a period of "
-                        + TimeUnit.MILLISECONDS.toMinutes(downPeriod) + " minutes");
+        long now = System.currentTimeMillis();
+        if (now >= lastSuccessTimestamp + failPeriod) {
+            long downPeriod = getDownPeriod();
+            // Only the request marking the server as down logs it
+            if (downUntil.compareAndSet(0, now + downPeriod)) {
+                logger.error("Server is not available for a period of "
+                            + TimeUnit.MILLISECONDS.toMinutes(failPeriod)
+                            + " minutes -  Mark " + this + " as down for a period of "
+                            + TimeUnit.MILLISECONDS.toMinutes(downPeriod) + " minutes");
+            }
             return false;
         }
         return true;
@@ -96,27 +111,125 @@ public class Server {
         return TimeUnit.MINUTES.toMillis(downPeriodInMin);
     }
 
-    private boolean isDownTimeElapsed() {
-        if (downPeriodWatch.getElapsed() < downPeriod) {
+    private boolean isDownTimeElapsed(long until) {
+        if (System.currentTimeMillis() < until) {
             return false;
         } else {
-            isDown = false;
-            logger.info("Down period end - wake up server " + this);
+            if (downUntil.compareAndSet(until, 0)) {
+                logger.info("Down period end - wake up server " + this);
+            }
             return true;
         }
     }
 
     private String buildUrl(String originalUrl)
         throws MalformedURLException {
+        // Agents send nearly all their requests to the same URL
+        String[] last = lastUrl;
+        if ((last != null) && last[0].equals(originalUrl)) {
+            return last[1];
+        }
         URL notResolvedUrl = new URL(originalUrl);
         URL newUrl = new URL(notResolvedUrl.getProtocol(),
                     ipAddress.getHostAddress(), notResolvedUrl.getPort(),
                     notResolvedUrl.getFile());
-        return newUrl.toString();
+        String resolvedUrl = newUrl.toString();
+        lastUrl = new String[] { originalUrl, resolvedUrl };
+        return resolvedUrl;
 
     }
 
-    public HttpResponse send(AgentRequest request)
+    /**
+     * @return the average time (ms) to connect to the server, or -1 if it was never connected
+     */
+    public long getLatency() {
+        return latencyEwma;
+    }
+
+    /**
+     * The latency is the time to open a TCP connection, measured by {@link #probe(int, int)}. The time of the requests
+     * themselves is not used, as it mostly depends on the command: a long poll is held by the server and a bulk
+     * transfer lasts as long as the data takes to send.
+     * 
+     * @param latencyPrior the latency assumed for a server which was never connected
+     * @return the health score of the server: its average latency plus a penalty per recent failure, lower is better
+     */
+    public long getHealthScore(long latencyPrior) {
+        long latency = latencyEwma;
+        long score = ((latency < 0) ? latencyPrior : latency) + (recentFailures.get() * FAILURE_PENALTY);
+        long until = downUntil.get();
+        if ((until != 0) && (System.currentTimeMillis() < until)) {
+            score += DOWN_PENALTY;
+        }
+        return score;
+    }
+
+    void recordConnect(long latency) {
+        long prev = latencyEwma;
+        latencyEwma = (prev < 0) ? latency : prev + ((latency - prev) / LATENCY_EWMA_WEIGHT);
+        recordSuccess();
+    }
+
+    void recordSuccess() {
+        // Failures are forgotten progressively
+        int failures = recentFailures.get();
+        if (failures > 0) {
+            recentFailures.compareAndSet(failures, failures / 2);
+        }
+    }
+
+    void recordFailure() {
+        if (recentFailures.get() < MAX_RECENT_FAILURES) {
+            recentFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Open and close a TCP connection to the server, to check that it accepts connections. The time to connect is
+     * recorded as the latency of the server.
+     * 
+     * @param port the port of the server
+     * @param timeout the connect timeout in ms
+     * @throws IOException if the server could not be connected
+     */
+    public void probe(int port,
+                      int timeout)
+        throws IOException {
+        Socket socket = new Socket();
+        try {
+            long start = System.currentTimeMillis();
+            socket.connect(new InetSocketAddress(ipAddress, port), timeout);
+            recordConnect(System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            recordFailure();
+            throw e;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @param client the client whose connections are used, clients with separate connection pools share the servers
+     */
+    public HttpResponse send(HQHttpClient client,
+                             AgentRequest request)
+        throws ClientProtocolException, IOException {
+        try {
+            HttpResponse response = doSend(client, request);
+            recordSuccess();
+            return response;
+        } catch (IOException e) {
+            recordFailure();
+            throw e;
+        }
+    }
+
+    private HttpResponse doSend(HQHttpClient client,
+                                AgentRequest request)
         throws ClientProtocolException, IOException {
         String resolvedUrl = this.buildUrl(request.getUrl());
         HttpResponse response = null;
@@ -125,8 +238,12 @@ public class Server {
                 response = client.get(resolvedUrl, request.getHeaders());
                 break;
             case POST:
-                response = client
-                            .post(resolvedUrl, request.getHeaders(), request.getParams());
+                if (request.getEntity() != null) {
+                    response = client.post(resolvedUrl, request.getHeaders(), request.getEntity());
+                } else {
+                    response = client
+                                .post(resolvedUrl, request.getHeaders(), request.getParams());
+                }
                 break;
             default:
                 throw new IOException("Request Method " + request.getMethod() + " is not supported");
@@ -147,7 +264,9 @@ public class Server {
         }
 
         lastSuccessTimestamp = System.currentTimeMillis();
-        isDown = false;
+        if (downUntil.get() != 0) {
+            downUntil.set(0);
+        }
         return response;
 
     }
@@ -183,7 +302,9 @@ public class Server {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Server[").append("IP:").append(ipAddress.getHostAddress())
-                    .append("  ").append("isDown:").append(isDown).append("  ")
+                    .append("  ").append("isDown:").append(downUntil.get() != 0).append("  ")
+                    .append("latency:").append(latencyEwma).append("  ")
+                    .append("recentFailures:").append(recentFailures.get()).append("  ")
                     .append("lastSuccess:").append(new Date(lastSuccessTimestamp))
                     .append("  ").append("]");
         return sb.toString();
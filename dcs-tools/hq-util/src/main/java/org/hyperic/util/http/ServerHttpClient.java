@@ -17,9 +17,11 @@ package org.hyperic.util.http;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.security.auth.x500.X500Principal;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
@@ -34,7 +36,8 @@ public class ServerHttpClient extends HQHttpClient {
 
     private final X500Principal userToken;
     protected final int maxRequestsPerConnection;
-    protected volatile int connectionCounter;
+    // requests sent since the last one closing its connection, shared by the threads sending concurrently
+    protected final AtomicInteger connectionCounter = new AtomicInteger();
     protected ServersManager serversManager;
 
     public ServerHttpClient(final KeystoreConfig keyConfig,
@@ -51,13 +54,31 @@ public class ServerHttpClient extends HQHttpClient {
 
         userToken = CertificateService
                     .getClientCertificateSubjectPrincipal(keyConfig);
-        connectionCounter = 0;
         CommunicationConfiguration communicationConfiguration =
                     new CommunicationConfiguration(isSupportRRDNS, failPeriodInMin, downPeriodInMin);
         serversManager = new ServersManager(this, communicationConfiguration);
 
     }
 
+    /**
+     * A client with its own connections to the servers of another client. The fail over state and the health of the
+     * servers are shared with the other client.
+     */
+    public ServerHttpClient(final KeystoreConfig keyConfig,
+                            final HttpConfig config,
+                            final boolean acceptUnverifiedCertificates,
+                            final ClientConnectionManager conman,
+                            int maxRequestsPerConnection,
+                            ServerHttpClient serversOf) {
+
+        super(keyConfig, config, acceptUnverifiedCertificates, conman);
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+
+        userToken = CertificateService
+                    .getClientCertificateSubjectPrincipal(keyConfig);
+        serversManager = serversOf.serversManager;
+    }
+
     public ServerHttpClient(final KeystoreConfig keyConfig,
                             final HttpConfig config,
                             final boolean acceptUnverifiedCertificates,
@@ -89,6 +110,22 @@ public class ServerHttpClient extends HQHttpClient {
 
     }
 
+    /**
+     * Post a raw body instead of form parameters.
+     * 
+     * @param entity the body, which must be repeatable
+     */
+    public HttpResponse post(String url,
+                             Map<String, String> headers,
+                             HttpEntity entity,
+                             boolean closeConn)
+        throws ClientProtocolException, IOException {
+        AgentRequest request = new AgentRequest(url, AgentHttpMethod.POST);
+        request.getHeaders().putAll(headers);
+        request.setEntity(entity);
+        return this.send(request, closeConn);
+    }
+
     public HttpResponse get(String url,
                             boolean closeConn)
         throws ClientProtocolException, IOException {
@@ -99,13 +136,31 @@ public class ServerHttpClient extends HQHttpClient {
     private HttpResponse send(AgentRequest request,
                               boolean closeConn)
         throws ClientProtocolException, IOException {
-        if (closeConn || (connectionCounter >= maxRequestsPerConnection)) {
-            connectionCounter = 0;
+        if (closeConn) {
+            connectionCounter.set(0);
+            request.getHeaders().put(HttpHeaders.CONNECTION, "close");
+        } else if (!countRequest()) {
             request.getHeaders().put(HttpHeaders.CONNECTION, "close");
-        } else {
-            connectionCounter++;
         }
-        return serversManager.send(request);
+        return serversManager.send(request, this);
+    }
+
+    /**
+     * Count a request on the current connection, or reset the count once maxRequestsPerConnection were sent.
+     * 
+     * @return false if the request should close its connection
+     */
+    private boolean countRequest() {
+        while (true) {
+            int count = connectionCounter.get();
+            if (count >= maxRequestsPerConnection) {
+                if (connectionCounter.compareAndSet(count, 0)) {
+                    return false;
+                }
+            } else if (connectionCounter.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
     }
 
 }
@@ -7,58 +7,115 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpResponse;
-import org.hyperic.util.timer.StopWatch;
+import org.apache.http.conn.params.ConnRouteParams;
+import org.apache.http.params.HttpConnectionParams;
 
+/**
+ * Sends agent requests to the server, failing over between the addresses the server name resolves to. The
+ * preferred server is kept for affinity while it is available, the alternate servers are chosen by their health score
+ * (see {@link Server#getHealthScore(long)}). The alternate servers are probed in the background once per
+ * HEALTH_CHECK_INTERVAL, so that their scores are known before a fail over needs them.
+ *
+ * Requests are not serialized: the resolved servers are an immutable snapshot built once, and the failover state (the
+ * alternate server, the global down window and the order tried by {@link #sendTryAll(AgentRequest)}) is kept in
+ * volatile fields which are only written when it changes. Concurrent requests may race on a failover, e.g. both look
+ * for a new alternate server, which is harmless as the last one found wins.
+ */
 public class ServersManager {
 
     private static final String SERVICE_UNAVAILABLE = "Service Unavailable";
     private static final Log logger = LogFactory.getLog(ServersManager.class);
+    // Number of alternate servers whose connections are raced at a fail over
+    static final int FAILOVER_RACE_SIZE = 3;
+    private static final int DEFAULT_PROBE_TIMEOUT = 10000;
+    // Interval between the background probes of the alternate servers
+    static final long HEALTH_CHECK_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    // Shared by all managers, threads are only created during fail overs
+    private static final ExecutorService probeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicLong num = new AtomicLong();
 
-    private List<Server> servers = new ArrayList<Server>();
-    private Server alternateServer = null;
-    private Server preferredServer = null;
-    private boolean isGlobalDown = false;
-    private long globalDownPeriod;
-    private StopWatch globalDownPeriodWatch;
-    private CommunicationConfiguration config = null;
-    private HQHttpClient client = null;
+                    public Thread newThread(Runnable r) {
+                        Thread rtn = new Thread(r, "ServersManager-probe-" + num.getAndIncrement());
+                        rtn.setDaemon(true);
+                        return rtn;
+                    }
+                });
+
+    private volatile ResolvedServers resolved = null;
+    private volatile Server alternateServer = null;
+    // End of the global down window (ms since the epoch), 0 when off
+    private volatile long globalDownUntil = 0;
+    private volatile long globalDownSince = 0;
+    // Servers in the order tried by sendTryAll, the last successful first
+    private final AtomicReference<List<Server>> tryAllOrder = new AtomicReference<List<Server>>();
+    // Time of the next background probe of the alternate servers (ms since the epoch)
+    private final AtomicLong nextHealthCheck = new AtomicLong();
+    private final CommunicationConfiguration config;
+    private final HQHttpClient client;
+
+    /**
+     * The servers the server name resolved to.
+     */
+    private static class ResolvedServers {
+        private final Server preferred;
+        // Alternates to the preferred server, in a random order
+        private final List<Server> alternates;
+
+        private ResolvedServers(Server preferred,
+                                List<Server> alternates) {
+            this.preferred = preferred;
+            this.alternates = Collections.unmodifiableList(alternates);
+        }
+    }
 
     public ServersManager(HQHttpClient client,
                           CommunicationConfiguration communicationConfiguration) {
         this.config = communicationConfiguration;
         logger.info(communicationConfiguration);
         this.client = client;
-        this.globalDownPeriodWatch = new StopWatch();
     }
 
-    private List<Server> buildServers(String url)
+    private ResolvedServers buildServers(String url)
         throws UnknownHostException,
         MalformedURLException {
         URL notResolvedUrl = new URL(url);
         // With DNS cache TTL set to -1, the IP list is cached at the JVM,
         // making this call highly cheap.
         String hostname = notResolvedUrl.getHost();
-        InetAddress[] addresses = InetAddress.getAllByName(hostname);
+        InetAddress[] addresses = resolve(hostname);
         if (addresses == null || addresses.length == 0) {
             throw new UnknownHostException(String.format(
-                        "The host %d is not reachable", hostname));
+                        "The host %s is not reachable", hostname));
         }
-        List<Server> resolvedServers = new LinkedList<Server>();
-        preferredServer = new Server(addresses[0], client, config);
+        List<Server> resolvedServers = new ArrayList<Server>();
+        Server preferredServer = newServer(addresses[0]);
         if (!config.isSupportRRDNS()) {
             logger.info("Agent does not support RRDNS");
-            resolvedServers = Collections.emptyList();
         } else {
             logger.info("Agent support RRDNS");
             for (int i = 1; i < addresses.length; i++) {
-                resolvedServers.add(new Server(addresses[i], client, config));
+                resolvedServers.add(newServer(addresses[i]));
             }
             // Create a random selection of the alternates servers at a fail over.
             // DNS server with cyclic order will always return the same alternate ips list
@@ -68,53 +125,94 @@ public class ServersManager {
         }
         logger.info("Servers are : Preferred(" + preferredServer + ") - "
                     + resolvedServers);
-        return resolvedServers;
+        return new ResolvedServers(preferredServer, resolvedServers);
     }
 
-    public synchronized HttpResponse send(AgentRequest request)
-        throws IOException {
-        // Lazy evaluation of the servers
-        if (preferredServer == null) {
-            this.servers = buildServers(request.getUrl());
+    InetAddress[] resolve(String hostname)
+        throws UnknownHostException {
+        return InetAddress.getAllByName(hostname);
+    }
+
+    Server newServer(InetAddress address) {
+        return new Server(address, config);
+    }
+
+    /**
+     * Lazy evaluation of the servers, only the first requests wait for the name resolution.
+     */
+    private ResolvedServers getServers(String url)
+        throws UnknownHostException,
+        MalformedURLException {
+        ResolvedServers servers = resolved;
+        if (servers == null) {
+            synchronized (this) {
+                servers = resolved;
+                if (servers == null) {
+                    servers = buildServers(url);
+                    resolved = servers;
+                }
+            }
         }
+        return servers;
+    }
+
+    public HttpResponse send(AgentRequest request)
+        throws IOException {
+        return send(request, client);
+    }
+
+    /**
+     * Send the request through the connections of the given client. Clients with separate connection pools to the same
+     * server, e.g. for bulk transfers, share a manager so that a fail over or a server down is seen by all of them.
+     */
+    public HttpResponse send(AgentRequest request,
+                             HQHttpClient client)
+        throws IOException {
+        ResolvedServers servers = getServers(request.getUrl());
+        checkHealth(servers, request.getUrl(), client);
         if (isGlobalDownOn()) {
             // Agent on global down time.
             logger.info("Servers are in global down  - time elapsed ("
-                        + TimeUnit.MILLISECONDS.toMinutes(globalDownPeriodWatch
-                                    .getElapsed()) + ")");
+                        + TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - globalDownSince) + ")");
             throw new IOException(SERVICE_UNAVAILABLE);
         }
         // global down is off
-        return sendToServer(request);
+        return sendToServer(servers, request, client);
     }
 
     private boolean isGlobalDownOn() {
-        if (!isGlobalDown) {
+        long until = globalDownUntil;
+        if (until == 0) {
             return false;
         }
         // Is down time elapsed
-        if (globalDownPeriodWatch.getElapsed() < globalDownPeriod) {
+        if (System.currentTimeMillis() < until) {
             return true;
         }
 
         // Global down time is over
-        isGlobalDown = false;
+        globalDownUntil = 0;
         return false;
     }
 
-    private HttpResponse sendToServer(AgentRequest request)
+    private HttpResponse sendToServer(ResolvedServers servers,
+                                      AgentRequest request,
+                                      HQHttpClient client)
         throws IOException {
         HttpResponse response = null;
+        Server alternate = alternateServer;
         // First try the preferred server - for affinity
-        if (preferredServer.isAvailable()) {
-            response = preferredServer.send(request);
-            alternateServer = null;
+        if (servers.preferred.isAvailable()) {
+            response = servers.preferred.send(client, request);
+            if (alternate != null) {
+                alternateServer = null;
+            }
             // Try the alternate server if exists
-        } else if (alternateServer != null && alternateServer.isAvailable()) {
-            response = alternateServer.send(request);
+        } else if (alternate != null && alternate.isAvailable()) {
+            response = alternate.send(client, request);
             // Find an alternate only if there are servers in the servers list
-        } else if (!servers.isEmpty()) {
-            response = findAlternateServerAndSend(request);
+        } else if (!servers.alternates.isEmpty()) {
+            response = findAlternateServerAndSend(servers, request, client);
         } else {
             throw new IOException(SERVICE_UNAVAILABLE);
         }
@@ -122,15 +220,42 @@ public class ServersManager {
 
     }
 
-    private HttpResponse findAlternateServerAndSend(AgentRequest request)
+    /**
+     * Fail over to the healthiest alternate server which accepts connections. Rather than waiting for a connect timeout
+     * on each dead server in turn, connections to the FAILOVER_RACE_SIZE healthiest servers are raced and the request
+     * is sent to the first one connected. The race only opens TCP connections, so the request itself is never sent to
+     * more than one server at a time. Behind a proxy the servers are tried in turn, healthiest first.
+     */
+    private HttpResponse findAlternateServerAndSend(ResolvedServers servers,
+                                                    AgentRequest request,
+                                                    HQHttpClient client)
         throws IOException {
         alternateServer = null;
         IOException lastException = null;
-        for (Server server : servers) {
+        List<Server> candidates = sortByHealth(servers.alternates);
+        boolean race = !isProxied(client);
+        int port = getPort(request.getUrl());
+        int connectTimeout = getProbeTimeout(client);
+        while (!candidates.isEmpty()) {
+            Server server;
+            if (race) {
+                List<Server> racing =
+                            new ArrayList<Server>(candidates.subList(0, Math.min(FAILOVER_RACE_SIZE, candidates.size())));
+                server = raceProbes(racing, port, connectTimeout);
+                if (server == null) {
+                    logger.info("Failed connecting to servers " + racing);
+                    lastException = new IOException("Failed connecting to servers " + racing);
+                    candidates.removeAll(racing);
+                    continue;
+                }
+            } else {
+                server = candidates.get(0);
+            }
+            candidates.remove(server);
             try {
-                HttpResponse response = server.send(request);
+                HttpResponse response = server.send(client, request);
                 alternateServer = server;
-                logger.info("Choose new alternate server " + alternateServer);
+                logger.info("Choose new alternate server " + server);
                 return response;
             } catch (IOException e) {
                 logger.info("Failed trying server " + server);
@@ -139,7 +264,7 @@ public class ServersManager {
         }
         // Turn global down on when there are no servers available
         logger.error("All Servers are not available");
-        setGlobalDownOn();
+        setGlobalDownOn(servers);
         if (lastException != null) {
             throw lastException;
         } else {
@@ -148,30 +273,150 @@ public class ServersManager {
 
     }
 
-    private void setGlobalDownOn() {
-        globalDownPeriod = preferredServer.getDownPeriod();
+    private static boolean isProxied(HQHttpClient client) {
+        return ConnRouteParams.getDefaultProxy(client.getParams()) != null;
+    }
+
+    private static int getProbeTimeout(HQHttpClient client) {
+        int connectTimeout = HttpConnectionParams.getConnectionTimeout(client.getParams());
+        return (connectTimeout > 0) ? connectTimeout : DEFAULT_PROBE_TIMEOUT;
+    }
+
+    /**
+     * Probe the alternate servers in the background once per HEALTH_CHECK_INTERVAL, the request does not wait for the
+     * probes. Behind a proxy the servers are not connected directly, so they are not probed.
+     */
+    private void checkHealth(ResolvedServers servers,
+                             String url,
+                             HQHttpClient client)
+        throws MalformedURLException {
+        long next = nextHealthCheck.get();
+        long now = System.currentTimeMillis();
+        if ((now < next) || servers.alternates.isEmpty()
+                    || !nextHealthCheck.compareAndSet(next, now + HEALTH_CHECK_INTERVAL) || isProxied(client)) {
+            return;
+        }
+        final int port = getPort(url);
+        final int timeout = getProbeTimeout(client);
+        for (final Server server : servers.alternates) {
+            probeExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        server.probe(port, timeout);
+                    } catch (IOException e) {
+                        logger.debug("Health check failed connecting " + server + ": " + e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the servers ordered by their health score, the healthiest first. Servers which were never connected are
+     *         assumed to have the average latency of the others, so that they are neither preferred over servers known
+     *         to be fast nor left behind servers known to be slow.
+     */
+    static List<Server> sortByHealth(List<Server> servers) {
+        long latencySum = 0;
+        int known = 0;
+        for (Server server : servers) {
+            long latency = server.getLatency();
+            if (latency >= 0) {
+                latencySum += latency;
+                known++;
+            }
+        }
+        long latencyPrior = (known > 0) ? (latencySum / known) : 0;
+        // Scores change while requests complete, take them once for the sort
+        final Map<Server, Long> scores = new IdentityHashMap<Server, Long>();
+        for (Server server : servers) {
+            scores.put(server, server.getHealthScore(latencyPrior));
+        }
+        List<Server> sorted = new ArrayList<Server>(servers);
+        Collections.sort(sorted, new Comparator<Server>() {
+            public int compare(Server s1,
+                               Server s2) {
+                return scores.get(s1).compareTo(scores.get(s2));
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Probe the servers concurrently.
+     * 
+     * @return the first server which accepted a connection, or null if none did within the timeout
+     */
+    static Server raceProbes(List<Server> servers,
+                             final int port,
+                             final int timeout) {
+        CompletionService<Server> completionService = new ExecutorCompletionService<Server>(probeExecutor);
+        List<Future<Server>> futures = new ArrayList<Future<Server>>(servers.size());
+        for (final Server server : servers) {
+            futures.add(completionService.submit(new Callable<Server>() {
+                public Server call()
+                    throws IOException {
+                    server.probe(port, timeout);
+                    return server;
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < servers.size(); i++) {
+                try {
+                    return completionService.take().get();
+                } catch (ExecutionException e) {
+                    logger.debug("Failed connecting: " + e.getCause());
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            // The remaining probes time out on their own
+            for (Future<Server> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static int getPort(String url)
+        throws MalformedURLException {
+        URL notResolvedUrl = new URL(url);
+        return (notResolvedUrl.getPort() != -1) ? notResolvedUrl.getPort() : notResolvedUrl.getDefaultPort();
+    }
+
+    private void setGlobalDownOn(ResolvedServers servers) {
+        long globalDownPeriod = servers.preferred.getDownPeriod();
         logger.error("Insert to Global down for a period of " + TimeUnit.MILLISECONDS.toMinutes(globalDownPeriod)
                     + " minutes");
-        isGlobalDown = true;
-        globalDownPeriodWatch.reset();
+        long now = System.currentTimeMillis();
+        globalDownSince = now;
+        globalDownUntil = now + globalDownPeriod;
     }
 
-    public synchronized HttpResponse sendTryAll(AgentRequest request)
+    public HttpResponse sendTryAll(AgentRequest request)
         throws IOException {
-
-        if (preferredServer == null) {
-            servers = buildServers(request.getUrl());
-            servers.add(0, preferredServer);
+        List<Server> servers = tryAllOrder.get();
+        if (servers == null) {
+            ResolvedServers resolvedServers = getServers(request.getUrl());
+            List<Server> all = new ArrayList<Server>(resolvedServers.alternates.size() + 1);
+            all.add(resolvedServers.preferred);
+            all.addAll(resolvedServers.alternates);
+            tryAllOrder.compareAndSet(null, Collections.unmodifiableList(all));
+            servers = tryAllOrder.get();
         }
-        Server lastSuccessServer = null;
         int counter = 0;
         String lastError = request.getUrl() + " is not reachable";
         for (Server server : servers) {
             try {
                 counter++;
-                HttpResponse response = server.send(request);
-                lastSuccessServer = server;
-                logger.info("Successfully sent to server " + lastSuccessServer);
+                HttpResponse response = server.send(client, request);
+                logger.info("Successfully sent to server " + server);
+                if (counter > 1) {
+                    moveToHead(servers, server);
+                }
                 return response;
             } catch (IOException e) {
                 // If we got IO exception and this is the last ip in the list,
@@ -179,13 +424,6 @@ public class ServersManager {
                 if (counter == servers.size()) {
                     throw e;
                 }
-            } finally {
-                // Move the last successful server to the head of the servers list
-                if (lastSuccessServer != null) {
-                    servers.remove(lastSuccessServer);
-                    servers.add(0, lastSuccessServer);
-                    lastSuccessServer = null;
-                }
             }
         }
         // We get here, after we tried all the nodes ip addresses, we must throw
@@ -193,4 +431,20 @@ public class ServersManager {
         throw new IOException(lastError);
     }
 
+    /**
+     * Move the last successful server to the head of the servers list, unless another request changed the order
+     * meanwhile.
+     */
+    private void moveToHead(List<Server> servers,
+                            Server server) {
+        List<Server> reordered = new ArrayList<Server>(servers.size());
+        reordered.add(server);
+        for (Server other : servers) {
+            if (other != server) {
+                reordered.add(other);
+            }
+        }
+        tryAllOrder.compareAndSet(servers, Collections.unmodifiableList(reordered));
+    }
+
 }
@@ -0,0 +1,214 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.schedule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A min-heap of objects keyed by the absolute time (ms since the epoch) at which they are next due. Each object is
+ * armed at most once; re-arming an object replaces its previous deadline. Replaced and removed deadlines are discarded
+ * lazily when they reach the head of the heap, so arming, re-arming and removal are all O(log n) and consuming the due
+ * objects costs O(due * log n) regardless of how many objects are armed.
+ *
+ * The queue is synchronized, and a consumer may block in {@link #awaitNext(long)} until the head is due.
+ */
+public class DeadlineQueue<T> {
+
+    private final PriorityQueue<Deadline<T>> heap = new PriorityQueue<Deadline<T>>();
+    private final Map<T, Deadline<T>> armed = new HashMap<T, Deadline<T>>();
+    private long sequence = 0;
+    private long wakeups = 0;
+
+    private static class Deadline<T> implements Comparable<Deadline<T>> {
+        private final T obj;
+        private final long time;
+        private final long seq; // FIFO order for identical deadlines
+        private boolean cancelled = false;
+
+        private Deadline(T obj,
+                         long time,
+                         long seq) {
+            this.obj = obj;
+            this.time = time;
+            this.seq = seq;
+        }
+
+        public int compareTo(Deadline<T> other) {
+            if (time != other.time) {
+                return (time < other.time) ? -1 : 1;
+            }
+            if (seq != other.seq) {
+                return (seq < other.seq) ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Arm an object to be due at the given time, replacing any previous deadline of the object.
+     *
+     * @param obj the object to arm
+     * @param time the absolute time the object is due
+     */
+    public synchronized void schedule(T obj,
+                                      long time) {
+        Deadline<T> old = armed.get(obj);
+        if (old != null) {
+            old.cancelled = true;
+        }
+        Deadline<T> deadline = new Deadline<T>(obj, time, sequence++);
+        armed.put(obj, deadline);
+        heap.add(deadline);
+        if (heap.peek() == deadline) {
+            // New head, the consumer may be waiting for a later time
+            notifyAll();
+        }
+    }
+
+    /**
+     * Arm an object to be due at the given time, unless it is already armed for an earlier (or the same) time.
+     *
+     * @return true if the deadline of the object was changed
+     */
+    public synchronized boolean scheduleNoLaterThan(T obj,
+                                                    long time) {
+        Deadline<T> old = armed.get(obj);
+        if ((old != null) && (old.time <= time)) {
+            return false;
+        }
+        schedule(obj, time);
+        return true;
+    }
+
+    /**
+     * Disarm an object.
+     *
+     * @return true if the object was armed
+     */
+    public synchronized boolean unschedule(T obj) {
+        Deadline<T> old = armed.remove(obj);
+        if (old == null) {
+            return false;
+        }
+        old.cancelled = true;
+        return true;
+    }
+
+    /**
+     * Remove and return every object which is due at the given time, in deadline order. Returned objects are no longer
+     * armed.
+     *
+     * @param now the current time
+     * @return the due objects, possibly empty
+     */
+    public synchronized List<T> consumeDue(long now) {
+        List<T> res = new ArrayList<T>();
+        Deadline<T> head;
+        while (((head = peekArmed()) != null) && (head.time <= now)) {
+            heap.poll();
+            armed.remove(head.obj);
+            res.add(head.obj);
+        }
+        return res;
+    }
+
+    /**
+     * @return the absolute time the next object is due
+     * @throws EmptyScheduleException if no object is armed
+     */
+    public synchronized long getTimeOfNext()
+        throws EmptyScheduleException {
+        Deadline<T> head = peekArmed();
+        if (head == null) {
+            throw new EmptyScheduleException();
+        }
+        return head.time;
+    }
+
+    /**
+     * Block until the head of the queue is due, the head changes to an earlier time, {@link #wakeUp()} is called, or
+     * the given maximum wait elapses.
+     *
+     * @param maxWait the longest time to wait in ms, 0 to wait without limit
+     */
+    public synchronized void awaitNext(long maxWait)
+        throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long wakeup = wakeups;
+        Deadline<T> head = peekArmed();
+        long target = (head == null) ? Long.MAX_VALUE : head.time;
+        if (maxWait > 0) {
+            target = Math.min(target, start + maxWait);
+        }
+        while (wakeup == wakeups) {
+            long now = System.currentTimeMillis();
+            head = peekArmed();
+            if ((head != null) && (head.time < target)) {
+                target = head.time;
+            }
+            if (now >= target) {
+                return;
+            }
+            wait((target == Long.MAX_VALUE) ? 0 : target - now);
+        }
+    }
+
+    /**
+     * Release a consumer blocked in {@link #awaitNext(long)}.
+     */
+    public synchronized void wakeUp() {
+        wakeups++;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of armed objects
+     */
+    public synchronized int size() {
+        return armed.size();
+    }
+
+    public synchronized boolean isScheduled(T obj) {
+        return armed.containsKey(obj);
+    }
+
+    public synchronized void clear() {
+        heap.clear();
+        armed.clear();
+    }
+
+    private Deadline<T> peekArmed() {
+        Deadline<T> head;
+        while (((head = heap.peek()) != null) && head.cancelled) {
+            heap.poll();
+        }
+        return head;
+    }
+}
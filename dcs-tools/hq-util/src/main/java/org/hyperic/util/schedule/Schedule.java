@@ -26,8 +26,11 @@
 package org.hyperic.util.schedule;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
+import java.util.TreeSet;
 
 import java.text.DateFormat;
 
@@ -39,21 +42,44 @@ import org.apache.commons.logging.LogFactory;
  * The basetime used when doing any arithmetic with times is the epoch. The scheduler is synchronized.
  * 
  * Scheduled events have an interval property -- how often the event should execute (in milliseconds).
+ * 
+ * Items are kept in a sorted tree and indexed by ID, so scheduling and unscheduling an item is O(log n) and consuming
+ * the next items is O(k log n) for k due items.
  */
 
 public class Schedule {
 
+    /**
+     * Orders items by ascending nextTime. Items with the same nextTime are kept in the order they were (re-)inserted.
+     */
+    private static final Comparator<ScheduledItem> NEXT_TIME_ORDER = new Comparator<ScheduledItem>() {
+        public int compare(ScheduledItem a,
+                           ScheduledItem b) {
+            if (a.getNextTime() != b.getNextTime()) {
+                return (a.getNextTime() < b.getNextTime()) ? -1 : 1;
+            }
+            if (a.getInsertSeq() != b.getInsertSeq()) {
+                return (a.getInsertSeq() < b.getInsertSeq()) ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
     private final Object _lock = new Object();
 
     private long scheduleID; // Used for assigning unique event IDs
-    private Vector schedule; // The actual events being scheduled, sorted
-                             // by ascending nextTime in the item
+    private long insertSeq; // Used for keeping insertion order among items with the same nextTime
+    private final TreeSet<ScheduledItem> schedule; // The actual events being scheduled, sorted
+                                                   // by ascending nextTime in the item
+    private final Map<Long, ScheduledItem> itemsById; // ID -> item, for unscheduling
 
     private Log log = LogFactory.getLog(Schedule.class);
 
     public Schedule() {
-        this.schedule = new Vector();
+        this.schedule = new TreeSet<ScheduledItem>(NEXT_TIME_ORDER);
+        this.itemsById = new HashMap<Long, ScheduledItem>();
         this.scheduleID = 0;
+        this.insertSeq = 0;
     }
 
     /**
@@ -70,25 +96,15 @@ public class Schedule {
 
     /**
      * Insert a pre-made ScheduledItem into the schedule. The item should already have all appropriate attributes
-     * assigned (including the ID).
+     * assigned (including the ID). The item is placed after any other items with the same nextTime.
      * 
      * @param item The item to be inserted into the schedule
      */
 
     private void insertScheduledItem(ScheduledItem item) {
-        int i, size = this.schedule.size();
-        long nextTime = item.getNextTime();
-        ScheduledItem x;
-
-        for (i = 0; i < size; i++) {
-            x = (ScheduledItem) this.schedule.get(i);
-            if (x.getNextTime() > nextTime) {
-                this.schedule.add(i, item);
-                return;
-            }
-        }
-        // Else add at the end of the vector (time greater than all others)
+        item.setInsertSeq(this.insertSeq++);
         this.schedule.add(item);
+        this.itemsById.put(item.getId(), item);
     }
 
     /**
@@ -166,21 +182,17 @@ public class Schedule {
     public synchronized ScheduledItem unscheduleItem(long id)
         throws UnscheduledItemException
     {
-        int i, size = this.schedule.size();
-
-        for (i = 0; i < size; i++) {
-            ScheduledItem item = (ScheduledItem) this.schedule.get(i);
+        ScheduledItem item = this.itemsById.remove(id);
 
-            if (item.getId() == id) {
-                if (log.isDebugEnabled()) {
-                    log.debug("unscheduling " + item.getObj() + " getNextTime " +
-                                getDateStr(item.getNextTime()));
-                }
-                return (ScheduledItem) this.schedule.remove(i);
-            }
+        if (item == null) {
+            throw new UnscheduledItemException("id '" + id + "' not found");
         }
-
-        throw new UnscheduledItemException("id '" + id + "' not found");
+        if (log.isDebugEnabled()) {
+            log.debug("unscheduling " + item.getObj() + " getNextTime " +
+                        getDateStr(item.getNextTime()));
+        }
+        this.schedule.remove(item);
+        return item;
     }
 
     /**
@@ -195,14 +207,10 @@ public class Schedule {
     public synchronized long getTimeOfNext()
         throws EmptyScheduleException
     {
-        int size = this.schedule.size();
-        ScheduledItem item;
-
-        if (size == 0)
+        if (this.schedule.isEmpty())
             throw new EmptyScheduleException();
 
-        item = (ScheduledItem) this.schedule.get(0);
-        return item.getNextTime();
+        return this.schedule.first().getNextTime();
     }
 
     /**
@@ -218,25 +226,23 @@ public class Schedule {
     public synchronized List consumeNextItems()
         throws EmptyScheduleException
     {
-        int size = this.schedule.size();
-        ScheduledItem base;
+        ArrayList<ScheduledItem> due;
         ArrayList res;
         long baseNextTime;
 
-        if (size == 0)
+        if (this.schedule.isEmpty())
             throw new EmptyScheduleException();
 
-        res = new ArrayList(1);
+        due = new ArrayList<ScheduledItem>(1);
 
         // We always add the first item to the list of returned objects
-        base = (ScheduledItem) this.schedule.get(0);
         baseNextTime = System.currentTimeMillis();
-        res.add(base);
+        due.add(this.schedule.pollFirst());
 
         boolean debug = log.isDebugEnabled();
         // Now add other items if they occur at the same time
-        for (int i = 1; i < size; i++) {
-            ScheduledItem other = (ScheduledItem) this.schedule.get(i);
+        while (!this.schedule.isEmpty()) {
+            ScheduledItem other = this.schedule.first();
             if (debug) {
                 log.debug("checking " + other.getObj() + " baseNextTime: " +
                             getDateStr(baseNextTime) + ", getNextTime: " +
@@ -244,25 +250,24 @@ public class Schedule {
             }
 
             if (other.getNextTime() <= baseNextTime) {
-                res.add(other);
+                due.add(this.schedule.pollFirst());
             } else {
                 break;
             }
         }
 
-        // Finally, loop through the objects we are about to return, so
-        // we can re-order our innards, and return the actual objects
-        // stored instead of the ScheduledItem
-        // XXX -- This could be MUCH more efficient, especially with respect
-        // to re-inserting into the list, since all of the returned
-        // objects are of the same size.
-        for (int i = 0; i < res.size(); i++) {
-            ScheduledItem other = (ScheduledItem) res.get(i);
+        // Finally, loop through the items we are about to return, so
+        // we can re-insert the repeating ones at their next time, and return
+        // the actual objects stored instead of the ScheduledItem. Items are
+        // only re-inserted once all due items were taken out, so a stepped
+        // item can't be returned twice.
+        res = new ArrayList(due.size());
+        for (int i = 0; i < due.size(); i++) {
+            ScheduledItem other = due.get(i);
 
             if (debug) {
                 log.debug("removing " + other.getObj());
             }
-            this.schedule.remove(other);
             if (other.isRepeat()) {
                 other.stepNextTime();
                 if (debug) {
@@ -270,9 +275,11 @@ public class Schedule {
                                 getDateStr(other.getNextTime()));
                 }
                 this.insertScheduledItem(other);
+            } else {
+                this.itemsById.remove(other.getId());
             }
 
-            res.set(i, other.getObj());
+            res.add(other.getObj());
         }
         return res;
     }
@@ -289,7 +296,7 @@ public class Schedule {
      * @return the number of items in the schedule.
      */
 
-    public int getNumItems() {
+    public synchronized int getNumItems() {
         return this.schedule.size();
     }
 
@@ -299,8 +306,8 @@ public class Schedule {
      * @return the list of scheduled items.
      */
 
-    public ScheduledItem[] getScheduledItems() {
-        return (ScheduledItem[]) this.schedule.toArray(new ScheduledItem[0]);
+    public synchronized ScheduledItem[] getScheduledItems() {
+        return this.schedule.toArray(new ScheduledItem[this.schedule.size()]);
     }
 
     public static void main(String args[])
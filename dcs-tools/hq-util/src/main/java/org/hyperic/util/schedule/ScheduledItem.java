@@ -32,6 +32,7 @@ public class ScheduledItem {
     private boolean repeat; // Should this event be repeated?
     private long id; // Global schedule ID
     private long offset;
+    private long insertSeq; // Order of insertion into the owning Schedule
 
     ScheduledItem(Object obj,
                   long interval,
@@ -113,6 +114,14 @@ public class ScheduledItem {
         return id;
     }
 
+    long getInsertSeq() {
+        return insertSeq;
+    }
+
+    void setInsertSeq(long insertSeq) {
+        this.insertSeq = insertSeq;
+    }
+
     /**
      * Step the nextTime attribute to the current nextTime plus the interval for which the object should repeat.
      */
@@ -0,0 +1,195 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.schedule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel tracking deadlines of many short lived objects, most of which are cancelled long before their
+ * deadline.
+ *
+ * The wheel is made of buckets, each covering one tick. {@link #register(Object, long)} puts the object into a lock
+ * free pending queue and {@link Timeout#cancel()} removes it from its bucket in O(1), so neither takes a global lock.
+ * {@link #expire(long)} is called periodically by a single thread; it moves the pending objects into their buckets and
+ * visits only the buckets of the ticks which elapsed since the previous call, returning the objects whose deadline
+ * passed. Objects with a deadline more than one wheel turn away stay in their bucket until the right turn.
+ */
+public class TimeoutWheel<T> {
+
+    private final long tickMillis;
+    private final Set<Timeout<T>>[] buckets;
+    private final int mask;
+    private final Queue<Timeout<T>> pending = new ConcurrentLinkedQueue<Timeout<T>>();
+    private final AtomicInteger size = new AtomicInteger();
+    private long lastTick = -1; // last tick expired, only accessed by expire()
+
+    /**
+     * A registered deadline.
+     */
+    public static class Timeout<T> {
+        private final TimeoutWheel<T> wheel;
+        private final T obj;
+        private final long deadline;
+        private volatile Set<Timeout<T>> bucket = null;
+        private volatile boolean cancelled = false;
+
+        private Timeout(TimeoutWheel<T> wheel,
+                        T obj,
+                        long deadline) {
+            this.wheel = wheel;
+            this.obj = obj;
+            this.deadline = deadline;
+        }
+
+        public T getObj() {
+            return obj;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Deregister the deadline, typically because the tracked work completed in time.
+         */
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            Set<Timeout<T>> b = bucket;
+            if ((b != null) && b.remove(this)) {
+                wheel.size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @param tickMillis the resolution of the wheel
+     * @param numBuckets the number of ticks in one turn of the wheel, rounded up to a power of 2
+     */
+    @SuppressWarnings("unchecked")
+    public TimeoutWheel(long tickMillis,
+                        int numBuckets) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Invalid tick (" + tickMillis + ")");
+        }
+        int n = 1;
+        while (n < numBuckets) {
+            n <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.mask = n - 1;
+        this.buckets = new Set[n];
+        for (int i = 0; i < n; i++) {
+            buckets[i] = Collections.newSetFromMap(new ConcurrentHashMap<Timeout<T>, Boolean>(16, 0.75f, 1));
+        }
+    }
+
+    /**
+     * Register a deadline for an object.
+     *
+     * @param obj the tracked object, returned by {@link #expire(long)} once the deadline passes
+     * @param deadline the absolute time (ms since the epoch) of the deadline
+     * @return the handle used to cancel the deadline
+     */
+    public Timeout<T> register(T obj,
+                               long deadline) {
+        Timeout<T> timeout = new Timeout<T>(this, obj, deadline);
+        size.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Collect the objects whose deadline is at or before the given time. Expired deadlines are removed from the wheel.
+     *
+     * @param now the current time
+     * @return the expired objects, possibly empty
+     */
+    public synchronized List<T> expire(long now) {
+        long nowTick = now / tickMillis;
+        if (lastTick < 0) {
+            lastTick = nowTick - 1;
+        }
+        transferPending();
+
+        List<T> res = new ArrayList<T>();
+        // No need to go around the wheel more than once
+        long firstTick = Math.max(lastTick + 1, nowTick - mask);
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            Set<Timeout<T>> bucket = buckets[(int) (tick & mask)];
+            for (Iterator<Timeout<T>> it = bucket.iterator(); it.hasNext();) {
+                Timeout<T> timeout = it.next();
+                if (timeout.deadline <= now) {
+                    if (bucket.remove(timeout)) {
+                        size.decrementAndGet();
+                        if (!timeout.cancelled) {
+                            res.add(timeout.obj);
+                        }
+                    }
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, nowTick);
+        return res;
+    }
+
+    private void transferPending() {
+        Timeout<T> timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                size.decrementAndGet();
+                continue;
+            }
+            // The first tick starting at or after the deadline, deadlines which are already due go into the next
+            // bucket to be expired
+            long tick = Math.max((timeout.deadline + tickMillis - 1) / tickMillis, lastTick + 1);
+            Set<Timeout<T>> bucket = buckets[(int) (tick & mask)];
+            bucket.add(timeout);
+            timeout.bucket = bucket;
+            if (timeout.cancelled && bucket.remove(timeout)) {
+                // Cancelled while being transferred
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the number of registered deadlines which were neither cancelled nor expired
+     */
+    public int size() {
+        return size.get();
+    }
+}
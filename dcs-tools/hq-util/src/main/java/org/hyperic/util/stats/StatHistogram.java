@@ -0,0 +1,182 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non negative values, read and reset once per reporting interval.
+ *
+ * Like an HDR histogram, values are counted in buckets whose width grows with the magnitude of the value: every power
+ * of 2 range is split into {@link #SUB_BUCKETS} buckets, so any value is reported within 1/{@link #SUB_BUCKETS} of its
+ * magnitude while the whole long range needs less than 500 buckets. Recording a value neither locks nor allocates. The
+ * exact sum, minimum and maximum are kept next to the buckets.
+ */
+public class StatHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final StripedCounter sum = new StripedCounter();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * The values recorded during one interval.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        private Snapshot(long[] counts,
+                         long count,
+                         long sum,
+                         long min,
+                         long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the smallest value, 0 if there is none
+         */
+        public long getMin() {
+            return (count == 0) ? 0 : min;
+        }
+
+        /**
+         * @return the largest value, 0 if there is none
+         */
+        public long getMax() {
+            return (count == 0) ? 0 : max;
+        }
+
+        public double getMean() {
+            return (count == 0) ? 0 : ((double) sum) / count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the highest value equivalent to the value at the percentile, bounded by the minimum and maximum
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil((Math.min(100, Math.max(0, percentile)) / 100) * count);
+            rank = Math.max(1, rank);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.max(min, Math.min(max, highestEquivalentValue(i)));
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", sum=" + sum + ", min=" + getMin() + ", max=" + getMax() +
+                        ", p50=" + getValueAtPercentile(50) + ", p99=" + getValueAtPercentile(99);
+        }
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return ((shift + 1) * SUB_BUCKETS) + sub;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index / SUB_BUCKETS) - 1;
+        long sub = SUB_BUCKETS + (index % SUB_BUCKETS);
+        long next = (sub + 1) << shift;
+        return (next <= 0) ? Long.MAX_VALUE : next - 1;
+    }
+
+    /**
+     * @param value negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        sum.add(value);
+        long curr;
+        while (value < (curr = min.get())) {
+            if (min.compareAndSet(curr, value)) {
+                break;
+            }
+        }
+        while (value > (curr = max.get())) {
+            if (max.compareAndSet(curr, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Take the values recorded since the previous call and start over. Values recorded while the snapshot is taken
+     * may be split between this snapshot and the next one.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            if (counts.get(i) != 0) {
+                snapshot[i] = counts.getAndSet(i, 0);
+                count += snapshot[i];
+            }
+        }
+        return new Snapshot(snapshot, count, sum.sumThenReset(), min.getAndSet(Long.MAX_VALUE),
+                    max.getAndSet(Long.MIN_VALUE));
+    }
+}
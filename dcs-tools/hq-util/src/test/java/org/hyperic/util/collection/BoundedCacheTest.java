@@ -0,0 +1,166 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.collection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class BoundedCacheTest extends TestCase {
+
+    private static class TestCache extends BoundedCache<String, String> {
+        private long time = 1000;
+
+        TestCache(int maxSize,
+                  long maxIdle) {
+            super(maxSize, maxIdle);
+        }
+
+        @Override
+        protected long now() {
+            return time;
+        }
+    }
+
+    public void testHitsAndMisses() {
+        TestCache cache = new TestCache(10, 0);
+        assertNull(cache.get("a"));
+        assertNull(cache.putIfAbsent("a", "1"));
+        assertEquals("1", cache.putIfAbsent("a", "2"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    public void testEvictsLeastRecentlyRead() {
+        TestCache cache = new TestCache(10, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.time++;
+            cache.putIfAbsent("k" + i, "v" + i);
+        }
+        // k0 is the oldest insert but was read last
+        cache.time++;
+        assertEquals("v0", cache.get("k0"));
+        cache.time++;
+        cache.putIfAbsent("k10", "v10");
+        // Evicted down to 90% of the size
+        assertEquals(9, cache.size());
+        assertEquals(2, cache.getEvictions());
+        assertNull(cache.get("k1"));
+        assertNull(cache.get("k2"));
+        assertEquals("v0", cache.get("k0"));
+        assertEquals("v3", cache.get("k3"));
+        assertEquals("v10", cache.get("k10"));
+    }
+
+    public void testEvictsIdleEntries() {
+        TestCache cache = new TestCache(10, 1000);
+        cache.putIfAbsent("idle", "1");
+        cache.putIfAbsent("read", "2");
+        cache.time += 600;
+        assertEquals("2", cache.get("read"));
+        cache.time += 600;
+        assertNull(cache.get("idle"));
+        assertEquals("2", cache.get("read"));
+        assertEquals(1, cache.getEvictions());
+
+        // Idle entries which are never read again are dropped by the periodic sweep
+        cache.time += 2000;
+        cache.putIfAbsent("new", "3");
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getEvictions());
+
+        // An expired entry is replaced
+        cache.time += 2000;
+        assertNull(cache.putIfAbsent("new", "4"));
+        assertEquals("4", cache.get("new"));
+    }
+
+    public void testKeepsPinnedEntries() {
+        TestCache cache = new TestCache(2, 1000) {
+            @Override
+            protected boolean isEvictable(String value) {
+                return !value.startsWith("pinned");
+            }
+        };
+        cache.putIfAbsent("p", "pinned");
+        cache.putIfAbsent("a", "1");
+        cache.time += 2000;
+        assertEquals("pinned", cache.get("p"));
+        assertNull(cache.get("a"));
+
+        // Pinned entries are not evicted for space either
+        cache.putIfAbsent("b", "2");
+        cache.putIfAbsent("c", "3");
+        assertEquals("pinned", cache.get("p"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    public void testClear() {
+        TestCache cache = new TestCache(10, 0);
+        cache.putIfAbsent("a", "1");
+        cache.putIfAbsent("b", "2");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a"));
+        assertNull(cache.putIfAbsent("a", "3"));
+        assertEquals(1, cache.size());
+    }
+
+    public void testConcurrentInsertsStayBounded()
+        throws Exception {
+        final BoundedCache<String, String> cache = new BoundedCache<String, String>(1000, 0);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int id = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        String key = id + "-" + i;
+                        if (cache.get(key) == null) {
+                            cache.putIfAbsent(key, key);
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Inserts racing with the last sweep may be left over the size
+        assertTrue("size " + cache.size(), cache.size() <= 1000 + threads.size());
+        assertEquals(80000, cache.getMisses());
+        assertEquals(80000 - cache.size(), cache.getEvictions());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.util.EntityUtils;
+import org.hyperic.util.http.AgentRequest.AgentHttpMethod;
+import org.hyperic.util.security.KeystoreConfig;
+import org.hyperic.util.security.KeystoreManager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stub server which takes a while to answer each request, and a {@link ServersManager} sending to it through
+ * a pool of the given number of connections. Keeps track of the largest number of requests the server handled at once.
+ */
+class DelayingServerFixture {
+
+    // Connect and socket timeout of the client, ms
+    static final int TIMEOUT = 5000;
+
+    private final int delay;
+    private final int maxConnections;
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private ThreadSafeClientConnManager conman;
+    private HQHttpClient client;
+    private File keystoreFile;
+    private ServersManager serversManager;
+    private String url;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    DelayingServerFixture(int delay,
+                          int maxConnections) {
+        this.delay = delay;
+        this.maxConnections = maxConnections;
+    }
+
+    void start()
+        throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange)
+                throws IOException {
+                int current = inFlight.incrementAndGet();
+                int max;
+                while ((max = maxInFlight.get()) < current && !maxInFlight.compareAndSet(max, current)) {
+                    // retry
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                byte[] body = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/lather";
+
+        keystoreFile = File.createTempFile("serversManagerTest", ".keystore");
+        keystoreFile.delete();
+        KeystoreConfig keystoreConfig = new KeystoreConfig("hq", keystoreFile.getPath(), "storePW", true);
+        KeystoreManager.getKeystoreManager().initializeKeyStore(keystoreConfig);
+        conman = new ThreadSafeClientConnManager();
+        conman.setMaxTotal(maxConnections);
+        conman.setDefaultMaxPerRoute(maxConnections);
+        client = new HQHttpClient(keystoreConfig, new HttpConfig(TIMEOUT, TIMEOUT, null, -1), true, conman);
+        serversManager = new ServersManager(client, new CommunicationConfiguration(false, 1, 1));
+    }
+
+    void stop() {
+        conman.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+        keystoreFile.delete();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    HQHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return the largest number of requests handled at once since the last call
+     */
+    int takeMaxInFlight() {
+        return maxInFlight.getAndSet(0);
+    }
+
+    private void sendOne(boolean tryAll)
+        throws IOException {
+        sendOne(serversManager, tryAll);
+    }
+
+    /**
+     * Send a request to the stub server through the given manager, which must use {@link #getClient()}.
+     */
+    void sendOne(ServersManager manager,
+                 boolean tryAll)
+        throws IOException {
+        AgentRequest request = new AgentRequest(url, AgentHttpMethod.POST);
+        request.getParams().put("method", "test");
+        HttpResponse response = tryAll ? manager.sendTryAll(request) : manager.send(request);
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("ok", EntityUtils.toString(response.getEntity()));
+    }
+
+    /**
+     * @return the time (ms) taken to send the requests from numThreads threads
+     */
+    long sendAll(int numRequests,
+                 int numThreads,
+                 final boolean tryAll)
+        throws Exception {
+        ExecutorService senders = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < numRequests; i++) {
+                futures.add(senders.submit(new Callable<Object>() {
+                    public Object call()
+                        throws Exception {
+                        sendOne(tryAll);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return System.currentTimeMillis() - start;
+        } finally {
+            senders.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.hyperic.util.security.KeystoreConfig;
+import org.hyperic.util.security.KeystoreManager;
+
+/**
+ * Checks that {@link ServerHttpClient} closes its connection once every maxRequestsPerConnection requests, also when
+ * they are sent from many threads.
+ */
+public class ServerHttpClientTest extends TestCase {
+
+    private static final int MAX_REQUESTS_PER_CONNECTION = 4;
+    private static final int NUM_THREADS = 8;
+    private static final int NUM_REQUESTS = 2000;
+
+    private File keystoreFile;
+    private ServerHttpClient client;
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+
+    @Override
+    protected void setUp()
+        throws Exception {
+        super.setUp();
+        keystoreFile = File.createTempFile("serverHttpClientTest", ".keystore");
+        keystoreFile.delete();
+        KeystoreConfig keystoreConfig = new KeystoreConfig("hq", keystoreFile.getPath(), "storePW", true);
+        KeystoreManager.getKeystoreManager().initializeKeyStore(keystoreConfig);
+        client = new ServerHttpClient(keystoreConfig, new HttpConfig(1000, 1000, null, -1), true,
+                    MAX_REQUESTS_PER_CONNECTION, false, 1, 1);
+        // Count the requests instead of sending them
+        client.serversManager = new ServersManager(client, new CommunicationConfiguration(false, 1, 1)) {
+            @Override
+            public HttpResponse send(AgentRequest request,
+                                     HQHttpClient client)
+                throws IOException {
+                sent.incrementAndGet();
+                if ("close".equals(request.getHeaders().get(HttpHeaders.CONNECTION))) {
+                    closed.incrementAndGet();
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception {
+        client.getConnectionManager().shutdown();
+        keystoreFile.delete();
+        super.tearDown();
+    }
+
+    public void testCloseEveryMaxRequests()
+        throws Exception {
+        for (int i = 0; i < 10; i++) {
+            client.get("http://127.0.0.1/lather", false);
+        }
+        // 4 requests reusing the connection, then one closing it
+        assertEquals(2, closed.get());
+        client.get("http://127.0.0.1/lather", true);
+        assertEquals(3, closed.get());
+    }
+
+    public void testConcurrentRequestsAreCounted()
+        throws Exception {
+        List<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int t = 0; t < NUM_THREADS; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < NUM_REQUESTS / NUM_THREADS; i++) {
+                        try {
+                            client.get("http://127.0.0.1/lather", false);
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(NUM_REQUESTS, sent.get());
+        assertEquals(NUM_REQUESTS / (MAX_REQUESTS_PER_CONNECTION + 1), closed.get());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.http;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the time taken to send requests through one {@link ServersManager} from a single thread and from many
+ * threads, to a local stub server which takes a while to answer each request.
+ */
+public class ServersManagerSpeedTest extends TestCase {
+
+    private static final int SERVER_DELAY = 20;
+    private static final int NUM_THREADS = 8;
+    private static final int NUM_REQUESTS = 80;
+
+    private DelayingServerFixture fixture;
+
+    public ServersManagerSpeedTest(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp()
+        throws Exception {
+        super.setUp();
+        fixture = new DelayingServerFixture(SERVER_DELAY, NUM_THREADS);
+        fixture.start();
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception {
+        fixture.stop();
+        super.tearDown();
+    }
+
+    public void testSpeed()
+        throws Exception {
+        runSpeed(false);
+        runSpeed(true);
+    }
+
+    private void runSpeed(boolean tryAll)
+        throws Exception {
+        // Warm up the connections before measuring
+        fixture.sendAll(NUM_THREADS, NUM_THREADS, tryAll);
+
+        long serial = fixture.sendAll(NUM_REQUESTS, 1, tryAll);
+        long concurrent = fixture.sendAll(NUM_REQUESTS, NUM_THREADS, tryAll);
+
+        System.out.println((tryAll ? "sendTryAll" : "send") + ": " + NUM_REQUESTS + " requests, 1 thread: " + serial
+                    + " ms, " + NUM_THREADS + " threads: " + concurrent + " ms");
+    }
+}
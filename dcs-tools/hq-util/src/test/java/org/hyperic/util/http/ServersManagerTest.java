@@ -0,0 +1,235 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+/**
+ * Sends requests from many threads through one {@link ServersManager} to a local stub server which takes a while to
+ * answer each request. Requests sent concurrently overlap on the server rather than being sent one at a time. The
+ * time gained is measured by {@link ServersManagerSpeedTest}.
+ */
+public class ServersManagerTest extends TestCase {
+
+    private static final int SERVER_DELAY = 20;
+    private static final int NUM_THREADS = 8;
+    private static final int NUM_REQUESTS = 40;
+
+    private DelayingServerFixture fixture;
+
+    @Override
+    protected void setUp()
+        throws Exception {
+        super.setUp();
+        fixture = new DelayingServerFixture(SERVER_DELAY, NUM_THREADS);
+        fixture.start();
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception {
+        fixture.stop();
+        super.tearDown();
+    }
+
+    private void checkConcurrentSend(boolean tryAll)
+        throws Exception {
+        // Warm up the connections
+        fixture.sendAll(NUM_REQUESTS, NUM_THREADS, tryAll);
+        fixture.takeMaxInFlight();
+
+        fixture.sendAll(NUM_REQUESTS, 1, tryAll);
+        assertEquals(1, fixture.takeMaxInFlight());
+        fixture.sendAll(NUM_REQUESTS, NUM_THREADS, tryAll);
+        assertTrue("requests were not sent concurrently", fixture.takeMaxInFlight() > 1);
+    }
+
+    public void testConcurrentSend()
+        throws Exception {
+        checkConcurrentSend(false);
+    }
+
+    public void testConcurrentSendTryAll()
+        throws Exception {
+        checkConcurrentSend(true);
+    }
+
+    private Server newServer(String address)
+        throws Exception {
+        return new Server(InetAddress.getByName(address), new CommunicationConfiguration(true, 1, 1));
+    }
+
+    /**
+     * A node which doesn't answer at all, its connection attempt only ends once probeEnd is counted down.
+     */
+    private Server newDeadServer(InetAddress address,
+                                 final CountDownLatch probeEnd,
+                                 final AtomicBoolean probeEnded) {
+        return new Server(address, new CommunicationConfiguration(true, 1, 1)) {
+            @Override
+            public void probe(int port,
+                              int timeout)
+                throws IOException {
+                try {
+                    probeEnd.await(timeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                probeEnded.set(true);
+                throw new SocketTimeoutException("connect timed out");
+            }
+        };
+    }
+
+    public void testSortByHealth()
+        throws Exception {
+        Server failing = newServer("127.0.0.1");
+        Server slow = newServer("127.0.0.2");
+        Server fast = newServer("127.0.0.3");
+        Server unused = newServer("127.0.0.4");
+        failing.recordConnect(10);
+        failing.recordFailure();
+        slow.recordConnect(500);
+        fast.recordConnect(20);
+
+        // The unused server is assumed to have the average latency
+        assertEquals(Arrays.asList(fast, unused, slow, failing),
+                    ServersManager.sortByHealth(Arrays.asList(failing, slow, fast, unused)));
+
+        // Failures are forgotten as the server succeeds again
+        for (int i = 0; i < 10; i++) {
+            failing.recordSuccess();
+        }
+        assertEquals(Arrays.asList(failing, fast, unused, slow),
+                    ServersManager.sortByHealth(Arrays.asList(failing, slow, fast, unused)));
+    }
+
+    public void testRaceProbesPicksLiveServer()
+        throws Exception {
+        int port = fixture.getPort();
+        // Nothing listens on 127.0.0.2
+        Server refusing = newServer("127.0.0.2");
+        CountDownLatch deadProbeEnd = new CountDownLatch(1);
+        AtomicBoolean deadProbeEnded = new AtomicBoolean();
+        Server dead = newDeadServer(InetAddress.getByName("127.0.0.3"), deadProbeEnd, deadProbeEnded);
+        Server live = newServer("127.0.0.1");
+
+        try {
+            assertSame(live, ServersManager.raceProbes(Arrays.asList(dead, refusing, live), port, 5000));
+            assertFalse("fail over waited for the dead node", deadProbeEnded.get());
+        } finally {
+            deadProbeEnd.countDown();
+        }
+
+        assertNull(ServersManager.raceProbes(Arrays.asList(refusing), port, 5000));
+        assertTrue(refusing.getHealthScore(0) > live.getHealthScore(0));
+    }
+
+    /**
+     * The preferred server is down and the alternate known as the fastest no longer answers: the request is answered by
+     * the live alternate without waiting for the connect timeout of the dead one.
+     */
+    public void testFailoverTime()
+        throws Exception {
+        final CountDownLatch deadProbeEnd = new CountDownLatch(1);
+        final AtomicBoolean deadProbeEnded = new AtomicBoolean();
+        // No fail period, the preferred server is marked as down at the first request
+        ServersManager manager = new ServersManager(fixture.getClient(), new CommunicationConfiguration(true, 0, 1)) {
+            @Override
+            InetAddress[] resolve(String hostname)
+                throws UnknownHostException {
+                return new InetAddress[] { InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.3"),
+                            InetAddress.getByName("127.0.0.1") };
+            }
+
+            @Override
+            Server newServer(InetAddress address) {
+                if (!"127.0.0.3".equals(address.getHostAddress())) {
+                    return super.newServer(address);
+                }
+                Server dead = newDeadServer(address, deadProbeEnd, deadProbeEnded);
+                dead.recordConnect(1);
+                return dead;
+            }
+        };
+
+        try {
+            long start = System.currentTimeMillis();
+            fixture.sendOne(manager, false);
+            long failoverTime = System.currentTimeMillis() - start;
+            assertFalse("fail over waited for the dead node", deadProbeEnded.get());
+            assertTrue("fail over took " + failoverTime + " ms", failoverTime < DelayingServerFixture.TIMEOUT);
+        } finally {
+            deadProbeEnd.countDown();
+        }
+    }
+
+    /**
+     * The alternate servers are probed in the background, the time of the requests is not taken as latency.
+     */
+    public void testHealthCheckProbesAlternates()
+        throws Exception {
+        final List<Server> servers = new CopyOnWriteArrayList<Server>();
+        ServersManager manager = new ServersManager(fixture.getClient(), new CommunicationConfiguration(true, 1, 1)) {
+            @Override
+            InetAddress[] resolve(String hostname)
+                throws UnknownHostException {
+                return new InetAddress[] { InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2"),
+                            InetAddress.getByName("127.0.0.1") };
+            }
+
+            @Override
+            Server newServer(InetAddress address) {
+                Server server = super.newServer(address);
+                servers.add(server);
+                return server;
+            }
+        };
+        fixture.sendOne(manager, false);
+        Server preferred = servers.get(0);
+        Server refusing = servers.get(1);
+        Server live = servers.get(2);
+
+        long end = System.currentTimeMillis() + DelayingServerFixture.TIMEOUT;
+        while (((refusing.getHealthScore(0) == 0) || (live.getLatency() < 0)) && (System.currentTimeMillis() < end)) {
+            Thread.sleep(10);
+        }
+        assertTrue(refusing.getHealthScore(0) > 0);
+        assertTrue(live.getLatency() >= 0);
+        assertEquals(-1, preferred.getLatency());
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.schedule;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class DeadlineQueueTest extends TestCase {
+
+    public void testConsumeDueInDeadlineOrder()
+        throws Exception {
+        DeadlineQueue<String> q = new DeadlineQueue<String>();
+        q.schedule("c", 30);
+        q.schedule("a", 10);
+        q.schedule("b", 20);
+        q.schedule("d", 40);
+
+        assertEquals(10, q.getTimeOfNext());
+        assertEquals(Arrays.asList("a", "b", "c"), q.consumeDue(30));
+        assertEquals(1, q.size());
+        assertEquals(40, q.getTimeOfNext());
+        assertTrue(q.consumeDue(39).isEmpty());
+    }
+
+    public void testRescheduleReplacesDeadline()
+        throws Exception {
+        DeadlineQueue<String> q = new DeadlineQueue<String>();
+        q.schedule("a", 10);
+        q.schedule("a", 50);
+        assertEquals(1, q.size());
+        assertEquals(50, q.getTimeOfNext());
+        assertTrue(q.consumeDue(49).isEmpty());
+        assertEquals(Arrays.asList("a"), q.consumeDue(50));
+    }
+
+    public void testScheduleNoLaterThan()
+        throws Exception {
+        DeadlineQueue<String> q = new DeadlineQueue<String>();
+        q.schedule("a", 50);
+        assertFalse(q.scheduleNoLaterThan("a", 60));
+        assertEquals(50, q.getTimeOfNext());
+        assertTrue(q.scheduleNoLaterThan("a", 20));
+        assertEquals(20, q.getTimeOfNext());
+        List<String> due = q.consumeDue(100);
+        assertEquals(Arrays.asList("a"), due);
+    }
+
+    public void testUnschedule()
+        throws Exception {
+        DeadlineQueue<String> q = new DeadlineQueue<String>();
+        q.schedule("a", 10);
+        q.schedule("b", 20);
+        assertTrue(q.unschedule("a"));
+        assertFalse(q.unschedule("a"));
+        assertFalse(q.isScheduled("a"));
+        assertEquals(20, q.getTimeOfNext());
+        assertEquals(Arrays.asList("b"), q.consumeDue(100));
+        try {
+            q.getTimeOfNext();
+            fail("Queue should be empty");
+        } catch (EmptyScheduleException e) {
+            // expected
+        }
+    }
+
+    public void testAwaitNextReturnsWhenEarlierItemArrives()
+        throws Exception {
+        final DeadlineQueue<String> q = new DeadlineQueue<String>();
+        q.schedule("late", System.currentTimeMillis() + 60000);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                q.schedule("early", System.currentTimeMillis());
+            }
+        };
+        long start = System.currentTimeMillis();
+        t.start();
+        q.awaitNext(0);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertEquals(Arrays.asList("early"), q.consumeDue(System.currentTimeMillis()));
+        t.join();
+    }
+
+    public void testWakeUp()
+        throws Exception {
+        final DeadlineQueue<String> q = new DeadlineQueue<String>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                q.wakeUp();
+            }
+        };
+        long start = System.currentTimeMillis();
+        t.start();
+        q.awaitNext(0);
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        t.join();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.schedule;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the tree based {@link Schedule} against the original Vector based implementation for a large resource:
+ * schedule every item, unschedule half of them by id and consume the rest.
+ */
+public class ScheduleSpeedTest extends TestCase {
+
+    private static final int NUM_ITEMS = 10000;
+    private static final long MINUTE = 60 * 1000;
+
+    public ScheduleSpeedTest(String name) {
+        super(name);
+    }
+
+    public void testSpeed()
+        throws Exception {
+        // Warm up both implementations before measuring
+        runSchedule(1000);
+        runVectorSchedule(1000);
+
+        long start = System.currentTimeMillis();
+        runSchedule(NUM_ITEMS);
+        long treeTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        runVectorSchedule(NUM_ITEMS);
+        long vectorTime = System.currentTimeMillis() - start;
+
+        System.out.println("Schedule: scheduled, unscheduled and consumed " + NUM_ITEMS + " items in " + treeTime + " ms");
+        System.out.println("VectorSchedule: scheduled, unscheduled and consumed " + NUM_ITEMS + " items in " + vectorTime + " ms");
+    }
+
+    private void runSchedule(int numItems)
+        throws Exception {
+        Random r = new Random(42);
+        Schedule s = new Schedule();
+        long[] ids = new long[numItems];
+        for (int i = 0; i < numItems; i++) {
+            ids[i] = s.scheduleItem(new Integer(i), (1 + r.nextInt(30)) * MINUTE, 0, r.nextBoolean(), true);
+        }
+        for (int i = 0; i < numItems; i += 2) {
+            s.unscheduleItem(ids[i]);
+        }
+        assertEquals(numItems - (numItems + 1) / 2, s.getNumItems());
+        s.consumeNextItems();
+    }
+
+    private void runVectorSchedule(int numItems)
+        throws Exception {
+        Random r = new Random(42);
+        VectorSchedule s = new VectorSchedule();
+        long[] ids = new long[numItems];
+        for (int i = 0; i < numItems; i++) {
+            ids[i] = s.scheduleItem(new Integer(i), (1 + r.nextInt(30)) * MINUTE, 0, r.nextBoolean(), true);
+        }
+        for (int i = 0; i < numItems; i += 2) {
+            s.unscheduleItem(ids[i]);
+        }
+        assertEquals(numItems - (numItems + 1) / 2, s.getNumItems());
+        s.consumeNextItems();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.schedule;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ScheduleTest extends TestCase {
+
+    private static final long MINUTE = 60 * 1000;
+
+    public void testConsumeReturnsDueItemsAndRepeats()
+        throws Exception {
+        Schedule s = new Schedule();
+        s.scheduleItem("a", MINUTE, 0, true, true);
+        s.scheduleItem("b", 5 * MINUTE, 0, true, true);
+        s.scheduleItem("c", MINUTE, 0, false, true);
+        assertEquals(3, s.getNumItems());
+
+        long first = s.getTimeOfNext();
+        assertTrue(first <= System.currentTimeMillis());
+
+        List items = s.consumeNextItems();
+        assertEquals(2, items.size());
+        assertTrue(items.contains("a"));
+        assertTrue(items.contains("b"));
+        // Repeating items are put back at their next time
+        assertEquals(3, s.getNumItems());
+        assertTrue(s.getTimeOfNext() > first);
+    }
+
+    public void testNonRepeatingItemIsRemoved()
+        throws Exception {
+        Schedule s = new Schedule();
+        long id = s.scheduleItem("once", MINUTE, 0, true, false);
+        List items = s.consumeNextItems();
+        assertEquals(1, items.size());
+        assertEquals(0, s.getNumItems());
+        try {
+            s.unscheduleItem(id);
+            fail("Consumed item should not be found");
+        } catch (UnscheduledItemException e) {
+            // expected
+        }
+        try {
+            s.getTimeOfNext();
+            fail("Schedule should be empty");
+        } catch (EmptyScheduleException e) {
+            // expected
+        }
+    }
+
+    public void testUnscheduleItem()
+        throws Exception {
+        Schedule s = new Schedule();
+        long idA = s.scheduleItem("a", MINUTE, 0, true, true);
+        s.scheduleItem("b", MINUTE, 0, false, true);
+
+        ScheduledItem removed = s.unscheduleItem(idA);
+        assertEquals("a", removed.getObj());
+        assertEquals(1, s.getNumItems());
+        assertTrue(s.getTimeOfNext() >= System.currentTimeMillis() - 1000);
+        try {
+            s.unscheduleItem(idA);
+            fail("Item should already be unscheduled");
+        } catch (UnscheduledItemException e) {
+            // expected
+        }
+    }
+
+    public void testScheduledItemsAreSortedByNextTime()
+        throws Exception {
+        Schedule s = new Schedule();
+        s.scheduleItem("late", 10 * MINUTE, 0, false, true);
+        s.scheduleItem("early", MINUTE, 0, true, true);
+        s.scheduleItem("mid", 5 * MINUTE, 0, false, true);
+
+        ScheduledItem[] items = s.getScheduledItems();
+        assertEquals(3, items.length);
+        for (int i = 1; i < items.length; i++) {
+            assertTrue(items[i - 1].getNextTime() <= items[i].getNextTime());
+        }
+        assertEquals("early", items[0].getObj());
+    }
+
+    public void testInvalidInterval() {
+        Schedule s = new Schedule();
+        try {
+            s.scheduleItem("a", 0);
+            fail("Zero interval should be rejected");
+        } catch (ScheduleException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.schedule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class TimeoutWheelTest extends TestCase {
+
+    public void testExpireOnlyDueDeadlines()
+        throws Exception {
+        TimeoutWheel<String> wheel = new TimeoutWheel<String>(10, 8);
+        wheel.expire(1000);
+        wheel.register("a", 1015);
+        wheel.register("b", 1020);
+        wheel.register("c", 1055);
+        assertEquals(3, wheel.size());
+
+        assertTrue(wheel.expire(1010).isEmpty());
+        // Deadlines expire on the first tick at or after them
+        assertTrue(wheel.expire(1015).isEmpty());
+        List<String> expired = wheel.expire(1020);
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("a", "b"), expired);
+        assertTrue(wheel.expire(1050).isEmpty());
+        assertEquals(Arrays.asList("c"), wheel.expire(1060));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testCancelledDeadlinesDoNotExpire()
+        throws Exception {
+        TimeoutWheel<String> wheel = new TimeoutWheel<String>(10, 8);
+        wheel.expire(1000);
+        TimeoutWheel.Timeout<String> a = wheel.register("a", 1020);
+        TimeoutWheel.Timeout<String> b = wheel.register("b", 1020);
+        // Cancel one while still pending and one once in its bucket
+        a.cancel();
+        wheel.expire(1005);
+        b.cancel();
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.expire(1100).isEmpty());
+    }
+
+    public void testDeadlinesBeyondOneTurn()
+        throws Exception {
+        TimeoutWheel<String> wheel = new TimeoutWheel<String>(10, 4);
+        wheel.expire(1000);
+        // Shares a bucket with 1010 and 1050, but is three turns away
+        wheel.register("far", 1130);
+        wheel.register("near", 1010);
+        assertEquals(Arrays.asList("near"), wheel.expire(1010));
+        for (long now = 1020; now < 1130; now += 10) {
+            assertTrue("expired at " + now, wheel.expire(now).isEmpty());
+        }
+        assertEquals(Arrays.asList("far"), wheel.expire(1130));
+    }
+
+    public void testOverdueDeadlineExpiresOnNextCall()
+        throws Exception {
+        TimeoutWheel<String> wheel = new TimeoutWheel<String>(10, 8);
+        wheel.expire(1000);
+        wheel.register("late", 500);
+        assertEquals(Arrays.asList("late"), wheel.expire(1010));
+    }
+
+    public void testSkippedTicks()
+        throws Exception {
+        TimeoutWheel<String> wheel = new TimeoutWheel<String>(10, 8);
+        wheel.expire(1000);
+        wheel.register("a", 1020);
+        wheel.register("b", 1300);
+        List<String> expired = wheel.expire(5000);
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("a", "b"), expired);
+    }
+
+    public void testConcurrentRegisterAndCancel()
+        throws Exception {
+        final TimeoutWheel<Integer> wheel = new TimeoutWheel<Integer>(1, 64);
+        final int numThreads = 4;
+        final int perThread = 10000;
+        final AtomicInteger kept = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        final long deadline = System.currentTimeMillis() + 60000;
+        for (int t = 0; t < numThreads; t++) {
+            final int base = t * perThread;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            TimeoutWheel.Timeout<Integer> timeout = wheel.register(base + i, deadline);
+                            if ((i % 100) != 0) {
+                                timeout.cancel();
+                            } else {
+                                kept.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        List<Integer> expired = new ArrayList<Integer>();
+        while (done.getCount() > 0) {
+            expired.addAll(wheel.expire(System.currentTimeMillis()));
+        }
+        assertTrue(expired.isEmpty());
+        assertEquals(kept.get(), wheel.size());
+        assertEquals(kept.get(), wheel.expire(deadline).size());
+        assertEquals(0, wheel.size());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2012], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.util.stats;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class StatHistogramTest extends TestCase {
+
+    public void testBucketsCoverAllValues() {
+        int last = -1;
+        for (long v = 0; v < 100000; v++) {
+            int index = StatHistogram.bucketIndex(v);
+            assertTrue("bucket of " + v, (index == last) || (index == last + 1));
+            assertTrue(StatHistogram.highestEquivalentValue(index) >= v);
+            last = index;
+        }
+        assertEquals(Long.MAX_VALUE,
+                    StatHistogram.highestEquivalentValue(StatHistogram.bucketIndex(Long.MAX_VALUE)));
+    }
+
+    public void testSnapshot() {
+        StatHistogram histogram = new StatHistogram();
+        for (long v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+        StatHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500, snapshot.getSum());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(1000, snapshot.getValueAtPercentile(100));
+        assertWithin(500, snapshot.getValueAtPercentile(50));
+        assertWithin(990, snapshot.getValueAtPercentile(99));
+
+        StatHistogram.Snapshot empty = histogram.snapshotAndReset();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getSum());
+        assertEquals(0, empty.getMax());
+        assertEquals(0, empty.getValueAtPercentile(50));
+    }
+
+    private void assertWithin(long expected,
+                              long actual) {
+        assertTrue(actual + " is not within the precision of " + expected,
+                    (actual >= expected) && (actual <= expected + (expected / StatHistogram.SUB_BUCKETS)));
+    }
+
+    public void testConcurrentRecording()
+        throws Exception {
+        final StatHistogram histogram = new StatHistogram();
+        final int threads = 8;
+        final int perThread = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < perThread; j++) {
+                        histogram.record(j % 100);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        StatHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertEquals(threads * perThread, snapshot.getCount());
+        assertEquals(threads * (perThread / 100) * 4950L, snapshot.getSum());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(99, snapshot.getMax());
+    }
+
+    public void testStripedCounter() {
+        StripedCounter counter = new StripedCounter();
+        counter.add(5);
+        counter.increment();
+        assertEquals(6, counter.sum());
+        assertEquals(6, counter.sumThenReset());
+        assertEquals(0, counter.sum());
+    }
+}
@@ -61,6 +61,8 @@ public class AgentServlet implements HttpRequestHandler {
     private AgentCommandQueueService agentCommandQueueService;
     @Autowired
     private HttpSenderService httpSenderService;
+    @Autowired
+    private VerifiedAgentCache verifiedAgentCache;
 
     @PostConstruct
     public void init()
@@ -105,6 +107,32 @@ public class AgentServlet implements HttpRequestHandler {
             return;
         }
 
+        // Empty if the agent was recently rejected
+        String agentToken = verifiedAgentCache.lookup(agentCommandData.getAgentToken(),
+                    agentCommandData.getCertificateSerialNumber());
+        if (agentToken == null) {
+            agentToken = verifyAgent(agentCommandData, resp);
+            if (agentToken == null) {
+                return;
+            }
+        }
+
+        if (StringUtils.isNotEmpty(agentToken)) {
+            latherRequestHandler.handleRequest(req, resp, agentToken);
+        } else {
+            latherRequestHandler.issueErrorResponse(resp, UNAUTHORIZED_MSG);
+        }
+    }
+
+    /**
+     * Ask the adapter to verify the agent, and cache the outcome.
+     * 
+     * @return the agent token returned by the adapter, empty if the agent was rejected, or null if the adapter could
+     *         not be reached and a 503 was sent
+     */
+    private String verifyAgent(VerifyCommandData agentCommandData,
+                               HttpServletResponse resp)
+        throws IOException {
         AgentCommandResponse verifyAgentResponse = null;
         try {
             verifyAgentResponse = httpSenderService.sendCommand(agentCommandData, VerifyAgentCommandResponse.class);
@@ -112,21 +140,26 @@ public class AgentServlet implements HttpRequestHandler {
             logger.error("Getting error when calling with VerifyCommandData", e);
             // If we cannot connect to the adapter, then we assume its not available,
             // thus we notify the agent so it would try to connect to the next node
-            // in the cluster. Note: when we handle the request (down this flow)
-            // we try to connect to the adapter once again. This time we do not
-            // return 503 if the connection failed, aince we already checked it here.
-            // If this call (for some reason) is removed, we need to make sure we return
-            // 503 in case adapter is down.
+            // in the cluster. Note: verifications are cached, so the adapter may only
+            // be reached when the command itself is sent, in which case the lather
+            // request handler returns 503 as well.
             resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
-            return;
+            return null;
         }
 
         String agentToken = ((VerifyAgentCommandResponse) verifyAgentResponse).getToken();
         if (StringUtils.isNotEmpty(agentToken)) {
-            latherRequestHandler.handleRequest(req, resp, agentToken);
+            verifiedAgentCache.putVerified(agentCommandData.getAgentToken(),
+                        agentCommandData.getCertificateSerialNumber(), agentToken);
         } else {
-            latherRequestHandler.issueErrorResponse(resp, UNAUTHORIZED_MSG);
+            verifiedAgentCache.putRejected(agentCommandData.getAgentToken(),
+                        agentCommandData.getCertificateSerialNumber());
+            agentToken = StringUtils.EMPTY;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Verified agent, {}", verifiedAgentCache);
         }
+        return agentToken;
     }
 
     private VerifyCommandData getSerialAndTokenFromRequest(HttpServletRequest request)
@@ -21,6 +21,7 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.pool.PoolStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -29,7 +30,9 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.web.HttpRequestHandler;
 
+import com.vmware.epops.webapp.utils.AdapterConnectionPool;
 import com.vmware.epops.webapp.utils.HttpSenderService;
+import com.vmware.epops.webapp.utils.MeasurementReportBatcher;
 
 @Component("healthCheckServlet")
 public class HealthCheckServlet implements HttpRequestHandler {
@@ -37,11 +40,31 @@ public class HealthCheckServlet implements HttpRequestHandler {
     public static final String RESPONSE_STATUS_ONLINE = "ONLINE";
     public static final String RESPONSE_STATUS_OFFLINE = "OFFLINE";
 
+    // Utilisation of the adapter connection pool, reported with every health check
+    public static final String HDR_POOL_LEASED = "X-adapter-pool-leased";
+    public static final String HDR_POOL_AVAILABLE = "X-adapter-pool-available";
+    public static final String HDR_POOL_PENDING = "X-adapter-pool-pending";
+    public static final String HDR_POOL_MAX = "X-adapter-pool-max";
+    // Measurement batches, reported when batching is enabled
+    public static final String HDR_BATCH_POINTS = "X-measurement-batch-points";
+    public static final String HDR_BATCH_LATENCY = "X-measurement-batch-latency";
+    // Agent verification cache
+    public static final String HDR_VERIFY_CACHE_HITS = "X-agent-verify-cache-hits";
+    public static final String HDR_VERIFY_CACHE_REJECTED_HITS = "X-agent-verify-cache-rejected-hits";
+    public static final String HDR_VERIFY_CACHE_MISSES = "X-agent-verify-cache-misses";
+    public static final String HDR_VERIFY_CACHE_SIZE = "X-agent-verify-cache-size";
+
     private final static Logger logger = LoggerFactory
                 .getLogger(HealthCheckServlet.class);
 
     @Autowired
     private HttpSenderService httpSenderService;
+    @Autowired
+    private AdapterConnectionPool adapterConnectionPool;
+    @Autowired
+    private MeasurementReportBatcher measurementBatcher;
+    @Autowired
+    private VerifiedAgentCache verifiedAgentCache;
 
     @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "REC_CATCH_EXCEPTION",
                 justification = "catch all kind of exceptions and return unavailable")
@@ -50,6 +73,7 @@ public class HealthCheckServlet implements HttpRequestHandler {
                               HttpServletResponse res)
         throws ServletException, IOException {
 
+        addStats(res);
         try {
             ResponseEntity<String> check = httpSenderService.healthCheck();
             if (HttpStatus.OK.equals(check.getStatusCode())) {
@@ -74,4 +98,20 @@ public class HealthCheckServlet implements HttpRequestHandler {
         }
     }
 
+    private void addStats(HttpServletResponse res) {
+        PoolStats stats = adapterConnectionPool.getStats();
+        res.setIntHeader(HDR_POOL_LEASED, stats.getLeased());
+        res.setIntHeader(HDR_POOL_AVAILABLE, stats.getAvailable());
+        res.setIntHeader(HDR_POOL_PENDING, stats.getPending());
+        res.setIntHeader(HDR_POOL_MAX, stats.getMax());
+        if (measurementBatcher.isEnabled()) {
+            res.setHeader(HDR_BATCH_POINTS, measurementBatcher.getBatchPoints().toString());
+            res.setHeader(HDR_BATCH_LATENCY, measurementBatcher.getBatchLatency().toString());
+        }
+        res.setHeader(HDR_VERIFY_CACHE_HITS, Long.toString(verifiedAgentCache.getHitCount()));
+        res.setHeader(HDR_VERIFY_CACHE_REJECTED_HITS, Long.toString(verifiedAgentCache.getRejectedHitCount()));
+        res.setHeader(HDR_VERIFY_CACHE_MISSES, Long.toString(verifiedAgentCache.getMissCount()));
+        res.setHeader(HDR_VERIFY_CACHE_SIZE, Long.toString(verifiedAgentCache.getSize()));
+    }
+
 }
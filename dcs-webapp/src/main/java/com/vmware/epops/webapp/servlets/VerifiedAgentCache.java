@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.servlets;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers the outcome of agent verifications, keyed by the agent token and certificate serial number presented by
+ * the agent, so that the adapter is asked to verify an agent once per TTL rather than on every lather request.
+ * 
+ * Verified agents are kept for agent.verify.cache.ttl.seconds, rejected ones for the (shorter)
+ * agent.verify.cache.rejected.ttl.seconds. Both caches hold at most agent.verify.cache.size entries. Failed
+ * verifications (e.g. the adapter is down) are not cached. The webapp learns that an agent was deleted or its
+ * certificate revoked when the adapter rejects one of the agent's commands, which invalidates the agent. Otherwise the
+ * TTL bounds how long the webapp still lets the agent through.
+ */
+@Component
+public class VerifiedAgentCache {
+
+    private final static Logger logger = LoggerFactory.getLogger(VerifiedAgentCache.class);
+
+    private final Cache<Key, String> verified;
+    private final Cache<Key, Boolean> rejected;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong rejectedHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Autowired
+    public VerifiedAgentCache(@Value("${agent.verify.cache.size:10000}") String maxSize,
+                              @Value("${agent.verify.cache.ttl.seconds:60}") String ttl,
+                              @Value("${agent.verify.cache.rejected.ttl.seconds:30}") String rejectedTtl) {
+        this(Integer.parseInt(maxSize), Long.parseLong(ttl), Long.parseLong(rejectedTtl), Ticker.systemTicker());
+    }
+
+    VerifiedAgentCache(int maxSize,
+                       long ttlSeconds,
+                       long rejectedTtlSeconds,
+                       Ticker ticker) {
+        this.verified = CacheBuilder.newBuilder()
+                    .maximumSize(maxSize)
+                    .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                    .ticker(ticker)
+                    .build();
+        this.rejected = CacheBuilder.newBuilder()
+                    .maximumSize(maxSize)
+                    .expireAfterWrite(rejectedTtlSeconds, TimeUnit.SECONDS)
+                    .ticker(ticker)
+                    .build();
+        logger.info("Caching agent verifications: size={}, ttl={}s, rejectedTtl={}s",
+                    new Object[] { maxSize, ttlSeconds, rejectedTtlSeconds });
+    }
+
+    private static final class Key {
+        private final String agentToken;
+        private final String serialNumber;
+
+        private Key(String agentToken,
+                    String serialNumber) {
+            this.agentToken = agentToken;
+            this.serialNumber = serialNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * agentToken.hashCode() + serialNumber.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return agentToken.equals(other.agentToken) && serialNumber.equals(other.serialNumber);
+        }
+    }
+
+    /**
+     * @return the token the adapter returned when it verified the agent, an empty string if the adapter recently
+     *         rejected the agent, or null if the agent must be verified by the adapter
+     */
+    public String lookup(String agentToken,
+                         String serialNumber) {
+        Key key = new Key(agentToken, serialNumber);
+        String token = verified.getIfPresent(key);
+        if (token != null) {
+            hits.incrementAndGet();
+            return token;
+        }
+        if (rejected.getIfPresent(key) != null) {
+            rejectedHits.incrementAndGet();
+            return "";
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void putVerified(String agentToken,
+                            String serialNumber,
+                            String verifiedToken) {
+        Key key = new Key(agentToken, serialNumber);
+        rejected.invalidate(key);
+        verified.put(key, verifiedToken);
+    }
+
+    public void putRejected(String agentToken,
+                            String serialNumber) {
+        Key key = new Key(agentToken, serialNumber);
+        verified.invalidate(key);
+        rejected.put(key, Boolean.TRUE);
+    }
+
+    /**
+     * Forget the verifications of an agent, under any certificate, so that its next request is verified by the
+     * adapter again.
+     * 
+     * @param agentToken the token presented by the agent or the one the adapter returned when verifying it
+     */
+    public void invalidate(String agentToken) {
+        for (Map.Entry<Key, String> entry : verified.asMap().entrySet()) {
+            if (entry.getKey().agentToken.equals(agentToken) || entry.getValue().equals(agentToken)) {
+                verified.invalidate(entry.getKey());
+            }
+        }
+        for (Key key : rejected.asMap().keySet()) {
+            if (key.agentToken.equals(agentToken)) {
+                rejected.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * @return the number of lookups answered by a verified agent
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups answered by a rejected agent
+     */
+    public long getRejectedHitCount() {
+        return rejectedHits.get();
+    }
+
+    /**
+     * @return the number of lookups which required a verification by the adapter
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getSize() {
+        return verified.size() + rejected.size();
+    }
+
+    @Override
+    public String toString() {
+        return "VerifiedAgentCache[hits=" + getHitCount() + ", rejectedHits=" + getRejectedHitCount() + ", misses="
+                    + getMissCount() + ", size=" + getSize() + "]";
+    }
+}
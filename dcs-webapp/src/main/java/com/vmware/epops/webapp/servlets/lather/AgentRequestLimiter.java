@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.servlets.lather;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounds the number of lather requests being handled, overall and per agent. Handling a request blocks a container
+ * thread for the duration of the adapter call, so without a bound a slow adapter ends up holding every thread of the
+ * container, and health checks and agents alike time out. Requests over the bound are turned away immediately, and
+ * the agent tries again or fails over to another node.
+ * 
+ * Held long polls are bounded by the long poller, so a request gives back its overall slot while it is held, see
+ * {@link #hold()}.
+ */
+@Component
+public class AgentRequestLimiter {
+
+    private final static Logger logger = LoggerFactory.getLogger(AgentRequestLimiter.class);
+
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final int maxInFlightPerAgent;
+    // agent token -> requests in flight, -1 once released and about to be removed
+    private final ConcurrentMap<String, AtomicInteger> agents = new ConcurrentHashMap<>();
+    // slots taken over the bound by requests resumed after being held, given back by the next releases
+    private final AtomicInteger overdrawn = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong rejectedPerAgent = new AtomicLong();
+
+    @Autowired
+    public AgentRequestLimiter(@Value("${agent.request.max.inflight:150}") String maxInFlight,
+                               @Value("${agent.request.max.inflight.per.agent:4}") String maxInFlightPerAgent) {
+        this(Integer.parseInt(maxInFlight), Integer.parseInt(maxInFlightPerAgent));
+    }
+
+    AgentRequestLimiter(int maxInFlight,
+                        int maxInFlightPerAgent) {
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerAgent = maxInFlightPerAgent;
+        this.inFlight = new Semaphore(maxInFlight);
+        logger.info("Limiting lather requests in flight to {}, {} per agent", maxInFlight, maxInFlightPerAgent);
+    }
+
+    /**
+     * Reserve a slot for a request. Every successful call must be followed by {@link #release(String)}.
+     * 
+     * @param agentToken the agent sending the request, null if it is not known (e.g. registration)
+     * @return false if the request should be turned away
+     */
+    public boolean tryAcquire(String agentToken) {
+        if (agentToken != null && !tryAcquireAgent(agentToken)) {
+            rejectedPerAgent.incrementAndGet();
+            return false;
+        }
+        if (!inFlight.tryAcquire()) {
+            if (agentToken != null) {
+                releaseAgent(agentToken);
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void release(String agentToken) {
+        if (!takeOverdrawn()) {
+            inFlight.release();
+        }
+        if (agentToken != null) {
+            releaseAgent(agentToken);
+        }
+    }
+
+    /**
+     * Give back the overall slot of a request while it is held, e.g. a long poll waiting for commands. The request
+     * still counts against the limit of its agent. Every call must be followed by {@link #resume()}.
+     */
+    public void hold() {
+        inFlight.release();
+    }
+
+    /**
+     * Take back the overall slot of a held request. The request is not turned away if the bound was reached in the
+     * meantime, the slot is taken over the bound and given back by the next request to end.
+     */
+    public void resume() {
+        if (!inFlight.tryAcquire()) {
+            overdrawn.incrementAndGet();
+        }
+    }
+
+    private boolean takeOverdrawn() {
+        while (true) {
+            int current = overdrawn.get();
+            if (current == 0) {
+                return false;
+            }
+            if (overdrawn.compareAndSet(current, current - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean tryAcquireAgent(String agentToken) {
+        while (true) {
+            AtomicInteger count = agents.get(agentToken);
+            if (count == null) {
+                AtomicInteger newCount = new AtomicInteger();
+                count = agents.putIfAbsent(agentToken, newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            int current = count.get();
+            if (current < 0) {
+                // Being removed, get a fresh one
+                agents.remove(agentToken, count);
+                continue;
+            }
+            if (current >= maxInFlightPerAgent) {
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void releaseAgent(String agentToken) {
+        AtomicInteger count = agents.get(agentToken);
+        if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) {
+            agents.remove(agentToken, count);
+        }
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits() + overdrawn.get();
+    }
+
+    /**
+     * @return the number of requests turned away because too many requests were in flight
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of requests turned away because their agent had too many requests in flight
+     */
+    public long getRejectedPerAgentCount() {
+        return rejectedPerAgent.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AgentRequestLimiter[inFlight=" + getInFlight() + ", agents=" + agents.size() + ", rejected="
+                    + getRejectedCount() + ", rejectedPerAgent=" + getRejectedPerAgentCount() + "]";
+    }
+}
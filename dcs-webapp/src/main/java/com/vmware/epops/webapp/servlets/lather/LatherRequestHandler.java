@@ -15,16 +15,22 @@
 
 package com.vmware.epops.webapp.servlets.lather;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.hyperic.hq.bizapp.shared.lather.GetAgentCommands_args;
+import org.hyperic.hq.bizapp.shared.lather.GetAgentCommands_result;
 import org.hyperic.lather.LatherContext;
 import org.hyperic.lather.LatherValue;
 import org.hyperic.lather.client.LatherHTTPClient;
@@ -34,14 +40,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
 
 import com.vmware.epops.command.AgentCommandData;
 import com.vmware.epops.command.AgentCommandResponse;
 import com.vmware.epops.command.AgentVerifiedCommandData;
+import com.vmware.epops.command.upstream.measurement.MeasurementReportCommandData;
+import com.vmware.epops.command.upstream.queue.GetAgentQueueCommandData;
+import com.vmware.epops.webapp.servlets.VerifiedAgentCache;
 import com.vmware.epops.webapp.translators.lather.AgentVerifiedLatherCommandTranslator;
 import com.vmware.epops.webapp.translators.lather.AgentVerifiedLatherCommandTranslatorFactory;
 import com.vmware.epops.webapp.translators.lather.LatherCommandTranslator;
+import com.vmware.epops.webapp.utils.AgentCommandsLongPoller;
 import com.vmware.epops.webapp.utils.HttpSenderService;
+import com.vmware.epops.webapp.utils.MeasurementReportBatcher;
 
 @Component
 @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "REC_CATCH_EXCEPTION", justification = "All exceptions are cought")
@@ -51,11 +65,45 @@ public class LatherRequestHandler {
 
     @Autowired
     private HttpSenderService httpSenderService;
+    @Autowired
+    private AgentRequestLimiter requestLimiter;
+    @Autowired
+    private MeasurementReportBatcher measurementBatcher;
+    @Autowired
+    private AgentCommandsLongPoller commandsLongPoller;
+    @Autowired
+    private VerifiedAgentCache verifiedAgentCache;
 
     public void handleRequest(HttpServletRequest req,
                               HttpServletResponse resp,
                               String agentToken)
         throws ServletException, IOException {
+        if (!requestLimiter.tryAcquire(agentToken)) {
+            // Don't let requests pile up on the container threads, the agent will retry or fail over
+            logger.warn("Too many lather requests in flight, turning away request from {} agent: {}",
+                        req.getRemoteAddr(), agentToken);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many requests in flight");
+            return;
+        }
+        try {
+            String contentType = req.getContentType();
+            if ((contentType != null) && contentType.startsWith(LatherHTTPClient.CONTENT_TYPE_LATHER)) {
+                handleBinaryRequest(req, resp, agentToken);
+            } else {
+                handleFormRequest(req, resp, agentToken);
+            }
+        } finally {
+            requestLimiter.release(agentToken);
+        }
+    }
+
+    /**
+     * Handle a request whose args are Base64 encoded in a form parameter.
+     */
+    private void handleFormRequest(HttpServletRequest req,
+                                   HttpServletResponse resp,
+                                   String agentToken)
+        throws IOException {
         LatherXCoder xCoder;
         LatherValue val;
         String[] method;
@@ -84,16 +132,8 @@ public class LatherRequestHandler {
             resp.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
             return;
         }
-        try {
-            valClass = Class.forName(argsClass[0], true, xCoder.getClass()
-                        .getClassLoader());
-        } catch (ClassNotFoundException exc) {
-            String msg = "Lather request from " + req.getRemoteAddr()
-                        + " agent: " + agentToken
-                        + " required an argument object of class '" + argsClass[0]
-                        + "' which could not be found";
-            logger.error(msg);
-            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, msg);
+        valClass = getArgsClass(resp, xCoder, argsClass[0], req, agentToken);
+        if (valClass == null) {
             return;
         }
 
@@ -107,9 +147,156 @@ public class LatherRequestHandler {
             return;
         }
         if (logger.isDebugEnabled()) {
-            logger.debug("Handling {} command request from agent:{}", method, agentToken);
+            logger.debug("Handling {} command request from agent:{}", method[0], agentToken);
+        }
+        handleMethod(resp, xCoder, val, method[0], agentToken, false);
+    }
+
+    /**
+     * Handle an application/x-lather request: the method name, the args class name and the length prefixed args,
+     * decoded as they are read from the request body. The response is sent in the same binary form.
+     */
+    private void handleBinaryRequest(HttpServletRequest req,
+                                     HttpServletResponse resp,
+                                     String agentToken)
+        throws IOException {
+        LatherXCoder xCoder = new LatherXCoder();
+        DataInputStream dIs = new DataInputStream(new BufferedInputStream(req.getInputStream()));
+        String method;
+        String argsClass;
+        int length;
+
+        try {
+            method = dIs.readUTF();
+            argsClass = dIs.readUTF();
+            length = dIs.readInt();
+            if (length < 0) {
+                throw new IOException("Negative args length " + length);
+            }
+        } catch (IOException exc) {
+            String msg = "Invalid Lather request made from "
+                        + req.getRemoteAddr() + " agent: " + agentToken;
+            logger.error(msg, exc);
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+            return;
+        }
+        Class<?> valClass = getArgsClass(resp, xCoder, argsClass, req, agentToken);
+        if (valClass == null) {
+            return;
+        }
+
+        LatherValue val;
+        try {
+            val = decodeBinaryArgs(xCoder, dIs, length, valClass);
+        } catch (Exception exc) {
+            logger.error("failed to decode " + length + " bytes of args." + " (agent:" + agentToken + ") ", exc);
+            issueErrorResponse(resp, exc.toString());
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Handling {} binary command request from agent:{}", method, agentToken);
+        }
+        handleMethod(resp, xCoder, val, method, agentToken, true);
+    }
+
+    /**
+     * Decode exactly length bytes of args, the request is rejected if the args or the body don't match the length.
+     */
+    static LatherValue decodeBinaryArgs(LatherXCoder xCoder,
+                                        InputStream in,
+                                        int length,
+                                        Class<?> valClass)
+        throws Exception {
+        InputStream args = new LimitedInputStream(in, length);
+        // Running out of the limited stream fails the decode if the args are longer than the length
+        LatherValue val = xCoder.decode(new DataInputStream(args), valClass);
+        if (args.read() != -1) {
+            throw new IOException("Args are shorter than their length of " + length + " bytes");
+        }
+        if (in.read() != -1) {
+            throw new IOException("Request body is longer than its args length of " + length + " bytes");
+        }
+        return val;
+    }
+
+    /**
+     * Ends after the given number of bytes of the underlying stream.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long left;
+
+        LimitedInputStream(InputStream in,
+                           long limit) {
+            super(in);
+            left = limit;
+        }
+
+        @Override
+        public int read()
+            throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                left--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b,
+                        int off,
+                        int len)
+            throws IOException {
+            if (left <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n > 0) {
+                left -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n)
+            throws IOException {
+            long skipped = in.skip(Math.min(n, left));
+            left -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available()
+            throws IOException {
+            return (int) Math.min(in.available(), left);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private Class<?> getArgsClass(HttpServletResponse resp,
+                                  LatherXCoder xCoder,
+                                  String argsClass,
+                                  HttpServletRequest req,
+                                  String agentToken)
+        throws IOException {
+        try {
+            return Class.forName(argsClass, true, xCoder.getClass()
+                        .getClassLoader());
+        } catch (ClassNotFoundException exc) {
+            String msg = "Lather request from " + req.getRemoteAddr()
+                        + " agent: " + agentToken
+                        + " required an argument object of class '" + argsClass
+                        + "' which could not be found";
+            logger.error(msg);
+            resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, msg);
+            return null;
         }
-        handleMethod(resp, xCoder, val, method, agentToken);
     }
 
     @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "REC_CATCH_EXCEPTION",
@@ -117,28 +304,63 @@ public class LatherRequestHandler {
     private void handleMethod(HttpServletResponse resp,
                               LatherXCoder xCoder,
                               LatherValue val,
-                              String[] method,
-                              String agentToken)
+                              String method,
+                              String agentToken,
+                              boolean binary)
         throws IOException {
         try {
             AgentCommandResponse response = null;
-            LatherCommandTranslator commandDataTranslator = getCommandDataTranslator(method[0]);
-            AgentCommandData agentCommandData = getAgentCommandData(commandDataTranslator, val, agentToken, method[0]);
+            LatherCommandTranslator commandDataTranslator = getCommandDataTranslator(method);
+            AgentCommandData agentCommandData = getAgentCommandData(commandDataTranslator, val, agentToken, method);
 
             if (null != agentCommandData) {
-                response = httpSenderService.sendCommand(agentCommandData, commandDataTranslator.getResponseType());
+                boolean longPolled = false;
+                if (measurementBatcher.accepts(agentCommandData)) {
+                    response = measurementBatcher.send((MeasurementReportCommandData) agentCommandData);
+                } else if ((val instanceof GetAgentCommands_args)
+                            && (agentCommandData instanceof GetAgentQueueCommandData)
+                            && commandsLongPoller.accepts(((GetAgentCommands_args) val).getWait())) {
+                    // Held polls are bounded by the long poller rather than by the overall request limit
+                    requestLimiter.hold();
+                    try {
+                        response = commandsLongPoller.poll((GetAgentQueueCommandData) agentCommandData,
+                                    ((GetAgentCommands_args) val).getWait());
+                    } finally {
+                        requestLimiter.resume();
+                    }
+                    longPolled = (response != null);
+                }
+                if (response == null) {
+                    response = httpSenderService.sendCommand(agentCommandData, commandDataTranslator.getResponseType());
+                }
                 LatherValue translatedResponse = commandDataTranslator
                             .translateResponse(response);
+                if (longPolled && (translatedResponse instanceof GetAgentCommands_result)) {
+                    // Let the agent poll again right away
+                    ((GetAgentCommands_result) translatedResponse).setLongPoll(true);
+                }
 
-                issueSuccessResponse(resp, xCoder, translatedResponse);
+                issueSuccessResponse(resp, xCoder, translatedResponse, binary);
             } else {
                 String errorMessage = "Failed to translate agent command data "
-                            + method[0] + " (agent:" + agentToken + ") ";
+                            + method + " (agent:" + agentToken + ") ";
                 logger.error(errorMessage);
                 issueErrorResponse(resp, errorMessage);
             }
+        } catch (ResourceAccessException e) {
+            // The adapter is not available (the agent verification may have been cached), let the agent
+            // try the next node in the cluster
+            logger.error("Adapter not available for method: " + method + " (agent:" + agentToken + ") ", e);
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+        } catch (HttpClientErrorException e) {
+            if ((e.getStatusCode() == HttpStatus.UNAUTHORIZED) || (e.getStatusCode() == HttpStatus.FORBIDDEN)) {
+                // The agent was deleted or its certificate revoked, verify it again on its next request
+                verifiedAgentCache.invalidate(agentToken);
+            }
+            logger.error("Exception for method: " + method + " (agent:" + agentToken + ") ", e);
+            issueErrorResponse(resp, e.getMessage());
         } catch (Exception e) {
-            logger.error("Exception for method: " + method[0] + " (agent:" + agentToken + ") ", e);
+            logger.error("Exception for method: " + method + " (agent:" + agentToken + ") ", e);
             issueErrorResponse(resp, e.getMessage());
         }
     }
@@ -177,11 +399,34 @@ public class LatherRequestHandler {
                                      LatherXCoder xCoder,
                                      LatherValue res)
         throws IOException {
+        issueSuccessResponse(resp, xCoder, res, false);
+    }
+
+    /**
+     * @param binary true to write the encoded value directly as an application/x-lather body, false to Base64 encode
+     *            it for agents which only understand the form encoding
+     */
+    public void issueSuccessResponse(HttpServletResponse resp,
+                                     LatherXCoder xCoder,
+                                     LatherValue res,
+                                     boolean binary)
+        throws IOException {
         byte[] rawData;
 
-        resp.setContentType("text/latherValue");
         resp.setHeader(LatherHTTPClient.HDR_VALUECLASS, res.getClass()
                     .getName());
+        // Let agents know they may send binary requests
+        resp.setIntHeader(LatherHTTPClient.HDR_BINARY, 1);
+
+        if (binary) {
+            resp.setContentType(LatherHTTPClient.CONTENT_TYPE_LATHER);
+            DataOutputStream dOs = new DataOutputStream(new BufferedOutputStream(resp.getOutputStream()));
+            xCoder.encode(res, dOs);
+            dOs.flush();
+            return;
+        }
+
+        resp.setContentType("text/latherValue");
 
         try (ByteArrayOutputStream bOs = new ByteArrayOutputStream();
                     DataOutputStream dOs = new DataOutputStream(bOs)) {
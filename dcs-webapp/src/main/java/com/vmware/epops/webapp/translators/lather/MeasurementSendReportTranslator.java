@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.hyperic.hq.bizapp.shared.lather.CommandInfo;
+import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReportColumnar_args;
 import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReport_args;
 import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReport_result;
 import org.hyperic.hq.measurement.data.DSNList;
@@ -50,26 +51,60 @@ public class MeasurementSendReportTranslator implements AgentVerifiedLatherComma
     @Override
     public AgentVerifiedCommandData translateRequest(LatherValue latherValue,
                                                      String agentToken) {
-        if (!(latherValue instanceof MeasurementSendReport_args)) {
-            log.error("Got {} command request with the wrong values from agent: {}", COMMAND_NAME, agentToken);
-            return null;
-        }
-
-        MeasurementSendReport_args latherArgs = (MeasurementSendReport_args) latherValue;
-
-        DSNList[] clientIDs;
         List<RawResource> rawData = null;
         try {
-            clientIDs = latherArgs.getReport().getClientIdList();
-            rawData = getRawData(clientIDs, agentToken);
+            if (latherValue instanceof MeasurementSendReportColumnar_args) {
+                rawData = getRawData((MeasurementSendReportColumnar_args) latherValue, agentToken);
+            } else if (latherValue instanceof MeasurementSendReport_args) {
+                DSNList[] clientIDs = ((MeasurementSendReport_args) latherValue).getReport().getClientIdList();
+                rawData = getRawData(clientIDs, agentToken);
+            } else {
+                log.error("Got {} command request with the wrong values from agent: {}", COMMAND_NAME, agentToken);
+                return null;
+            }
         } catch (LatherRemoteException e) {
-            log.error("Failed to translate MeasurementSendReport_args. Error: {}", e.getMessage());
+            log.error("Failed to translate {}. Error: {}", latherValue.getClass().getSimpleName(), e.getMessage());
         }
         MeasurementReportCommandData commandData = new MeasurementReportCommandData(agentToken, rawData);
 
         return commandData;
     }
 
+    /**
+     * Decode a columnar report straight into the raw resources
+     */
+    private List<RawResource> getRawData(MeasurementSendReportColumnar_args latherArgs,
+                                         final String agentToken)
+        throws LatherRemoteException {
+        final Map<Integer, RawResource> resources = new HashMap<>();
+
+        latherArgs.visitReport(new MeasurementSendReportColumnar_args.ReportVisitor() {
+            private List<MetricVal> metricValList;
+
+            @Override
+            public void startSeries(long clientId,
+                                    long dsnId,
+                                    int numValues) {
+                metricValList = getMetricValList(resources, CommonUtils.getResourceId(dsnId),
+                            CommonUtils.getAttributeKeyId(dsnId), agentToken);
+            }
+
+            @Override
+            public void value(long timestamp,
+                              double value) {
+                metricValList.add(new MetricVal(value, timestamp));
+            }
+
+            @Override
+            public void srn(int entType,
+                            int entId,
+                            int revNo) {
+                // SRNs are not used by the server
+            }
+        });
+        return new ArrayList<RawResource>(resources.values());
+    }
+
     private List<RawResource> getRawData(DSNList[] clientIDs,
                                          String agentToken) {
         Map<Integer, RawResource> resources = new HashMap<>();
@@ -113,6 +148,7 @@ public class MeasurementSendReportTranslator implements AgentVerifiedLatherComma
     public LatherValue translateResponse(AgentCommandResponse response) {
         MeasurementSendReport_result res = new MeasurementSendReport_result();
         res.setTime(System.currentTimeMillis());
+        res.setColumnarFormat(MeasurementSendReportColumnar_args.FORMAT_VERSION);
         return res;
     }
 
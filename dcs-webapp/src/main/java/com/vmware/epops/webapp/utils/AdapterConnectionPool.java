@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.utils;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The pool of keep-alive connections to the adapter, used by the restTemplate bean. All the calls go to a single
+ * host, so the route limit is the same as the overall limit. Connections idle for longer than
+ * adapter.http.idle.timeout.seconds are closed in the background.
+ */
+@Component("adapterConnectionPool")
+public class AdapterConnectionPool {
+
+    private final static Logger logger = LoggerFactory.getLogger(AdapterConnectionPool.class);
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    @Autowired
+    public AdapterConnectionPool(@Value("${adapter.http.max.connections:200}") String maxConnections,
+                                 @Value("${adapter.http.connect.timeout:5000}") String connectTimeout,
+                                 @Value("${adapter.http.read.timeout:20000}") String readTimeout,
+                                 @Value("${adapter.http.pool.timeout:5000}") String poolTimeout,
+                                 @Value("${adapter.http.idle.timeout.seconds:30}") String idleTimeout) {
+        int max = Integer.parseInt(maxConnections);
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(max);
+        connectionManager.setDefaultMaxPerRoute(max);
+        // Check connections the adapter may have closed before reusing them
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(Integer.parseInt(connectTimeout))
+                    .setSocketTimeout(Integer.parseInt(readTimeout))
+                    .setConnectionRequestTimeout(Integer.parseInt(poolTimeout))
+                    .build();
+
+        httpClient = HttpClientBuilder.create()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .evictExpiredConnections()
+                    .evictIdleConnections(Long.parseLong(idleTimeout), TimeUnit.SECONDS)
+                    .build();
+
+        logger.info("Adapter connection pool: maxConnections={}, connectTimeout={}, readTimeout={}, poolTimeout={}, "
+                    + "idleTimeout={}s", new Object[] { max, connectTimeout, readTimeout, poolTimeout, idleTimeout });
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * @return the connections leased, available and pending (requests waiting for a connection), and the maximum
+     */
+    public PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    @PreDestroy
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the adapter connection pool", e);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.utils;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.vmware.epops.command.downstream.mail.AgentMailCommandDto;
+import com.vmware.epops.command.upstream.queue.GetAgentQueueCommandData;
+import com.vmware.epops.command.upstream.queue.GetAgentQueueCommandResponse;
+
+/**
+ * Holds the command polls of agents which asked for a long poll, until commands are queued for the agent in the
+ * adapter or the wait elapses. Commands are queued in the adapter, which doesn't tell the webapp, so the adapter queue
+ * is checked again after agent.commands.longpoll.recheck.ms, and the interval doubles after every empty check up to
+ * agent.commands.longpoll.recheck.max.ms. Commands queued right after a poll is answered are picked up quickly, and a
+ * poll held for the whole wait costs a handful of adapter calls.
+ * 
+ * A held poll occupies a container thread, so at most agent.commands.longpoll.max polls are held at a time and the
+ * wait is capped at agent.commands.longpoll.max.wait.ms. When no slot is available the poll is answered right away,
+ * and the agent falls back to its polling frequency.
+ */
+@Component
+public class AgentCommandsLongPoller {
+
+    private final static Logger logger = LoggerFactory.getLogger(AgentCommandsLongPoller.class);
+
+    private final HttpSenderService httpSenderService;
+    private final int maxHeld;
+    private final long maxWait;
+    private final long recheck;
+    private final long maxRecheck;
+    private final Semaphore held;
+
+    @Autowired
+    public AgentCommandsLongPoller(HttpSenderService httpSenderService,
+                                   @Value("${agent.commands.longpoll.max:50}") String maxHeld,
+                                   @Value("${agent.commands.longpoll.max.wait.ms:25000}") String maxWait,
+                                   @Value("${agent.commands.longpoll.recheck.ms:1000}") String recheck,
+                                   @Value("${agent.commands.longpoll.recheck.max.ms:5000}") String maxRecheck) {
+        this.httpSenderService = httpSenderService;
+        this.maxHeld = Math.max(0, Integer.parseInt(maxHeld));
+        this.maxWait = Long.parseLong(maxWait);
+        this.recheck = Math.max(1, Long.parseLong(recheck));
+        this.maxRecheck = Math.max(this.recheck, Long.parseLong(maxRecheck));
+        this.held = new Semaphore(this.maxHeld);
+        logger.info("Long polling agent commands: max={}, maxWait={}ms, recheck={}-{}ms",
+                    new Object[] { maxHeld, maxWait, this.recheck, this.maxRecheck });
+    }
+
+    /**
+     * @param wait the longest time (ms) the agent asked the poll to be held
+     * @return true if a poll with that wait may be held through {@link #poll(GetAgentQueueCommandData, int)}
+     */
+    public boolean accepts(int wait) {
+        return (wait > 0) && (maxHeld > 0) && (maxWait > 0);
+    }
+
+    /**
+     * Get the commands queued for the agent, waiting for up to the given time for commands to be queued.
+     * 
+     * @return the response of the adapter, or null if too many polls are held already and the poll should be answered
+     *         right away
+     */
+    public GetAgentQueueCommandResponse poll(GetAgentQueueCommandData data,
+                                             int wait)
+        throws MalformedURLException, URISyntaxException {
+        if (!held.tryAcquire()) {
+            return null;
+        }
+        try {
+            long deadline = System.currentTimeMillis() + Math.min(wait, maxWait);
+            long interval = recheck;
+            while (true) {
+                GetAgentQueueCommandResponse response =
+                            httpSenderService.sendCommand(data, GetAgentQueueCommandResponse.class);
+                long remaining = deadline - System.currentTimeMillis();
+                if (hasCommands(response) || (remaining <= 0)) {
+                    return response;
+                }
+                try {
+                    Thread.sleep(Math.min(interval, remaining));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return response;
+                }
+                interval = Math.min(interval * 2, maxRecheck);
+            }
+        } finally {
+            held.release();
+        }
+    }
+
+    private static boolean hasCommands(GetAgentQueueCommandResponse response) {
+        if (response == null) {
+            return false;
+        }
+        List<AgentMailCommandDto> commands = response.getAgentCommandsQueue();
+        return (commands != null) && !commands.isEmpty();
+    }
+
+    /**
+     * @return the number of polls held now
+     */
+    public int getHeld() {
+        return maxHeld - held.availablePermits();
+    }
+}
@@ -16,8 +16,11 @@
 package com.vmware.epops.webapp.utils;
 
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -35,6 +38,7 @@ public class HttpSenderService {
     private final RestTemplate restTemplate = null;
     private final String host;
     private final int port;
+    private final ConcurrentMap<Class<?>, URI> commandUris = new ConcurrentHashMap<>();
 
     @Autowired
     public HttpSenderService(@Value("${server.address}") String host,
@@ -48,10 +52,22 @@ public class HttpSenderService {
                                                           Class<T> responseType)
         throws MalformedURLException, URISyntaxException {
 
-        String file = "/agentAdapterCommand/" + agentCommandData.getClass().getSimpleName();
-        URL url = new URL("http", host, port, file);
+        return restTemplate.postForObject(getCommandUri(agentCommandData.getClass()), agentCommandData,
+                    responseType);
+    }
 
-        return restTemplate.postForObject(url.toURI(), agentCommandData, responseType);
+    /**
+     * @return the adapter URI of a command, built once per command class
+     */
+    private URI getCommandUri(Class<?> commandClass)
+        throws MalformedURLException, URISyntaxException {
+        URI uri = commandUris.get(commandClass);
+        if (uri == null) {
+            String file = "/agentAdapterCommand/" + commandClass.getSimpleName();
+            uri = new URL("http", host, port, file).toURI();
+            commandUris.putIfAbsent(commandClass, uri);
+        }
+        return uri;
     }
 
     public ResponseEntity<String> healthCheck()
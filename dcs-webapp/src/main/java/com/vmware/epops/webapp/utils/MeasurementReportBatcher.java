@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.utils;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.vmware.epops.command.AgentCommandData;
+import com.vmware.epops.command.upstream.EmptyAgentResponse;
+import com.vmware.epops.command.upstream.measurement.MeasurementReportCommandData;
+import com.vmware.epops.command.upstream.measurement.MetricVal;
+import com.vmware.epops.model.RawResource;
+
+/**
+ * Coalesces the measurement reports of many agents into a single adapter call. Enabled by measurement.batch.enabled.
+ * 
+ * A batch is sent measurement.batch.max.delay.ms after its first report arrived, or as soon as it holds
+ * measurement.batch.max.points metric values. The request of the first report of a batch sends it, the other requests
+ * wait for it. Every request returns (or fails) only once the adapter accepted (or failed) the whole batch, so agents
+ * keep their measurements spooled until they are durably stored. The raw resources of a batch keep the token of the
+ * agent which reported them.
+ */
+@Component
+public class MeasurementReportBatcher {
+
+    private final static Logger logger = LoggerFactory.getLogger(MeasurementReportBatcher.class);
+
+    private final HttpSenderService httpSenderService;
+    private final boolean enabled;
+    private final long maxDelay;
+    private final int maxPoints;
+    private final Histogram batchPoints = new Histogram();
+    private final Histogram batchLatency = new Histogram();
+    private Batch current = null; // batch accepting reports, guarded by this
+
+    private static class Batch {
+        private final long created = System.currentTimeMillis();
+        private final List<RawResource> resources = new ArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private String agentToken;
+        private int points = 0;
+        private boolean closed = false;
+        private volatile Exception failure = null;
+    }
+
+    @Autowired
+    public MeasurementReportBatcher(HttpSenderService httpSenderService,
+                                    @Value("${measurement.batch.enabled:false}") String enabled,
+                                    @Value("${measurement.batch.max.delay.ms:200}") String maxDelay,
+                                    @Value("${measurement.batch.max.points:50000}") String maxPoints) {
+        this.httpSenderService = httpSenderService;
+        this.enabled = Boolean.parseBoolean(enabled);
+        this.maxDelay = Long.parseLong(maxDelay);
+        this.maxPoints = Integer.parseInt(maxPoints);
+        if (this.enabled) {
+            logger.info("Batching measurement reports: maxDelay={}ms, maxPoints={}", maxDelay, maxPoints);
+        }
+    }
+
+    /**
+     * @return true if the command is a measurement report to send through {@link #send(MeasurementReportCommandData)}
+     */
+    public boolean accepts(AgentCommandData agentCommandData) {
+        return enabled && (agentCommandData instanceof MeasurementReportCommandData)
+                    && (((MeasurementReportCommandData) agentCommandData).getRawResources() != null);
+    }
+
+    /**
+     * Send a measurement report as part of a batch, returning once the adapter accepted the batch. If the adapter call
+     * of the batch fails, its exception is thrown to every request of the batch.
+     */
+    public EmptyAgentResponse send(MeasurementReportCommandData report)
+        throws MalformedURLException, URISyntaxException {
+        Batch batch;
+        boolean leader = false;
+        synchronized (this) {
+            if (current == null) {
+                current = new Batch();
+                current.agentToken = report.getAgentToken();
+                leader = true;
+            }
+            batch = current;
+            for (RawResource resource : report.getRawResources()) {
+                batch.resources.add(resource);
+                batch.points += countPoints(resource);
+            }
+            if (batch.points >= maxPoints) {
+                close(batch);
+            }
+        }
+
+        if (leader) {
+            awaitClose(batch);
+            flush(batch);
+        } else {
+            try {
+                batch.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the measurement batch", e);
+            }
+        }
+
+        Exception failure = batch.failure;
+        if (failure == null) {
+            return new EmptyAgentResponse();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof MalformedURLException) {
+            throw (MalformedURLException) failure;
+        }
+        if (failure instanceof URISyntaxException) {
+            throw (URISyntaxException) failure;
+        }
+        throw new IllegalStateException(failure);
+    }
+
+    private static int countPoints(RawResource resource) {
+        int res = 0;
+        if (resource.getMetrics() != null) {
+            for (List<MetricVal> vals : resource.getMetrics().values()) {
+                res += vals.size();
+            }
+        }
+        return res;
+    }
+
+    private void close(Batch batch) {
+        batch.closed = true;
+        if (current == batch) {
+            current = null;
+        }
+        notifyAll();
+    }
+
+    private synchronized void awaitClose(Batch batch) {
+        long deadline = batch.created + maxDelay;
+        long now;
+        boolean interrupted = false;
+        while (!batch.closed && ((now = System.currentTimeMillis()) < deadline)) {
+            try {
+                wait(deadline - now);
+            } catch (InterruptedException e) {
+                // Other requests wait for the batch, it must be sent
+                interrupted = true;
+            }
+        }
+        if (!batch.closed) {
+            close(batch);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(Batch batch) {
+        try {
+            httpSenderService.sendCommand(new MeasurementReportCommandData(batch.agentToken, batch.resources),
+                        EmptyAgentResponse.class);
+        } catch (Exception e) {
+            logger.error("Failed to send a batch of " + batch.points + " measurements", e);
+            batch.failure = e;
+        } finally {
+            batchPoints.record(batch.points);
+            batchLatency.record(System.currentTimeMillis() - batch.created);
+            batch.done.countDown();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sent a batch of {} measurements, {}", batch.points, this);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of metric values of the batches sent
+     */
+    public Histogram getBatchPoints() {
+        return batchPoints;
+    }
+
+    /**
+     * @return the time (ms) from the first report of a batch until the adapter accepted the batch
+     */
+    public Histogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "MeasurementReportBatcher[points: " + batchPoints + "; latency: " + batchLatency + "]";
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+public class VerifiedAgentCacheTest {
+
+    private static final String TOKEN = "token";
+    private static final String SERIAL = "serial";
+
+    private long now;
+    private VerifiedAgentCache cache;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        cache = new VerifiedAgentCache(100, 300, 30, new Ticker() {
+            @Override
+            public long read() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void testVerifiedUntilTtl() {
+        assertNull(cache.lookup(TOKEN, SERIAL));
+        cache.putVerified(TOKEN, SERIAL, "verified");
+
+        now += TimeUnit.SECONDS.toNanos(299);
+        assertEquals("verified", cache.lookup(TOKEN, SERIAL));
+        // Same token under another certificate is verified separately
+        assertNull(cache.lookup(TOKEN, "other"));
+
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertNull(cache.lookup(TOKEN, SERIAL));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testRejectedUntilShorterTtl() {
+        cache.putRejected(TOKEN, SERIAL);
+        assertEquals("", cache.lookup(TOKEN, SERIAL));
+        assertEquals(1, cache.getRejectedHitCount());
+
+        now += TimeUnit.SECONDS.toNanos(30);
+        assertNull(cache.lookup(TOKEN, SERIAL));
+
+        cache.putRejected(TOKEN, SERIAL);
+        cache.putVerified(TOKEN, SERIAL, "verified");
+        assertEquals("verified", cache.lookup(TOKEN, SERIAL));
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.putVerified(TOKEN, SERIAL, "verified");
+        cache.putVerified(TOKEN, "other", "verified");
+        cache.putVerified("token2", SERIAL, "verified2");
+        cache.putRejected(TOKEN, "rejected");
+
+        cache.invalidate(TOKEN);
+        assertNull(cache.lookup(TOKEN, SERIAL));
+        assertNull(cache.lookup(TOKEN, "other"));
+        assertNull(cache.lookup(TOKEN, "rejected"));
+        assertEquals("verified2", cache.lookup("token2", SERIAL));
+
+        // By the token the adapter returned
+        cache.invalidate("verified2");
+        assertNull(cache.lookup("token2", SERIAL));
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.servlets.lather;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class AgentRequestLimiterTest {
+
+    @Test
+    public void testHeldRequestsDoNotCountAgainstOverallLimit() {
+        AgentRequestLimiter limiter = new AgentRequestLimiter(2, 4);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertFalse(limiter.tryAcquire("c"));
+
+        limiter.hold();
+        assertTrue(limiter.tryAcquire("c"));
+        // Resumed over the bound
+        limiter.resume();
+        assertEquals(3, limiter.getInFlight());
+        assertFalse(limiter.tryAcquire("d"));
+
+        limiter.release("c");
+        assertEquals(2, limiter.getInFlight());
+        assertFalse(limiter.tryAcquire("d"));
+        limiter.release("a");
+        limiter.release("b");
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertFalse(limiter.tryAcquire("c"));
+    }
+
+    @Test
+    public void testPerAgentLimit() {
+        AgentRequestLimiter limiter = new AgentRequestLimiter(10, 2);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(1, limiter.getRejectedPerAgentCount());
+        assertEquals(3, limiter.getInFlight());
+
+        limiter.release("a");
+        assertTrue(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    public void testOverallLimit() {
+        AgentRequestLimiter limiter = new AgentRequestLimiter(2, 2);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire(null));
+        assertFalse(limiter.tryAcquire("b"));
+        assertEquals(1, limiter.getRejectedCount());
+
+        // The rejected request doesn't count against its agent
+        limiter.release(null);
+        assertTrue(limiter.tryAcquire("b"));
+        limiter.release("a");
+        assertTrue(limiter.tryAcquire("b"));
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void testConcurrentAgents()
+        throws Exception {
+        final int perAgent = 3;
+        final AgentRequestLimiter limiter = new AgentRequestLimiter(1000, perAgent);
+        final AtomicInteger maxSeen = new AtomicInteger();
+        final AtomicInteger current = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 20000; i++) {
+                        if (limiter.tryAcquire("agent")) {
+                            int now = current.incrementAndGet();
+                            if (now > maxSeen.get()) {
+                                maxSeen.set(now);
+                            }
+                            current.decrementAndGet();
+                            limiter.release("agent");
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Saw " + maxSeen.get() + " requests in flight", maxSeen.get() <= perAgent);
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire("agent"));
+    }
+}
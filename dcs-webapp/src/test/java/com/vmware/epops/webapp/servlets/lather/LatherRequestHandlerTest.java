@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.servlets.lather;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.hyperic.hq.bizapp.shared.lather.GetAgentCommands_args;
+import org.hyperic.lather.LatherValue;
+import org.hyperic.lather.xcode.LatherXCoder;
+import org.junit.Test;
+
+public class LatherRequestHandlerTest {
+
+    private static byte[] encode(LatherValue val)
+        throws IOException {
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream();
+        new LatherXCoder().encode(val, new DataOutputStream(bOs));
+        return bOs.toByteArray();
+    }
+
+    private static GetAgentCommands_args args(int wait) {
+        GetAgentCommands_args args = new GetAgentCommands_args();
+        args.setWait(wait);
+        return args;
+    }
+
+    private static LatherValue decode(byte[] body,
+                                      int length)
+        throws Exception {
+        return LatherRequestHandler.decodeBinaryArgs(new LatherXCoder(), new ByteArrayInputStream(body), length,
+                    GetAgentCommands_args.class);
+    }
+
+    @Test
+    public void testDecodeExactLength()
+        throws Exception {
+        byte[] args = encode(args(30000));
+        assertEquals(30000, ((GetAgentCommands_args) decode(args, args.length)).getWait());
+    }
+
+    @Test
+    public void testLengthShorterThanArgs()
+        throws Exception {
+        byte[] args = encode(args(30000));
+        try {
+            decode(args, args.length - 1);
+            fail("Args longer than their length were decoded");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testLengthLongerThanArgs()
+        throws Exception {
+        byte[] args = encode(args(30000));
+        byte[] body = Arrays.copyOf(args, args.length + 1);
+        try {
+            decode(body, args.length + 1);
+            fail("Args shorter than their length were decoded");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testBodyLongerThanLength()
+        throws Exception {
+        byte[] args = encode(args(30000));
+        byte[] body = Arrays.copyOf(args, args.length + 1);
+        try {
+            decode(body, args.length);
+            fail("Trailing bytes after the args were accepted");
+        } catch (IOException expected) {
+        }
+    }
+}
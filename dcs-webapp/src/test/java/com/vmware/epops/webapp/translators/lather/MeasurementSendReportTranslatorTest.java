@@ -22,9 +22,13 @@ import com.vmware.epops.command.upstream.measurement.MetricVal;
 import com.vmware.epops.model.RawResource;
 import com.vmware.epops.webapp.translators.lather.MeasurementSendReportTranslator;
 
+import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReportColumnar_args;
 import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReport_args;
+import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReport_result;
 import org.hyperic.hq.measurement.data.DSNList;
+import org.hyperic.hq.measurement.data.MeasurementReport;
 import org.hyperic.hq.measurement.data.ValueList;
+import org.hyperic.hq.measurement.server.session.SRN;
 import org.hyperic.hq.product.MetricValue;
 import org.junit.Assert;
 import org.junit.Before;
@@ -86,6 +90,31 @@ public class MeasurementSendReportTranslatorTest extends TranslatorUtil {
         MeasurementReportCommandData measurementReportCommandData =
                     (MeasurementReportCommandData) tested.translateRequest(mockedArgs, AGENT_TOKEN);
 
+        assertRawResources(measurementReportCommandData);
+    }
+
+    @Test
+    public void testTranslateColumnar()
+        throws Exception {
+        MeasurementReport report = new MeasurementReport();
+        report.setClientIdList(clientIDs);
+        report.setSRNList(new SRN[] {});
+        MeasurementSendReportColumnar_args args = new MeasurementSendReportColumnar_args();
+        args.setReport(report);
+
+        MeasurementReportCommandData measurementReportCommandData =
+                    (MeasurementReportCommandData) tested.translateRequest(args, AGENT_TOKEN);
+
+        assertRawResources(measurementReportCommandData);
+    }
+
+    @Test
+    public void testResponseAdvertisesColumnarFormat() {
+        MeasurementSendReport_result res = (MeasurementSendReport_result) tested.translateResponse(null);
+        Assert.assertEquals(MeasurementSendReportColumnar_args.FORMAT_VERSION, res.getColumnarFormat());
+    }
+
+    private void assertRawResources(MeasurementReportCommandData measurementReportCommandData) {
         List<RawResource> rawResources = measurementReportCommandData.getRawResources();
         Assert.assertEquals(metricsMap.keySet().size(), rawResources.size());
         for (RawResource rawResource : rawResources) {
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.vmware.epops.command.downstream.mail.AgentMailCommandDto;
+import com.vmware.epops.command.upstream.queue.GetAgentQueueCommandData;
+import com.vmware.epops.command.upstream.queue.GetAgentQueueCommandResponse;
+
+public class AgentCommandsLongPollerTest {
+
+    private static final GetAgentQueueCommandData DATA = new GetAgentQueueCommandData("token");
+
+    private HttpSenderService httpSenderService;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        httpSenderService = Mockito.mock(HttpSenderService.class);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static GetAgentQueueCommandResponse getResponse(int numCommands) {
+        List<AgentMailCommandDto> commands = Collections.nCopies(numCommands, new AgentMailCommandDto());
+        return new GetAgentQueueCommandResponse(commands);
+    }
+
+    @Test
+    public void testAccepts() {
+        AgentCommandsLongPoller poller = new AgentCommandsLongPoller(httpSenderService, "10", "25000", "1000", "1000");
+        assertTrue(poller.accepts(20000));
+        assertFalse(poller.accepts(0));
+        assertFalse(new AgentCommandsLongPoller(httpSenderService, "0", "25000", "1000", "1000").accepts(20000));
+        assertFalse(new AgentCommandsLongPoller(httpSenderService, "10", "0", "1000", "1000").accepts(20000));
+    }
+
+    @Test
+    public void testReturnsOnceCommandsAreQueued()
+        throws Exception {
+        GetAgentQueueCommandResponse commands = getResponse(2);
+        Mockito.when(httpSenderService.sendCommand(DATA, GetAgentQueueCommandResponse.class))
+                    .thenReturn(getResponse(0), getResponse(0), commands);
+        AgentCommandsLongPoller poller = new AgentCommandsLongPoller(httpSenderService, "10", "25000", "10", "10");
+
+        long start = System.currentTimeMillis();
+        assertSame(commands, poller.poll(DATA, 20000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        Mockito.verify(httpSenderService, Mockito.times(3)).sendCommand(DATA, GetAgentQueueCommandResponse.class);
+        assertEquals(0, poller.getHeld());
+    }
+
+    @Test
+    public void testReturnsEmptyOnceWaitElapsed()
+        throws Exception {
+        Mockito.when(httpSenderService.sendCommand(DATA, GetAgentQueueCommandResponse.class))
+                    .thenReturn(getResponse(0));
+        // The wait is capped by the configured maximum
+        AgentCommandsLongPoller poller = new AgentCommandsLongPoller(httpSenderService, "10", "200", "50", "50");
+
+        long start = System.currentTimeMillis();
+        GetAgentQueueCommandResponse response = poller.poll(DATA, 20000);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(response.getAgentCommandsQueue().isEmpty());
+        assertTrue("elapsed " + elapsed, (elapsed >= 200) && (elapsed < 5000));
+    }
+
+    @Test
+    public void testRecheckBacksOff()
+        throws Exception {
+        Mockito.when(httpSenderService.sendCommand(DATA, GetAgentQueueCommandResponse.class))
+                    .thenReturn(getResponse(0));
+        // Checks at 0, 20, 60, 140, 220, 300, 380 and 400ms rather than every 20ms
+        AgentCommandsLongPoller poller = new AgentCommandsLongPoller(httpSenderService, "10", "400", "20", "80");
+
+        poller.poll(DATA, 20000);
+        Mockito.verify(httpSenderService, Mockito.atMost(8)).sendCommand(DATA, GetAgentQueueCommandResponse.class);
+    }
+
+    @Test
+    public void testNotHeldWhenAllSlotsTaken()
+        throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(httpSenderService.sendCommand(DATA, GetAgentQueueCommandResponse.class)).thenAnswer(
+                    new Answer<GetAgentQueueCommandResponse>() {
+                        @Override
+                        public GetAgentQueueCommandResponse answer(InvocationOnMock invocation)
+                            throws Throwable {
+                            entered.countDown();
+                            release.await();
+                            return getResponse(1);
+                        }
+                    });
+        final AgentCommandsLongPoller poller =
+                    new AgentCommandsLongPoller(httpSenderService, "1", "25000", "1000", "1000");
+
+        Future<GetAgentQueueCommandResponse> first = executor.submit(
+                    new Callable<GetAgentQueueCommandResponse>() {
+                        @Override
+                        public GetAgentQueueCommandResponse call()
+                            throws Exception {
+                            return poller.poll(DATA, 20000);
+                        }
+                    });
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, poller.getHeld());
+        assertNull(poller.poll(DATA, 20000));
+
+        release.countDown();
+        assertEquals(1, first.get(5, TimeUnit.SECONDS).getAgentCommandsQueue().size());
+        assertEquals(0, poller.getHeld());
+    }
+}
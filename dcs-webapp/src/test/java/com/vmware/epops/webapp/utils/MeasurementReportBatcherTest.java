@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015 VMware, Inc.  All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License version 3 as published by the Free
+ * Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS FOR
+ * A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vmware.epops.webapp.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.web.client.ResourceAccessException;
+
+import com.vmware.epops.command.upstream.EmptyAgentResponse;
+import com.vmware.epops.command.upstream.measurement.MeasurementReportCommandData;
+import com.vmware.epops.command.upstream.measurement.MetricVal;
+import com.vmware.epops.model.RawResource;
+
+public class MeasurementReportBatcherTest {
+
+    private HttpSenderService httpSenderService;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        httpSenderService = Mockito.mock(HttpSenderService.class);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private MeasurementReportCommandData getReport(String agentToken,
+                                                   int resourceId,
+                                                   int numPoints) {
+        List<MetricVal> vals = new ArrayList<>();
+        for (int i = 0; i < numPoints; i++) {
+            vals.add(new MetricVal(i, i));
+        }
+        Map<Integer, List<MetricVal>> metrics = new HashMap<>();
+        metrics.put(1, vals);
+        RawResource resource = new RawResource(resourceId, metrics);
+        resource.setAgentToken(agentToken);
+        return new MeasurementReportCommandData(agentToken, Collections.singletonList(resource));
+    }
+
+    private List<Future<EmptyAgentResponse>> sendAll(final MeasurementReportBatcher batcher,
+                                                     int numAgents,
+                                                     int numPoints) {
+        List<Future<EmptyAgentResponse>> res = new ArrayList<>();
+        for (int i = 0; i < numAgents; i++) {
+            final MeasurementReportCommandData report = getReport("agent" + i, i, numPoints);
+            res.add(executor.submit(new Callable<EmptyAgentResponse>() {
+                @Override
+                public EmptyAgentResponse call()
+                    throws Exception {
+                    return batcher.send(report);
+                }
+            }));
+        }
+        return res;
+    }
+
+    @Test
+    public void testDisabled() {
+        MeasurementReportBatcher batcher = new MeasurementReportBatcher(httpSenderService, "false", "200", "100");
+        assertFalse(batcher.accepts(getReport("agent", 1, 1)));
+    }
+
+    @Test
+    public void testCoalescesReports()
+        throws Exception {
+        MeasurementReportBatcher batcher = new MeasurementReportBatcher(httpSenderService, "true", "500", "1000");
+        assertTrue(batcher.accepts(getReport("agent", 1, 1)));
+
+        for (Future<EmptyAgentResponse> future : sendAll(batcher, 10, 5)) {
+            future.get();
+        }
+
+        ArgumentCaptor<MeasurementReportCommandData> sent = ArgumentCaptor.forClass(MeasurementReportCommandData.class);
+        Mockito.verify(httpSenderService, Mockito.atLeastOnce()).sendCommand(sent.capture(),
+                    Mockito.eq(EmptyAgentResponse.class));
+        // All the reports arrive well within the delay of the first one
+        assertEquals(1, sent.getAllValues().size());
+        Set<String> tokens = new HashSet<>();
+        for (RawResource resource : sent.getValue().getRawResources()) {
+            tokens.add(resource.getAgentToken());
+        }
+        assertEquals(10, tokens.size());
+        assertEquals(1, batcher.getBatchPoints().getCount());
+        assertEquals(50, batcher.getBatchPoints().getMax());
+    }
+
+    @Test
+    public void testFullBatchIsSentWithoutDelay()
+        throws Exception {
+        MeasurementReportBatcher batcher = new MeasurementReportBatcher(httpSenderService, "true", "60000", "10");
+
+        long start = System.currentTimeMillis();
+        for (Future<EmptyAgentResponse> future : sendAll(batcher, 4, 5)) {
+            future.get();
+        }
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        Mockito.verify(httpSenderService, Mockito.times(2)).sendCommand(
+                    Mockito.any(MeasurementReportCommandData.class), Mockito.eq(EmptyAgentResponse.class));
+    }
+
+    @Test
+    public void testFailureIsReportedToAllAgents()
+        throws Exception {
+        ResourceAccessException failure = new ResourceAccessException("adapter down");
+        Mockito.when(httpSenderService.sendCommand(Mockito.any(MeasurementReportCommandData.class),
+                    Mockito.eq(EmptyAgentResponse.class))).thenThrow(failure);
+        MeasurementReportBatcher batcher = new MeasurementReportBatcher(httpSenderService, "true", "200", "1000");
+
+        for (Future<EmptyAgentResponse> future : sendAll(batcher, 5, 1)) {
+            try {
+                future.get();
+                fail("Agent acknowledged although the batch failed");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+    }
+}